@@ -17,12 +17,71 @@ import processor
 
 ##### file reading #####
 SAMPLE_PREFIX = "Capture_Sample_"
+TOF_EXTENSION = ".tof"
+TOF_HEADER = np.dtype([('magic', 'S4'), ('version', '<i4'), ('width', '<i4'), ('height', '<i4'),
+                       ('depth_scale', '<f4'), ('intrinsics', '<f4', (4,)), ('conf_scale', '<i4')])
+ARCHIVE_EXTENSION = ".samples"
+ARCHIVE_HEADER = np.dtype([('magic', 'S4'), ('version', '<i4'), ('count', '<i4'), ('width', '<i4'),
+                           ('height', '<i4'), ('image_width', '<i4'), ('image_height', '<i4'),
+                           ('conf_scale', '<i4'), ('index_offset', '<i8')])
+ARCHIVE_ENTRY = np.dtype([('sample', '<i4'), ('capture', '<i4'), ('depth', '<i8'), ('conf', '<i8'),
+                          ('image', '<i8')])
 
 ##### setting calibration parameters #####
 SHAPE = (360, 480)
 TOF_SHAPE = (180, 240)
 CENTER_BOUNDS = (int(SHAPE[1]/3), 2 * int(SHAPE[1]/3))
 
+# read a binary depth file (see TofFile.java), returning depth (meters) and confidence matrices
+def read_tof(tof_file):
+    with open(tof_file, 'rb') as fp:
+        header = fp.read(TOF_HEADER.itemsize)
+        magic, version, width, height, depth_scale, intrinsics, conf_scale = \
+            np.frombuffer(header, dtype=TOF_HEADER)[0]
+        if magic != b'TOFD' or version != 1:
+            raise ValueError('Unsupported depth file {}'.format(tof_file))
+        depth = np.fromfile(fp, dtype='<f4', count=width * height)
+        conf = np.fromfile(fp, dtype=np.uint8, count=width * height)
+    depth_matrix = depth.astype(float).reshape((height, width)) * depth_scale
+    conf_matrix = conf.astype(float).reshape((height, width)) / conf_scale
+    return depth_matrix, conf_matrix
+
+# map a sample archive (see SampleArchive.java), returning {(sample_num, capture_num): (depth, conf, rgb)}
+# and the confidence scale. depth is in meters, conf is in bytes (confidence = conf / scale) and rgb is
+# the image resized to SHAPE in bytes, or None. All are read-only views of the file, so only the pages
+# that are used get read.
+def read_archive(archive_file):
+    data = np.memmap(archive_file, dtype=np.uint8, mode='r')
+    header = data[:ARCHIVE_HEADER.itemsize].view(ARCHIVE_HEADER)[0]
+    if header['magic'] != b'TSMP' or header['version'] != 1:
+        raise ValueError('Unsupported sample archive {}'.format(archive_file))
+    width, height = int(header['width']), int(header['height'])
+    image_width, image_height = int(header['image_width']), int(header['image_height'])
+    start = int(header['index_offset'])
+    index = data[start:start + int(header['count']) * ARCHIVE_ENTRY.itemsize].view(ARCHIVE_ENTRY)
+
+    captures = {}
+    for entry in index:
+        depth_start, conf_start, image_start = int(entry['depth']), int(entry['conf']), int(entry['image'])
+        depth = data[depth_start:depth_start + 4 * width * height].view('<f4').reshape((height, width))
+        conf = data[conf_start:conf_start + width * height].reshape((height, width))
+        rgb = None
+        if image_start >= 0:
+            rgb = data[image_start:image_start + 3 * image_width * image_height].reshape(
+                (image_height, image_width, 3))
+        captures[(int(entry['sample']), int(entry['capture']))] = (depth, conf, rgb)
+    return captures, int(header['conf_scale'])
+
+# read the camera pose saved with a capture taken while AR Engine was tracking (see ImageStore.saveToFilePose),
+# returning the camera to world, view and projection matrices as 4x4 arrays, or None if it has no pose
+def read_pose(sample_num, capture_num):
+    pose_file = os.path.join(SAMPLE_PATH, SAMPLE_PREFIX + "{0}_{1}.pose.txt".format(sample_num, capture_num))
+    if not os.path.exists(pose_file):
+        return None
+    # column-major, as android.opengl.Matrix keeps them
+    matrices = np.loadtxt(pose_file, delimiter=',', ndmin=2)
+    return tuple(m.reshape((4, 4)).T for m in matrices)
+
 # read and format rgb and depth images
 def get_data(sample_num, capture_num):
     # getting raw data
@@ -33,15 +92,16 @@ def get_data(sample_num, capture_num):
     img_rgb = resize(image.imread(image_file), SHAPE)
 
     # process depth data
-    data = np.genfromtxt(data_file, delimiter=',')
-    data_x = data[:, 0].astype(int)
-    data_y = data[:, 1].astype(int)
-    data_depth = data[:, 2]
-    data_conf = data[:, 3]
-
-    # create matrix encoding of conf and depth
-    conf_matrix = np.array(data_conf).reshape(TOF_SHAPE)
-    depth_matrix = np.array(data_depth).reshape(TOF_SHAPE)
+    if os.path.exists(data_file + TOF_EXTENSION):
+        depth_matrix, conf_matrix = read_tof(data_file + TOF_EXTENSION)
+    else:
+        data = np.genfromtxt(data_file, delimiter=',')
+        data_depth = data[:, 2]
+        data_conf = data[:, 3]
+
+        # create matrix encoding of conf and depth
+        conf_matrix = np.array(data_conf).reshape(TOF_SHAPE)
+        depth_matrix = np.array(data_depth).reshape(TOF_SHAPE)
 
     scale_factor = 2
     conf_matrix = np.kron(conf_matrix, np.ones((scale_factor, scale_factor)))
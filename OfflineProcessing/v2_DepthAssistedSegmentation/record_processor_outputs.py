@@ -0,0 +1,64 @@
+"""Records the app's processor.py outputs for a directory of CSV depth captures.
+
+TrunkProcessorTest checks that the Java port, TrunkProcessor.run, reproduces these. Re-run this
+whenever processor.py changes:
+
+    python record_processor_outputs.py ../v1_CS898/samples \
+        ../../trees/app/src/test/resources/com/trees/common/processing/processor_outputs.csv
+"""
+import argparse
+import csv
+import os
+import sys
+
+import numpy as np
+
+# The processor the app ships, rather than the copy next to this script
+sys.path.insert(0, os.path.join(os.path.dirname(os.path.abspath(__file__)),
+                                "..", "..", "trees", "app", "src", "main", "python"))
+import processor
+
+SAMPLE_PREFIX = "Capture_Sample_"
+TOF_SHAPE = (180, 240)
+SCALE_FACTOR = 2
+
+
+def read_depth(capture_file):
+    """Depth in meters as the app reads it: float32, from DEPTH16 values or from meters."""
+    depth = np.zeros(TOF_SHAPE, dtype=np.float32)
+    with open(capture_file) as f:
+        for row in csv.reader(f):
+            if not row:
+                continue
+            x, y, value = int(row[0]), int(row[1]), row[2]
+            if "." in value or "E" in value:
+                depth[y, x] = np.float32(value)
+            else:
+                depth[y, x] = np.float32(int(value) & 0x1FFF) / np.float32(1000)
+    return depth
+
+
+def run(depth):
+    """processor.process on the depth as improc.run upscales it."""
+    depth = np.kron(depth.astype(np.float64), np.ones((SCALE_FACTOR, SCALE_FACTOR)))
+    rgb = np.zeros(depth.shape + (3,))
+    return processor.process(depth, rgb)
+
+
+if __name__ == "__main__":
+    parser = argparse.ArgumentParser(description="Record processor.py outputs for TrunkProcessorTest")
+    parser.add_argument("sample_path", type=str, help="directory of CSV depth captures")
+    parser.add_argument("output_file", type=str, help="CSV file to write the outputs to")
+    args = parser.parse_args()
+
+    names = sorted(name for name in os.listdir(args.sample_path) if name.startswith(SAMPLE_PREFIX)
+                   and not (name.endswith(".txt") or name.endswith(".jpeg")))
+    with open(args.output_file, "w", newline="") as out:
+        out.write("capture,angle,left,right,depth,width\n")
+        for name in names:
+            try:
+                angle, left, right, depth, width = run(read_depth(os.path.join(args.sample_path, name)))
+                out.write("{},{:.6f},{},{},{:.6f},{:.6f}\n".format(name, angle, left, right, depth, width))
+            except processor.Error as e:
+                # The test expects the matching exception for these
+                out.write("{},{}\n".format(name, type(e).__name__))
@@ -0,0 +1,5 @@
+precision mediump float;
+
+// Depth-only occlusion: colour writes are masked off, so the fragment only writes depth.
+void main() {
+}
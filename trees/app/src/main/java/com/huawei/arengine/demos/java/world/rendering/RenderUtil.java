@@ -7,6 +7,7 @@ package com.huawei.arengine.demos.java.world.rendering;
 import android.app.Activity;
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
 import android.media.Image;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
@@ -14,8 +15,8 @@ import android.util.Log;
 import android.view.View;
 import android.widget.TextView;
 
-import com.huawei.hiar.ARImage;
 import com.trees.activities.ImageCaptureActivity;
+import com.trees.activities.R;
 import com.huawei.arengine.demos.java.world.rendering.common.DisplayRotationUtil;
 import com.huawei.arengine.demos.java.world.rendering.common.TextDisplayUtil;
 import com.huawei.arengine.demos.java.world.rendering.common.TextureRenderUtil;
@@ -25,13 +26,25 @@ import com.huawei.hiar.ARLightEstimate;
 import com.huawei.hiar.ARPlane;
 import com.huawei.hiar.ARSession;
 import com.huawei.hiar.ARTrackable;
+import com.trees.common.helpers.CameraPose;
+import com.trees.common.helpers.CaptureTrace;
+import com.trees.common.helpers.ImageSnapshot;
 import com.trees.common.helpers.ImageUtil;
+import com.trees.common.helpers.Nv21Pool;
+import com.trees.common.helpers.TofFusion;
 import com.trees.common.helpers.TofUtil;
+import com.trees.common.processing.LiveTrunkEstimator;
+import com.trees.common.processing.TrunkProcessor;
 import com.trees.common.pyi.ImageProcessorInterface;
+import com.trees.common.rendering.DrawingView;
 
 
+import java.util.Locale;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Future;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -52,6 +65,21 @@ public class RenderUtil implements GLSurfaceView.Renderer {
 
     private static final float MATRIX_SCALE_SY = -1.0f;
 
+    // One camera and one depth snapshot per capture, and a capture can queue behind another,
+    // plus the depth snapshot of the live estimate
+    private static final int MAX_POOLED_SNAPSHOTS = 5;
+
+    // Longest burst captureNextFrames takes
+    public static final int MAX_BURST_FRAMES = 10;
+
+    // Estimate the trunk live on every Nth frame
+    private static final int LIVE_SAMPLE_INTERVAL = 3;
+
+    // Clip planes of the projection matrix saved with a capture
+    private static final float PROJ_MATRIX_NEAR = 0.1f;
+
+    private static final float PROJ_MATRIX_FAR = 100.0f;
+
     private ARSession mSession;
 
     private ImageCaptureActivity mActivity;
@@ -73,7 +101,43 @@ public class RenderUtil implements GLSurfaceView.Renderer {
 
     private DisplayRotationUtil mDisplayRotationUtil;
 
-    private CompletableFuture<ImageProcessorInterface.ImageRaw> captureFuture = null;
+    private final AtomicReference<BurstCapture> captureRequest = new AtomicReference<>();
+
+    // Burst being captured, only used on the GL thread
+    private BurstCapture mBurst;
+
+    // Captured planes are converted on this thread, so the GL thread only copies them
+    private final ExecutorService mCaptureExecutor = Executors.newSingleThreadExecutor(
+            runnable -> new Thread(runnable, "CaptureWorker"));
+
+    private final ImageSnapshot.Pool mSnapshotPool = new ImageSnapshot.Pool(MAX_POOLED_SNAPSHOTS);
+
+    // Only used on the capture worker
+    private final TofUtil mTofUtil = new TofUtil();
+    private final ImageUtil mImageUtil = new ImageUtil();
+
+    private TofUtil.TofArrays mBurstFrame;
+
+    private TofFusion mFusion;
+
+    private DrawingView mDrawingView;
+
+    // Only used on the GL thread
+    private final float[] mDisplayUvCoords = new float[8];
+
+    private final LiveTrunkEstimator mLiveEstimator = new LiveTrunkEstimator(new LiveOverlayListener());
+
+    private volatile boolean mLiveEnabled = true;
+
+    private long mFrameCount = 0;
+
+    // Latest live estimate metrics, for the text display
+    private volatile String mLiveMetrics = "";
+
+    // Only used on the live estimator thread
+    private final TofUtil mLiveTofUtil = new TofUtil();
+
+    private TofUtil.TofArrays mLiveTof;
 
 
     /**
@@ -116,6 +180,27 @@ public class RenderUtil implements GLSurfaceView.Renderer {
     }
 
 
+    /**
+     * Set the view the live trunk estimate is drawn on.
+     *
+     * @param drawingView DrawingView over the camera preview.
+     */
+    public void setDrawingView(DrawingView drawingView) {
+        mDrawingView = drawingView;
+    }
+
+    /**
+     * Turn the live trunk estimate on or off, for instance while a capture is processed.
+     *
+     * @param enabled Whether to estimate the trunk on preview frames.
+     */
+    public void setLiveEstimateEnabled(boolean enabled) {
+        mLiveEnabled = enabled;
+        if (!enabled && mDrawingView != null) {
+            mDrawingView.clearTrunk();
+        }
+    }
+
     @Override
     public void onSurfaceCreated(GL10 gl, EGLConfig config) {
         // Clear color, set window color.
@@ -137,31 +222,290 @@ public class RenderUtil implements GLSurfaceView.Renderer {
         mDisplayRotationUtil.updateViewportRotation(width, height);
     }
 
-    public Future<ImageProcessorInterface.ImageRaw> captureNextFrame() {
-        captureFuture = new CompletableFuture<>();
-        return captureFuture;
+    /**
+     * Capture the camera and depth images of the next frame.
+     * The returned future completes on the capture worker thread.
+     *
+     * @return Future of the raw capture.
+     */
+    public CompletableFuture<ImageProcessorInterface.ImageRaw> captureNextFrame() {
+        return captureNextFrames(1);
+    }
+
+    /**
+     * Capture a burst of the next frames with new depth images. The camera image is taken
+     * from the first frame, and the depth images are fused into one, see {@link TofFusion}.
+     * The returned future completes on the capture worker thread.
+     *
+     * @param frames Number of frames, from 1 to MAX_BURST_FRAMES.
+     * @return Future of the raw capture.
+     */
+    public CompletableFuture<ImageProcessorInterface.ImageRaw> captureNextFrames(int frames) {
+        if (frames < 1 || frames > MAX_BURST_FRAMES) {
+            throw new IllegalArgumentException("Burst must be 1 to " + MAX_BURST_FRAMES + " frames");
+        }
+        BurstCapture burst = new BurstCapture(frames);
+        captureRequest.set(burst);
+        return burst.future;
+    }
+
+    /**
+     * Stop the capture worker. This method should be called when the activity is destroyed.
+     */
+    public void release() {
+        mCaptureExecutor.shutdown();
+        mLiveEstimator.release();
+    }
+
+    /*
+     * Hands every LIVE_SAMPLE_INTERVAL-th depth frame to the live estimator, unless it is
+     * still busy with the previous one. Only the depth plane is copied on this thread.
+     */
+    private void maybeEstimateLive(ARFrame frame) {
+        if (!mLiveEnabled || mDrawingView == null || mFrameCount % LIVE_SAMPLE_INTERVAL != 0) {
+            return;
+        }
+        if (!mLiveEstimator.tryBegin()) {
+            return;
+        }
+
+        ImageSnapshot tofSnapshot = mSnapshotPool.acquire();
+        try (Image imgTOF = frame.acquireDepthImage()) {
+            tofSnapshot.copyFrom(imgTOF);
+        } catch (Throwable t) {
+            // Depth is not always available, for instance just after the session starts
+            mSnapshotPool.release(tofSnapshot);
+            mLiveEstimator.abort();
+            return;
+        }
+
+        mLiveEstimator.submit(depth -> {
+            try {
+                ImageSnapshot.PlaneCopy plane = tofSnapshot.getPlane(0);
+                mLiveTof = mLiveTofUtil.parseTof(plane.buffer, plane.rowStride,
+                        tofSnapshot.width, tofSnapshot.height, mLiveTof);
+            } finally {
+                mSnapshotPool.release(tofSnapshot);
+            }
+            if (mLiveTof.length != depth.length) {
+                throw new IllegalStateException("Unexpected depth image size "
+                        + mLiveTof.width + "x" + mLiveTof.height);
+            }
+            System.arraycopy(mLiveTof.dBuffer, 0, depth, 0, depth.length);
+        });
+    }
+
+    /*
+     * A capture request, as it is filled in frame by frame.
+     */
+    private static class BurstCapture {
+        final CompletableFuture<ImageProcessorInterface.ImageRaw> future = new CompletableFuture<>();
+        final int frames;
+        // Started when the capture is requested
+        final CaptureTrace trace = new CaptureTrace();
+
+        // Only used on the GL thread
+        int captured = 0;
+        long lastDepthTimestamp = -1;
+
+        // Set on the GL thread with the first frame, before the capture worker reads it
+        CameraPose pose;
+
+        // Only used on the capture worker
+        ImageProcessorInterface.ImageRaw raw;
+
+        BurstCapture(int frames) {
+            this.frames = frames;
+        }
+    }
+
+    /*
+     * Draws live estimates on the drawing view, from the live estimator thread.
+     */
+    private class LiveOverlayListener implements LiveTrunkEstimator.Listener {
+        @Override
+        public void onEstimate(TrunkProcessor.Result result, float[] segments,
+                LiveTrunkEstimator.Metrics metrics) {
+            String metricsText = formatMetrics(metrics);
+            mLiveMetrics = metricsText;
+            if (mLiveEnabled) {
+                // The sub-pixel width steadies the readout between frames
+                mDrawingView.showTrunk(segments, mContext.getString(R.string.liveDiameter,
+                        result.subpixelWidth * 100, result.depth), metricsText);
+            }
+        }
+
+        @Override
+        public void onNoEstimate(String reason, LiveTrunkEstimator.Metrics metrics) {
+            String metricsText = formatMetrics(metrics);
+            mLiveMetrics = metricsText;
+            if (mLiveEnabled) {
+                mDrawingView.clearTrunk(mContext.getString(R.string.liveNoTrunk), metricsText);
+            }
+        }
+
+        private String formatMetrics(LiveTrunkEstimator.Metrics metrics) {
+            return String.format(Locale.US, "%.0f ms (mean %.0f ms), %.0f%% skipped",
+                    metrics.lastLatencyMs, metrics.meanLatencyMs, metrics.skipRate() * 100);
+        }
     }
 
-    private void maybeCaptureImage(ARFrame frame) {
-        if (captureFuture == null) {
+    private void maybeCaptureImage(ARFrame frame, ARCamera camera) {
+        if (mBurst == null) {
+            mBurst = captureRequest.getAndSet(null);
+            if (mBurst == null) {
+                return;
+            }
+        }
+        BurstCapture burst = mBurst;
+        if (burst.future.isDone()) {
+            // The request was cancelled, or an earlier frame of the burst failed
+            mBurst = null;
             return;
         }
-        try (
-                Image imgRGB = frame.acquireCameraImage();
-                ARImage imgTOF = (ARImage) frame.acquireDepthImage();
-            ) {
-            ImageProcessorInterface.ImageRaw ret = new ImageProcessorInterface.ImageRaw();
-            ret.rgbMat = ImageUtil.imageToByteArray(imgRGB);
-            TofUtil.TofArrays tofArrays = new TofUtil().parseTof(imgTOF);
-            ret.tofMat = tofArrays;
-            captureFuture.complete(ret);
+
+        // Copy the planes and release the images before returning to rendering.
+        // The camera image is only kept from the first frame of a burst.
+        boolean first = burst.captured == 0;
+        ImageSnapshot rgbSnapshot = first ? mSnapshotPool.acquire() : null;
+        ImageSnapshot tofSnapshot = mSnapshotPool.acquire();
+        try (Image imgTOF = frame.acquireDepthImage()) {
+            if (imgTOF.getTimestamp() == burst.lastDepthTimestamp) {
+                // No new depth frame since the last one; wait for the next
+                mSnapshotPool.release(rgbSnapshot);
+                mSnapshotPool.release(tofSnapshot);
+                return;
+            }
+            burst.lastDepthTimestamp = imgTOF.getTimestamp();
+            try (CaptureTrace.Section section = CaptureTrace.begin(burst.trace, "copyFrame")) {
+                tofSnapshot.copyFrom(imgTOF);
+                section.buffers(tofSnapshot.size());
+                if (first) {
+                    try (Image imgRGB = frame.acquireCameraImage()) {
+                        rgbSnapshot.copyFrom(imgRGB);
+                    }
+                    section.buffers(rgbSnapshot.size());
+                    burst.pose = getCameraPose(camera);
+                }
+            }
         } catch (Throwable t) {
-            captureFuture.completeExceptionally(t);
-        } finally {
-            captureFuture= null;
+            mSnapshotPool.release(rgbSnapshot);
+            mSnapshotPool.release(tofSnapshot);
+            mBurst = null;
+            burst.future.completeExceptionally(t);
+            return;
+        }
+        burst.captured++;
+        boolean last = burst.captured == burst.frames;
+        if (last) {
+            mBurst = null;
+        }
+
+        try {
+            mCaptureExecutor.execute(() -> {
+                try {
+                    if (burst.future.isDone()) {
+                        return;
+                    }
+                    if (first) {
+                        burst.raw = convertCameraImage(rgbSnapshot, burst.trace);
+                        burst.raw.pose = burst.pose;
+                    }
+                    ImageSnapshot.PlaneCopy depth = tofSnapshot.getPlane(0);
+                    // Depth and confidence floats
+                    long tofBytes = 8L * tofSnapshot.width * tofSnapshot.height;
+                    if (burst.frames == 1) {
+                        // Each capture gets its own arrays, since the result outlives this frame
+                        try (CaptureTrace.Section section = CaptureTrace.begin(burst.trace, "parseTof")) {
+                            section.buffers(depth.buffer.limit()).allocated(tofBytes);
+                            burst.raw.tofMat = mTofUtil.parseTof(depth.buffer, depth.rowStride,
+                                    tofSnapshot.width, tofSnapshot.height, null);
+                        }
+                    } else {
+                        try (CaptureTrace.Section section = CaptureTrace.begin(burst.trace, "parseTof")) {
+                            section.buffers(depth.buffer.limit());
+                            mBurstFrame = mTofUtil.parseTof(depth.buffer, depth.rowStride,
+                                    tofSnapshot.width, tofSnapshot.height, mBurstFrame);
+                        }
+                        try (CaptureTrace.Section section = CaptureTrace.begin(burst.trace, "fuseTof")) {
+                            section.buffers(tofBytes);
+                            if (first) {
+                                if (mFusion == null || !mFusion.hasShape(tofSnapshot.width, tofSnapshot.height)) {
+                                    mFusion = new TofFusion(MAX_BURST_FRAMES, tofSnapshot.width, tofSnapshot.height);
+                                    section.allocated(tofBytes * MAX_BURST_FRAMES);
+                                }
+                                mFusion.reset();
+                            }
+                            mFusion.add(mBurstFrame);
+                            if (last) {
+                                burst.raw.tofMat = mFusion.fuse(null);
+                                section.allocated(tofBytes);
+                            }
+                        }
+                    }
+                    if (last) {
+                        burst.future.complete(burst.raw);
+                    }
+                } catch (Throwable t) {
+                    burst.future.completeExceptionally(t);
+                } finally {
+                    mSnapshotPool.release(rgbSnapshot);
+                    mSnapshotPool.release(tofSnapshot);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            mSnapshotPool.release(rgbSnapshot);
+            mSnapshotPool.release(tofSnapshot);
+            burst.future.completeExceptionally(e);
         }
     }
 
+    /*
+     * The pose of the camera for the current frame, or null if AR Engine is not tracking it,
+     * when the pose would not be in the same world frame as those of other captures.
+     */
+    private static CameraPose getCameraPose(ARCamera camera) {
+        if (camera.getTrackingState() != ARTrackable.TrackingState.TRACKING) {
+            return null;
+        }
+        CameraPose pose = new CameraPose();
+        camera.getPose().toMatrix(pose.cameraToWorld, 0);
+        camera.getViewMatrix(pose.viewMatrix, 0);
+        camera.getProjectionMatrix(pose.projectionMatrix, 0, PROJ_MATRIX_NEAR, PROJ_MATRIX_FAR);
+        return pose;
+    }
+
+    /*
+     * Converts a camera snapshot into a new raw capture, without its depth. Capture worker only.
+     */
+    private ImageProcessorInterface.ImageRaw convertCameraImage(
+            ImageSnapshot rgbSnapshot, CaptureTrace trace) {
+        ImageProcessorInterface.ImageRaw ret = new ImageProcessorInterface.ImageRaw();
+        ret.trace = trace;
+        if (rgbSnapshot.format != ImageFormat.YUV_420_888) {
+            throw new IllegalStateException(
+                    "Unsupported camera image format " + rgbSnapshot.format);
+        }
+        // Processing works on a downsampled RGB frame; JPEG is left until saving.
+        // The frame goes back to the pool once the capture is written.
+        try (CaptureTrace.Section section = CaptureTrace.begin(trace, "yuvToNv21")) {
+            byte[] nv21 = Nv21Pool.getInstance().acquire(rgbSnapshot.width * rgbSnapshot.height * 3 / 2);
+            ret.nv21 = mImageUtil.YUV_420_888toNV21(rgbSnapshot, nv21);
+            section.buffers(rgbSnapshot.size());
+        }
+        ret.nv21Width = rgbSnapshot.width;
+        ret.nv21Height = rgbSnapshot.height;
+        try (CaptureTrace.Section section = CaptureTrace.begin(trace, "nv21ToArgb")) {
+            ret.rgbPixels = new int[ImageProcessorInterface.ImageRaw.RGB_WIDTH
+                    * ImageProcessorInterface.ImageRaw.RGB_HEIGHT];
+            section.buffers(ret.nv21.length).allocated(ret.rgbPixels.length * 4L);
+            ImageUtil.NV21toARGB(ret.nv21, ret.nv21Width, ret.nv21Height,
+                    ImageProcessorInterface.ImageRaw.RGB_WIDTH,
+                    ImageProcessorInterface.ImageRaw.RGB_HEIGHT, ret.rgbPixels);
+        }
+        return ret;
+    }
+
     @Override
     public void onDrawFrame(GL10 unused) {
 
@@ -179,11 +523,18 @@ public class RenderUtil implements GLSurfaceView.Renderer {
             mSession.setCameraTextureName(mTextureRenderUtil.getExternalTextureId());
             ARFrame arFrame = mSession.update();
             ARCamera arCamera = arFrame.getCamera();
-            maybeCaptureImage(arFrame);
+            maybeCaptureImage(arFrame, arCamera);
+            maybeEstimateLive(arFrame);
+            mFrameCount++;
 
 
             // ARCameraConfig arCameraConfig = mSession.getCameraConfig();
             mTextureRenderUtil.onDrawFrame(arFrame);
+            if (arFrame.hasDisplayGeometryChanged() && mDrawingView != null) {
+                // Keeps the overlay on the part of the camera image the preview shows
+                mTextureRenderUtil.getDisplayUvCoords(mDisplayUvCoords);
+                mDrawingView.setDisplayUvCoords(mDisplayUvCoords);
+            }
 
             StringBuilder sb = new StringBuilder();
             updateMessageData(sb);
@@ -233,6 +584,7 @@ public class RenderUtil implements GLSurfaceView.Renderer {
     private void updateMessageData(StringBuilder sb) {
         float fpsResult = doFpsCalculate();
         sb.append("FPS=" + fpsResult + System.lineSeparator());
+        sb.append("Live estimate " + mLiveMetrics + System.lineSeparator());
     }
 
     private float doFpsCalculate() {
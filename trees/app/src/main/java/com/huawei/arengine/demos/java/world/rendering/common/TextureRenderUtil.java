@@ -183,6 +183,19 @@ public class TextureRenderUtil {
         ShaderUtil.checkGlError(TAG, "after draw");
     }
 
+    /**
+     * Get the texture coordinates the camera image was last drawn with, as set by
+     * {@link ARFrame#transformDisplayUvCoords} when the display geometry changes.
+     *
+     * @param coords array of 8 floats, filled with the u and v of the top left, bottom left,
+     *     top right and bottom right corners of the view.
+     */
+    public void getDisplayUvCoords(float[] coords) {
+        mTexTransformedBuffer.position(0);
+        mTexTransformedBuffer.get(coords, 0, POS.length);
+        mTexTransformedBuffer.position(0);
+    }
+
     private void generateExternalTexture() {
         GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mExternalTextureId);
         GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GL10.GL_TEXTURE_WRAP_S, GL10.GL_CLAMP_TO_EDGE);
@@ -0,0 +1,22 @@
+package com.trees;
+
+import android.app.Application;
+
+import com.trees.common.pyi.ImageProcessor;
+
+/*
+ * Starts the Python worker when the app starts if captures go through the Python pipeline,
+ * so Python and improc are warm by the time the first capture is taken.
+ */
+public class TreesApplication extends Application {
+    // Process captures through the Python pipeline (improc.py) instead of the Java port
+    public static final boolean USE_PYTHON_PROCESSOR = false;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        if (USE_PYTHON_PROCESSOR) {
+            ImageProcessor.getInstance(this);
+        }
+    }
+}
@@ -25,12 +25,15 @@ import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
 import android.view.WindowManager;
+import android.widget.Button;
 import android.widget.EditText;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.lifecycle.ViewModelProvider;
 
+import com.trees.TreesApplication;
 import com.trees.common.helpers.CameraPermissionHelper;
 import com.trees.common.helpers.ImageStore;
 import com.huawei.arengine.demos.java.world.rendering.RenderUtil;
@@ -41,13 +44,17 @@ import com.huawei.hiar.ARWorldTrackingConfig;
 import com.huawei.hiar.exceptions.ARCameraNotAvailableException;
 import com.trees.common.helpers.ImageStoreInterface;
 import com.trees.common.helpers.StoragePermissionHelper;
+import com.trees.common.helpers.WriteBehindImageStore;
+import com.trees.common.processing.MultiViewTrunkEstimator;
+import com.trees.common.processing.TrunkProcessor;
+import com.trees.common.rendering.DrawingView;
 import com.trees.common.pyi.ImageProcessorInterface;
 import com.trees.common.pyi.ImageProcessor;
+import com.trees.common.pyi.JavaImageProcessor;
+import com.trees.common.rendering.GpuDepthStages;
 import com.trees.model.ImageViewModel;
 import com.trees.model.ImageViewModelFactory;
 
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 
@@ -58,10 +65,8 @@ public class ImageCaptureActivity extends AppCompatActivity {
     private static final Short AUTOMATOR_DEFAULT = 0;
     private static final String AUTOMATOR_KEY = "automator";
     private final AtomicBoolean automatorRun = new AtomicBoolean(false);
-    // Projection matrix constants
-//    private static final int PROJ_MATRIX_OFFSET = 0;
-//    private static final float PROJ_MATRIX_NEAR = 0.1f;
-//    private static final float PROJ_MATRIX_FAR = 100.0f;
+    // Depth frames fused into each capture in burst mode, to average out TOF noise
+    private static final int BURST_FRAMES = 5;
 
     private ImageViewModel imageModel;
 
@@ -91,8 +96,10 @@ public class ImageCaptureActivity extends AppCompatActivity {
             CameraPermissionHelper.requestCameraPermission(this);
         }
 
-        ImageProcessorInterface imageProcessor = new ImageProcessor();
-        ImageStoreInterface imageStore = new ImageStore();
+        ImageProcessorInterface imageProcessor = TreesApplication.USE_PYTHON_PROCESSOR
+                ? ImageProcessor.getInstance(this)
+                : new JavaImageProcessor(new GpuDepthStages(this));
+        ImageStoreInterface imageStore = WriteBehindImageStore.getInstance();
         ImageViewModelFactory imageViewModelFactory = new ImageViewModelFactory(
                 imageStore, imageProcessor, this, savedInstanceState);
         imageModel = new ViewModelProvider(this, imageViewModelFactory).get(ImageViewModel.class);
@@ -105,10 +112,18 @@ public class ImageCaptureActivity extends AppCompatActivity {
                     } else {
                         this.disableDeleteButton();
                     }
+                    updateCameraButton();
                 }
         );
 
         setContentView(R.layout.activity_main);
+        imageModel.getCaptureState().observe(this, this::onCaptureStateChanged);
+        imageModel.getProcessorReady().observe(this, ready -> updateCameraButton());
+        imageModel.getPendingWrites().observe(this, pending -> updateSaveStatus());
+        imageModel.getFailedWrites().observe(this, failed -> updateSaveStatus());
+        imageModel.getMultiViewActive().observe(this, active -> updateMultiView());
+        imageModel.getMultiViewEstimate().observe(this, estimate -> updateMultiView());
+        imageModel.getBurstCapture().observe(this, burst -> updateBurst());
 
 
         Bundle extraBundle = getIntent().getExtras();
@@ -123,6 +138,9 @@ public class ImageCaptureActivity extends AppCompatActivity {
 
         // GL surface view that renders camera preview image.
         surfaceView = findViewById(R.id.glsurfaceview);
+        DrawingView drawingView = findViewById(R.id.drawingsurface);
+        drawingView.setPreviewView(surfaceView);
+        renderUtil.setDrawingView(drawingView);
         surfaceView.setPreserveEGLContextOnPause(true);
         surfaceView.setEGLContextClientVersion(2);
         surfaceView.setEGLConfigChooser(8, 8, 8, 8, 16, 0);
@@ -187,6 +205,15 @@ public class ImageCaptureActivity extends AppCompatActivity {
     }
 
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (renderUtil != null) {
+            renderUtil.release();
+        }
+    }
+
+
     // Android permission request callback.
     @Override
     public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] results) {
@@ -231,20 +258,85 @@ public class ImageCaptureActivity extends AppCompatActivity {
 
 
     public void onCaptureImage(View view) {
-        Future<ImageProcessorInterface.ImageRaw> future = renderUtil.captureNextFrame();
-        try {
-            ImageProcessorInterface.ImageRaw raw = future.get();
-            imageModel.captureImage(this, raw);
-            getSupportFragmentManager().beginTransaction()
-                    .setReorderingAllowed(true)
-                    .add(R.id.fragment_container_view, CaptureConfirmationFragment.class, null)
-                    .commit();
-        } catch (ExecutionException e) {
-            Toast.makeText(this, R.string.captureError, Toast.LENGTH_LONG).show();
-            e.printStackTrace();
-        } catch (InterruptedException e) {
-            Toast.makeText(this, R.string.captureInterrupted, Toast.LENGTH_LONG).show();
-            e.printStackTrace();
+        int frames = Boolean.TRUE.equals(imageModel.getBurstCapture().getValue()) ? BURST_FRAMES : 1;
+        if (Boolean.TRUE.equals(imageModel.getMultiViewActive().getValue())) {
+            imageModel.captureViewAsync(renderUtil.captureNextFrames(frames));
+        } else {
+            imageModel.captureImageAsync(renderUtil.captureNextFrames(frames));
+        }
+    }
+
+
+    // Switches between single frame captures and bursts of BURST_FRAMES fused depth frames
+    public void onToggleBurst(View view) {
+        imageModel.setBurstCapture(!Boolean.TRUE.equals(imageModel.getBurstCapture().getValue()));
+    }
+
+
+    private void updateBurst() {
+        boolean burst = Boolean.TRUE.equals(imageModel.getBurstCapture().getValue());
+        Button button = findViewById(R.id.burstButton);
+        button.setText(burst ? getString(R.string.burstOn, BURST_FRAMES) : getString(R.string.burstOff));
+    }
+
+
+    // Starts measuring the trunk from several sides, or finishes early
+    public void onToggleMultiView(View view) {
+        if (Boolean.TRUE.equals(imageModel.getMultiViewActive().getValue())) {
+            imageModel.stopMultiView();
+        } else {
+            imageModel.startMultiView();
+        }
+    }
+
+
+    // Cancel button, shown while a capture is in flight
+    public void onCancelCapture(View view) {
+        imageModel.cancelCapture();
+    }
+
+
+    // Captures are allowed once the processor is ready and the sample number is loaded,
+    // and one at a time
+    private void updateCameraButton() {
+        ImageViewModel.CaptureState captureState = imageModel.getCaptureState().getValue();
+        boolean idle = captureState != ImageViewModel.CaptureState.CAPTURING
+                && captureState != ImageViewModel.CaptureState.PROCESSING;
+        boolean ready = Boolean.TRUE.equals(imageModel.getProcessorReady().getValue())
+                && imageModel.getSampleNumber().getValue() != null;
+        findViewById(R.id.cameraButton).setEnabled(idle && ready);
+    }
+
+
+    private void onCaptureStateChanged(ImageViewModel.CaptureState captureState) {
+        boolean inFlight = captureState == ImageViewModel.CaptureState.CAPTURING
+                || captureState == ImageViewModel.CaptureState.PROCESSING;
+        findViewById(R.id.captureProgress).setVisibility(inFlight ? View.VISIBLE : View.GONE);
+        findViewById(R.id.cancelCaptureButton).setVisibility(inFlight ? View.VISIBLE : View.GONE);
+        // Leave the CPU to the capture while it is processed
+        renderUtil.setLiveEstimateEnabled(!inFlight);
+        updateCameraButton();
+
+        switch (captureState) {
+            case VIEW_ADDED:
+                imageModel.resetCaptureState();
+                break;
+            case READY:
+                getSupportFragmentManager().beginTransaction()
+                        .setReorderingAllowed(true)
+                        .add(R.id.fragment_container_view, CaptureConfirmationFragment.class, null)
+                        .commit();
+                imageModel.resetCaptureState();
+                break;
+            case FAILED:
+                boolean noDepth = imageModel.getCaptureFailure().getValue()
+                        instanceof TrunkProcessor.MissingDepthException;
+                Toast.makeText(this, noDepth ? R.string.noDepthPoints : R.string.captureError,
+                        Toast.LENGTH_LONG).show();
+                imageModel.resetCaptureState();
+                break;
+            default:
+                break;
         }
     }
 
@@ -260,6 +352,47 @@ public class ImageCaptureActivity extends AppCompatActivity {
         imageModel.decrementSampleNumber();
     }
 
+    // Show the views taken so far and the diameter they give
+    private void updateMultiView() {
+        boolean active = Boolean.TRUE.equals(imageModel.getMultiViewActive().getValue());
+        Integer views = imageModel.getMultiViewCount().getValue();
+        MultiViewTrunkEstimator.Estimate estimate = imageModel.getMultiViewEstimate().getValue();
+        Button button = findViewById(R.id.multiViewButton);
+        button.setText(active ? R.string.multiViewFinish : R.string.multiViewStart);
+
+        TextView status = findViewById(R.id.multiViewStatus);
+        if (!active && estimate == null) {
+            status.setVisibility(View.GONE);
+            return;
+        }
+        String viewText = getString(R.string.multiViewProgress, views, ImageViewModel.MULTI_VIEW_FRAMES);
+        if (estimate == null) {
+            status.setText(viewText);
+        } else if (estimate.hasInterval()) {
+            status.setText(getString(R.string.multiViewInterval, viewText, estimate.diameter * 100,
+                    (estimate.diameterHigh - estimate.diameter) * 100));
+        } else {
+            status.setText(getString(R.string.multiViewDiameter, viewText, estimate.diameter * 100));
+        }
+        status.setVisibility(View.VISIBLE);
+    }
+
+    // Show how many captures are still being saved, or have failed to save
+    private void updateSaveStatus() {
+        Integer pending = imageModel.getPendingWrites().getValue();
+        Integer failed = imageModel.getFailedWrites().getValue();
+        TextView saveStatus = findViewById(R.id.saveStatus);
+        if (failed != null && failed > 0) {
+            saveStatus.setText(getResources().getQuantityString(R.plurals.failedWrites, failed, failed));
+            saveStatus.setVisibility(View.VISIBLE);
+        } else if (pending != null && pending > 0) {
+            saveStatus.setText(getResources().getQuantityString(R.plurals.pendingWrites, pending, pending));
+            saveStatus.setVisibility(View.VISIBLE);
+        } else {
+            saveStatus.setVisibility(View.GONE);
+        }
+    }
+
     // TODO: Move this to a separate activity showing all saved images
     // Enable the button to delete all files
     private void enableDeleteButton() {
@@ -0,0 +1,28 @@
+package com.trees.common.helpers;
+
+/*
+ * Where the camera was for a capture, as AR Engine tracked it.
+ * Each matrix is 4x4 and column-major, as android.opengl.Matrix takes them.
+ */
+public class CameraPose {
+    public static final int MATRIX_SIZE = 16;
+
+    /* Camera to world transform of the camera sensor, from ARCamera.getPose() */
+    public final float[] cameraToWorld;
+
+    /* World to view transform of the display oriented camera, from ARCamera.getViewMatrix() */
+    public final float[] viewMatrix;
+
+    /* From ARCamera.getProjectionMatrix() */
+    public final float[] projectionMatrix;
+
+    public CameraPose() {
+        this(new float[MATRIX_SIZE], new float[MATRIX_SIZE], new float[MATRIX_SIZE]);
+    }
+
+    public CameraPose(float[] cameraToWorld, float[] viewMatrix, float[] projectionMatrix) {
+        this.cameraToWorld = cameraToWorld;
+        this.viewMatrix = viewMatrix;
+        this.projectionMatrix = projectionMatrix;
+    }
+}
@@ -0,0 +1,40 @@
+package com.trees.common.helpers;
+
+/*
+ * Everything saved for one capture: the camera frame, the depth image and the measurements.
+ * The frame is kept as NV21 and only encoded to JPEG by the image store that saves it.
+ */
+public class CaptureBundle {
+    public final Integer sampleNumber;
+    public final Integer captureNumber;
+    public final byte[] nv21;
+    public final int nv21Width;
+    public final int nv21Height;
+    public final TofUtil.TofArrays depthImage;
+    public final float depth;
+    public final float diameter;
+    /* Timing of the capture, or null if it is not traced. It is not spooled. */
+    public final CaptureTrace trace;
+    /* Where the camera was, or null if AR Engine was not tracking it */
+    public final CameraPose pose;
+
+    public CaptureBundle(Integer sampleNumber, Integer captureNumber,
+            byte[] nv21, int nv21Width, int nv21Height,
+            TofUtil.TofArrays depthImage, float depth, float diameter,
+            CaptureTrace trace, CameraPose pose) {
+        this.sampleNumber = sampleNumber;
+        this.captureNumber = captureNumber;
+        this.nv21 = nv21;
+        this.nv21Width = nv21Width;
+        this.nv21Height = nv21Height;
+        this.depthImage = depthImage;
+        this.depth = depth;
+        this.diameter = diameter;
+        this.trace = trace;
+        this.pose = pose;
+    }
+
+    public int nv21Size() {
+        return nv21Width * nv21Height * 3 / 2;
+    }
+}
@@ -0,0 +1,190 @@
+package com.trees.common.helpers;
+
+import android.os.SystemClock;
+import android.os.Trace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Timing of one capture, from the shutter press until its files are written.
+ *
+ * Each step of the capture is timed as a stage, see begin(), which also shows up as a section
+ * in systrace and Perfetto. Stages carry the size of the buffers they worked on and an estimate
+ * of the memory they allocated, which is counted by hand rather than measured.
+ * Finished stages of every capture also go into a ring buffer, see getRecentStages().
+ *
+ * Stages may be recorded from any thread.
+ */
+public class CaptureTrace {
+
+    public static class Stage {
+        public final int captureId;
+        public final String name;
+        public final String thread;
+        /* Start, relative to the start of the capture, and duration, in nanoseconds */
+        public final long startNanos;
+        public final long durationNanos;
+        /* Bytes the stage allocated, estimated, and bytes of the buffers it read or wrote */
+        public final long allocatedBytes;
+        public final long bufferBytes;
+
+        Stage(int captureId, String name, String thread, long startNanos, long durationNanos,
+                long allocatedBytes, long bufferBytes) {
+            this.captureId = captureId;
+            this.name = name;
+            this.thread = thread;
+            this.startNanos = startNanos;
+            this.durationNanos = durationNanos;
+            this.allocatedBytes = allocatedBytes;
+            this.bufferBytes = bufferBytes;
+        }
+    }
+
+    /*
+     * A stage in progress. Must be closed on the thread that began it, as systrace sections are
+     * per thread; try-with-resources does that.
+     */
+    public static class Section implements AutoCloseable {
+        private final CaptureTrace trace;
+        private final String name;
+        private final long start = SystemClock.elapsedRealtimeNanos();
+        private long allocatedBytes;
+        private long bufferBytes;
+
+        private Section(CaptureTrace trace, String name) {
+            this.trace = trace;
+            this.name = name;
+            Trace.beginSection(name);
+        }
+
+        public Section allocated(long bytes) {
+            allocatedBytes += bytes;
+            return this;
+        }
+
+        public Section buffers(long bytes) {
+            bufferBytes += bytes;
+            return this;
+        }
+
+        @Override
+        public void close() {
+            Trace.endSection();
+            if (trace != null) {
+                trace.record(name, start, SystemClock.elapsedRealtimeNanos() - start,
+                        allocatedBytes, bufferBytes);
+            }
+        }
+    }
+
+    // Stages kept for getRecentStages(), across captures
+    private static final int RING_SIZE = 256;
+    private static final Stage[] ring = new Stage[RING_SIZE];
+    private static int ringNext = 0;
+    private static int ringCount = 0;
+
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    public final int id = nextId.incrementAndGet();
+    // Capture start, in SystemClock.elapsedRealtimeNanos() and in wall clock time
+    private final long startNanos = SystemClock.elapsedRealtimeNanos();
+    private final long startMillis = System.currentTimeMillis();
+    private final List<Stage> stages = new ArrayList<>();
+
+    /*
+     * Begins a stage of the capture. trace may be null, for work that is not part of a traced
+     * capture, in which case the stage only shows up in systrace.
+     */
+    public static Section begin(CaptureTrace trace, String name) {
+        return new Section(trace, name);
+    }
+
+    /*
+     * Records a stage timed elsewhere, such as in Python.
+     * start is in SystemClock.elapsedRealtimeNanos() time.
+     */
+    public void record(String name, long start, long durationNanos,
+            long allocatedBytes, long bufferBytes) {
+        Stage stage = new Stage(id, name, Thread.currentThread().getName(),
+                start - startNanos, durationNanos, allocatedBytes, bufferBytes);
+        synchronized (this) {
+            stages.add(stage);
+        }
+        synchronized (ring) {
+            ring[ringNext] = stage;
+            ringNext = (ringNext + 1) % RING_SIZE;
+            ringCount = Math.min(ringCount + 1, RING_SIZE);
+        }
+    }
+
+    public synchronized List<Stage> getStages() {
+        return new ArrayList<>(stages);
+    }
+
+    /* Time since the capture started, in nanoseconds */
+    public long getElapsedNanos() {
+        return SystemClock.elapsedRealtimeNanos() - startNanos;
+    }
+
+    /*
+     * The last RING_SIZE stages of all captures, oldest first.
+     */
+    public static List<Stage> getRecentStages() {
+        synchronized (ring) {
+            List<Stage> recent = new ArrayList<>(ringCount);
+            for (int i = ringNext - ringCount; i < ringNext; i++) {
+                recent.add(ring[(i + RING_SIZE) % RING_SIZE]);
+            }
+            return recent;
+        }
+    }
+
+    /*
+     * The capture's stages as JSON, with times in milliseconds.
+     */
+    public String toJson(Integer sampleNumber, Integer captureNumber) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"sample\": ").append(sampleNumber).append(",\n");
+        json.append("  \"capture\": ").append(captureNumber).append(",\n");
+        json.append("  \"startTime\": ").append(startMillis).append(",\n");
+        json.append("  \"totalMs\": ").append(toMillis(getElapsedNanos())).append(",\n");
+        json.append("  \"stages\": [");
+        List<Stage> stages = getStages();
+        for (int i = 0; i < stages.size(); i++) {
+            Stage stage = stages.get(i);
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append("    {\"name\": ").append(quote(stage.name))
+                    .append(", \"thread\": ").append(quote(stage.thread))
+                    .append(", \"startMs\": ").append(toMillis(stage.startNanos))
+                    .append(", \"durationMs\": ").append(toMillis(stage.durationNanos))
+                    .append(", \"allocatedBytes\": ").append(stage.allocatedBytes)
+                    .append(", \"bufferBytes\": ").append(stage.bufferBytes)
+                    .append('}');
+        }
+        json.append("\n  ]\n}\n");
+        return json.toString();
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format(Locale.US, "%.3f", nanos / 1e6);
+    }
+
+    private static String quote(String s) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,125 @@
+package com.trees.common.helpers;
+
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/*
+ * A copy of an Image's planes in direct buffers, so the Image can be closed straight away
+ * and the pixels converted later on another thread.
+ * Snapshots come from a Pool, which keeps their buffers for reuse.
+ */
+public class ImageSnapshot {
+
+    public static class PlaneCopy {
+        public ByteBuffer buffer;
+        public int rowStride;
+        public int pixelStride;
+
+        private void copyFrom(Image.Plane plane) {
+            copyFrom(plane.getBuffer(), plane.getRowStride(), plane.getPixelStride());
+        }
+
+        private void copyFrom(ByteBuffer source, int rowStride, int pixelStride) {
+            ByteBuffer src = source.duplicate();
+            src.rewind();
+            if (buffer == null || buffer.capacity() < src.remaining()) {
+                buffer = ByteBuffer.allocateDirect(src.remaining());
+            }
+            buffer.clear();
+            buffer.put(src);
+            buffer.flip();
+            this.rowStride = rowStride;
+            this.pixelStride = pixelStride;
+        }
+    }
+
+    public int format;
+    public int width;
+    public int height;
+    public long timestamp;
+    public int planeCount;
+    private PlaneCopy[] planes = new PlaneCopy[0];
+
+    public PlaneCopy getPlane(int index) {
+        if (index >= planeCount) {
+            throw new IndexOutOfBoundsException("Snapshot has " + planeCount + " planes");
+        }
+        return planes[index];
+    }
+
+    /* Bytes held by the copied planes */
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < planeCount; i++) {
+            size += planes[i].buffer.limit();
+        }
+        return size;
+    }
+
+    public void copyFrom(Image image) {
+        Image.Plane[] src = image.getPlanes();
+        ensurePlanes(src.length);
+        for (int i = 0; i < src.length; i++) {
+            planes[i].copyFrom(src[i]);
+        }
+        planeCount = src.length;
+        format = image.getFormat();
+        width = image.getWidth();
+        height = image.getHeight();
+        timestamp = image.getTimestamp();
+    }
+
+    /*
+     * As copyFrom(Image), for frames that do not come from the camera, such as recorded ones.
+     * Each plane is read from index 0 of its buffer.
+     */
+    public void copyFrom(int format, int width, int height, long timestamp,
+            ByteBuffer[] buffers, int[] rowStrides, int[] pixelStrides) {
+        ensurePlanes(buffers.length);
+        for (int i = 0; i < buffers.length; i++) {
+            planes[i].copyFrom(buffers[i], rowStrides[i], pixelStrides[i]);
+        }
+        planeCount = buffers.length;
+        this.format = format;
+        this.width = width;
+        this.height = height;
+        this.timestamp = timestamp;
+    }
+
+    private void ensurePlanes(int count) {
+        if (planes.length < count) {
+            PlaneCopy[] grown = new PlaneCopy[count];
+            System.arraycopy(planes, 0, grown, 0, planes.length);
+            for (int i = planes.length; i < count; i++) {
+                grown[i] = new PlaneCopy();
+            }
+            planes = grown;
+        }
+    }
+
+    /*
+     * Keeps released snapshots, and their buffers, for the next capture. Thread safe.
+     */
+    public static class Pool {
+        private final ArrayDeque<ImageSnapshot> free = new ArrayDeque<>();
+        private final int maxSize;
+
+        public Pool(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        public synchronized ImageSnapshot acquire() {
+            ImageSnapshot snapshot = free.poll();
+            return snapshot != null ? snapshot : new ImageSnapshot();
+        }
+
+        /* Ignores null, for snapshots that were never acquired */
+        public synchronized void release(ImageSnapshot snapshot) {
+            if (snapshot != null && free.size() < maxSize) {
+                free.push(snapshot);
+            }
+        }
+    }
+}
@@ -1,31 +1,74 @@
 package com.trees.common.helpers;
 
+import android.database.sqlite.SQLiteException;
 import android.util.Log;
 
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.math.RoundingMode;
-import java.text.DecimalFormat;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 public class ImageStore implements ImageStoreInterface {
     private static final String LOG_TAG = "AMELIA";
     private enum Filetype {
             TOF,
+            TOF_CSV,
             JPEG,
+            THUMBNAIL,
             MATRIX,
+            POSE,
+            TIMING,
+    }
+
+    // On-disk format of the depth data
+    public enum TofFormat {
+        BINARY,  // TofFile, Capture_Sample_<s>_<c>.tof
+        CSV,     // x,y,depth,confidence lines, Capture_Sample_<s>_<c>
     }
     // path for storing data
     private String filepath =
             android.os.Environment.getExternalStorageDirectory().getAbsolutePath() + "/Tree";
     private final String FOLDER = "/samples";
+    private final String PENDING_FOLDER = "/pending";
     private final String PREFIX = "Capture_Sample_";
 
-    public ImageStore() { }
+    private static final LiveData<Integer> NO_WRITES = new MutableLiveData<>(0);
+
+    private final String CATALOG_FILE = "catalog.db";
+
+    private final TofFormat tofFormat;
+    private final JpegEncoder.Profile jpegProfile;
+    // Encoded TOF file, reused between captures
+    private ByteBuffer tofBuffer;
+    // Keeps its output buffer between captures
+    private final JpegEncoder jpegEncoder = new JpegEncoder();
+    // Opened on first use, see getCatalog()
+    private SampleCatalog catalog;
+    private boolean catalogUnavailable = false;
+
+    public ImageStore() {
+        this(TofFormat.BINARY, JpegEncoder.Profile.ARCHIVAL);
+    }
+
+    public ImageStore(TofFormat tofFormat, JpegEncoder.Profile jpegProfile) {
+        this.tofFormat = tofFormat;
+        this.jpegProfile = jpegProfile;
+    }
 
     private File getOrCreateFile(String filename) {
         File dir = new File(filepath, FOLDER);
@@ -42,14 +85,26 @@ public class ImageStore implements ImageStoreInterface {
         String suffix;
         switch (ftype) {
             case TOF:
+                suffix = TofFile.EXTENSION;
+                break;
+            case TOF_CSV:
                 suffix = "";
                 break;
             case JPEG:
                 suffix = ".jpeg";
                 break;
+            case THUMBNAIL:
+                suffix = ".thumb.jpeg";
+                break;
             case MATRIX:
                 suffix = ".txt";
                 break;
+            case POSE:
+                suffix = ".pose.txt";
+                break;
+            case TIMING:
+                suffix = ".timing.json";
+                break;
             default:
                 suffix = "";
                 break;
@@ -58,32 +113,42 @@ public class ImageStore implements ImageStoreInterface {
 
     }
 
-    public void saveToFileTOF(
+    public synchronized void saveToFileTOF(
             Integer sampleNumber, Integer captureNumber, TofUtil.TofArrays arrays) throws IOException {
+        if (tofFormat == TofFormat.CSV) {
+            saveToFileTOFCsv(sampleNumber, captureNumber, arrays);
+            return;
+        }
 
         String filename = getFileName(sampleNumber, captureNumber, Filetype.TOF);
         File outFile = getOrCreateFile(filename);
         Log.i(LOG_TAG, "Writing to the file");
 
-        // Write to the output file
-        try (FileWriter writer = new FileWriter(outFile)) {
-            StringBuilder str = new StringBuilder();
+        int size = TofFile.fileSize(arrays.width, arrays.height);
+        if (tofBuffer == null || tofBuffer.capacity() < size) {
+            tofBuffer = ByteBuffer.allocateDirect(size);
+        }
+        // The ARCamera API does not expose the TOF intrinsics, so they are left unknown
+        TofFile.encode(arrays, null, tofBuffer);
+        try (FileChannel channel = FileChannel.open(outFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            TofFile.write(channel, tofBuffer);
+            Log.i(LOG_TAG, "Successfully wrote the file " + filename);
+        }
+    }
 
-            for (int i = 0; i < arrays.dBuffer.length; i++) {
-                str.append(arrays.xBuffer[i]);
-                str.append(',');
-                str.append(arrays.yBuffer[i]);
-                str.append(',');
-                str.append(arrays.dBuffer[i]);
-                str.append(',');
-                str.append(arrays.percentageBuffer[i]);
-                str.append('\n');
-            }
-            writer.write(str.toString());
+    private void saveToFileTOFCsv(
+            Integer sampleNumber, Integer captureNumber, TofUtil.TofArrays arrays) throws IOException {
+
+        String filename = getFileName(sampleNumber, captureNumber, Filetype.TOF_CSV);
+        File outFile = getOrCreateFile(filename);
+        Log.i(LOG_TAG, "Writing to the file");
+
+        // Write to the output file
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(outFile))) {
+            TofUtil.writeCsv(arrays, writer);
             writer.flush();
             Log.i(LOG_TAG, "Successfully wrote the file " + filename);
-        } catch (IOException e) {
-            e.printStackTrace();
         }
     }
 
@@ -94,19 +159,34 @@ public class ImageStore implements ImageStoreInterface {
         File outFile = getOrCreateFile(filename);
 
 //        Bitmap bitmap = BitmapFactory.decodeByteArray(image, 0, image.length);
-        try {
-            FileOutputStream out = new FileOutputStream(outFile);
+        try (FileOutputStream out = new FileOutputStream(outFile)) {
             out.write(image);
 //            bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
             out.flush();
-            out.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+        }
+    }
+
+    /*
+     * Encodes the frame with this store's JPEG profile, along with a thumbnail.
+     */
+    public synchronized void saveToFileRGB(Integer sampleNumber, Integer captureNumber,
+            byte[] nv21, int width, int height) throws IOException {
+
+        File outFile = getOrCreateFile(getFileName(sampleNumber, captureNumber, Filetype.JPEG));
+        File thumbFile = getOrCreateFile(getFileName(sampleNumber, captureNumber, Filetype.THUMBNAIL));
+        try (
+                FileChannel out = FileChannel.open(outFile.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                FileChannel thumb = FileChannel.open(thumbFile.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            ) {
+            jpegEncoder.encodeWithThumbnail(nv21, width, height, jpegProfile, out, thumb);
+            Log.i(LOG_TAG, "Successfully wrote the file " + outFile.getName());
         }
     }
 
     public void saveToFileResults(
-            Integer sampleNumber, Integer captureNumber, float depth, float diameter) {
+            Integer sampleNumber, Integer captureNumber, float depth, float diameter) throws IOException {
 
         String filename = getFileName(sampleNumber, captureNumber, Filetype.MATRIX);
         File outFile = getOrCreateFile(filename);
@@ -119,50 +199,291 @@ public class ImageStore implements ImageStoreInterface {
 
             writer.write(str.toString());
             writer.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
             Log.i(LOG_TAG, "Successfully wrote the file " + filename);
         }
     }
 
-    public void saveToFileProjectionMatrix(
-            Integer sampleNumber, Integer captureNumber,
-            float[] projectionMatrix, float[] viewMatrix) throws IOException {
+    /*
+     * Also writes the capture's timing, if it was traced, see saveToFileTiming().
+     */
+    public void saveCapture(CaptureBundle bundle) throws IOException {
+        try (CaptureTrace.Section section = CaptureTrace.begin(bundle.trace, "writeJpeg")) {
+            section.buffers(bundle.nv21Size());
+            saveToFileRGB(bundle.sampleNumber, bundle.captureNumber,
+                    bundle.nv21, bundle.nv21Width, bundle.nv21Height);
+        }
+        try (CaptureTrace.Section section = CaptureTrace.begin(bundle.trace, "writeTof")) {
+            section.buffers(TofFile.fileSize(bundle.depthImage.width, bundle.depthImage.height));
+            saveToFileTOF(bundle.sampleNumber, bundle.captureNumber, bundle.depthImage);
+        }
+        saveToFileResults(bundle.sampleNumber, bundle.captureNumber, bundle.depth, bundle.diameter);
+        if (bundle.pose != null) {
+            saveToFilePose(bundle.sampleNumber, bundle.captureNumber, bundle.pose);
+        }
+
+        boolean indexed;
+        try (CaptureTrace.Section section = CaptureTrace.begin(bundle.trace, "catalog")) {
+            indexed = addToCatalog(bundle);
+        }
+        if (bundle.trace != null) {
+            saveToFileTiming(bundle.sampleNumber, bundle.captureNumber, bundle.trace);
+        }
+        // Only once all of the capture's files are in, so the directory's new time covers them
+        if (indexed) {
+            markIndexed();
+        }
+    }
 
-        String filename = getFileName(sampleNumber, captureNumber, Filetype.MATRIX);
-        File outFile = getOrCreateFile(filename);
-        // Write the TOF data currently in buffers to an output file.
-        Log.i(LOG_TAG, "Writing to the file");
+    private boolean addToCatalog(CaptureBundle bundle) {
+        SampleCatalog catalog = getCatalog();
+        if (catalog == null) {
+            return false;
+        }
+        SampleCatalog.Entry entry = newCatalogEntry(bundle.sampleNumber, bundle.captureNumber);
+        entry.timestamp = System.currentTimeMillis();
+        entry.depth = bundle.depth;
+        entry.diameter = bundle.diameter;
+        try {
+            catalog.add(entry);
+            return true;
+        } catch (SQLiteException e) {
+            // The files are saved, and indexed when the catalog is next opened
+            Log.e(LOG_TAG, "Unable to add the capture to the sample catalog: ", e);
+            return false;
+        }
+    }
 
+    /*
+     * Records that the catalog matches the samples directory as it is now, so opening the
+     * catalog does not reconcile it. Called after this store's own changes to the directory.
+     */
+    private void markIndexed() {
+        SampleCatalog catalog = getCatalog();
+        File dir = new File(filepath, FOLDER);
+        if (catalog == null || !dir.exists()) {
+            return;
+        }
         try {
-            DecimalFormat df = new DecimalFormat("#.##########");
-            df.setRoundingMode(RoundingMode.CEILING);
-            PrintWriter out = new PrintWriter(outFile);
-            for (int i = 0; i < projectionMatrix.length; i++) {
-                if (i != 0) {
-                    out.printf(", ");
-                }
-                out.printf(df.format(projectionMatrix[i]));
-            }
-            out.printf("\n");
+            catalog.setIndexedTime(dir.lastModified());
+        } catch (SQLiteException e) {
+            // The next opening reconciles
+            Log.e(LOG_TAG, "Unable to update the sample catalog: ", e);
+        }
+    }
+
+    /*
+     * Writes the stage timings of the capture next to its files, as Capture_Sample_<s>_<c>.timing.json.
+     * The timing is diagnostic only, so it is not listed by getCaptureFiles() and a failure is only logged.
+     */
+    public void saveToFileTiming(Integer sampleNumber, Integer captureNumber, CaptureTrace trace) {
+        String filename = getFileName(sampleNumber, captureNumber, Filetype.TIMING);
+        File outFile = getOrCreateFile(filename);
+
+        try (FileWriter writer = new FileWriter(outFile)) {
+            writer.write(trace.toJson(sampleNumber, captureNumber));
+            writer.flush();
+            Log.i(LOG_TAG, "Successfully wrote the file " + filename);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Unable to write the capture timing " + filename + ": ", e);
+        }
+    }
 
-            for (int i = 0; i < viewMatrix.length; i++) {
-                if (i != 0) {
-                    out.printf(", ");
+    // Files are written before the methods above return, so nothing is ever pending
+    public LiveData<Integer> getPendingWrites() {
+        return NO_WRITES;
+    }
+
+    public LiveData<Integer> getFailedWrites() {
+        return NO_WRITES;
+    }
+
+    /*
+     * The files written by saveCapture() for the given capture,
+     * other than the pose file that only captures with a pose have, see getPoseFile().
+     */
+    File[] getCaptureFiles(Integer sampleNumber, Integer captureNumber) {
+        Filetype tofType = tofFormat == TofFormat.CSV ? Filetype.TOF_CSV : Filetype.TOF;
+        File dir = new File(filepath, FOLDER);
+        return new File[] {
+                new File(dir, getFileName(sampleNumber, captureNumber, Filetype.JPEG)),
+                new File(dir, getFileName(sampleNumber, captureNumber, tofType)),
+                new File(dir, getFileName(sampleNumber, captureNumber, Filetype.MATRIX)),
+                new File(dir, getFileName(sampleNumber, captureNumber, Filetype.THUMBNAIL)),
+        };
+    }
+
+    // Directory for captures that have not been fully written yet
+    File getPendingDirectory() {
+        return new File(filepath, PENDING_FOLDER);
+    }
+
+    String getPrefix() {
+        return PREFIX;
+    }
+
+    /*
+     * Writes the camera pose as Capture_Sample_<s>_<c>.pose.txt: the camera to world, view and
+     * projection matrices, one per line, each as 16 comma-separated values in column-major order.
+     */
+    public void saveToFilePose(
+            Integer sampleNumber, Integer captureNumber, CameraPose pose) throws IOException {
+
+        String filename = getFileName(sampleNumber, captureNumber, Filetype.POSE);
+        File outFile = getOrCreateFile(filename);
+
+        try (FileWriter writer = new FileWriter(outFile)) {
+            StringBuilder str = new StringBuilder();
+            for (float[] matrix : new float[][] {
+                    pose.cameraToWorld, pose.viewMatrix, pose.projectionMatrix}) {
+                for (int i = 0; i < matrix.length; i++) {
+                    if (i != 0) {
+                        str.append(',');
+                    }
+                    str.append(matrix[i]);
                 }
-                out.printf(df.format(viewMatrix[i]));
+                str.append('\n');
             }
-            out.printf("\n");
-            out.close();
-            out.flush();
-            out.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+
+            writer.write(str.toString());
+            writer.flush();
+            Log.i(LOG_TAG, "Successfully wrote the file " + filename);
         }
     }
 
+    // Pose file of a capture, which only captures taken while tracking have
+    File getPoseFile(Integer sampleNumber, Integer captureNumber) {
+        return new File(new File(filepath, FOLDER), getFileName(sampleNumber, captureNumber, Filetype.POSE));
+    }
+
 
     public Integer[] getMaxSampleCaptureNums() {
+        SampleCatalog catalog = getCatalog();
+        if (catalog == null) {
+            return scanMaxSampleCaptureNums();
+        }
+        int[] max = catalog.getMaxSampleCaptureNums();
+        if (max == null) {
+            return new File(filepath, FOLDER).exists() ? new Integer[]{1, 1} : new Integer[]{0, 1};
+        }
+        return new Integer[] {max[0] + 1, max[1] + 1};
+    }
+
+    /*
+     * The catalog of saved captures, or null if it cannot be opened.
+     * The catalog is authoritative: it is only reconciled with the samples directory, see
+     * reconcile(), when the directory was modified since this store last indexed it, as it is
+     * when captures are copied in or deleted by hand. That lists the directory, so the first call
+     * should not be made on the main thread.
+     */
+    synchronized SampleCatalog getCatalog() {
+        if (catalog != null || catalogUnavailable) {
+            return catalog;
+        }
+        try {
+            catalog = new SampleCatalog(new File(filepath, CATALOG_FILE));
+            File dir = new File(filepath, FOLDER);
+            // Read before listing, so changes made while reconciling are caught next time
+            long modified = dir.lastModified();
+            Long indexed = catalog.getIndexedTime();
+            if (dir.exists() && (indexed == null || indexed != modified)) {
+                reconcile(dir, catalog);
+                catalog.setIndexedTime(modified);
+            }
+        } catch (SQLiteException e) {
+            Log.e(LOG_TAG, "Unable to open the sample catalog, listing files instead: ", e);
+            catalog = null;
+            catalogUnavailable = true;
+        }
+        return catalog;
+    }
+
+    /*
+     * Brings the catalog in line with the depth files in dir, which there is one of per capture.
+     * Captures copied in, or saved while the catalog could not be written, are indexed, and
+     * captures whose depth file was deleted are dropped, so getMaxSampleCaptureNums() never
+     * hands out the number of a capture that is on disk.
+     */
+    private void reconcile(File dir, SampleCatalog catalog) {
+        File[] files = dir.listFiles(getDepthFileFilter());
+        if (files == null) {
+            return;
+        }
+        Map<String, File> unindexed = new HashMap<>();
+        for (File file : files) {
+            Integer[] nums = parseSampleCaptureNums(file.getName());
+            if (nums != null) {
+                unindexed.put(nums[0] + "_" + nums[1], file);
+            }
+        }
+        List<SampleCatalog.Entry> deleted = new ArrayList<>();
+        for (SampleCatalog.Entry entry : catalog.getCaptures()) {
+            if (unindexed.remove(entry.sampleNumber + "_" + entry.captureNumber) == null) {
+                deleted.add(entry);
+            }
+        }
+
+        List<SampleCatalog.Entry> added = new ArrayList<>();
+        for (File file : unindexed.values()) {
+            Integer[] nums = parseSampleCaptureNums(file.getName());
+            SampleCatalog.Entry entry = newCatalogEntry(nums[0], nums[1]);
+            entry.depthPath = file.getAbsolutePath();
+            entry.timestamp = file.lastModified();
+            readResults(new File(entry.resultsPath), entry);
+            added.add(entry);
+        }
+        if (!deleted.isEmpty()) {
+            catalog.removeAll(deleted);
+        }
+        if (!added.isEmpty()) {
+            catalog.addAll(added);
+        }
+        Log.i(LOG_TAG, "Sample catalog reconciled: " + added.size() + " captures indexed, "
+                + deleted.size() + " removed");
+    }
+
+    // Fills in depth and diameter if the results file holds them (and not a projection matrix)
+    private void readResults(File resultsFile, SampleCatalog.Entry entry) {
+        try (BufferedReader reader = new BufferedReader(new FileReader(resultsFile))) {
+            String[] values = reader.readLine().split(",");
+            if (values.length == 2 && reader.readLine() == null) {
+                entry.depth = Float.parseFloat(values[0]);
+                entry.diameter = Float.parseFloat(values[1]);
+            }
+        } catch (IOException | RuntimeException e) {
+            // Missing or unreadable, leave the measurements unknown
+        }
+    }
+
+    private SampleCatalog.Entry newCatalogEntry(Integer sampleNumber, Integer captureNumber) {
+        File[] files = getCaptureFiles(sampleNumber, captureNumber);
+        SampleCatalog.Entry entry = new SampleCatalog.Entry();
+        entry.sampleNumber = sampleNumber;
+        entry.captureNumber = captureNumber;
+        entry.rgbPath = files[0].getAbsolutePath();
+        entry.depthPath = files[1].getAbsolutePath();
+        entry.resultsPath = files[2].getAbsolutePath();
+        return entry;
+    }
+
+    // Depth files, in either format, have one per capture
+    private FilenameFilter getDepthFileFilter() {
+        return (d, name) -> name.startsWith(PREFIX)
+                && (!name.contains(".") || name.endsWith(TofFile.EXTENSION));
+    }
+
+    // Null if the name does not have both numbers, as a file copied in by hand may not
+    Integer[] parseSampleCaptureNums(String depthFileName) {
+        String name = depthFileName.replace(TofFile.EXTENSION, "");
+        String[] s = name.replaceAll(PREFIX, "").split("_");
+        try {
+            return new Integer[] {Integer.parseInt(s[0]), Integer.parseInt(s[1])};
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    // Directory listing, used when the catalog cannot be opened
+    private Integer[] scanMaxSampleCaptureNums() {
         File dir = new File(filepath, FOLDER);
         if (!dir.exists()) {
             return new Integer[]{0, 1};
@@ -170,17 +491,23 @@ public class ImageStore implements ImageStoreInterface {
 
         Integer maxS = 0;
         Integer maxC = 0;
-        FilenameFilter filter = (d, name) -> !name.contains(".");
-        for (File file : dir.listFiles(filter)) {
-            String name = file.getName();
-            String[] s = name.replaceAll(PREFIX, "").split("_");
-            maxS = Math.max(Integer.parseInt(s[0]), maxS);
-            maxC = Math.max(Integer.parseInt(s[1]), maxC);
+        for (File file : dir.listFiles(getDepthFileFilter())) {
+            Integer[] nums = parseSampleCaptureNums(file.getName());
+            if (nums == null) {
+                continue;
+            }
+            maxS = Math.max(nums[0], maxS);
+            maxC = Math.max(nums[1], maxC);
         }
         return new Integer[] {maxS + 1, maxC + 1};
 
     }
     public void deleteFiles() {
+        SampleCatalog catalog = getCatalog();
+        if (catalog != null) {
+            catalog.clear();
+        }
+
         // File object for the directory where the data is saved.
         File dir = new File(filepath, FOLDER);
         if (!dir.exists()) {
@@ -191,6 +518,7 @@ public class ImageStore implements ImageStoreInterface {
             for (File file : dir.listFiles()) {
             file.delete();
         }
+        markIndexed();
 }
 
 
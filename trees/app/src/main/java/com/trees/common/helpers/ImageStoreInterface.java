@@ -3,6 +3,8 @@ package com.trees.common.helpers;
 import android.graphics.Bitmap;
 import android.media.Image;
 
+import androidx.lifecycle.LiveData;
+
 import java.io.IOException;
 
 public interface ImageStoreInterface {
@@ -13,12 +15,20 @@ public interface ImageStoreInterface {
     void saveToFileRGB(
             Integer sampleNumber, Integer captureNumber, byte[] image) throws IOException;
 
-    void saveToFileProjectionMatrix(
-            Integer sampleNumber, Integer captureNumber,
-            float[] projectionMatrix, float[] viewMatrix) throws IOException;
+    void saveToFilePose(
+            Integer sampleNumber, Integer captureNumber, CameraPose pose) throws IOException;
 
     void saveToFileResults(
-            Integer sampleNumber, Integer nextCapture, float depth, float diameter);
+            Integer sampleNumber, Integer nextCapture, float depth, float diameter) throws IOException;
+
+    // Saves the image, depth, results and, if it has a pose, pose files of one capture
+    void saveCapture(CaptureBundle bundle) throws IOException;
+
+    // Number of captures passed to saveCapture() whose files are not on disk yet
+    LiveData<Integer> getPendingWrites();
+
+    // Number of captures whose files could not be written
+    LiveData<Integer> getFailedWrites();
 
     Integer[] getMaxSampleCaptureNums();
 }
@@ -6,7 +6,6 @@ import android.graphics.ImageFormat;
 import android.graphics.Rect;
 import android.graphics.YuvImage;
 import android.media.Image;
-import android.util.Log;
 
 //import org.opencv.core.CvType;
 //import org.opencv.core.Mat;
@@ -24,6 +23,10 @@ An image utility class for converting images from different format to byte array
  */
 
 public class ImageUtil {
+    // Chroma rows of the frame being converted, kept between conversions
+    private byte[] uRow = new byte[0];
+    private byte[] vRow = new byte[0];
+
     public static byte[] imageToByteArray(Image image) {
         byte[] data = null;
         if (image.getFormat() == ImageFormat.YUV_420_888) {
@@ -35,73 +38,138 @@ public class ImageUtil {
     }
 
     public static byte[] YUV_420_888toNV21(Image image) {
+        Image.Plane[] planes = image.getPlanes();
+        assert (planes[0].getPixelStride() == 1);
+        assert (planes[2].getRowStride() == planes[1].getRowStride());
+        assert (planes[2].getPixelStride() == planes[1].getPixelStride());
+        return new ImageUtil().YUV_420_888toNV21(image.getWidth(), image.getHeight(),
+                planes[0].getBuffer(), planes[0].getRowStride(),
+                planes[1].getBuffer(), planes[2].getBuffer(),
+                planes[2].getRowStride(), planes[2].getPixelStride(), null);
+    }
 
-        int width = image.getWidth();
-        int height = image.getHeight();
-        int ySize = width * height;
-        int uvSize = width * height / 4;
-
-        byte[] nv21 = new byte[ySize + uvSize * 2];
-
-        ByteBuffer yBuffer = image.getPlanes()[0].getBuffer(); // Y
-        ByteBuffer uBuffer = image.getPlanes()[1].getBuffer(); // U
-        ByteBuffer vBuffer = image.getPlanes()[2].getBuffer(); // V
+    /*
+     * As above, writing into nv21 if it is large enough, so callers can reuse their buffer.
+     * Returns the array holding the result, which is newly allocated otherwise.
+     * Reuses this ImageUtil's row buffers, so is not thread-safe.
+     */
+    public byte[] YUV_420_888toNV21(ImageSnapshot snapshot, byte[] nv21) {
+        ImageSnapshot.PlaneCopy y = snapshot.getPlane(0);
+        ImageSnapshot.PlaneCopy u = snapshot.getPlane(1);
+        ImageSnapshot.PlaneCopy v = snapshot.getPlane(2);
+        return YUV_420_888toNV21(snapshot.width, snapshot.height,
+                y.buffer, y.rowStride, u.buffer, v.buffer, v.rowStride, v.pixelStride, nv21);
+    }
 
-        int rowStride = image.getPlanes()[0].getRowStride();
-        assert (image.getPlanes()[0].getPixelStride() == 1);
+    /*
+     * Plane buffers are read from index 0, and their positions are left unchanged.
+     * Every row is read with one bulk get, then chroma is interleaved from plain arrays.
+     */
+    byte[] YUV_420_888toNV21(int width, int height,
+            ByteBuffer yBuffer, int yRowStride,
+            ByteBuffer uBuffer, ByteBuffer vBuffer, int uvRowStride, int uvPixelStride,
+            byte[] nv21) {
 
-        int pos = 0;
+        int ySize = width * height;
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        int size = ySize + chromaWidth * chromaHeight * 2;
+        if (nv21 == null || nv21.length < size) {
+            nv21 = new byte[size];
+        }
 
-        if (rowStride == width) { // likely
-            yBuffer.get(nv21, 0, ySize);
-            pos += ySize;
+        ByteBuffer y = yBuffer.duplicate();
+        if (yRowStride == width) { // likely
+            y.position(0);
+            y.get(nv21, 0, ySize);
         } else {
-            long yBufferPos = 0;
-            for (; pos < ySize; pos += width) {
-                yBuffer.position((int) yBufferPos);
-                yBuffer.get(nv21, pos, width);
-                yBufferPos += rowStride - width;
+            for (int row = 0; row < height; row++) {
+                y.position(row * yRowStride);
+                y.get(nv21, row * width, width);
             }
         }
 
-        rowStride = image.getPlanes()[2].getRowStride();
-        int pixelStride = image.getPlanes()[2].getPixelStride();
-
-        assert (rowStride == image.getPlanes()[1].getRowStride());
-        assert (pixelStride == image.getPlanes()[1].getPixelStride());
-
-        if (pixelStride == 2 && rowStride == width && uBuffer.get(0) == vBuffer.get(1)) {
-            // maybe V an U planes overlap as per NV21, which means vBuffer[1] is alias of uBuffer[0]
-            byte savePixel = vBuffer.get(1);
-            try {
-                vBuffer.put(1, (byte) ~savePixel);
-                if (uBuffer.get(0) == (byte) ~savePixel) {
-                    vBuffer.put(1, savePixel);
-                    vBuffer.get(nv21, ySize, uvSize);
-
-                    Log.i("AMELIA", "I'm taking a shortcut in image parsing");
-                    return nv21; // shortcut
+        ByteBuffer u = uBuffer.duplicate();
+        ByteBuffer v = vBuffer.duplicate();
+        // Bytes spanned by one row of chroma samples; the last row may end right after them
+        int rowLength = (chromaWidth - 1) * uvPixelStride + 1;
+        if (uRow.length < rowLength) {
+            uRow = new byte[rowLength];
+            vRow = new byte[rowLength];
+        }
+        byte[] uRow = this.uRow;
+        byte[] vRow = this.vRow;
+        int pos = ySize;
+        for (int row = 0; row < chromaHeight; row++) {
+            u.position(row * uvRowStride);
+            u.get(uRow, 0, rowLength);
+            v.position(row * uvRowStride);
+            v.get(vRow, 0, rowLength);
+            if (uvPixelStride == 2) { // semi-planar, the usual camera layout
+                for (int col = 0; col < rowLength; col += 2) {
+                    nv21[pos++] = vRow[col];
+                    nv21[pos++] = uRow[col];
                 }
-                vBuffer.put(1, savePixel);
-            } catch (Exception ex) {
-                ex.printStackTrace();
-            }
-
-            // other optimizations could check if (pixelStride == 1) or (pixelStride == 2),
-            // but performance gain would be less significant
-
-            for (int row = 0; row < height / 2; row++) {
-                for (int col = 0; col < width / 2; col++) {
-                    int vuPos = col * pixelStride + row * rowStride;
-                    nv21[pos++] = vBuffer.get(vuPos);
-                    nv21[pos++] = uBuffer.get(vuPos);
+            } else if (uvPixelStride == 1) { // planar
+                for (int col = 0; col < chromaWidth; col++) {
+                    nv21[pos++] = vRow[col];
+                    nv21[pos++] = uRow[col];
+                }
+            } else {
+                for (int col = 0; col < rowLength; col += uvPixelStride) {
+                    nv21[pos++] = vRow[col];
+                    nv21[pos++] = uRow[col];
                 }
             }
         }
         return nv21;
     }
 
-    private static byte[] NV21toJPEG(byte[] nv21, int width, int height) {
+    /*
+     * Converts a width x height NV21 frame into outWidth x outHeight ARGB pixels, row-major.
+     * Luma is sampled bilinearly and chroma from the nearest sample, with the
+     * full-range (JFIF) YCbCr conversion that JPEG decoding of the same frame would use.
+     */
+    public static void NV21toARGB(byte[] nv21, int width, int height,
+            int outWidth, int outHeight, int[] out) {
+        int ySize = width * height;
+        float scaleX = (float) width / outWidth;
+        float scaleY = (float) height / outHeight;
+        int i = 0;
+        for (int r = 0; r < outHeight; r++) {
+            float sy = Math.min(Math.max((r + 0.5f) * scaleY - 0.5f, 0.f), height - 1);
+            int y0 = (int) sy;
+            int y1 = Math.min(y0 + 1, height - 1);
+            float fy = sy - y0;
+            int row0 = y0 * width;
+            int row1 = y1 * width;
+            int uvRow = ySize + (Math.round(sy) >> 1) * width;
+            for (int c = 0; c < outWidth; c++) {
+                float sx = Math.min(Math.max((c + 0.5f) * scaleX - 0.5f, 0.f), width - 1);
+                int x0 = (int) sx;
+                int x1 = Math.min(x0 + 1, width - 1);
+                float fx = sx - x0;
+                float top = (nv21[row0 + x0] & 0xFF) * (1 - fx) + (nv21[row0 + x1] & 0xFF) * fx;
+                float bottom = (nv21[row1 + x0] & 0xFF) * (1 - fx) + (nv21[row1 + x1] & 0xFF) * fx;
+                float luma = top * (1 - fy) + bottom * fy;
+
+                // NV21 interleaves V then U, one pair per 2x2 block
+                int uvPos = uvRow + ((Math.round(sx) >> 1) << 1);
+                float v = (nv21[uvPos] & 0xFF) - 128.f;
+                float u = (nv21[uvPos + 1] & 0xFF) - 128.f;
+                int red = clampByte(luma + 1.402f * v);
+                int green = clampByte(luma - 0.344136f * u - 0.714136f * v);
+                int blue = clampByte(luma + 1.772f * u);
+                out[i++] = 0xFF000000 | (red << 16) | (green << 8) | blue;
+            }
+        }
+    }
+
+    private static int clampByte(float value) {
+        return Math.min(Math.max(Math.round(value), 0), 255);
+    }
+
+    public static byte[] NV21toJPEG(byte[] nv21, int width, int height) {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         YuvImage yuv = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
         yuv.compressToJpeg(new Rect(0, 0, width, height), 100, out);
@@ -0,0 +1,166 @@
+package com.trees.common.helpers;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/*
+ * Encodes NV21 frames to JPEG with a choice of quality and size profiles.
+ * The encoded bytes go into an output buffer that is kept between calls, and from there
+ * straight to a channel. Frames are downscaled here, by averaging, before encoding.
+ *
+ * YuvImage always encodes with 4:2:0 chroma subsampling, so profiles do not change it.
+ * Instances are not thread safe.
+ */
+public class JpegEncoder {
+
+    public enum Profile {
+        ARCHIVAL(1, 95),       // Full resolution, for offline reprocessing
+        FIELD_PREVIEW(2, 85),  // Half resolution, for reviewing captures in the field
+        THUMBNAIL(8, 75);      // 1/8 resolution, for galleries
+
+        public final int downscale;
+        public final int quality;
+
+        Profile(int downscale, int quality) {
+            this.downscale = downscale;
+            this.quality = quality;
+        }
+    }
+
+    // ByteArrayOutputStream whose buffer can be written out without copying it
+    private static class ReusableOutputStream extends ByteArrayOutputStream {
+        ReusableOutputStream(int size) {
+            super(size);
+        }
+
+        ByteBuffer contents() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    // An NV21 frame whose array is reused between calls
+    private static class Frame {
+        byte[] pixels = new byte[0];
+        int width;
+        int height;
+    }
+
+    private final ReusableOutputStream out = new ReusableOutputStream(1 << 20);
+    private final Frame scaled = new Frame();
+    private final Frame thumbnail = new Frame();
+
+    /*
+     * Encodes the width x height frame with the given profile and writes it to channel.
+     */
+    public void encode(byte[] nv21, int width, int height, Profile profile,
+            WritableByteChannel channel) throws IOException {
+        compress(nv21, width, height, profile);
+        write(channel);
+    }
+
+    /*
+     * As above, then writes a THUMBNAIL copy of the frame to thumbnailChannel.
+     * That is a second JPEG encode, of 1/64 of the pixels. When profile already downscales the
+     * frame, the thumbnail is downscaled from that smaller frame, so the full frame is read
+     * once; an ARCHIVAL frame has to be read again.
+     */
+    public void encodeWithThumbnail(byte[] nv21, int width, int height, Profile profile,
+            WritableByteChannel channel, WritableByteChannel thumbnailChannel) throws IOException {
+        encode(nv21, width, height, profile, channel);
+        int factor = Profile.THUMBNAIL.downscale;
+        if (profile.downscale > 1 && factor % profile.downscale == 0) {
+            downscale(scaled.pixels, scaled.width, scaled.height, factor / profile.downscale, thumbnail);
+        } else {
+            downscale(nv21, width, height, factor, thumbnail);
+        }
+        compress(thumbnail.pixels, thumbnail.width, thumbnail.height, Profile.THUMBNAIL.quality);
+        write(thumbnailChannel);
+    }
+
+    /*
+     * Encodes the frame and returns a copy of the JPEG.
+     */
+    public byte[] encode(byte[] nv21, int width, int height, Profile profile) {
+        compress(nv21, width, height, profile);
+        return out.toByteArray();
+    }
+
+    private void compress(byte[] nv21, int width, int height, Profile profile) {
+        if (profile.downscale > 1) {
+            downscale(nv21, width, height, profile.downscale, scaled);
+            compress(scaled.pixels, scaled.width, scaled.height, profile.quality);
+        } else {
+            compress(nv21, width, height, profile.quality);
+        }
+    }
+
+    private void compress(byte[] nv21, int width, int height, int quality) {
+        out.reset();
+        YuvImage yuv = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
+        yuv.compressToJpeg(new Rect(0, 0, width, height), quality, out);
+    }
+
+    private void write(WritableByteChannel channel) throws IOException {
+        ByteBuffer contents = out.contents();
+        while (contents.hasRemaining()) {
+            channel.write(contents);
+        }
+    }
+
+    /*
+     * Averages factor x factor blocks of luma, and of each chroma plane, into result.
+     * Output dimensions are rounded down to even numbers, as NV21 needs.
+     */
+    private static void downscale(byte[] nv21, int width, int height, int factor, Frame result) {
+        int scaledWidth = Math.max(2, (width / factor) & ~1);
+        int scaledHeight = Math.max(2, (height / factor) & ~1);
+        int size = scaledWidth * scaledHeight * 3 / 2;
+        if (result.pixels.length < size) {
+            result.pixels = new byte[size];
+        }
+        result.width = scaledWidth;
+        result.height = scaledHeight;
+        byte[] scaled = result.pixels;
+        int blockX = Math.min(factor, width / scaledWidth);
+        int blockY = Math.min(factor, height / scaledHeight);
+        int area = blockX * blockY;
+
+        int i = 0;
+        for (int r = 0; r < scaledHeight; r++) {
+            for (int c = 0; c < scaledWidth; c++) {
+                int sum = 0;
+                for (int y = r * blockY; y < (r + 1) * blockY; y++) {
+                    int row = y * width;
+                    for (int x = c * blockX; x < (c + 1) * blockX; x++) {
+                        sum += nv21[row + x] & 0xFF;
+                    }
+                }
+                scaled[i++] = (byte) ((sum + area / 2) / area);
+            }
+        }
+
+        // Chroma is width / 2 x height / 2 interleaved V, U pairs
+        int chromaBase = width * height;
+        for (int r = 0; r < scaledHeight / 2; r++) {
+            for (int c = 0; c < scaledWidth / 2; c++) {
+                int sumV = 0;
+                int sumU = 0;
+                for (int y = r * blockY; y < (r + 1) * blockY; y++) {
+                    int row = chromaBase + y * width;
+                    for (int x = c * blockX; x < (c + 1) * blockX; x++) {
+                        sumV += nv21[row + 2 * x] & 0xFF;
+                        sumU += nv21[row + 2 * x + 1] & 0xFF;
+                    }
+                }
+                scaled[i++] = (byte) ((sumV + area / 2) / area);
+                scaled[i++] = (byte) ((sumU + area / 2) / area);
+            }
+        }
+    }
+}
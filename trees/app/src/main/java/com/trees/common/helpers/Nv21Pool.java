@@ -0,0 +1,44 @@
+package com.trees.common.helpers;
+
+import java.util.ArrayDeque;
+
+/*
+ * NV21 camera frames for reuse between captures. Thread safe.
+ *
+ * Each capture's frame is converted into an array from the pool, and WriteBehindImageStore
+ * releases it once the capture's files are written. The frames of captures that are never
+ * saved are left to the garbage collector, so the pool only saves allocations for saved captures.
+ *
+ * There is one pool per process, see getInstance().
+ */
+public class Nv21Pool {
+    // A capture being converted, one waiting to be confirmed and one being written
+    private static final int MAX_POOLED = 3;
+
+    private static final Nv21Pool instance = new Nv21Pool(MAX_POOLED);
+
+    public static Nv21Pool getInstance() {
+        return instance;
+    }
+
+    private final ArrayDeque<byte[]> free = new ArrayDeque<>();
+    private final int maxSize;
+
+    public Nv21Pool(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /* An array of at least size bytes */
+    public synchronized byte[] acquire(int size) {
+        byte[] frame = free.poll();
+        // Frames too small for this camera size are dropped
+        return frame != null && frame.length >= size ? frame : new byte[size];
+    }
+
+    /* Ignores null, for captures without a frame */
+    public synchronized void release(byte[] frame) {
+        if (frame != null && free.size() < maxSize) {
+            free.push(frame);
+        }
+    }
+}
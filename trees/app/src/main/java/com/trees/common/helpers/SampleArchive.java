@@ -0,0 +1,409 @@
+package com.trees.common.helpers;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * A recorded dataset packed into one file, read through memory mapping: each capture's depth,
+ * confidence and camera image, the image already resized for processing. Opening an archive
+ * only reads its index, and the planes handed out are views of the mapped file, so only the
+ * pages a reader touches are ever read. All values are little-endian.
+ *
+ *   offset  type       field
+ *   0       byte[4]    magic "TSMP"
+ *   4       int32      format version (VERSION)
+ *   8       int32      number of captures
+ *   12      int32      depth width
+ *   16      int32      depth height
+ *   20      int32      image width
+ *   24      int32      image height
+ *   28      int32      confidence scale: confidence = byte / scale
+ *   32      int64      offset of the index
+ *   40      byte[24]   reserved, 0
+ *
+ * The index has an entry per capture, in the order they were added:
+ *
+ *   0       int32      sample number
+ *   4       int32      capture number
+ *   8       int64      offset of the depth plane, float32[depth width * depth height] in meters
+ *   16      int64      offset of the confidence plane, uint8[depth width * depth height]
+ *   24      int64      offset of the image plane, uint8[image width * image height * 3] RGB,
+ *                      or -1 if the capture has no image
+ *
+ * Planes are row-major. The planes of a capture are stored together, starting on a page boundary.
+ *
+ * Readers should reject files whose version they do not know.
+ */
+public class SampleArchive implements Closeable {
+    public static final String EXTENSION = ".samples";
+    public static final int VERSION = 1;
+    public static final int HEADER_BYTES = 64;
+    public static final int INDEX_ENTRY_BYTES = 32;
+
+    private static final byte[] MAGIC = {'T', 'S', 'M', 'P'};
+    private static final int CONFIDENCE_SCALE = 255;
+    private static final int PAGE_BYTES = 4096;
+    // Mapped in parts of at most this size, as a mapping is indexed by int
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+
+    private final FileChannel channel;
+    private final int count;
+    private final int depthWidth;
+    private final int depthHeight;
+    private final int imageWidth;
+    private final int imageHeight;
+    private final int confidenceScale;
+    private final int[] samples;
+    private final int[] captures;
+    private final long[] depthOffsets;
+    private final long[] confidenceOffsets;
+    private final long[] imageOffsets;
+
+    // Each capture lies within one segment; segments are mapped when first used
+    private final int[] captureSegments;
+    private final long[] segmentStarts;
+    private final long[] segmentLengths;
+    private final MappedByteBuffer[] segments;
+
+    private SampleArchive(FileChannel channel) throws IOException {
+        this.channel = channel;
+        long fileSize = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header, 0);
+        for (byte b : MAGIC) {
+            if (header.get() != b) {
+                throw new IOException("Not a sample archive");
+            }
+        }
+        int version = header.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported sample archive version " + version);
+        }
+        count = header.getInt();
+        depthWidth = header.getInt();
+        depthHeight = header.getInt();
+        imageWidth = header.getInt();
+        imageHeight = header.getInt();
+        confidenceScale = header.getInt();
+        long indexOffset = header.getLong();
+        if (count < 0 || depthWidth <= 0 || depthHeight <= 0 || imageWidth < 0 || imageHeight < 0
+                || indexOffset < HEADER_BYTES || indexOffset + (long) count * INDEX_ENTRY_BYTES > fileSize) {
+            throw new IOException("Corrupt sample archive header");
+        }
+
+        samples = new int[count];
+        captures = new int[count];
+        depthOffsets = new long[count];
+        confidenceOffsets = new long[count];
+        imageOffsets = new long[count];
+        ByteBuffer index = ByteBuffer.allocate(count * INDEX_ENTRY_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, index, indexOffset);
+        for (int i = 0; i < count; i++) {
+            samples[i] = index.getInt();
+            captures[i] = index.getInt();
+            depthOffsets[i] = index.getLong();
+            confidenceOffsets[i] = index.getLong();
+            imageOffsets[i] = index.getLong();
+            if (depthOffsets[i] < HEADER_BYTES || depthOffsets[i] + getDepthBytes() > fileSize
+                    || confidenceOffsets[i] < HEADER_BYTES || confidenceOffsets[i] + getPlaneSize() > fileSize
+                    || (imageOffsets[i] >= 0 && imageOffsets[i] + getImageBytes() > fileSize)) {
+                throw new IOException("Corrupt sample archive index entry " + i);
+            }
+        }
+
+        // Start a new segment whenever a capture would take the current one past the limit
+        captureSegments = new int[count];
+        List<long[]> ranges = new ArrayList<>();
+        long start = -1;
+        long end = -1;
+        for (int i = 0; i < count; i++) {
+            long first = Math.min(depthOffsets[i], confidenceOffsets[i]);
+            long last = Math.max(depthOffsets[i] + getDepthBytes(), confidenceOffsets[i] + getPlaneSize());
+            if (imageOffsets[i] >= 0) {
+                first = Math.min(first, imageOffsets[i]);
+                last = Math.max(last, imageOffsets[i] + getImageBytes());
+            }
+            if (start < 0 || first < start || Math.max(end, last) - start > MAX_SEGMENT_BYTES) {
+                if (start >= 0) {
+                    ranges.add(new long[] {start, end - start});
+                }
+                start = first;
+                end = last;
+            } else {
+                end = Math.max(end, last);
+            }
+            if (last - first > MAX_SEGMENT_BYTES) {
+                throw new IOException("Capture " + i + " is too large to map");
+            }
+            captureSegments[i] = ranges.size();
+        }
+        if (start >= 0) {
+            ranges.add(new long[] {start, end - start});
+        }
+        segmentStarts = new long[ranges.size()];
+        segmentLengths = new long[ranges.size()];
+        for (int i = 0; i < ranges.size(); i++) {
+            segmentStarts[i] = ranges.get(i)[0];
+            segmentLengths[i] = ranges.get(i)[1];
+        }
+        segments = new MappedByteBuffer[ranges.size()];
+    }
+
+    public static SampleArchive open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            return new SampleArchive(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int getDepthWidth() {
+        return depthWidth;
+    }
+
+    public int getDepthHeight() {
+        return depthHeight;
+    }
+
+    /* Size of the images, 0 x 0 if the archive has none */
+    public int getImageWidth() {
+        return imageWidth;
+    }
+
+    public int getImageHeight() {
+        return imageHeight;
+    }
+
+    public int getSampleNumber(int i) {
+        return samples[i];
+    }
+
+    public int getCaptureNumber(int i) {
+        return captures[i];
+    }
+
+    /*
+     * The index of a capture, or -1 if the archive does not have it.
+     */
+    public int indexOf(int sampleNumber, int captureNumber) {
+        for (int i = 0; i < count; i++) {
+            if (samples[i] == sampleNumber && captures[i] == captureNumber) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Depth of capture i in meters, depth height x depth width, as a read-only view of the file.
+     * Each call returns a new view, so readers on different threads do not share a position.
+     */
+    public FloatBuffer getDepth(int i) throws IOException {
+        return slice(i, depthOffsets[i], getDepthBytes()).asFloatBuffer();
+    }
+
+    /*
+     * Confidence of capture i, scaled so confidence = (byte & 0xFF) / getConfidenceScale().
+     */
+    public ByteBuffer getConfidence(int i) throws IOException {
+        return slice(i, confidenceOffsets[i], getPlaneSize());
+    }
+
+    public int getConfidenceScale() {
+        return confidenceScale;
+    }
+
+    public boolean hasImage(int i) {
+        return imageOffsets[i] >= 0;
+    }
+
+    /*
+     * Camera image of capture i, image height x image width RGB bytes, or null if it has none.
+     */
+    public ByteBuffer getImage(int i) throws IOException {
+        return hasImage(i) ? slice(i, imageOffsets[i], getImageBytes()) : null;
+    }
+
+    /*
+     * Copies capture i into TofArrays, for code that works on arrays.
+     */
+    public TofUtil.TofArrays read(int i) throws IOException {
+        TofUtil.TofArrays arrays = new TofUtil.TofArrays(depthWidth, depthHeight);
+        getDepth(i).get(arrays.dBuffer);
+        ByteBuffer confidence = getConfidence(i);
+        for (int j = 0; j < arrays.length; j++) {
+            arrays.percentageBuffer[j] = (confidence.get(j) & 0xFF) / (float) confidenceScale;
+        }
+        return arrays;
+    }
+
+    /*
+     * Closes the file. Views already handed out stay readable.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private int getPlaneSize() {
+        return depthWidth * depthHeight;
+    }
+
+    private int getDepthBytes() {
+        return getPlaneSize() * Float.BYTES;
+    }
+
+    private int getImageBytes() {
+        return imageWidth * imageHeight * 3;
+    }
+
+    private ByteBuffer slice(int i, long offset, int length) throws IOException {
+        int segment = captureSegments[i];
+        ByteBuffer view = map(segment).duplicate();
+        int position = (int) (offset - segmentStarts[segment]);
+        view.position(position);
+        view.limit(position + length);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private synchronized MappedByteBuffer map(int segment) throws IOException {
+        if (segments[segment] == null) {
+            segments[segment] = channel.map(FileChannel.MapMode.READ_ONLY,
+                    segmentStarts[segment], segmentLengths[segment]);
+        }
+        return segments[segment];
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new IOException("Truncated sample archive");
+            }
+        }
+        buffer.flip();
+    }
+
+    /*
+     * Writes an archive, one capture at a time. The index and header are written by close(),
+     * so an archive that was not closed is rejected by open().
+     */
+    public static class Writer implements Closeable {
+        private final FileChannel channel;
+        private final int depthWidth;
+        private final int depthHeight;
+        private final int imageWidth;
+        private final int imageHeight;
+        private final ByteBuffer block;
+        private final ByteBuffer entries;
+        private final List<long[]> index = new ArrayList<>();
+        private long position = PAGE_BYTES;
+
+        /*
+         * imageWidth and imageHeight may be 0 if no capture has an image.
+         */
+        public Writer(File file, int depthWidth, int depthHeight, int imageWidth, int imageHeight)
+                throws IOException {
+            this.depthWidth = depthWidth;
+            this.depthHeight = depthHeight;
+            this.imageWidth = imageWidth;
+            this.imageHeight = imageHeight;
+            int plane = depthWidth * depthHeight;
+            block = ByteBuffer.allocateDirect(plane * (Float.BYTES + 1) + imageWidth * imageHeight * 3)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            entries = ByteBuffer.allocate(INDEX_ENTRY_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        /*
+         * Adds a capture. image is image height x image width RGB bytes, or null.
+         */
+        public void add(int sampleNumber, int captureNumber, TofUtil.TofArrays arrays, byte[] image)
+                throws IOException {
+            if (!arrays.hasShape(depthWidth, depthHeight)) {
+                throw new IllegalArgumentException("Expected a " + depthWidth + "x" + depthHeight
+                        + " capture, got " + arrays.width + "x" + arrays.height);
+            }
+            if (image != null && image.length != imageWidth * imageHeight * 3) {
+                throw new IllegalArgumentException("Expected a " + imageWidth + "x" + imageHeight
+                        + " RGB image, got " + image.length + " bytes");
+            }
+            block.clear();
+            block.asFloatBuffer().put(arrays.dBuffer, 0, arrays.length);
+            block.position(arrays.length * Float.BYTES);
+            for (int i = 0; i < arrays.length; i++) {
+                block.put((byte) Math.round(arrays.percentageBuffer[i] * CONFIDENCE_SCALE));
+            }
+            if (image != null) {
+                block.put(image);
+            }
+            block.flip();
+
+            long depthOffset = position;
+            long confidenceOffset = depthOffset + (long) arrays.length * Float.BYTES;
+            long imageOffset = image != null ? confidenceOffset + arrays.length : -1;
+            index.add(new long[] {sampleNumber, captureNumber, depthOffset, confidenceOffset, imageOffset});
+            writeFully(block);
+            // The next capture starts on a page boundary
+            position = (position + block.limit() + PAGE_BYTES - 1) / PAGE_BYTES * PAGE_BYTES;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                long indexOffset = position;
+                for (long[] entry : index) {
+                    entries.clear();
+                    entries.putInt((int) entry[0]);
+                    entries.putInt((int) entry[1]);
+                    entries.putLong(entry[2]);
+                    entries.putLong(entry[3]);
+                    entries.putLong(entry[4]);
+                    entries.flip();
+                    writeFully(entries);
+                    position += INDEX_ENTRY_BYTES;
+                }
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                header.put(MAGIC);
+                header.putInt(VERSION);
+                header.putInt(index.size());
+                header.putInt(depthWidth);
+                header.putInt(depthHeight);
+                header.putInt(imageWidth);
+                header.putInt(imageHeight);
+                header.putInt(CONFIDENCE_SCALE);
+                header.putLong(indexOffset);
+                header.position(HEADER_BYTES);
+                header.flip();
+                position = 0;
+                writeFully(header);
+            } finally {
+                channel.close();
+            }
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            long at = position;
+            while (buffer.hasRemaining()) {
+                at += channel.write(buffer, at);
+            }
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.trees.common.helpers;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * SQLite index of the saved captures, so lookups do not have to list the samples directory.
+ * ImageStore adds a row for every capture it saves, and records the samples directory's
+ * modification time once it is indexed, see getIndexedTime(). Thread safe.
+ */
+public class SampleCatalog {
+    private static final int SCHEMA_VERSION = 2;
+    private static final String TABLE = "captures";
+    // Single row of bookkeeping values
+    private static final String STATE_TABLE = "state";
+
+    public static class Entry {
+        public int sampleNumber;
+        public int captureNumber;
+        public String rgbPath;
+        public String depthPath;
+        public String resultsPath;
+        // Milliseconds since the epoch
+        public long timestamp;
+        // Null for captures indexed from an existing directory
+        public Float depth;
+        public Float diameter;
+    }
+
+    private final SQLiteDatabase db;
+
+    public SampleCatalog(File dbFile) {
+        File dir = dbFile.getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+        db = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
+        int version = db.getVersion();
+        if (version < SCHEMA_VERSION) {
+            db.beginTransaction();
+            try {
+                createSchema(version);
+                db.setVersion(SCHEMA_VERSION);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    private void createSchema(int version) {
+        if (version < 1) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE + " ("
+                    + "sample INTEGER NOT NULL, "
+                    + "capture INTEGER NOT NULL, "
+                    + "rgb_path TEXT, "
+                    + "depth_path TEXT, "
+                    + "results_path TEXT, "
+                    + "timestamp INTEGER NOT NULL, "
+                    + "depth REAL, "
+                    + "diameter REAL, "
+                    + "PRIMARY KEY (sample, capture))");
+            // Capture numbers increase across samples, see getMaxSampleCaptureNums()
+            db.execSQL("CREATE INDEX IF NOT EXISTS captures_by_capture ON " + TABLE + " (capture)");
+        }
+        if (version < 2) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + STATE_TABLE + " ("
+                    + "id INTEGER PRIMARY KEY CHECK (id = 0), "
+                    + "indexed_time INTEGER)");
+        }
+    }
+
+    /*
+     * The modification time of the samples directory when the catalog last matched it,
+     * or null if it never has been.
+     */
+    public Long getIndexedTime() {
+        try (Cursor cursor = db.rawQuery("SELECT indexed_time FROM " + STATE_TABLE + " WHERE id = 0", null)) {
+            if (!cursor.moveToFirst() || cursor.isNull(0)) {
+                return null;
+            }
+            return cursor.getLong(0);
+        }
+    }
+
+    public void setIndexedTime(long time) {
+        ContentValues values = new ContentValues();
+        values.put("id", 0);
+        values.put("indexed_time", time);
+        db.insertWithOnConflict(STATE_TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    public boolean isEmpty() {
+        try (Cursor cursor = db.rawQuery("SELECT EXISTS (SELECT 1 FROM " + TABLE + ")", null)) {
+            return !cursor.moveToFirst() || cursor.getInt(0) == 0;
+        }
+    }
+
+    public void add(Entry entry) {
+        ContentValues values = new ContentValues();
+        values.put("sample", entry.sampleNumber);
+        values.put("capture", entry.captureNumber);
+        values.put("rgb_path", entry.rgbPath);
+        values.put("depth_path", entry.depthPath);
+        values.put("results_path", entry.resultsPath);
+        values.put("timestamp", entry.timestamp);
+        values.put("depth", entry.depth);
+        values.put("diameter", entry.diameter);
+        db.insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    public void addAll(List<Entry> entries) {
+        db.beginTransaction();
+        try {
+            for (Entry entry : entries) {
+                add(entry);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /*
+     * Removes the captures with the sample and capture numbers of entries.
+     */
+    public void removeAll(List<Entry> entries) {
+        db.beginTransaction();
+        try {
+            for (Entry entry : entries) {
+                db.delete(TABLE, "sample = ? AND capture = ?", new String[] {
+                        Integer.toString(entry.sampleNumber), Integer.toString(entry.captureNumber)});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /*
+     * The largest sample and capture numbers, or null when the catalog is empty.
+     * Both are answered from an index.
+     */
+    public int[] getMaxSampleCaptureNums() {
+        try (Cursor cursor = db.rawQuery("SELECT (SELECT MAX(sample) FROM " + TABLE + "), "
+                + "(SELECT MAX(capture) FROM " + TABLE + ")", null)) {
+            if (!cursor.moveToFirst() || cursor.isNull(0)) {
+                return null;
+            }
+            return new int[] {cursor.getInt(0), cursor.getInt(1)};
+        }
+    }
+
+    /*
+     * All captures of one sample, oldest capture first.
+     */
+    public List<Entry> getCaptures(int sampleNumber) {
+        return query("sample = ?", new String[] {Integer.toString(sampleNumber)});
+    }
+
+    /*
+     * All captures, by sample then capture number.
+     */
+    public List<Entry> getCaptures() {
+        return query(null, null);
+    }
+
+    public void clear() {
+        db.delete(TABLE, null, null);
+    }
+
+    public void close() {
+        db.close();
+    }
+
+    private List<Entry> query(String selection, String[] selectionArgs) {
+        List<Entry> entries = new ArrayList<>();
+        try (Cursor cursor = db.query(TABLE,
+                new String[] {"sample", "capture", "rgb_path", "depth_path", "results_path",
+                        "timestamp", "depth", "diameter"},
+                selection, selectionArgs, null, null, "sample, capture")) {
+            while (cursor.moveToNext()) {
+                Entry entry = new Entry();
+                entry.sampleNumber = cursor.getInt(0);
+                entry.captureNumber = cursor.getInt(1);
+                entry.rgbPath = cursor.getString(2);
+                entry.depthPath = cursor.getString(3);
+                entry.resultsPath = cursor.getString(4);
+                entry.timestamp = cursor.getLong(5);
+                entry.depth = cursor.isNull(6) ? null : cursor.getFloat(6);
+                entry.diameter = cursor.isNull(7) ? null : cursor.getFloat(7);
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,110 @@
+package com.trees.common.helpers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/*
+ * Binary file format for TOF captures. All values are little-endian.
+ *
+ *   offset  type       field
+ *   0       byte[4]    magic "TOFD"
+ *   4       int32      format version (VERSION)
+ *   8       int32      width
+ *   12      int32      height
+ *   16      float32    depth scale: meters per depth unit (1.0, depths are stored in meters)
+ *   20      float32[4] intrinsics fx, fy, cx, cy in pixels, all 0 when unknown
+ *   36      int32      confidence scale: confidence = byte / scale
+ *   40      float32[width * height]  depth plane, row-major
+ *   ...     uint8[width * height]    confidence plane, row-major
+ *
+ * Readers should reject files whose version they do not know.
+ */
+public class TofFile {
+    public static final String EXTENSION = ".tof";
+    public static final int VERSION = 1;
+    public static final int HEADER_BYTES = 40;
+
+    private static final byte[] MAGIC = {'T', 'O', 'F', 'D'};
+    private static final float DEPTH_SCALE = 1.0f;
+    private static final int CONFIDENCE_SCALE = 255;
+
+    public static int fileSize(int width, int height) {
+        return HEADER_BYTES + width * height * (Float.BYTES + 1);
+    }
+
+    /*
+     * Encodes arrays into out, from position 0, and flips it ready for writing.
+     * intrinsics is {fx, fy, cx, cy}, or null when unknown.
+     */
+    public static void encode(TofUtil.TofArrays arrays, float[] intrinsics, ByteBuffer out) {
+        out.clear();
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        out.put(MAGIC);
+        out.putInt(VERSION);
+        out.putInt(arrays.width);
+        out.putInt(arrays.height);
+        out.putFloat(DEPTH_SCALE);
+        for (int i = 0; i < 4; i++) {
+            out.putFloat(intrinsics != null ? intrinsics[i] : 0.f);
+        }
+        out.putInt(CONFIDENCE_SCALE);
+
+        out.asFloatBuffer().put(arrays.dBuffer, 0, arrays.length);
+        out.position(out.position() + arrays.length * Float.BYTES);
+        for (int i = 0; i < arrays.length; i++) {
+            out.put((byte) Math.round(arrays.percentageBuffer[i] * CONFIDENCE_SCALE));
+        }
+        out.flip();
+    }
+
+    public static void write(FileChannel channel, ByteBuffer encoded) throws IOException {
+        while (encoded.hasRemaining()) {
+            channel.write(encoded);
+        }
+    }
+
+    /*
+     * Reads a whole file written by encode(). Confidence is restored to within 1 / 255.
+     */
+    public static TofUtil.TofArrays read(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header);
+        for (byte b : MAGIC) {
+            if (header.get() != b) {
+                throw new IOException("Not a TOF file");
+            }
+        }
+        int version = header.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported TOF file version " + version);
+        }
+        int width = header.getInt();
+        int height = header.getInt();
+        float depthScale = header.getFloat();
+        header.position(header.position() + 4 * Float.BYTES);
+        int confidenceScale = header.getInt();
+
+        TofUtil.TofArrays arrays = new TofUtil.TofArrays(width, height);
+        ByteBuffer body = ByteBuffer.allocate(arrays.length * (Float.BYTES + 1))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, body);
+        body.asFloatBuffer().get(arrays.dBuffer);
+        body.position(arrays.length * Float.BYTES);
+        for (int i = 0; i < arrays.length; i++) {
+            arrays.dBuffer[i] *= depthScale;
+            arrays.percentageBuffer[i] = (body.get() & 0xFF) / (float) confidenceScale;
+        }
+        return arrays;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Truncated TOF file");
+            }
+        }
+        buffer.flip();
+    }
+}
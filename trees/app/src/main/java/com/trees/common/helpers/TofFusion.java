@@ -0,0 +1,143 @@
+package com.trees.common.helpers;
+
+import java.util.Arrays;
+
+/*
+ * Fuses a burst of TOF frames into one, taking for each pixel the median of its depths
+ * weighted by their confidence. Samples with no depth or no confidence are ignored.
+ *
+ * Frames are added one at a time as they arrive. Every array is allocated up front for
+ * the largest burst, and reused from one burst to the next, so a burst allocates nothing
+ * until fuse(). Instances are not thread safe.
+ */
+public class TofFusion {
+    private final int maxFrames;
+    private final int width;
+    private final int height;
+    private final int length;
+
+    // Samples of each pixel, pixel-major: pixel i keeps its samples at [i * maxFrames, i * maxFrames + count[i])
+    private final float[] depths;
+    private final float[] weights;
+    private final byte[] counts;
+    private int frames;
+
+    // Samples of one pixel, sorted by depth
+    private final float[] sortedDepths;
+    private final float[] sortedWeights;
+
+    public TofFusion(int maxFrames, int width, int height) {
+        if (maxFrames < 1 || maxFrames > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("Unsupported burst of " + maxFrames + " frames");
+        }
+        this.maxFrames = maxFrames;
+        this.width = width;
+        this.height = height;
+        this.length = width * height;
+        depths = new float[length * maxFrames];
+        weights = new float[length * maxFrames];
+        counts = new byte[length];
+        sortedDepths = new float[maxFrames];
+        sortedWeights = new float[maxFrames];
+    }
+
+    public int getMaxFrames() {
+        return maxFrames;
+    }
+
+    /* Frames added since the last reset() */
+    public int getFrameCount() {
+        return frames;
+    }
+
+    public boolean hasShape(int width, int height) {
+        return this.width == width && this.height == height;
+    }
+
+    /*
+     * Starts a new burst.
+     */
+    public void reset() {
+        Arrays.fill(counts, (byte) 0);
+        frames = 0;
+    }
+
+    /*
+     * Adds a frame to the burst. The arrays are copied from, so they can be reused straight away.
+     */
+    public void add(TofUtil.TofArrays frame) {
+        if (!frame.hasShape(width, height)) {
+            throw new IllegalArgumentException("Expected a " + width + "x" + height + " frame, got "
+                    + frame.width + "x" + frame.height);
+        }
+        if (frames == maxFrames) {
+            throw new IllegalStateException("Burst is limited to " + maxFrames + " frames");
+        }
+        float[] depth = frame.dBuffer;
+        float[] percentage = frame.percentageBuffer;
+        for (int i = 0; i < length; i++) {
+            float d = depth[i];
+            float w = percentage[i];
+            if (d > 0.0f && w > 0.0f) {
+                int slot = i * maxFrames + counts[i];
+                depths[slot] = d;
+                weights[slot] = w;
+                counts[i]++;
+            }
+        }
+        frames++;
+    }
+
+    /*
+     * Writes the fused burst into arrays, reusing them if they have the frames' shape.
+     * The confidence of a fused pixel is the total weight of its samples over the number of frames,
+     * so pixels missing from some frames count for less. Returns the arrays holding the result.
+     */
+    public TofUtil.TofArrays fuse(TofUtil.TofArrays arrays) {
+        if (arrays == null || !arrays.hasShape(width, height)) {
+            arrays = new TofUtil.TofArrays(width, height);
+        }
+        float[] depth = arrays.dBuffer;
+        float[] percentage = arrays.percentageBuffer;
+        for (int i = 0; i < length; i++) {
+            int count = counts[i];
+            if (count == 0) {
+                depth[i] = 0.0f;
+                percentage[i] = 0.0f;
+                continue;
+            }
+
+            // Insertion sort, as bursts are short
+            int base = i * maxFrames;
+            float total = 0.0f;
+            for (int k = 0; k < count; k++) {
+                float d = depths[base + k];
+                float w = weights[base + k];
+                total += w;
+                int j = k - 1;
+                while (j >= 0 && sortedDepths[j] > d) {
+                    sortedDepths[j + 1] = sortedDepths[j];
+                    sortedWeights[j + 1] = sortedWeights[j];
+                    j--;
+                }
+                sortedDepths[j + 1] = d;
+                sortedWeights[j + 1] = w;
+            }
+
+            // Lower weighted median: the first depth reaching half the total weight
+            float half = total / 2.0f;
+            float cumulative = 0.0f;
+            int median = 0;
+            while (median < count - 1) {
+                cumulative += sortedWeights[median];
+                if (cumulative >= half) {
+                    break;
+                }
+                median++;
+            }
+            depth[i] = sortedDepths[median];
+            percentage[i] = total / frames;
+        }
+        return arrays;
+    }
+}
@@ -1,66 +1,146 @@
 package com.trees.common.helpers;
 
-import android.util.Log;
-
 import com.huawei.hiar.ARImage;
 
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.ShortBuffer;
-import java.util.ArrayList;
 
 public class TofUtil {
-    public class TofArrays {
-        public short[] xBuffer;
-        public short[] yBuffer;
+    // Confidence fraction for each of the 3-bit confidence codes; 0 means full confidence
+    private static final float[] CONFIDENCE_PERCENTAGE = new float[8];
+    static {
+        CONFIDENCE_PERCENTAGE[0] = 1.f;
+        for (int i = 1; i < CONFIDENCE_PERCENTAGE.length; i++) {
+            CONFIDENCE_PERCENTAGE[i] = (i - 1) / 7.f;
+        }
+    }
+
+    /* Depth (in meters) and confidence of a TOF image, row-major.
+        The pixel at index i has coordinates x = i % width, y = i / width.
+     */
+    public static class TofArrays {
         public float[] dBuffer;
         public float[] percentageBuffer;
+        public int width;
+        public int height;
         public int length;
 
-        public TofArrays(int size) {
-            xBuffer = new short[size];
-            yBuffer = new short[size];
-            dBuffer = new float[size];
-            percentageBuffer = new float[size];
+        public TofArrays(int width, int height) {
+            this.width = width;
+            this.height = height;
+            this.length = width * height;
+            dBuffer = new float[length];
+            percentageBuffer = new float[length];
+        }
+
+        public boolean hasShape(int width, int height) {
+            return this.width == width && this.height == height;
         }
     }
 
+    // Scratch row of raw samples, reused between calls
+    private short[] row = new short[0];
+
     public TofArrays parseTof(ARImage imgTOF) {
+        return parseTof(imgTOF, null);
+    }
 
-        // Buffers for storing TOF output
-        TofArrays arrays = new TofArrays(imgTOF.getWidth() * imgTOF.getHeight());
+    /*
+     * Decodes imgTOF into arrays, reusing them if they have the image's shape.
+     * Returns the arrays holding the result, which are newly allocated otherwise.
+     */
+    public TofArrays parseTof(ARImage imgTOF, TofArrays arrays) {
         ARImage.Plane plane = imgTOF.getPlanes()[0];
-        ShortBuffer shortDepthBuffer = plane.getBuffer().asShortBuffer();
-
-        int stride = plane.getRowStride();
-        int offset = 0;
-//        float sum = 0.0f;
-//        float[] output = new float[imgTOF.getWidth() * imgTOF.getHeight()];
-        int i = 0;
-        for (short y = 0; y < imgTOF.getHeight(); y++) {
-            for (short x = 0; x < imgTOF.getWidth(); x++) {
-                // Parse the data. Format is [depth|confidence]
-                int depthSample = shortDepthBuffer.get((int) (y / 2) * stride + x) & 0xFFFF;
-                depthSample = (((depthSample & 0xFF) << 8) & 0xFF00) | (((depthSample & 0xFF00) >> 8) & 0xFF);
-                short depthSampleShort = (short) depthSample;
-                short depthRange = (short) (depthSampleShort & 0x1FFF);
-                short depthConfidence = (short) ((depthSampleShort >> 13) & 0x7);
-                float depthPercentage = depthConfidence == 0 ? 1.f : (depthConfidence - 1) / 7.f;
-
-//                output[offset + x] = (float) depthRange / 10000;
+        return parseTof(plane.getBuffer(), plane.getRowStride(),
+                imgTOF.getWidth(), imgTOF.getHeight(), arrays);
+    }
 
-//                sum += output[offset + x];
+    /*
+     * Decodes a DEPTH16 plane, rowStride bytes per row, into arrays (see above).
+     * The plane starts at index 0 of the buffer, whose position and byte order are left unchanged.
+     */
+    public TofArrays parseTof(ByteBuffer buffer, int rowStride, int width, int height, TofArrays arrays) {
+        if (arrays == null || !arrays.hasShape(width, height)) {
+            arrays = new TofArrays(width, height);
+        }
+        if (row.length < width) {
+            row = new short[width];
+        }
 
-                // Store data in buffer
-                arrays.xBuffer[i] = x;
-                arrays.yBuffer[i] = y;
-                arrays.dBuffer[i] = depthRange / 1000.0f;
-                arrays.percentageBuffer[i] = depthPercentage;
+        // Samples are little-endian, [confidence (3 bits) | range in mm (13 bits)]
+        ByteBuffer plane = buffer.duplicate();
+        plane.rewind();
+        ShortBuffer samples = plane.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        int shortStride = rowStride / 2;
+        float[] depth = arrays.dBuffer;
+        float[] percentage = arrays.percentageBuffer;
+        int i = 0;
+        for (int y = 0; y < height; y++) {
+            samples.position(y * shortStride);
+            samples.get(row, 0, width);
+            for (int x = 0; x < width; x++) {
+                int sample = row[x] & 0xFFFF;
+                depth[i] = (sample & 0x1FFF) / 1000.0f;
+                percentage[i] = CONFIDENCE_PERCENTAGE[sample >> 13];
                 i++;
             }
-            offset += imgTOF.getWidth();
         }
         return arrays;
     }
 
+    /*
+     * Writes arrays as x,y,depth,confidence lines, the CSV format of captures saved before TofFile.
+     */
+    public static void writeCsv(TofArrays arrays, Writer writer) throws IOException {
+        for (int i = 0; i < arrays.length; i++) {
+            writer.write(Integer.toString(i % arrays.width));
+            writer.write(',');
+            writer.write(Integer.toString(i / arrays.width));
+            writer.write(',');
+            writer.write(Float.toString(arrays.dBuffer[i]));
+            writer.write(',');
+            writer.write(Float.toString(arrays.percentageBuffer[i]));
+            writer.write('\n');
+        }
+    }
+
+    /*
+     * Reads a width x height capture in the format of writeCsv(). Pixels missing from the file are left 0.
+     * Early captures hold the raw DEPTH16 sample, a whole number, in place of the depth in meters;
+     * it is decoded as parseTof() does.
+     */
+    public static TofArrays readCsv(BufferedReader reader, int width, int height) throws IOException {
+        TofArrays arrays = new TofArrays(width, height);
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] values = line.split(",");
+            try {
+                int x = Integer.parseInt(values[0]);
+                int y = Integer.parseInt(values[1]);
+                if (values.length != 4 || x < 0 || x >= width || y < 0 || y >= height) {
+                    throw new IOException("Invalid depth sample on line " + lineNumber + ": " + line);
+                }
+                String depth = values[2];
+                if (depth.indexOf('.') < 0 && depth.indexOf('E') < 0) {
+                    arrays.dBuffer[y * width + x] = (Integer.parseInt(depth) & 0x1FFF) / 1000.0f;
+                } else {
+                    arrays.dBuffer[y * width + x] = Float.parseFloat(depth);
+                }
+                arrays.percentageBuffer[y * width + x] = Float.parseFloat(values[3]);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new IOException("Invalid depth sample on line " + lineNumber + ": " + line, e);
+            }
+        }
+        return arrays;
+    }
 }
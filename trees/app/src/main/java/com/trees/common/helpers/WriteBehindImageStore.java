@@ -0,0 +1,351 @@
+package com.trees.common.helpers;
+
+import android.util.Log;
+
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * ImageStore that saves captures in the background, so saveCapture() returns straight away.
+ *
+ * A background thread takes the queued captures in batches. It first spools each capture
+ * to a single file in the pending directory, then writes the capture's files through
+ * ImageStore. Once the whole batch has been synced to storage, the spool files are
+ * deleted. Spool files left over by a process that died are written out on the next start.
+ * The camera frames of written captures are released to Nv21Pool.
+ *
+ * There is one instance per process, see getInstance().
+ */
+public class WriteBehindImageStore implements ImageStoreInterface {
+    private static final String LOG_TAG = "AMELIA";
+    // Captures waiting to be written; saveCapture() blocks once this many are queued
+    private static final int MAX_QUEUED = 16;
+    // Captures written between syncs
+    private static final int MAX_BATCH = 8;
+    private static final String SPOOL_EXTENSION = ".pending";
+    private static final int SPOOL_VERSION = 3;
+    // Spooled before captures had poses; still read, so an update does not lose them
+    private static final int SPOOL_VERSION_NO_POSE = 2;
+    // version, sample, capture, depth, diameter, frame width, frame height
+    private static final int SPOOL_HEADER_BYTES = 7 * 4;
+    // whether there is a pose, then its three matrices, see CameraPose
+    private static final int SPOOL_POSE_BYTES = 4 + 3 * CameraPose.MATRIX_SIZE * 4;
+
+    private static WriteBehindImageStore instance;
+
+    public static synchronized WriteBehindImageStore getInstance() {
+        if (instance == null) {
+            instance = new WriteBehindImageStore(new ImageStore());
+        }
+        return instance;
+    }
+
+    private static class PendingCapture {
+        final CaptureBundle bundle;
+        final File spoolFile;
+
+        PendingCapture(CaptureBundle bundle, File spoolFile) {
+            this.bundle = bundle;
+            this.spoolFile = spoolFile;
+        }
+    }
+
+    private final ImageStore store;
+    private final BlockingQueue<CaptureBundle> queue = new ArrayBlockingQueue<>(MAX_QUEUED);
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicInteger failedCount = new AtomicInteger();
+    private final MutableLiveData<Integer> pendingWrites = new MutableLiveData<>(0);
+    private final MutableLiveData<Integer> failedWrites = new MutableLiveData<>(0);
+    // Spool header and pose, only used by the writer thread
+    private final ByteBuffer spoolHeader =
+            ByteBuffer.allocate(SPOOL_HEADER_BYTES + SPOOL_POSE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+    private WriteBehindImageStore(ImageStore store) {
+        this.store = store;
+        Thread writer = new Thread(this::runWriter, "CaptureWriter");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /*
+     * Queues the capture for writing. Blocks only if MAX_QUEUED captures are already waiting.
+     */
+    @Override
+    public void saveCapture(CaptureBundle bundle) throws IOException {
+        if (bundle.nv21 == null || bundle.depthImage == null) {
+            throw new IOException("Capture " + bundle.sampleNumber + "_" + bundle.captureNumber
+                    + " has no image to save");
+        }
+        pendingWrites.postValue(pendingCount.incrementAndGet());
+        try {
+            queue.put(bundle);
+        } catch (InterruptedException e) {
+            pendingWrites.postValue(pendingCount.decrementAndGet());
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while queueing capture", e);
+        }
+    }
+
+    @Override
+    public LiveData<Integer> getPendingWrites() {
+        return pendingWrites;
+    }
+
+    @Override
+    public LiveData<Integer> getFailedWrites() {
+        return failedWrites;
+    }
+
+    @Override
+    public void saveToFileTOF(
+            Integer sampleNumber, Integer captureNumber, TofUtil.TofArrays arrays) throws IOException {
+        store.saveToFileTOF(sampleNumber, captureNumber, arrays);
+    }
+
+    @Override
+    public void saveToFileRGB(
+            Integer sampleNumber, Integer captureNumber, byte[] image) throws IOException {
+        store.saveToFileRGB(sampleNumber, captureNumber, image);
+    }
+
+    @Override
+    public void saveToFilePose(
+            Integer sampleNumber, Integer captureNumber, CameraPose pose) throws IOException {
+        store.saveToFilePose(sampleNumber, captureNumber, pose);
+    }
+
+    @Override
+    public void saveToFileResults(
+            Integer sampleNumber, Integer captureNumber, float depth, float diameter) throws IOException {
+        store.saveToFileResults(sampleNumber, captureNumber, depth, diameter);
+    }
+
+    /*
+     * Also counts captures that are still spooled, which may not have reached the samples directory.
+     */
+    @Override
+    public Integer[] getMaxSampleCaptureNums() {
+        Integer[] nums = store.getMaxSampleCaptureNums();
+        File[] spooled = store.getPendingDirectory().listFiles(
+                (d, name) -> name.startsWith(store.getPrefix()) && name.endsWith(SPOOL_EXTENSION));
+        if (spooled != null) {
+            for (File file : spooled) {
+                Integer[] s = store.parseSampleCaptureNums(file.getName().replace(SPOOL_EXTENSION, ""));
+                if (s == null) {
+                    continue;
+                }
+                nums[0] = Math.max(s[0] + 1, nums[0]);
+                nums[1] = Math.max(s[1] + 1, nums[1]);
+            }
+        }
+        return nums;
+    }
+
+    private void runWriter() {
+        List<PendingCapture> batch = new ArrayList<>();
+        recoverSpooled(batch);
+
+        List<CaptureBundle> taken = new ArrayList<>();
+        while (true) {
+            try {
+                taken.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(taken, MAX_BATCH - 1);
+            // Spool first, so the captures survive if the process dies before they are written
+            for (CaptureBundle bundle : taken) {
+                try (CaptureTrace.Section section = CaptureTrace.begin(bundle.trace, "spool")) {
+                    int tofSize = TofFile.fileSize(bundle.depthImage.width, bundle.depthImage.height);
+                    section.buffers(bundle.nv21Size() + tofSize).allocated(tofSize);
+                    batch.add(new PendingCapture(bundle, spool(bundle)));
+                }
+            }
+            taken.clear();
+            writeBatch(batch);
+            batch.clear();
+        }
+    }
+
+    private void recoverSpooled(List<PendingCapture> batch) {
+        File[] spooled = store.getPendingDirectory().listFiles(
+                (d, name) -> name.endsWith(SPOOL_EXTENSION));
+        if (spooled == null || spooled.length == 0) {
+            return;
+        }
+        Log.i(LOG_TAG, "Recovering " + spooled.length + " unsaved captures");
+        pendingWrites.postValue(pendingCount.addAndGet(spooled.length));
+        for (File file : spooled) {
+            try {
+                batch.add(new PendingCapture(readSpool(file), file));
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Unable to read the unsaved capture " + file.getName() + ": ", e);
+                fail();
+            }
+            if (batch.size() == MAX_BATCH) {
+                writeBatch(batch);
+                batch.clear();
+            }
+        }
+        writeBatch(batch);
+        batch.clear();
+    }
+
+    /*
+     * Writes the captures' files, syncs them, then drops their spool files.
+     */
+    private void writeBatch(List<PendingCapture> batch) {
+        List<File> written = new ArrayList<>();
+        List<PendingCapture> succeeded = new ArrayList<>();
+        for (PendingCapture capture : batch) {
+            try {
+                store.saveCapture(capture.bundle);
+                // The frame is spooled and encoded, so the next capture can use its array
+                Nv21Pool.getInstance().release(capture.bundle.nv21);
+                for (File file : store.getCaptureFiles(
+                        capture.bundle.sampleNumber, capture.bundle.captureNumber)) {
+                    written.add(file);
+                }
+                if (capture.bundle.pose != null) {
+                    written.add(store.getPoseFile(capture.bundle.sampleNumber, capture.bundle.captureNumber));
+                }
+                succeeded.add(capture);
+            } catch (IOException e) {
+                // The spool file, if any, is kept and retried on the next start
+                Log.e(LOG_TAG, "Unable to store capture " + capture.bundle.sampleNumber
+                        + "_" + capture.bundle.captureNumber + ": ", e);
+                fail();
+            }
+        }
+
+        try {
+            for (File file : written) {
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                    channel.force(true);
+                }
+            }
+        } catch (IOException e) {
+            // Keep every spool file, since we cannot tell which captures reached storage
+            Log.e(LOG_TAG, "Unable to sync captures: ", e);
+            for (int i = 0; i < succeeded.size(); i++) {
+                fail();
+            }
+            return;
+        }
+
+        for (PendingCapture capture : succeeded) {
+            if (capture.spoolFile != null && !capture.spoolFile.delete()) {
+                Log.w(LOG_TAG, "Unable to delete " + capture.spoolFile.getName());
+            }
+        }
+        pendingWrites.postValue(pendingCount.addAndGet(-succeeded.size()));
+    }
+
+    private void fail() {
+        pendingWrites.postValue(pendingCount.decrementAndGet());
+        failedWrites.postValue(failedCount.incrementAndGet());
+    }
+
+    /*
+     * Spool layout, little-endian: the header fields listed at SPOOL_HEADER_BYTES, the pose
+     * fields listed at SPOOL_POSE_BYTES, the NV21 camera frame, then the depth image as a TofFile.
+     * Returns null if the capture could not be spooled.
+     */
+    private File spool(CaptureBundle bundle) {
+        File dir = store.getPendingDirectory();
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        File file = new File(dir, store.getPrefix() + bundle.sampleNumber + "_"
+                + bundle.captureNumber + SPOOL_EXTENSION);
+
+        spoolHeader.clear();
+        spoolHeader.putInt(SPOOL_VERSION);
+        spoolHeader.putInt(bundle.sampleNumber);
+        spoolHeader.putInt(bundle.captureNumber);
+        spoolHeader.putFloat(bundle.depth);
+        spoolHeader.putFloat(bundle.diameter);
+        spoolHeader.putInt(bundle.nv21Width);
+        spoolHeader.putInt(bundle.nv21Height);
+        spoolHeader.putInt(bundle.pose != null ? 1 : 0);
+        CameraPose pose = bundle.pose != null ? bundle.pose : new CameraPose();
+        for (float[] matrix : new float[][] {pose.cameraToWorld, pose.viewMatrix, pose.projectionMatrix}) {
+            for (float value : matrix) {
+                spoolHeader.putFloat(value);
+            }
+        }
+        spoolHeader.flip();
+        ByteBuffer tof = ByteBuffer.allocate(
+                TofFile.fileSize(bundle.depthImage.width, bundle.depthImage.height));
+        TofFile.encode(bundle.depthImage, null, tof);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            TofFile.write(channel, spoolHeader);
+            TofFile.write(channel, ByteBuffer.wrap(bundle.nv21, 0, bundle.nv21Size()));
+            TofFile.write(channel, tof);
+            return file;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Unable to spool capture " + file.getName() + ": ", e);
+            file.delete();
+            return null;
+        }
+    }
+
+    private CaptureBundle readSpool(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(SPOOL_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header);
+            int version = header.getInt();
+            if (version != SPOOL_VERSION && version != SPOOL_VERSION_NO_POSE) {
+                throw new IOException("Unsupported spool version " + version);
+            }
+            int sampleNumber = header.getInt();
+            int captureNumber = header.getInt();
+            float depth = header.getFloat();
+            float diameter = header.getFloat();
+            int width = header.getInt();
+            int height = header.getInt();
+            CameraPose pose = null;
+            if (version == SPOOL_VERSION) {
+                ByteBuffer poseBytes = ByteBuffer.allocate(SPOOL_POSE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                readFully(channel, poseBytes);
+                if (poseBytes.getInt() != 0) {
+                    pose = new CameraPose();
+                    for (float[] matrix : new float[][] {
+                            pose.cameraToWorld, pose.viewMatrix, pose.projectionMatrix}) {
+                        for (int i = 0; i < matrix.length; i++) {
+                            matrix[i] = poseBytes.getFloat();
+                        }
+                    }
+                }
+            }
+            ByteBuffer nv21 = ByteBuffer.allocate(width * height * 3 / 2);
+            readFully(channel, nv21);
+            TofUtil.TofArrays depthImage = TofFile.read(channel);
+            return new CaptureBundle(sampleNumber, captureNumber,
+                    nv21.array(), width, height, depthImage, depth, diameter, null, pose);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Truncated spool file");
+            }
+        }
+        buffer.flip();
+    }
+}
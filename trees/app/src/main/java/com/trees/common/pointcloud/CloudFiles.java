@@ -0,0 +1,73 @@
+package com.trees.common.pointcloud;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * What PcdFile and PlyFile share: both start with a text header and are read whole.
+ */
+final class CloudFiles {
+    private CloudFiles() {
+    }
+
+    /* The rest of the file from the channel's position, little-endian */
+    static ByteBuffer readAll(FileChannel channel) throws IOException {
+        long remaining = channel.size() - channel.position();
+        if (remaining > Integer.MAX_VALUE) {
+            throw new IOException("Point cloud file too large");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) remaining).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Truncated point cloud file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    static void writeAll(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /*
+     * The next header line, without its line terminator, or null at the end of the buffer.
+     * Header lines are ASCII.
+     */
+    static String readLine(ByteBuffer buffer) {
+        if (!buffer.hasRemaining()) {
+            return null;
+        }
+        int start = buffer.position();
+        int end = start;
+        while (end < buffer.limit() && buffer.get(end) != '\n') {
+            end++;
+        }
+        buffer.position(Math.min(end + 1, buffer.limit()));
+        if (end > start && buffer.get(end - 1) == '\r') {
+            end--;
+        }
+        return new String(buffer.array(), buffer.arrayOffset() + start, end - start, StandardCharsets.US_ASCII);
+    }
+
+    static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static String[] split(String line) {
+        return line.trim().split("\\s+");
+    }
+
+    static int parseInt(String value, String what) throws IOException {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad " + what + ": " + value);
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package com.trees.common.pointcloud;
+
+import java.util.Arrays;
+
+/*
+ * Point-to-point iterative closest point, as pcl::IterativeClosestPoint does it: each source
+ * point is paired with its nearest target point, the rigid transform that best maps the pairs
+ * in the least squares sense is found in closed form, and the two steps repeat until the
+ * transform stops changing.
+ *
+ * The closed form is Horn's: the rotation is the quaternion that is the eigenvector of the
+ * largest eigenvalue of a symmetric 4x4 matrix built from the pairs' cross-covariance.
+ *
+ * The target's k-d tree is built once by setTarget(), so one target can be aligned to many
+ * sources. An Icp is not thread-safe.
+ */
+public class Icp {
+    public static final int MAX_ITERATIONS = 50;
+    /* Squared translation, in m^2, plus squared rotation, in rad^2, of a step that converges */
+    public static final double TRANSFORMATION_EPSILON = 1e-12;
+    /* Relative change of the mean squared pair distance of a step that converges */
+    public static final double FITNESS_EPSILON = 1e-6;
+
+    // Fewer pairs do not fix a rotation
+    private static final int MIN_CORRESPONDENCES = 3;
+    private static final int JACOBI_SWEEPS = 32;
+
+    /*
+     * Alignment settings. The defaults are the constants; like PCL, pairs of any distance are
+     * used unless maxCorrespondenceDistance is set.
+     */
+    public static class Parameters {
+        public int maxIterations = MAX_ITERATIONS;
+        /* Pairs further apart than this, in m, are left out */
+        public double maxCorrespondenceDistance = Double.POSITIVE_INFINITY;
+        public double transformationEpsilon = TRANSFORMATION_EPSILON;
+        public double fitnessEpsilon = FITNESS_EPSILON;
+
+        public Parameters copy() {
+            Parameters copy = new Parameters();
+            copy.maxIterations = maxIterations;
+            copy.maxCorrespondenceDistance = maxCorrespondenceDistance;
+            copy.transformationEpsilon = transformationEpsilon;
+            copy.fitnessEpsilon = fitnessEpsilon;
+            return copy;
+        }
+    }
+
+    public static class Result {
+        /* Source to target transform, 4x4 column-major, as PointCloud.transform() takes */
+        public float[] transform;
+
+        /* False if the iterations ran out, or too few points were paired, before convergence */
+        public boolean converged;
+
+        public int iterations;
+
+        /* Mean squared distance, in m^2, of the source points under transform to their pairs */
+        public double fitness;
+
+        /* Source points that were paired, within maxCorrespondenceDistance */
+        public int correspondences;
+    }
+
+    private final Parameters params;
+    private final KdTree tree = new KdTree();
+    private PointCloud target;
+
+    // Sums over the pairs: source point, target point, their outer product and squared distance
+    private final double[] sumSource = new double[3];
+    private final double[] sumTarget = new double[3];
+    private final double[] sumProduct = new double[9];
+    private double sumDistance;
+    // Per source point, the target point it was paired with last iteration, or -1
+    private int[] previousPairs = new int[0];
+
+    public Icp() {
+        this(new Parameters());
+    }
+
+    public Icp(Parameters params) {
+        this.params = params.copy();
+    }
+
+    /* target must not change while sources are aligned to it */
+    public void setTarget(PointCloud target) {
+        this.target = target;
+        tree.build(target);
+    }
+
+    /*
+     * Aligns source to the target. initialGuess is a 4x4 column-major source to target
+     * transform to start from, or null for the identity.
+     */
+    public Result align(PointCloud source, float[] initialGuess) {
+        if (target == null) {
+            throw new IllegalStateException("No target set");
+        }
+        // Rotation, row-major, then translation
+        double[] transform = {1, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0};
+        if (initialGuess != null) {
+            for (int row = 0; row < 3; row++) {
+                for (int col = 0; col < 3; col++) {
+                    transform[row * 3 + col] = initialGuess[col * 4 + row];
+                }
+                transform[9 + row] = initialGuess[12 + row];
+            }
+        }
+        float maxDistanceSquared = (float) (params.maxCorrespondenceDistance * params.maxCorrespondenceDistance);
+
+        if (previousPairs.length < source.size) {
+            previousPairs = new int[source.size];
+        }
+        Arrays.fill(previousPairs, 0, source.size, -1);
+
+        Result result = new Result();
+        double[] step = new double[12];
+        double previousFitness = Double.NaN;
+        while (result.iterations < params.maxIterations) {
+            int pairs = correspond(source, transform, maxDistanceSquared);
+            if (pairs < MIN_CORRESPONDENCES) {
+                break;
+            }
+            result.iterations++;
+            double fitness = sumDistance / pairs;
+            double stepSize = solve(pairs, step);
+            compose(step, transform);
+
+            if (stepSize < params.transformationEpsilon
+                    || Math.abs(previousFitness - fitness) <= params.fitnessEpsilon * fitness) {
+                result.converged = true;
+                break;
+            }
+            previousFitness = fitness;
+        }
+
+        result.correspondences = correspond(source, transform, maxDistanceSquared);
+        result.fitness = result.correspondences > 0 ? sumDistance / result.correspondences : Double.NaN;
+        result.transform = toMatrix(transform);
+        return result;
+    }
+
+    /*
+     * Pairs every source point, under transform, with its nearest target point, and sums the
+     * pairs. Returns the number of pairs.
+     */
+    private int correspond(PointCloud source, double[] transform, float maxDistanceSquared) {
+        Arrays.fill(sumSource, 0);
+        Arrays.fill(sumTarget, 0);
+        Arrays.fill(sumProduct, 0);
+        sumDistance = 0;
+
+        float r0 = (float) transform[0], r1 = (float) transform[1], r2 = (float) transform[2];
+        float r3 = (float) transform[3], r4 = (float) transform[4], r5 = (float) transform[5];
+        float r6 = (float) transform[6], r7 = (float) transform[7], r8 = (float) transform[8];
+        float tx = (float) transform[9], ty = (float) transform[10], tz = (float) transform[11];
+        int pairs = 0;
+        for (int i = 0; i < source.size; i++) {
+            float px = r0 * source.x[i] + r1 * source.y[i] + r2 * source.z[i] + tx;
+            float py = r3 * source.x[i] + r4 * source.y[i] + r5 * source.z[i] + ty;
+            float pz = r6 * source.x[i] + r7 * source.y[i] + r8 * source.z[i] + tz;
+            // Points move little between iterations, so the last pair bounds the search tightly.
+            // The bound is just above its distance, so that pair is found again if still nearest.
+            int previous = previousPairs[i];
+            float bound = maxDistanceSquared;
+            if (previous >= 0) {
+                float dx = target.x[previous] - px;
+                float dy = target.y[previous] - py;
+                float dz = target.z[previous] - pz;
+                bound = Math.min(bound, Math.nextUp(dx * dx + dy * dy + dz * dz));
+            }
+            int nearest = tree.nearest(px, py, pz, bound);
+            previousPairs[i] = nearest;
+            if (nearest < 0) {
+                continue;
+            }
+            float qx = target.x[nearest];
+            float qy = target.y[nearest];
+            float qz = target.z[nearest];
+            sumSource[0] += px;
+            sumSource[1] += py;
+            sumSource[2] += pz;
+            sumTarget[0] += qx;
+            sumTarget[1] += qy;
+            sumTarget[2] += qz;
+            sumProduct[0] += (double) px * qx;
+            sumProduct[1] += (double) px * qy;
+            sumProduct[2] += (double) px * qz;
+            sumProduct[3] += (double) py * qx;
+            sumProduct[4] += (double) py * qy;
+            sumProduct[5] += (double) py * qz;
+            sumProduct[6] += (double) pz * qx;
+            sumProduct[7] += (double) pz * qy;
+            sumProduct[8] += (double) pz * qz;
+            sumDistance += tree.getDistanceSquared();
+            pairs++;
+        }
+        return pairs;
+    }
+
+    /*
+     * The rigid transform that best maps the summed source points onto their target points,
+     * into step, in the layout of align()'s transform. Returns its squared size: squared
+     * translation plus squared rotation angle.
+     */
+    private double solve(int pairs, double[] step) {
+        double[] ms = new double[3];
+        double[] mt = new double[3];
+        for (int a = 0; a < 3; a++) {
+            ms[a] = sumSource[a] / pairs;
+            mt[a] = sumTarget[a] / pairs;
+        }
+        // Cross-covariance of the centered pairs, s[a][b] = sum of source a * target b
+        double[] s = new double[9];
+        for (int a = 0; a < 3; a++) {
+            for (int b = 0; b < 3; b++) {
+                s[a * 3 + b] = sumProduct[a * 3 + b] - pairs * ms[a] * mt[b];
+            }
+        }
+        double sxx = s[0], sxy = s[1], sxz = s[2];
+        double syx = s[3], syy = s[4], syz = s[5];
+        double szx = s[6], szy = s[7], szz = s[8];
+        double[] n = {
+                sxx + syy + szz, syz - szy, szx - sxz, sxy - syx,
+                syz - szy, sxx - syy - szz, sxy + syx, szx + sxz,
+                szx - sxz, sxy + syx, -sxx + syy - szz, syz + szy,
+                sxy - syx, szx + sxz, syz + szy, -sxx - syy + szz,
+        };
+        double[] q = largestEigenvector(n);
+        double w = q[0], x = q[1], y = q[2], z = q[3];
+
+        step[0] = 1 - 2 * (y * y + z * z);
+        step[1] = 2 * (x * y - w * z);
+        step[2] = 2 * (x * z + w * y);
+        step[3] = 2 * (x * y + w * z);
+        step[4] = 1 - 2 * (x * x + z * z);
+        step[5] = 2 * (y * z - w * x);
+        step[6] = 2 * (x * z - w * y);
+        step[7] = 2 * (y * z + w * x);
+        step[8] = 1 - 2 * (x * x + y * y);
+        double translation = 0;
+        for (int a = 0; a < 3; a++) {
+            step[9 + a] = mt[a] - (step[a * 3] * ms[0] + step[a * 3 + 1] * ms[1] + step[a * 3 + 2] * ms[2]);
+            translation += step[9 + a] * step[9 + a];
+        }
+        double angle = 2 * Math.acos(Math.min(1, Math.abs(w)));
+        return translation + angle * angle;
+    }
+
+    /* transform = step after transform */
+    private static void compose(double[] step, double[] transform) {
+        double[] composed = new double[12];
+        for (int row = 0; row < 3; row++) {
+            for (int col = 0; col < 3; col++) {
+                composed[row * 3 + col] = step[row * 3] * transform[col]
+                        + step[row * 3 + 1] * transform[3 + col]
+                        + step[row * 3 + 2] * transform[6 + col];
+            }
+            composed[9 + row] = step[row * 3] * transform[9] + step[row * 3 + 1] * transform[10]
+                    + step[row * 3 + 2] * transform[11] + step[9 + row];
+        }
+        System.arraycopy(composed, 0, transform, 0, 12);
+    }
+
+    private static float[] toMatrix(double[] transform) {
+        float[] matrix = new float[16];
+        for (int row = 0; row < 3; row++) {
+            for (int col = 0; col < 3; col++) {
+                matrix[col * 4 + row] = (float) transform[row * 3 + col];
+            }
+            matrix[12 + row] = (float) transform[9 + row];
+        }
+        matrix[15] = 1;
+        return matrix;
+    }
+
+    /*
+     * The unit eigenvector of the largest eigenvalue of the symmetric 4x4 row-major matrix a,
+     * by cyclic Jacobi rotations. a is overwritten.
+     */
+    static double[] largestEigenvector(double[] a) {
+        double[] v = {1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1};
+        for (int sweep = 0; sweep < JACOBI_SWEEPS; sweep++) {
+            double off = 0;
+            for (int p = 0; p < 3; p++) {
+                for (int r = p + 1; r < 4; r++) {
+                    off += a[p * 4 + r] * a[p * 4 + r];
+                }
+            }
+            if (off < 1e-30) {
+                break;
+            }
+            for (int p = 0; p < 3; p++) {
+                for (int r = p + 1; r < 4; r++) {
+                    double apr = a[p * 4 + r];
+                    if (Math.abs(apr) < 1e-300) {
+                        continue;
+                    }
+                    double theta = (a[r * 4 + r] - a[p * 4 + p]) / (2 * apr);
+                    double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+                    if (theta == 0) {
+                        t = 1;
+                    }
+                    double c = 1 / Math.sqrt(t * t + 1);
+                    double sn = t * c;
+                    // a = J^T a J, rotating rows and columns p and r
+                    for (int k = 0; k < 4; k++) {
+                        double akp = a[k * 4 + p];
+                        double akr = a[k * 4 + r];
+                        a[k * 4 + p] = c * akp - sn * akr;
+                        a[k * 4 + r] = sn * akp + c * akr;
+                    }
+                    for (int k = 0; k < 4; k++) {
+                        double apk = a[p * 4 + k];
+                        double ark = a[r * 4 + k];
+                        a[p * 4 + k] = c * apk - sn * ark;
+                        a[r * 4 + k] = sn * apk + c * ark;
+                    }
+                    for (int k = 0; k < 4; k++) {
+                        double vkp = v[k * 4 + p];
+                        double vkr = v[k * 4 + r];
+                        v[k * 4 + p] = c * vkp - sn * vkr;
+                        v[k * 4 + r] = sn * vkp + c * vkr;
+                    }
+                }
+            }
+        }
+        int largest = 0;
+        for (int k = 1; k < 4; k++) {
+            if (a[k * 4 + k] > a[largest * 4 + largest]) {
+                largest = k;
+            }
+        }
+        double[] eigenvector = new double[4];
+        double norm = 0;
+        for (int k = 0; k < 4; k++) {
+            eigenvector[k] = v[k * 4 + largest];
+            norm += eigenvector[k] * eigenvector[k];
+        }
+        norm = Math.sqrt(norm);
+        for (int k = 0; k < 4; k++) {
+            eigenvector[k] /= norm;
+        }
+        return eigenvector;
+    }
+}
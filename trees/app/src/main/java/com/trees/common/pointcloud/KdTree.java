@@ -0,0 +1,343 @@
+package com.trees.common.pointcloud;
+
+import java.util.Arrays;
+
+/*
+ * A k-d tree over a point cloud, for nearest neighbour and radius searches.
+ *
+ * Nodes split their points at the middle of their widest side, as FLANN's single index tree
+ * that PCL uses does, down to buckets of at most BUCKET_SIZE points, which are searched
+ * linearly. A split that would leave less than an eighth of the points on one side is made at
+ * the median instead, so the tree stays shallow when a few points lie far from the rest. The tree keeps its own copy of the
+ * coordinates in tree order, so a bucket is a contiguous run of each array and the cloud can
+ * change after build(). Searches return indices into the cloud as it was built.
+ *
+ * A tree keeps its arrays between builds and its search stack between queries,
+ * so is not thread-safe.
+ */
+public class KdTree {
+    public static final int BUCKET_SIZE = 16;
+    // A side of a middle split with fewer than 1 / MIN_SIDE_FRACTION of the points is too small
+    private static final int MIN_SIDE_FRACTION = 8;
+
+    // Nodes, in build order with the root first. Leaves have left == -1.
+    private int[] nodeStart = new int[0];
+    private int[] nodeEnd = new int[0];
+    private int[] nodeLeft = new int[0];
+    private int[] nodeRight = new int[0];
+    private byte[] nodeAxis = new byte[0];
+    private float[] nodeSplit = new float[0];
+    private int nodeCount;
+
+    // Points in tree order, and their indices in the cloud
+    private float[] treeX = new float[0];
+    private float[] treeY = new float[0];
+    private float[] treeZ = new float[0];
+    private int[] indices = new int[0];
+    private int size;
+
+    // Nodes still to visit, and the least squared distance the query could be from each
+    private int[] stackNode = new int[64];
+    private float[] stackDistance = new float[64];
+
+    private float lastDistanceSquared;
+
+    public KdTree() {
+    }
+
+    public KdTree(PointCloud cloud) {
+        build(cloud);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void build(PointCloud cloud) {
+        size = cloud.size;
+        if (indices.length < size) {
+            treeX = new float[size];
+            treeY = new float[size];
+            treeZ = new float[size];
+            indices = new int[size];
+        }
+        for (int i = 0; i < size; i++) {
+            indices[i] = i;
+        }
+        System.arraycopy(cloud.x, 0, treeX, 0, size);
+        System.arraycopy(cloud.y, 0, treeY, 0, size);
+        System.arraycopy(cloud.z, 0, treeZ, 0, size);
+
+        nodeCount = 0;
+        if (size > 0) {
+            buildNode(0, size);
+        }
+    }
+
+    /*
+     * The cloud index of the point nearest to (x, y, z), or -1 if the tree is empty.
+     */
+    public int nearest(float x, float y, float z) {
+        return nearest(x, y, z, Float.POSITIVE_INFINITY);
+    }
+
+    /*
+     * The cloud index of the point nearest to (x, y, z) if it is closer than
+     * sqrt(maxDistanceSquared), otherwise -1. getDistanceSquared() is then its squared distance.
+     */
+    public int nearest(float x, float y, float z, float maxDistanceSquared) {
+        float best = maxDistanceSquared;
+        int bestPoint = -1;
+        if (size == 0) {
+            lastDistanceSquared = Float.POSITIVE_INFINITY;
+            return -1;
+        }
+
+        int top = 0;
+        stackNode[0] = 0;
+        stackDistance[0] = 0;
+        top++;
+        while (top > 0) {
+            top--;
+            if (stackDistance[top] >= best) {
+                continue;
+            }
+            int node = stackNode[top];
+            // Descend to the leaf on the query's side, leaving the far sides for later
+            while (nodeLeft[node] >= 0) {
+                float diff = coordinate(nodeAxis[node], x, y, z) - nodeSplit[node];
+                int near = diff < 0 ? nodeLeft[node] : nodeRight[node];
+                int far = diff < 0 ? nodeRight[node] : nodeLeft[node];
+                float farDistance = diff * diff;
+                if (farDistance < best) {
+                    top = push(top, far, farDistance);
+                }
+                node = near;
+            }
+            for (int i = nodeStart[node], end = nodeEnd[node]; i < end; i++) {
+                float dx = treeX[i] - x;
+                float dy = treeY[i] - y;
+                float dz = treeZ[i] - z;
+                float d = dx * dx + dy * dy + dz * dz;
+                if (d < best) {
+                    best = d;
+                    bestPoint = i;
+                }
+            }
+        }
+        lastDistanceSquared = bestPoint >= 0 ? best : Float.POSITIVE_INFINITY;
+        return bestPoint >= 0 ? indices[bestPoint] : -1;
+    }
+
+    /* The squared distance to the point the last nearest() found, infinite if none */
+    public float getDistanceSquared() {
+        return lastDistanceSquared;
+    }
+
+    /*
+     * Writes the cloud indices of the points within radius of (x, y, z) to found, in no
+     * particular order, stopping when it is full. Returns how many were written.
+     */
+    public int radiusSearch(float x, float y, float z, float radius, int[] found) {
+        float radiusSquared = radius * radius;
+        int count = 0;
+        if (size == 0) {
+            return 0;
+        }
+
+        int top = 0;
+        stackNode[0] = 0;
+        stackDistance[0] = 0;
+        top++;
+        while (top > 0 && count < found.length) {
+            top--;
+            int node = stackNode[top];
+            while (nodeLeft[node] >= 0) {
+                float diff = coordinate(nodeAxis[node], x, y, z) - nodeSplit[node];
+                int near = diff < 0 ? nodeLeft[node] : nodeRight[node];
+                int far = diff < 0 ? nodeRight[node] : nodeLeft[node];
+                if (diff * diff <= radiusSquared) {
+                    top = push(top, far, diff * diff);
+                }
+                node = near;
+            }
+            for (int i = nodeStart[node], end = nodeEnd[node]; i < end && count < found.length; i++) {
+                float dx = treeX[i] - x;
+                float dy = treeY[i] - y;
+                float dz = treeZ[i] - z;
+                if (dx * dx + dy * dy + dz * dz <= radiusSquared) {
+                    found[count++] = indices[i];
+                }
+            }
+        }
+        return count;
+    }
+
+    private int push(int top, int node, float distance) {
+        if (top == stackNode.length) {
+            stackNode = Arrays.copyOf(stackNode, top * 2);
+            stackDistance = Arrays.copyOf(stackDistance, top * 2);
+        }
+        stackNode[top] = node;
+        stackDistance[top] = distance;
+        return top + 1;
+    }
+
+    private static float coordinate(int axis, float x, float y, float z) {
+        return axis == 0 ? x : axis == 1 ? y : z;
+    }
+
+    private int buildNode(int start, int end) {
+        if (nodeCount == nodeStart.length) {
+            int capacity = Math.max(64, nodeCount * 2);
+            nodeStart = Arrays.copyOf(nodeStart, capacity);
+            nodeEnd = Arrays.copyOf(nodeEnd, capacity);
+            nodeLeft = Arrays.copyOf(nodeLeft, capacity);
+            nodeRight = Arrays.copyOf(nodeRight, capacity);
+            nodeAxis = Arrays.copyOf(nodeAxis, capacity);
+            nodeSplit = Arrays.copyOf(nodeSplit, capacity);
+        }
+        int node = nodeCount++;
+        nodeStart[node] = start;
+        nodeEnd[node] = end;
+        nodeLeft[node] = -1;
+        nodeRight[node] = -1;
+        if (end - start <= BUCKET_SIZE) {
+            return node;
+        }
+
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+        // Comparisons rather than Math.min() and max(), which also order NaN and -0
+        for (int i = start; i < end; i++) {
+            float px = treeX[i];
+            float py = treeY[i];
+            float pz = treeZ[i];
+            if (px < minX) {
+                minX = px;
+            }
+            if (px > maxX) {
+                maxX = px;
+            }
+            if (py < minY) {
+                minY = py;
+            }
+            if (py > maxY) {
+                maxY = py;
+            }
+            if (pz < minZ) {
+                minZ = pz;
+            }
+            if (pz > maxZ) {
+                maxZ = pz;
+            }
+        }
+        float spanX = maxX - minX;
+        float spanY = maxY - minY;
+        float spanZ = maxZ - minZ;
+        int axis = spanX >= spanY && spanX >= spanZ ? 0 : spanY >= spanZ ? 1 : 2;
+        float span = axis == 0 ? spanX : axis == 1 ? spanY : spanZ;
+        if (span == 0) {
+            // All the points are the same point
+            return node;
+        }
+        float[] values = axis == 0 ? treeX : axis == 1 ? treeY : treeZ;
+        float split = axis == 0 ? minX + spanX / 2 : axis == 1 ? minY + spanY / 2 : minZ + spanZ / 2;
+
+        // Points below split to the front
+        int i = start;
+        int j = end - 1;
+        while (true) {
+            while (i <= j && values[i] < split) {
+                i++;
+            }
+            while (i <= j && values[j] >= split) {
+                j--;
+            }
+            if (i >= j) {
+                break;
+            }
+            swap(i, j);
+            i++;
+            j--;
+        }
+        int middle = i;
+        int minSide = (end - start) / MIN_SIDE_FRACTION;
+        if (middle - start < minSide || end - middle < minSide) {
+            middle = (start + end) >>> 1;
+            select(values, start, end - 1, middle);
+            split = values[middle];
+        }
+
+        nodeAxis[node] = (byte) axis;
+        nodeSplit[node] = split;
+        int left = buildNode(start, middle);
+        int right = buildNode(middle, end);
+        nodeLeft[node] = left;
+        nodeRight[node] = right;
+        return node;
+    }
+
+    /*
+     * Reorders the points from lo to hi inclusive so the k-th is where a sort on values would
+     * put it, with none greater before it and none less after it.
+     */
+    private void select(float[] values, int lo, int hi, int k) {
+        while (hi > lo) {
+            // Median of three pivot, so sorted runs of an organized cloud do not go quadratic
+            int middle = (lo + hi) >>> 1;
+            if (values[middle] < values[lo]) {
+                swap(lo, middle);
+            }
+            if (values[hi] < values[lo]) {
+                swap(lo, hi);
+            }
+            if (values[hi] < values[middle]) {
+                swap(middle, hi);
+            }
+            float pivot = values[middle];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (values[i] < pivot) {
+                    i++;
+                }
+                while (values[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swap(int i, int j) {
+        // Locals, so the arrays are not loaded from the fields again for each element
+        float[] xs = treeX;
+        float[] ys = treeY;
+        float[] zs = treeZ;
+        int[] ids = indices;
+        float t = xs[i];
+        xs[i] = xs[j];
+        xs[j] = t;
+        t = ys[i];
+        ys[i] = ys[j];
+        ys[j] = t;
+        t = zs[i];
+        zs[i] = zs[j];
+        zs[j] = t;
+        int index = ids[i];
+        ids[i] = ids[j];
+        ids[j] = index;
+    }
+}
@@ -0,0 +1,209 @@
+package com.trees.common.pointcloud;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+ * PCL's PCD point cloud format, version 0.7.
+ *
+ * Clouds are written unorganized (HEIGHT 1) with float x, y and z fields and binary data:
+ * 12 bytes per point, little-endian, as pcl::io::savePCDFileBinary writes PointXYZ.
+ *
+ * Any PCD file with float x, y and z fields can be read, with ascii or binary data. Other fields
+ * are skipped, as are points with NaN coordinates, which PCL writes for organized clouds.
+ * binary_compressed data is not supported.
+ */
+public class PcdFile {
+    public static final String EXTENSION = ".pcd";
+
+    private static final String DATA_ASCII = "ascii";
+    private static final String DATA_BINARY = "binary";
+
+    public static int fileSize(PointCloud cloud) {
+        return header(cloud.size).length + cloud.size * 3 * Float.BYTES;
+    }
+
+    /*
+     * Encodes cloud into out, from position 0, and flips it ready for writing.
+     * out must hold fileSize(cloud) bytes.
+     */
+    public static void encode(PointCloud cloud, ByteBuffer out) {
+        out.clear();
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        out.put(header(cloud.size));
+        for (int i = 0; i < cloud.size; i++) {
+            out.putFloat(cloud.x[i]);
+            out.putFloat(cloud.y[i]);
+            out.putFloat(cloud.z[i]);
+        }
+        out.flip();
+    }
+
+    public static void write(FileChannel channel, PointCloud cloud) throws IOException {
+        ByteBuffer encoded = ByteBuffer.allocate(fileSize(cloud));
+        encode(cloud, encoded);
+        CloudFiles.writeAll(channel, encoded);
+    }
+
+    public static PointCloud read(FileChannel channel) throws IOException {
+        ByteBuffer buffer = CloudFiles.readAll(channel);
+
+        String[] fields = null;
+        int[] sizes = null;
+        char[] types = null;
+        int[] counts = null;
+        int points = -1;
+        String data = null;
+        String line;
+        while (data == null && (line = CloudFiles.readLine(buffer)) != null) {
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] tokens = CloudFiles.split(line);
+            String[] values = new String[tokens.length - 1];
+            System.arraycopy(tokens, 1, values, 0, values.length);
+            switch (tokens[0]) {
+                case "FIELDS":
+                    fields = values;
+                    break;
+                case "SIZE":
+                    sizes = new int[values.length];
+                    for (int i = 0; i < values.length; i++) {
+                        sizes[i] = CloudFiles.parseInt(values[i], "PCD field size");
+                    }
+                    break;
+                case "TYPE":
+                    types = new char[values.length];
+                    for (int i = 0; i < values.length; i++) {
+                        types[i] = values[i].charAt(0);
+                    }
+                    break;
+                case "COUNT":
+                    counts = new int[values.length];
+                    for (int i = 0; i < values.length; i++) {
+                        counts[i] = CloudFiles.parseInt(values[i], "PCD field count");
+                    }
+                    break;
+                case "POINTS":
+                    points = CloudFiles.parseInt(values[0], "PCD point count");
+                    break;
+                case "DATA":
+                    data = values[0];
+                    break;
+                default:
+                    // VERSION, WIDTH, HEIGHT and VIEWPOINT do not change how points are read
+                    break;
+            }
+        }
+        if (fields == null || sizes == null || types == null || points < 0 || data == null) {
+            throw new IOException("Incomplete PCD header");
+        }
+        if (sizes.length != fields.length || types.length != fields.length
+                || (counts != null && counts.length != fields.length)) {
+            throw new IOException("PCD header fields do not match");
+        }
+        if (counts == null) {
+            counts = new int[fields.length];
+            Arrays.fill(counts, 1);
+        }
+
+        // Offsets of x, y and z in a binary record, and their positions among ascii values
+        int[] offsets = {-1, -1, -1};
+        int[] columns = {-1, -1, -1};
+        boolean[] isDouble = new boolean[3];
+        int recordBytes = 0;
+        int recordValues = 0;
+        for (int f = 0; f < fields.length; f++) {
+            int axis = "xyz".indexOf(fields[f]);
+            if (fields[f].length() == 1 && axis >= 0) {
+                if (types[f] != 'F' || (sizes[f] != Float.BYTES && sizes[f] != Double.BYTES)) {
+                    throw new IOException("PCD field " + fields[f] + " is not a float");
+                }
+                offsets[axis] = recordBytes;
+                isDouble[axis] = sizes[f] == Double.BYTES;
+                columns[axis] = recordValues;
+            }
+            recordBytes += sizes[f] * counts[f];
+            recordValues += counts[f];
+        }
+        if (offsets[0] < 0 || offsets[1] < 0 || offsets[2] < 0) {
+            throw new IOException("PCD file has no x, y and z fields");
+        }
+
+        PointCloud cloud = new PointCloud(points);
+        if (DATA_BINARY.equals(data)) {
+            if ((long) recordBytes * points > buffer.remaining()) {
+                throw new IOException("Truncated PCD file");
+            }
+            int base = buffer.position();
+            for (int i = 0; i < points; i++) {
+                int record = base + i * recordBytes;
+                addPoint(cloud, getValue(buffer, record + offsets[0], isDouble[0]),
+                        getValue(buffer, record + offsets[1], isDouble[1]),
+                        getValue(buffer, record + offsets[2], isDouble[2]));
+            }
+        } else if (DATA_ASCII.equals(data)) {
+            String body = new String(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining(), StandardCharsets.US_ASCII);
+            int read = 0;
+            for (String record : body.split("\n")) {
+                if (read == points) {
+                    break;
+                }
+                String[] values = CloudFiles.split(record);
+                if (values.length == 1 && values[0].isEmpty()) {
+                    continue;
+                }
+                if (values.length < recordValues) {
+                    throw new IOException("Bad PCD point " + read + ": " + record.trim());
+                }
+                try {
+                    addPoint(cloud, parseValue(values[columns[0]]), parseValue(values[columns[1]]),
+                            parseValue(values[columns[2]]));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Bad PCD point " + read + ": " + record.trim());
+                }
+                read++;
+            }
+            if (read < points) {
+                throw new IOException("Truncated PCD file");
+            }
+        } else {
+            throw new IOException("Unsupported PCD data " + data);
+        }
+        return cloud;
+    }
+
+    private static byte[] header(int points) {
+        return CloudFiles.ascii("# .PCD v0.7 - Point Cloud Data file format\n"
+                + "VERSION 0.7\n"
+                + "FIELDS x y z\n"
+                + "SIZE 4 4 4\n"
+                + "TYPE F F F\n"
+                + "COUNT 1 1 1\n"
+                + "WIDTH " + points + "\n"
+                + "HEIGHT 1\n"
+                + "VIEWPOINT 0 0 0 1 0 0 0\n"
+                + "POINTS " + points + "\n"
+                + "DATA " + DATA_BINARY + "\n");
+    }
+
+    /* PCL writes missing coordinates as "nan" */
+    private static float parseValue(String value) {
+        return value.equalsIgnoreCase("nan") ? Float.NaN : Float.parseFloat(value);
+    }
+
+    private static float getValue(ByteBuffer buffer, int offset, boolean isDouble) {
+        return isDouble ? (float) buffer.getDouble(offset) : buffer.getFloat(offset);
+    }
+
+    private static void addPoint(PointCloud cloud, float x, float y, float z) {
+        if (!Float.isNaN(x) && !Float.isNaN(y) && !Float.isNaN(z)) {
+            cloud.add(x, y, z);
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package com.trees.common.pointcloud;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * The PLY polygon file format, for point clouds: the x, y and z properties of the vertex element.
+ *
+ * Clouds are written as binary_little_endian vertices with float x, y and z, 12 bytes each,
+ * which MeshLab, CloudCompare and Open3D all read.
+ *
+ * Files can be read in ascii, binary_little_endian or binary_big_endian format, with vertex
+ * coordinates of any numeric type. Other vertex properties are skipped, and so are elements
+ * before the vertex element, lists included. Faces and other elements after it are not read.
+ */
+public class PlyFile {
+    public static final String EXTENSION = ".ply";
+
+    private static final String FORMAT_ASCII = "ascii";
+    private static final String FORMAT_LITTLE_ENDIAN = "binary_little_endian";
+    private static final String FORMAT_BIG_ENDIAN = "binary_big_endian";
+    private static final String VERTEX = "vertex";
+
+    /* A property of an element; a list if countType is not null */
+    private static class Property {
+        final String name;
+        final String type;
+        final String countType;
+
+        Property(String name, String type, String countType) {
+            this.name = name;
+            this.type = type;
+            this.countType = countType;
+        }
+    }
+
+    private static class Element {
+        final String name;
+        final int count;
+        final List<Property> properties = new ArrayList<>();
+
+        Element(String name, int count) {
+            this.name = name;
+            this.count = count;
+        }
+    }
+
+    public static int fileSize(PointCloud cloud) {
+        return header(cloud.size).length + cloud.size * 3 * Float.BYTES;
+    }
+
+    /*
+     * Encodes cloud into out, from position 0, and flips it ready for writing.
+     * out must hold fileSize(cloud) bytes.
+     */
+    public static void encode(PointCloud cloud, ByteBuffer out) {
+        out.clear();
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        out.put(header(cloud.size));
+        for (int i = 0; i < cloud.size; i++) {
+            out.putFloat(cloud.x[i]);
+            out.putFloat(cloud.y[i]);
+            out.putFloat(cloud.z[i]);
+        }
+        out.flip();
+    }
+
+    public static void write(FileChannel channel, PointCloud cloud) throws IOException {
+        ByteBuffer encoded = ByteBuffer.allocate(fileSize(cloud));
+        encode(cloud, encoded);
+        CloudFiles.writeAll(channel, encoded);
+    }
+
+    public static PointCloud read(FileChannel channel) throws IOException {
+        ByteBuffer buffer = CloudFiles.readAll(channel);
+        if (!"ply".equals(CloudFiles.readLine(buffer))) {
+            throw new IOException("Not a PLY file");
+        }
+
+        String format = null;
+        List<Element> elements = new ArrayList<>();
+        String line;
+        while (!"end_header".equals(line = CloudFiles.readLine(buffer))) {
+            if (line == null) {
+                throw new IOException("Incomplete PLY header");
+            }
+            String[] tokens = CloudFiles.split(line);
+            switch (tokens[0]) {
+                case "format":
+                    format = tokens[1];
+                    break;
+                case "element":
+                    elements.add(new Element(tokens[1], CloudFiles.parseInt(tokens[2], "PLY element count")));
+                    break;
+                case "property":
+                    if (elements.isEmpty()) {
+                        throw new IOException("PLY property outside an element");
+                    }
+                    Property property = "list".equals(tokens[1])
+                            ? new Property(tokens[4], tokens[3], tokens[2])
+                            : new Property(tokens[2], tokens[1], null);
+                    typeSize(property.type);
+                    if (property.countType != null) {
+                        typeSize(property.countType);
+                    }
+                    elements.get(elements.size() - 1).properties.add(property);
+                    break;
+                default:
+                    // comment and obj_info
+                    break;
+            }
+        }
+        if (format == null) {
+            throw new IOException("PLY file has no format");
+        }
+
+        if (FORMAT_ASCII.equals(format)) {
+            return readAscii(buffer, elements);
+        } else if (FORMAT_LITTLE_ENDIAN.equals(format)) {
+            return readBinary(buffer.order(ByteOrder.LITTLE_ENDIAN), elements);
+        } else if (FORMAT_BIG_ENDIAN.equals(format)) {
+            return readBinary(buffer.order(ByteOrder.BIG_ENDIAN), elements);
+        }
+        throw new IOException("Unsupported PLY format " + format);
+    }
+
+    private static PointCloud readBinary(ByteBuffer buffer, List<Element> elements) throws IOException {
+        try {
+            for (Element element : elements) {
+                if (!element.name.equals(VERTEX)) {
+                    for (int i = 0; i < element.count; i++) {
+                        for (Property property : element.properties) {
+                            int values = property.countType != null
+                                    ? (int) getValue(buffer, property.countType) : 1;
+                            buffer.position(buffer.position() + values * typeSize(property.type));
+                        }
+                    }
+                    continue;
+                }
+
+                int[] axes = findAxes(element);
+                PointCloud cloud = new PointCloud(element.count);
+                if (readFixed(buffer, element, axes, cloud)) {
+                    return cloud;
+                }
+                float[] point = new float[3];
+                for (int i = 0; i < element.count; i++) {
+                    for (int p = 0; p < element.properties.size(); p++) {
+                        Property property = element.properties.get(p);
+                        if (property.countType != null) {
+                            int values = (int) getValue(buffer, property.countType);
+                            buffer.position(buffer.position() + values * typeSize(property.type));
+                        } else if (axes[p] >= 0) {
+                            point[axes[p]] = (float) getValue(buffer, property.type);
+                        } else {
+                            buffer.position(buffer.position() + typeSize(property.type));
+                        }
+                    }
+                    cloud.add(point[0], point[1], point[2]);
+                }
+                return cloud;
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Truncated PLY file");
+        }
+        throw new IOException("PLY file has no vertex element");
+    }
+
+    /*
+     * Reads the vertices into cloud if they have float coordinates and no list properties,
+     * so every vertex is the same size. Returns false, having read nothing, otherwise.
+     */
+    private static boolean readFixed(ByteBuffer buffer, Element element, int[] axes, PointCloud cloud)
+            throws IOException {
+        int[] offsets = new int[3];
+        int stride = 0;
+        for (int p = 0; p < axes.length; p++) {
+            Property property = element.properties.get(p);
+            if (property.countType != null) {
+                return false;
+            }
+            if (axes[p] >= 0) {
+                if (!property.type.equals("float") && !property.type.equals("float32")) {
+                    return false;
+                }
+                offsets[axes[p]] = stride;
+            }
+            stride += typeSize(property.type);
+        }
+        if ((long) stride * element.count > buffer.remaining()) {
+            throw new IOException("Truncated PLY file");
+        }
+        int base = buffer.position();
+        for (int i = 0; i < element.count; i++) {
+            int vertex = base + i * stride;
+            cloud.add(buffer.getFloat(vertex + offsets[0]), buffer.getFloat(vertex + offsets[1]),
+                    buffer.getFloat(vertex + offsets[2]));
+        }
+        buffer.position(base + stride * element.count);
+        return true;
+    }
+
+    private static PointCloud readAscii(ByteBuffer buffer, List<Element> elements) throws IOException {
+        String body = new String(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                buffer.remaining(), StandardCharsets.US_ASCII);
+        String[] lines = body.split("\n");
+        int next = 0;
+        for (Element element : elements) {
+            if (!element.name.equals(VERTEX)) {
+                // One line per record
+                next += element.count;
+                continue;
+            }
+
+            int[] axes = findAxes(element);
+            float[] point = new float[3];
+            PointCloud cloud = new PointCloud(element.count);
+            for (int i = 0; i < element.count; i++, next++) {
+                if (next >= lines.length) {
+                    throw new IOException("Truncated PLY file");
+                }
+                String[] values = CloudFiles.split(lines[next]);
+                int v = 0;
+                try {
+                    for (int p = 0; p < element.properties.size(); p++) {
+                        Property property = element.properties.get(p);
+                        if (property.countType != null) {
+                            v += Integer.parseInt(values[v]) + 1;
+                        } else {
+                            if (axes[p] >= 0) {
+                                point[axes[p]] = Float.parseFloat(values[v]);
+                            }
+                            v++;
+                        }
+                    }
+                } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                    throw new IOException("Bad PLY vertex " + i + ": " + lines[next].trim());
+                }
+                cloud.add(point[0], point[1], point[2]);
+            }
+            return cloud;
+        }
+        throw new IOException("PLY file has no vertex element");
+    }
+
+    /* For each property of element, the axis it holds (0 to 2) or -1 */
+    private static int[] findAxes(Element element) throws IOException {
+        int[] axes = new int[element.properties.size()];
+        boolean[] found = new boolean[3];
+        for (int p = 0; p < axes.length; p++) {
+            Property property = element.properties.get(p);
+            String name = property.name;
+            axes[p] = property.countType == null && name.length() == 1 ? "xyz".indexOf(name) : -1;
+            if (axes[p] >= 0) {
+                found[axes[p]] = true;
+            }
+        }
+        if (!found[0] || !found[1] || !found[2]) {
+            throw new IOException("PLY vertices have no x, y and z properties");
+        }
+        return axes;
+    }
+
+    private static int typeSize(String type) throws IOException {
+        switch (type) {
+            case "char":
+            case "uchar":
+            case "int8":
+            case "uint8":
+                return 1;
+            case "short":
+            case "ushort":
+            case "int16":
+            case "uint16":
+                return 2;
+            case "int":
+            case "uint":
+            case "float":
+            case "int32":
+            case "uint32":
+            case "float32":
+                return 4;
+            case "double":
+            case "float64":
+                return 8;
+            default:
+                throw new IOException("Unknown PLY type " + type);
+        }
+    }
+
+    private static double getValue(ByteBuffer buffer, String type) throws IOException {
+        switch (type) {
+            case "char":
+            case "int8":
+                return buffer.get();
+            case "uchar":
+            case "uint8":
+                return buffer.get() & 0xFF;
+            case "short":
+            case "int16":
+                return buffer.getShort();
+            case "ushort":
+            case "uint16":
+                return buffer.getShort() & 0xFFFF;
+            case "int":
+            case "int32":
+                return buffer.getInt();
+            case "uint":
+            case "uint32":
+                return buffer.getInt() & 0xFFFFFFFFL;
+            case "float":
+            case "float32":
+                return buffer.getFloat();
+            case "double":
+            case "float64":
+                return buffer.getDouble();
+            default:
+                throw new IOException("Unknown PLY type " + type);
+        }
+    }
+
+    private static byte[] header(int points) {
+        return CloudFiles.ascii("ply\n"
+                + "format " + FORMAT_LITTLE_ENDIAN + " 1.0\n"
+                + "element " + VERTEX + " " + points + "\n"
+                + "property float x\n"
+                + "property float y\n"
+                + "property float z\n"
+                + "end_header\n");
+    }
+}
@@ -0,0 +1,140 @@
+package com.trees.common.pointcloud;
+
+import com.trees.common.helpers.TofUtil;
+import com.trees.common.processing.TrunkProcessor;
+
+import java.util.Arrays;
+
+/*
+ * Points as separate x, y and z arrays, so a pass over the cloud reads three sequential arrays
+ * and a cloud can be refilled frame after frame without allocating. Only the first size entries
+ * are points; the arrays may be longer.
+ *
+ * Depth captures are back-projected into the depth camera frame the PCL prototypes used:
+ * x to the right and y down the image, z along the optical axis, in meters.
+ */
+public class PointCloud {
+    private static final int MIN_CAPACITY = 16;
+
+    public float[] x;
+    public float[] y;
+    public float[] z;
+    public int size;
+
+    public PointCloud() {
+        this(0);
+    }
+
+    public PointCloud(int capacity) {
+        x = new float[capacity];
+        y = new float[capacity];
+        z = new float[capacity];
+    }
+
+    public int capacity() {
+        return x.length;
+    }
+
+    /* Grows the arrays, keeping the points, so that capacity points fit */
+    public void ensureCapacity(int capacity) {
+        if (capacity > x.length) {
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+            z = Arrays.copyOf(z, capacity);
+        }
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public void add(float px, float py, float pz) {
+        if (size == x.length) {
+            ensureCapacity(Math.max(MIN_CAPACITY, size * 2));
+        }
+        x[size] = px;
+        y[size] = py;
+        z[size] = pz;
+        size++;
+    }
+
+    public PointCloud copy() {
+        PointCloud copy = new PointCloud(size);
+        System.arraycopy(x, 0, copy.x, 0, size);
+        System.arraycopy(y, 0, copy.y, 0, size);
+        System.arraycopy(z, 0, copy.z, 0, size);
+        copy.size = size;
+        return copy;
+    }
+
+    /*
+     * Applies a 4x4 column-major transform, as CameraPose and Icp.Result hold, to every point.
+     * The bottom row is taken to be 0 0 0 1.
+     */
+    public void transform(float[] matrix) {
+        float m0 = matrix[0], m1 = matrix[1], m2 = matrix[2];
+        float m4 = matrix[4], m5 = matrix[5], m6 = matrix[6];
+        float m8 = matrix[8], m9 = matrix[9], m10 = matrix[10];
+        float m12 = matrix[12], m13 = matrix[13], m14 = matrix[14];
+        for (int i = 0; i < size; i++) {
+            float px = x[i];
+            float py = y[i];
+            float pz = z[i];
+            x[i] = m0 * px + m4 * py + m8 * pz + m12;
+            y[i] = m1 * px + m5 * py + m9 * pz + m13;
+            z[i] = m2 * px + m6 * py + m10 * pz + m14;
+        }
+    }
+
+    /*
+     * Intrinsics {fx, fy, cx, cy} of a width x height depth image, derived from TrunkProcessor's
+     * calibration: CALIB_PIXEL_PER_METER pixels of the processing resolution span one meter at
+     * CALIB_DEPTH, and the principal point is the image center.
+     * Use them when a capture was stored without intrinsics.
+     */
+    public static float[] calibratedIntrinsics(int width, int height) {
+        float f = (float) (TrunkProcessor.CALIB_PIXEL_PER_METER * TrunkProcessor.CALIB_DEPTH
+                * width / TrunkProcessor.WIDTH);
+        return new float[] {f, f, width / 2.f, height / 2.f};
+    }
+
+    /*
+     * Back-projects every pixel of arrays that has a depth and at least minConfidence confidence,
+     * in row-major order. intrinsics is {fx, fy, cx, cy} in pixels of the depth image, the layout
+     * TofFile stores. Refills out if it is not null, otherwise returns a new cloud.
+     */
+    public static PointCloud fromDepth(TofUtil.TofArrays arrays, float[] intrinsics, float minConfidence,
+                                       PointCloud out) {
+        PointCloud cloud = out != null ? out : new PointCloud(arrays.length);
+        cloud.clear();
+        cloud.ensureCapacity(arrays.length);
+        float[] px = cloud.x;
+        float[] py = cloud.y;
+        float[] pz = cloud.z;
+        float[] depth = arrays.dBuffer;
+        float[] confidence = arrays.percentageBuffer;
+        float invFx = 1.f / intrinsics[0];
+        float invFy = 1.f / intrinsics[1];
+        float cx = intrinsics[2];
+        float cy = intrinsics[3];
+
+        int n = 0;
+        for (int r = 0; r < arrays.height; r++) {
+            float ry = (r - cy) * invFy;
+            int row = r * arrays.width;
+            for (int c = 0; c < arrays.width; c++) {
+                float d = depth[row + c];
+                // NaN depths fail the comparison too
+                if (!(d > 0) || confidence[row + c] < minConfidence) {
+                    continue;
+                }
+                px[n] = (c - cx) * invFx * d;
+                py[n] = ry * d;
+                pz[n] = d;
+                n++;
+            }
+        }
+        cloud.size = n;
+        return cloud;
+    }
+}
@@ -0,0 +1,136 @@
+package com.trees.common.pointcloud;
+
+import java.util.Arrays;
+
+/*
+ * Voxel grid downsampling, as pcl::VoxelGrid does it: space is divided into cubes of leafSize
+ * meters, aligned to multiples of leafSize from the origin, and the points in each occupied
+ * cube are replaced by their centroid.
+ *
+ * Output points are in the order their voxels were first reached, so an organized input keeps
+ * a rough image order. A grid keeps its hash table and sums between calls, so is not thread-safe.
+ */
+public class VoxelGrid {
+    // Bits of each voxel index packed into a long key
+    private static final int INDEX_BITS = 21;
+    private static final int MAX_INDEX = (1 << INDEX_BITS) - 1;
+    private static final long EMPTY = -1;
+
+    private final float leafSize;
+
+    // Open addressing from voxel key to voxel number; capacity is a power of two
+    private long[] keys = new long[0];
+    private int[] voxels = new int[0];
+    // Per voxel number
+    private double[] sumX = new double[0];
+    private double[] sumY = new double[0];
+    private double[] sumZ = new double[0];
+    private int[] counts = new int[0];
+
+    public VoxelGrid(float leafSize) {
+        if (!(leafSize > 0)) {
+            throw new IllegalArgumentException("Leaf size must be positive: " + leafSize);
+        }
+        this.leafSize = leafSize;
+    }
+
+    public float getLeafSize() {
+        return leafSize;
+    }
+
+    /*
+     * Downsamples in into out, or into a new cloud if out is null, and returns it.
+     * in and out must be different clouds.
+     * Throws IllegalArgumentException if the cloud spans more than 2^21 leaves along an axis.
+     */
+    public PointCloud filter(PointCloud in, PointCloud out) {
+        PointCloud cloud = out != null ? out : new PointCloud();
+        cloud.clear();
+        int n = in.size;
+        if (n == 0) {
+            return cloud;
+        }
+
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            minX = Math.min(minX, in.x[i]);
+            minY = Math.min(minY, in.y[i]);
+            minZ = Math.min(minZ, in.z[i]);
+            maxX = Math.max(maxX, in.x[i]);
+            maxY = Math.max(maxY, in.y[i]);
+            maxZ = Math.max(maxZ, in.z[i]);
+        }
+        // Voxel indices are counted from the voxel holding the minimum, as PCL does
+        float inverseLeaf = 1.f / leafSize;
+        long minIX = (long) Math.floor(minX * inverseLeaf);
+        long minIY = (long) Math.floor(minY * inverseLeaf);
+        long minIZ = (long) Math.floor(minZ * inverseLeaf);
+        if ((long) Math.floor(maxX * inverseLeaf) - minIX > MAX_INDEX
+                || (long) Math.floor(maxY * inverseLeaf) - minIY > MAX_INDEX
+                || (long) Math.floor(maxZ * inverseLeaf) - minIZ > MAX_INDEX) {
+            throw new IllegalArgumentException("Leaf size " + leafSize + " is too small for the cloud");
+        }
+
+        // At most half full, so probes stay short
+        int capacity = Integer.highestOneBit(Math.max(n, 8) * 2 - 1) << 1;
+        if (keys.length < capacity) {
+            keys = new long[capacity];
+            voxels = new int[capacity];
+        }
+        Arrays.fill(keys, 0, capacity, EMPTY);
+        if (counts.length < n) {
+            sumX = new double[n];
+            sumY = new double[n];
+            sumZ = new double[n];
+            counts = new int[n];
+        }
+        int mask = capacity - 1;
+
+        int used = 0;
+        for (int i = 0; i < n; i++) {
+            float px = in.x[i];
+            float py = in.y[i];
+            float pz = in.z[i];
+            long key = ((long) Math.floor(px * inverseLeaf) - minIX)
+                    | ((long) Math.floor(py * inverseLeaf) - minIY) << INDEX_BITS
+                    | ((long) Math.floor(pz * inverseLeaf) - minIZ) << (2 * INDEX_BITS);
+            int slot = hash(key) & mask;
+            while (keys[slot] != EMPTY && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            int voxel;
+            if (keys[slot] == EMPTY) {
+                keys[slot] = key;
+                voxel = used++;
+                voxels[slot] = voxel;
+                sumX[voxel] = 0;
+                sumY[voxel] = 0;
+                sumZ[voxel] = 0;
+                counts[voxel] = 0;
+            } else {
+                voxel = voxels[slot];
+            }
+            sumX[voxel] += px;
+            sumY[voxel] += py;
+            sumZ[voxel] += pz;
+            counts[voxel]++;
+        }
+
+        cloud.ensureCapacity(used);
+        for (int v = 0; v < used; v++) {
+            double inverseCount = 1.0 / counts[v];
+            cloud.x[v] = (float) (sumX[v] * inverseCount);
+            cloud.y[v] = (float) (sumY[v] * inverseCount);
+            cloud.z[v] = (float) (sumZ[v] * inverseCount);
+        }
+        cloud.size = used;
+        return cloud;
+    }
+
+    private static int hash(long key) {
+        // Fibonacci hashing; the high bits are the best mixed
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) ^ (int) h;
+    }
+}
@@ -0,0 +1,210 @@
+package com.trees.common.processing;
+
+import static com.trees.common.processing.TrunkProcessor.CENTER_LEFT;
+import static com.trees.common.processing.TrunkProcessor.CENTER_RIGHT;
+import static com.trees.common.processing.TrunkProcessor.HEIGHT;
+import static com.trees.common.processing.TrunkProcessor.SCALE_FACTOR;
+import static com.trees.common.processing.TrunkProcessor.TOF_HEIGHT;
+import static com.trees.common.processing.TrunkProcessor.TOF_WIDTH;
+import static com.trees.common.processing.TrunkProcessor.WIDTH;
+
+import java.util.Arrays;
+
+/*
+ * The stages of TrunkProcessor computed as the depth_*.comp compute shaders of GpuDepthStages
+ * compute them, operation for operation in float, so what the GPU computes can be checked
+ * on a desktop JVM.
+ *
+ * The histogram and band mask are exact. The rotation is SplineRotation's in float instead of
+ * double, so a pixel whose interpolated value is within float rounding of the threshold can be
+ * counted differently; FloatDepthStagesTest bounds how much that moves the column counts.
+ *
+ * Instances keep their buffers between calls and are not thread safe.
+ */
+public class FloatDepthStages implements TrunkProcessor.DepthStages {
+
+    // Pole of the cubic B-spline prefilter and its gain, as in SplineRotation
+    public static final float POLE = (float) (Math.sqrt(3.0) - 2.0);
+    public static final float GAIN = (float) ((1.0 - (Math.sqrt(3.0) - 2.0)) * (1.0 - 1.0 / (Math.sqrt(3.0) - 2.0)));
+
+    private final float[] tofDepth = new float[TOF_HEIGHT * TOF_WIDTH];
+    private final float[] coefficients = new float[HEIGHT * WIDTH];
+    private final float[] rotation = new float[4];
+    private final float[] weightsR = new float[4];
+    private final float[] weightsC = new float[4];
+    private final int[] indicesR = new int[4];
+    private final int[] indicesC = new int[4];
+
+    @Override
+    public boolean upload(float[] tofDepth) {
+        System.arraycopy(tofDepth, 0, this.tofDepth, 0, this.tofDepth.length);
+        return true;
+    }
+
+    @Override
+    public boolean histogram(float[] binEdges, int[] binCounts) {
+        Arrays.fill(binCounts, 0);
+        for (int r = 0; r < HEIGHT; r++) {
+            for (int c = CENTER_LEFT; c < CENTER_RIGHT; c++) {
+                float d = tofDepth[(r / SCALE_FACTOR) * TOF_WIDTH + c / SCALE_FACTOR];
+                if (d == 0.0f) {
+                    continue;
+                }
+                int lo = 0;
+                int hi = binEdges.length;
+                while (lo < hi) {
+                    int mid = (lo + hi) / 2;
+                    if (binEdges[mid] <= d) {
+                        lo = mid + 1;
+                    } else {
+                        hi = mid;
+                    }
+                }
+                binCounts[lo]++;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean bandMask(float low, float high, byte[] tofMask) {
+        for (int i = 0; i < tofDepth.length; i++) {
+            float d = tofDepth[i];
+            tofMask[i] = (byte) (d > 0.0f && d >= low && d <= high ? 1 : 0);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean countRotatedColumns(byte[] tofMask, double angle, double threshold, int[] columnCounts) {
+        for (int i = 0; i < coefficients.length; i++) {
+            int r = i / WIDTH / SCALE_FACTOR;
+            int c = i % WIDTH / SCALE_FACTOR;
+            coefficients[i] = tofMask[r * TOF_WIDTH + c] != 0 ? 1.0f : 0.0f;
+        }
+        for (int c = 0; c < WIDTH; c++) {
+            filterLine(coefficients, c, HEIGHT, WIDTH);
+        }
+        for (int r = 0; r < HEIGHT; r++) {
+            filterLine(coefficients, r * WIDTH, WIDTH, 1);
+        }
+
+        getRotation(angle, rotation);
+        float cos = rotation[0];
+        float sin = rotation[1];
+        float offsetR = rotation[2];
+        float offsetC = rotation[3];
+        float floatThreshold = (float) threshold;
+        Arrays.fill(columnCounts, 0);
+        for (int r = 0; r < HEIGHT; r++) {
+            for (int c = 0; c < WIDTH; c++) {
+                float inR = cos * r + sin * c + offsetR;
+                float inC = -sin * r + cos * c + offsetC;
+                if (inR < 0.0f || inR > HEIGHT - 1 || inC < 0.0f || inC > WIDTH - 1) {
+                    continue;
+                }
+                splineTaps(inR, HEIGHT, weightsR, indicesR);
+                splineTaps(inC, WIDTH, weightsC, indicesC);
+                float value = 0.0f;
+                for (int a = 0; a < 4; a++) {
+                    int row = indicesR[a] * WIDTH;
+                    value += weightsR[a] * (weightsC[0] * coefficients[row + indicesC[0]]
+                            + weightsC[1] * coefficients[row + indicesC[1]]
+                            + weightsC[2] * coefficients[row + indicesC[2]]
+                            + weightsC[3] * coefficients[row + indicesC[3]]);
+                }
+                if (Math.abs(value) >= floatThreshold) {
+                    columnCounts[c]++;
+                }
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Cosine and sine of angle, in degrees, and the input position of output pixel (0, 0) as
+     * row then column, for a rotation about the center of the processing image. Computed in
+     * double as SplineRotation does, then rounded to float.
+     */
+    public static void getRotation(double angle, float[] rotation) {
+        double rad = Math.toRadians(angle);
+        double cos = Math.cos(rad);
+        double sin = Math.sin(rad);
+        double centerR = HEIGHT / 2.0 - 0.5;
+        double centerC = WIDTH / 2.0 - 0.5;
+        rotation[0] = (float) cos;
+        rotation[1] = (float) sin;
+        rotation[2] = (float) (centerR - (cos * centerR + sin * centerC));
+        rotation[3] = (float) (centerC - (-sin * centerR + cos * centerC));
+    }
+
+    /*
+     * POLE to the power n - 1, for the causal initialisation of a line of n samples.
+     */
+    public static float getPoleN1(int n) {
+        return (float) Math.pow(POLE, n - 1);
+    }
+
+    /*
+     * SplineRotation.filterLine in float, on the n samples of line from start, step apart.
+     */
+    private static void filterLine(float[] line, int start, int n, int step) {
+        if (n <= 1) {
+            return;
+        }
+        int end = start + (n - 1) * step;
+        for (int i = start; i <= end; i += step) {
+            line[i] *= GAIN;
+        }
+
+        // Causal initialisation for a mirror-symmetric extension
+        float zn1 = getPoleN1(n);
+        float zi = POLE;
+        float c0 = line[start] + zn1 * line[end];
+        for (int i = 1; i < n - 1; i++) {
+            c0 += zi * (line[start + i * step] + zn1 * line[end - i * step]);
+            zi *= POLE;
+        }
+        line[start] = c0 / (1.0f - zn1 * zn1);
+        for (int i = start + step; i <= end; i += step) {
+            line[i] += POLE * line[i - step];
+        }
+
+        // Anti-causal initialisation and pass
+        line[end] = (POLE * line[end - step] + line[end]) * POLE / (POLE * POLE - 1.0f);
+        for (int i = end - step; i >= start; i -= step) {
+            line[i] = POLE * (line[i + step] - line[i]);
+        }
+    }
+
+    /*
+     * SplineRotation.splineTaps in float.
+     */
+    private static void splineTaps(float x, int len, float[] weights, int[] indices) {
+        float floor = (float) Math.floor(x);
+        float t = x - floor;
+        float z = 1.0f - t;
+        weights[0] = z * z * z / 6.0f;
+        weights[1] = (t * t * (t - 2.0f) * 3.0f + 4.0f) / 6.0f;
+        weights[2] = (z * z * (z - 2.0f) * 3.0f + 4.0f) / 6.0f;
+        weights[3] = t * t * t / 6.0f;
+
+        int start = (int) floor - 1;
+        int s2 = 2 * len - 2;
+        for (int k = 0; k < 4; k++) {
+            int idx = start + k;
+            if (len <= 1) {
+                idx = 0;
+            } else if (idx < 0) {
+                idx = s2 * (-idx / s2) + idx;
+                idx = idx <= 1 - len ? idx + s2 : -idx;
+            } else if (idx >= len) {
+                idx -= s2 * (idx / s2);
+                if (idx >= len) {
+                    idx = s2 - idx;
+                }
+            }
+            indices[k] = idx;
+        }
+    }
+}
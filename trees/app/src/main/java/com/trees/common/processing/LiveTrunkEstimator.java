@@ -0,0 +1,147 @@
+package com.trees.common.processing;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Estimates the trunk continuously from preview depth frames, with TrunkProcessor.runPreview,
+ * on a single background thread. Frames that arrive while an estimate is running are dropped
+ * rather than queued, so the estimate is never more than one frame behind.
+ *
+ * The renderer calls tryBegin() for a frame, copies its depth, then hands it over with submit(),
+ * or abort() if the copy failed. Results go to the listener on the estimator thread.
+ */
+public class LiveTrunkEstimator {
+
+    public interface DepthSource {
+        /* Writes the frame's TOF_HEIGHT x TOF_WIDTH depth, in meters, into depth. */
+        void fill(float[] depth) throws Exception;
+    }
+
+    public interface Listener {
+        /*
+         * segments holds the boundaries as given by TrunkProcessor.getBoundarySegments.
+         * Both arrays are reused for the next estimate.
+         */
+        void onEstimate(TrunkProcessor.Result result, float[] segments, Metrics metrics);
+
+        /* The frame had no trunk, or no depth, to estimate. */
+        void onNoEstimate(String reason, Metrics metrics);
+    }
+
+    public static class Metrics {
+        /* Frames offered to the estimator, and how many of them were dropped because it was busy */
+        public long sampled;
+        public long skipped;
+        /* Time from tryBegin() to the listener, in milliseconds */
+        public double lastLatencyMs;
+        public double meanLatencyMs;
+
+        public double skipRate() {
+            return sampled == 0 ? 0.0 : (double) skipped / sampled;
+        }
+    }
+
+    // Weight of the latest estimate in the running mean latency
+    private static final double LATENCY_SMOOTHING = 0.1;
+
+    private final Listener listener;
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "LiveEstimator");
+        thread.setDaemon(true);
+        // Stay behind rendering and captures
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    private final AtomicBoolean busy = new AtomicBoolean();
+    private final AtomicLong sampled = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private volatile long beginNanos;
+
+    // Only used on the worker thread
+    private final TrunkProcessor processor = new TrunkProcessor();
+    private final float[] depth = new float[TrunkProcessor.TOF_HEIGHT * TrunkProcessor.TOF_WIDTH];
+    private final float[] segments = new float[8];
+    private final Metrics metrics = new Metrics();
+
+    public LiveTrunkEstimator(Listener listener) {
+        this.listener = listener;
+    }
+
+    /*
+     * Reserves the estimator for the current frame. Returns false, and counts the frame
+     * as skipped, if the previous frame is still being estimated.
+     */
+    public boolean tryBegin() {
+        sampled.incrementAndGet();
+        if (!busy.compareAndSet(false, true)) {
+            skipped.incrementAndGet();
+            return false;
+        }
+        beginNanos = System.nanoTime();
+        return true;
+    }
+
+    /*
+     * Estimates the frame reserved by tryBegin(). source is called on the estimator thread.
+     */
+    public void submit(DepthSource source) {
+        try {
+            worker.execute(() -> {
+                try {
+                    estimate(source);
+                } finally {
+                    busy.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            busy.set(false);
+        }
+    }
+
+    /*
+     * Releases the frame reserved by tryBegin() without estimating it.
+     */
+    public void abort() {
+        busy.set(false);
+    }
+
+    /*
+     * Stop the estimator thread; later frames are dropped.
+     */
+    public void release() {
+        worker.shutdown();
+    }
+
+    private void estimate(DepthSource source) {
+        TrunkProcessor.Result result;
+        String reason = null;
+        try {
+            source.fill(depth);
+            result = processor.runPreview(depth);
+            TrunkProcessor.getBoundarySegments(result, segments);
+        } catch (TrunkProcessor.ProcessingException e) {
+            result = null;
+            reason = e.getMessage();
+        } catch (Exception e) {
+            result = null;
+            reason = "Unable to read depth: " + e.getMessage();
+        }
+
+        double latencyMs = (System.nanoTime() - beginNanos) / 1e6;
+        metrics.sampled = sampled.get();
+        metrics.skipped = skipped.get();
+        metrics.lastLatencyMs = latencyMs;
+        metrics.meanLatencyMs = metrics.meanLatencyMs == 0.0 ? latencyMs
+                : metrics.meanLatencyMs + LATENCY_SMOOTHING * (latencyMs - metrics.meanLatencyMs);
+
+        if (result != null) {
+            listener.onEstimate(result, segments, metrics);
+        } else {
+            listener.onNoEstimate(reason, metrics);
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package com.trees.common.processing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Estimates the trunk diameter from depth frames taken from several sides of the trunk, each
+ * with the pose of the camera in a shared world frame, as ARCamera.getPose() gives it.
+ *
+ * Each view is segmented with TrunkProcessor and its trunk pixels are back-projected into
+ * world space. The points within SLICE_HALF_HEIGHT of the reference height form the trunk
+ * cross-section, and a circle is fitted to them in the horizontal plane. The fit is the
+ * algebraic (Kasa) one, which only needs sums over the points: adding a view costs time
+ * linear in its pixels, and the estimate is solved from running totals without revisiting
+ * earlier views. Like any circle fit to arcs, it reads slightly small when the points are
+ * noisy, and the more of the circumference the views cover, the less so.
+ *
+ * The confidence interval is a jackknife over views: the circle is refitted with each view
+ * left out in turn, from the totals less that view's sums. Points of one view share its pose
+ * error and segmentation, so the view, not the point, is the unit whose scatter says how
+ * repeatable the estimate is. There is no interval before MIN_INTERVAL_VIEWS views.
+ *
+ * World coordinates are those of AR Engine: meters, with y up. Camera coordinates are the
+ * OpenGL ones, x right and y up in the depth image, looking down -z. The depth camera is taken
+ * to be at the camera pose, as AR Engine does not give the offset between the two.
+ *
+ * Not thread safe.
+ */
+public class MultiViewTrunkEstimator {
+    // Height of the cross-section either side of the reference height, in meters
+    public static final double SLICE_HALF_HEIGHT = 0.10;
+    // Views needed for a confidence interval
+    public static final int MIN_INTERVAL_VIEWS = 3;
+    // Cross-section points a view needs to be added
+    public static final int MIN_VIEW_POINTS = 30;
+    // Fraction of the image either side of its center the reference height is taken from
+    private static final double AIM_WINDOW = 0.125;
+
+    // Two-sided 95% quantiles of Student's t for 1 to 10 degrees of freedom
+    private static final double[] T_975 = {
+            12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228};
+    private static final double Z_975 = 1.959964;
+
+    // Layout of the sums of one view, over its points x, z and r = x^2 + z^2
+    private static final int N = 0;
+    private static final int X = 1;
+    private static final int Z = 2;
+    private static final int XX = 3;
+    private static final int XZ = 4;
+    private static final int ZZ = 5;
+    private static final int XR = 6;
+    private static final int ZR = 7;
+    private static final int R = 8;
+    private static final int RR = 9;
+    private static final int SUMS = 10;
+
+    public static class Estimate {
+        /* Views and cross-section points the circle is fitted to */
+        public int views;
+        public int points;
+
+        /* Center of the cross-section, as world x and z in meters, and its height, world y */
+        public double centerX;
+        public double centerZ;
+        public double height;
+
+        /* Trunk diameter, in meters */
+        public double diameter;
+
+        /* RMS distance of the points from the fitted circle, in meters */
+        public double rmsResidual;
+
+        /* 95% confidence interval of the diameter, NaN before MIN_INTERVAL_VIEWS views */
+        public double diameterLow = Double.NaN;
+        public double diameterHigh = Double.NaN;
+
+        public boolean hasInterval() {
+            return !Double.isNaN(diameterLow);
+        }
+    }
+
+    private final TrunkProcessor processor;
+    // Depth camera intrinsics, in depth image pixels
+    private final double fx;
+    private final double fy;
+    private final double cx;
+    private final double cy;
+
+    // Sums of each view, and of all of them, relative to originX, originZ
+    private final List<double[]> viewSums = new ArrayList<>();
+    private final double[] totals = new double[SUMS];
+    private final double[] leftOut = new double[SUMS];
+    private final double[] circle = new double[4];
+    // Set by the first view
+    private double height = Double.NaN;
+    private double originX;
+    private double originZ;
+
+    /*
+     * Intrinsics from the calibration TrunkProcessor measures widths with,
+     * with the principal point at the image center.
+     */
+    public MultiViewTrunkEstimator() {
+        this(new TrunkProcessor(),
+                TrunkProcessor.CALIB_PIXEL_PER_METER * TrunkProcessor.CALIB_DEPTH / TrunkProcessor.SCALE_FACTOR,
+                TrunkProcessor.CALIB_PIXEL_PER_METER * TrunkProcessor.CALIB_DEPTH / TrunkProcessor.SCALE_FACTOR,
+                (TrunkProcessor.TOF_WIDTH - 1) / 2.0, (TrunkProcessor.TOF_HEIGHT - 1) / 2.0);
+    }
+
+    /*
+     * fx, fy, cx, cy are the depth camera intrinsics in TOF_WIDTH x TOF_HEIGHT pixels.
+     */
+    public MultiViewTrunkEstimator(TrunkProcessor processor, double fx, double fy, double cx, double cy) {
+        if (!(fx > 0.0) || !(fy > 0.0)) {
+            throw new IllegalArgumentException("Focal lengths must be positive, got " + fx + ", " + fy);
+        }
+        this.processor = processor;
+        this.fx = fx;
+        this.fy = fy;
+        this.cx = cx;
+        this.cy = cy;
+    }
+
+    /*
+     * Adds a view: tofDepth is a TOF_HEIGHT x TOF_WIDTH row-major depth frame in meters, and
+     * cameraToWorld the 4x4 column-major pose of the camera when it was taken, as
+     * ARPose.toMatrix writes it. Neither is kept.
+     *
+     * The first view sets the height of the cross-section, to that of the trunk at the center
+     * of its image. Returns the result of TrunkProcessor on this view alone. If it throws, the
+     * view is not added.
+     */
+    public TrunkProcessor.Result addView(float[] tofDepth, float[] cameraToWorld)
+            throws TrunkProcessor.ProcessingException {
+        if (cameraToWorld.length != 16) {
+            throw new IllegalArgumentException("Expected a 4x4 pose, got " + cameraToWorld.length + " values");
+        }
+        TrunkProcessor.Result result = processor.run(tofDepth);
+        boolean first = viewSums.isEmpty();
+        if (first) {
+            height = getAimedHeight(tofDepth, cameraToWorld);
+            // A point on the trunk, so the sums stay small next to their squares
+            double d = result.depth;
+            originX = cameraToWorld[12] - d * cameraToWorld[8];
+            originZ = cameraToWorld[14] - d * cameraToWorld[10];
+        }
+
+        double[] sums = new double[SUMS];
+        float[] m = cameraToWorld;
+        for (int r = 0; r < TrunkProcessor.TOF_HEIGHT; r++) {
+            int row = r * TrunkProcessor.TOF_WIDTH;
+            double yc0 = -(r - cy) / fy;
+            for (int c = 1; c < TrunkProcessor.TOF_WIDTH - 1; c++) {
+                float d = tofDepth[row + c];
+                if (!(d > 0.0f) || !isInterior(r, c)) {
+                    continue;
+                }
+                double xc = (c - cx) / fx * d;
+                double yc = yc0 * d;
+                double zc = -d;
+                double y = m[1] * xc + m[5] * yc + m[9] * zc + m[13];
+                if (Math.abs(y - height) > SLICE_HALF_HEIGHT) {
+                    continue;
+                }
+                double x = m[0] * xc + m[4] * yc + m[8] * zc + m[12] - originX;
+                double z = m[2] * xc + m[6] * yc + m[10] * zc + m[14] - originZ;
+                double rr = x * x + z * z;
+                sums[N] += 1.0;
+                sums[X] += x;
+                sums[Z] += z;
+                sums[XX] += x * x;
+                sums[XZ] += x * z;
+                sums[ZZ] += z * z;
+                sums[XR] += x * rr;
+                sums[ZR] += z * rr;
+                sums[R] += rr;
+                sums[RR] += rr * rr;
+            }
+        }
+        if (sums[N] < MIN_VIEW_POINTS) {
+            if (first) {
+                height = Double.NaN;
+            }
+            throw new TrunkProcessor.ProcessingException(
+                    "Only " + (int) sums[N] + " trunk points at the measuring height");
+        }
+
+        viewSums.add(sums);
+        for (int i = 0; i < SUMS; i++) {
+            totals[i] += sums[i];
+        }
+        return result;
+    }
+
+    public int getViewCount() {
+        return viewSums.size();
+    }
+
+    /*
+     * Height of the cross-section, world y in meters, or NaN before the first view.
+     */
+    public double getHeight() {
+        return height;
+    }
+
+    /*
+     * The circle fitted to all views so far, or null if there are none or their points
+     * do not determine a circle, such as a single view of a flat surface.
+     * Takes time linear in the number of views.
+     */
+    public Estimate getEstimate() {
+        int views = viewSums.size();
+        if (views == 0 || !fitCircle(totals, circle)) {
+            return null;
+        }
+        Estimate estimate = new Estimate();
+        estimate.views = views;
+        estimate.points = (int) totals[N];
+        estimate.centerX = circle[0] + originX;
+        estimate.centerZ = circle[1] + originZ;
+        estimate.height = height;
+        estimate.diameter = 2.0 * circle[2];
+        estimate.rmsResidual = circle[3];
+        if (views < MIN_INTERVAL_VIEWS) {
+            return estimate;
+        }
+
+        // Jackknife over views
+        double[] diameters = new double[views];
+        double mean = 0.0;
+        for (int v = 0; v < views; v++) {
+            double[] sums = viewSums.get(v);
+            for (int i = 0; i < SUMS; i++) {
+                leftOut[i] = totals[i] - sums[i];
+            }
+            if (!fitCircle(leftOut, circle)) {
+                return estimate;
+            }
+            diameters[v] = 2.0 * circle[2];
+            mean += diameters[v];
+        }
+        mean /= views;
+        double squares = 0.0;
+        for (double diameter : diameters) {
+            squares += (diameter - mean) * (diameter - mean);
+        }
+        double halfWidth = tQuantile(views - 1) * Math.sqrt(squares * (views - 1) / views);
+        estimate.diameterLow = estimate.diameter - halfWidth;
+        estimate.diameterHigh = estimate.diameter + halfWidth;
+        return estimate;
+    }
+
+    /*
+     * Drops all views, so the next one starts a new trunk.
+     */
+    public void reset() {
+        viewSums.clear();
+        for (int i = 0; i < SUMS; i++) {
+            totals[i] = 0.0;
+        }
+        height = Double.NaN;
+    }
+
+    /*
+     * Whether the TOF pixel and both its neighbours in the row are on the trunk. This drops
+     * the trunk's edge pixels, whose depth mixes the trunk and what is behind it.
+     */
+    private boolean isInterior(int r, int c) {
+        int row = r * TrunkProcessor.SCALE_FACTOR;
+        int column = c * TrunkProcessor.SCALE_FACTOR;
+        return processor.isTrunk(row, column)
+                && processor.isTrunk(row, column - TrunkProcessor.SCALE_FACTOR)
+                && processor.isTrunk(row, column + TrunkProcessor.SCALE_FACTOR);
+    }
+
+    /*
+     * Mean world height of the trunk pixels within AIM_WINDOW of the image center,
+     * or of all of them if none are.
+     */
+    private double getAimedHeight(float[] tofDepth, float[] m) {
+        int rowLo = (int) Math.round(TrunkProcessor.TOF_HEIGHT * (0.5 - AIM_WINDOW));
+        int rowHi = (int) Math.round(TrunkProcessor.TOF_HEIGHT * (0.5 + AIM_WINDOW));
+        int colLo = (int) Math.round(TrunkProcessor.TOF_WIDTH * (0.5 - AIM_WINDOW));
+        int colHi = (int) Math.round(TrunkProcessor.TOF_WIDTH * (0.5 + AIM_WINDOW));
+        double aimedSum = 0.0;
+        int aimed = 0;
+        double sum = 0.0;
+        int n = 0;
+        for (int r = 0; r < TrunkProcessor.TOF_HEIGHT; r++) {
+            for (int c = 0; c < TrunkProcessor.TOF_WIDTH; c++) {
+                float d = tofDepth[r * TrunkProcessor.TOF_WIDTH + c];
+                if (!(d > 0.0f)
+                        || !processor.isTrunk(r * TrunkProcessor.SCALE_FACTOR, c * TrunkProcessor.SCALE_FACTOR)) {
+                    continue;
+                }
+                double y = m[1] * (c - cx) / fx * d - m[5] * (r - cy) / fy * d - m[9] * d + m[13];
+                sum += y;
+                n++;
+                if (r >= rowLo && r < rowHi && c >= colLo && c < colHi) {
+                    aimedSum += y;
+                    aimed++;
+                }
+            }
+        }
+        return aimed > 0 ? aimedSum / aimed : sum / n;
+    }
+
+    /*
+     * Fits x^2 + z^2 + D x + E z + F = 0 to the points summed in s, by least squares on its
+     * left-hand side, and writes the center x, z, the radius and the RMS distance of the
+     * points from the circle into out. Returns false if the points do not determine a circle.
+     */
+    private static boolean fitCircle(double[] s, double[] out) {
+        double n = s[N];
+        if (n < 3.0) {
+            return false;
+        }
+        // Normal equations M (D, E, F) = -(Sxr, Szr, Sr), solved by Cramer's rule
+        double a = s[XX], b = s[XZ], c = s[X];
+        double d = s[ZZ], e = s[Z];
+        double f = n;
+        double c00 = d * f - e * e;
+        double c01 = e * c - b * f;
+        double c02 = b * e - d * c;
+        double det = a * c00 + b * c01 + c * c02;
+        // det is n^3 times the determinant of the points' covariance, which collinear points
+        // leave singular up to rounding
+        double cxx = (a - c * c / n) / n;
+        double czz = (d - e * e / n) / n;
+        if (!(det / (n * n * n) > 1e-9 * (cxx + czz) * (cxx + czz))) {
+            return false;
+        }
+        double c11 = a * f - c * c;
+        double c12 = b * c - a * e;
+        double c22 = a * d - b * b;
+        double g0 = -s[XR];
+        double g1 = -s[ZR];
+        double g2 = -s[R];
+        double coefD = (c00 * g0 + c01 * g1 + c02 * g2) / det;
+        double coefE = (c01 * g0 + c11 * g1 + c12 * g2) / det;
+        double coefF = (c02 * g0 + c12 * g1 + c22 * g2) / det;
+
+        double centerX = -coefD / 2.0;
+        double centerZ = -coefE / 2.0;
+        double radius2 = centerX * centerX + centerZ * centerZ - coefF;
+        if (!(radius2 > 0.0)) {
+            return false;
+        }
+        double radius = Math.sqrt(radius2);
+        // The residual of each point is about 2 radius times its distance from the circle
+        double squares = s[RR] + coefD * s[XR] + coefE * s[ZR] + coefF * s[R];
+        out[0] = centerX;
+        out[1] = centerZ;
+        out[2] = radius;
+        out[3] = Math.sqrt(Math.max(squares, 0.0) / n) / (2.0 * radius);
+        return true;
+    }
+
+    /*
+     * Two-sided 95% quantile of Student's t. Past the table, the Cornish-Fisher expansion
+     * about the normal quantile is within 0.002 of it.
+     */
+    private static double tQuantile(int degrees) {
+        if (degrees <= T_975.length) {
+            return T_975[degrees - 1];
+        }
+        double z = Z_975;
+        double z3 = z * z * z;
+        double z5 = z3 * z * z;
+        return z + (z3 + z) / (4.0 * degrees) + (5.0 * z5 + 16.0 * z3 + 3.0 * z) / (96.0 * degrees * degrees);
+    }
+}
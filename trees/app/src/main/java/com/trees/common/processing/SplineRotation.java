@@ -0,0 +1,151 @@
+package com.trees.common.processing;
+
+/*
+ * In-plane rotation of a row-major image about its center, matching
+ * scipy.ndimage.rotate(image, angle, reshape=False) with its defaults:
+ * cubic spline interpolation, spline prefiltering with mirror boundaries,
+ * and a constant (zero) value outside the input.
+ *
+ * Instances keep their coefficient buffer between calls and are not thread safe.
+ */
+public class SplineRotation {
+
+    // Pole of the cubic B-spline prefilter, and the gain (1 - z)(1 - 1/z)
+    private static final double POLE = Math.sqrt(3.0) - 2.0;
+    private static final double GAIN = (1.0 - POLE) * (1.0 - 1.0 / POLE);
+
+    private final int height;
+    private final int width;
+    private final double[] coefficients;
+    private final double[] column;
+    private final double[] weightsR = new double[4];
+    private final double[] weightsC = new double[4];
+    private final int[] indicesR = new int[4];
+    private final int[] indicesC = new int[4];
+
+    public SplineRotation(int height, int width) {
+        this.height = height;
+        this.width = width;
+        this.coefficients = new double[height * width];
+        this.column = new double[height];
+    }
+
+    /*
+     * Rotates src by angle degrees into dst. Both arrays are height x width, row-major.
+     */
+    public void rotate(double[] src, double angle, double[] dst) {
+        prefilter(src);
+
+        double rad = Math.toRadians(angle);
+        double cos = Math.cos(rad);
+        double sin = Math.sin(rad);
+        // Maps output coordinates onto input coordinates, keeping the center fixed
+        double centerR = height / 2.0 - 0.5;
+        double centerC = width / 2.0 - 0.5;
+        double offsetR = centerR - (cos * centerR + sin * centerC);
+        double offsetC = centerC - (-sin * centerR + cos * centerC);
+
+        int i = 0;
+        for (int r = 0; r < height; r++) {
+            for (int c = 0; c < width; c++) {
+                double inR = cos * r + sin * c + offsetR;
+                double inC = -sin * r + cos * c + offsetC;
+                if (inR < 0 || inR > height - 1 || inC < 0 || inC > width - 1) {
+                    dst[i++] = 0.0;
+                    continue;
+                }
+                splineTaps(inR, height, weightsR, indicesR);
+                splineTaps(inC, width, weightsC, indicesC);
+                double value = 0.0;
+                for (int a = 0; a < 4; a++) {
+                    int row = indicesR[a] * width;
+                    value += weightsR[a] * (weightsC[0] * coefficients[row + indicesC[0]]
+                            + weightsC[1] * coefficients[row + indicesC[1]]
+                            + weightsC[2] * coefficients[row + indicesC[2]]
+                            + weightsC[3] * coefficients[row + indicesC[3]]);
+                }
+                dst[i++] = value;
+            }
+        }
+    }
+
+    /*
+     * Cubic B-spline weights and mirrored sample indices for coordinate x along an axis of length len.
+     */
+    private static void splineTaps(double x, int len, double[] weights, int[] indices) {
+        double floor = Math.floor(x);
+        double t = x - floor;
+        double z = 1.0 - t;
+        weights[0] = z * z * z / 6.0;
+        weights[1] = (t * t * (t - 2.0) * 3.0 + 4.0) / 6.0;
+        weights[2] = (z * z * (z - 2.0) * 3.0 + 4.0) / 6.0;
+        weights[3] = t * t * t / 6.0;
+
+        int start = (int) floor - 1;
+        int s2 = 2 * len - 2;
+        for (int k = 0; k < 4; k++) {
+            int idx = start + k;
+            if (len <= 1) {
+                idx = 0;
+            } else if (idx < 0) {
+                idx = s2 * (-idx / s2) + idx;
+                idx = idx <= 1 - len ? idx + s2 : -idx;
+            } else if (idx >= len) {
+                idx -= s2 * (idx / s2);
+                if (idx >= len) {
+                    idx = s2 - idx;
+                }
+            }
+            indices[k] = idx;
+        }
+    }
+
+    /*
+     * Converts src into cubic spline coefficients, filtering along columns then rows.
+     */
+    private void prefilter(double[] src) {
+        System.arraycopy(src, 0, coefficients, 0, coefficients.length);
+        if (height > 1) {
+            for (int c = 0; c < width; c++) {
+                for (int r = 0; r < height; r++) {
+                    column[r] = coefficients[r * width + c];
+                }
+                filterLine(column, 0, height);
+                for (int r = 0; r < height; r++) {
+                    coefficients[r * width + c] = column[r];
+                }
+            }
+        }
+        if (width > 1) {
+            for (int r = 0; r < height; r++) {
+                filterLine(coefficients, r * width, width);
+            }
+        }
+    }
+
+    private static void filterLine(double[] line, int offset, int n) {
+        int end = offset + n - 1;
+        for (int i = offset; i <= end; i++) {
+            line[i] *= GAIN;
+        }
+
+        // Causal initialisation for a mirror-symmetric extension
+        double zn1 = Math.pow(POLE, n - 1);
+        double zi = POLE;
+        double c0 = line[offset] + zn1 * line[end];
+        for (int i = 1; i < n - 1; i++) {
+            c0 += zi * (line[offset + i] + zn1 * line[end - i]);
+            zi *= POLE;
+        }
+        line[offset] = c0 / (1.0 - zn1 * zn1);
+        for (int i = offset + 1; i <= end; i++) {
+            line[i] += POLE * line[i - 1];
+        }
+
+        // Anti-causal initialisation and pass
+        line[end] = (POLE * line[end - 1] + line[end]) * POLE / (POLE * POLE - 1.0);
+        for (int i = end - 1; i >= offset; i--) {
+            line[i] = POLE * (line[i + 1] - line[i]);
+        }
+    }
+}
@@ -0,0 +1,1170 @@
+package com.trees.common.processing;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/*
+ * Java port of python/processor.py and the depth handling in python/improc.py.
+ * Finds the trunk boundaries and estimates depth and diameter from a ToF depth frame,
+ * using only primitive arrays so no Python runtime is needed.
+ *
+ * All working buffers are allocated once per instance; instances are not thread safe.
+ */
+public class TrunkProcessor {
+
+    // Processing resolution (height x width) and the ToF resolution it is upscaled from
+    public static final int HEIGHT = 360;
+    public static final int WIDTH = 480;
+    public static final int TOF_HEIGHT = 180;
+    public static final int TOF_WIDTH = 240;
+    public static final int SCALE_FACTOR = 2;
+
+    // Depth values used to find the mode depth come from the center third of the image
+    public static final int CENTER_LEFT = WIDTH / 3;
+    public static final int CENTER_RIGHT = 2 * (WIDTH / 3);
+
+    // Used for trunk boundary line scans
+    public static final double PERCENT_INLIERS_HIGH = 0.60;
+    public static final double PERCENT_INLIERS_LOW = 0.50;
+
+    // Used to identify too-small depth image components
+    public static final int ALPHA = 300;
+
+    // Used to identify appropriately dense filtered depth image shapes
+    public static final double BETA = 0.60;
+
+    // Camera calibration constants
+    public static final double CALIB_DEPTH = 1.0;  // Units in m
+    public static final double CALIB_PIXEL_PER_METER = 356.25;  // Units in p
+
+    // Sensor range gives us a maximum of 5 meters away, binned at 3cm resolution
+    private static final double BIN_WIDTH = 0.03;
+    private static final double MAX_RANGE = 5.0;
+
+    // Threshold on the interpolated, rotated mask (and boundary lines) counted as set.
+    // processor.py rotates an integer mask, which scipy rounds to the nearest integer, so its
+    // test of > 0.003 on the result holds where the interpolated value is at least 0.5.
+    private static final double MASK_THRESHOLD = 0.5;
+    private static final double BOUNDS_THRESHOLD = 0.1;
+
+    // Fixed point positions of countRotatedColumnsDda
+    private static final int FIXED_SHIFT = 16;
+    private static final double FIXED_ONE = 1 << FIXED_SHIFT;
+
+    private static final int SIZE = HEIGHT * WIDTH;
+
+    public static class ProcessingException extends Exception {
+        public ProcessingException(String message) {
+            super(message);
+        }
+
+        public ProcessingException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /* Raised when the capture has insufficient depth values. */
+    public static class MissingDepthException extends ProcessingException {
+        public MissingDepthException() {
+            super("Unable to process image, no depth points found");
+        }
+    }
+
+    /* Raised when no trunk is found in the image. */
+    public static class NoTrunkFoundException extends ProcessingException {
+        public NoTrunkFoundException() {
+            super("Unable to find trunk in depth image");
+        }
+    }
+
+    /*
+     * The tunable constants above, which a processor can be given other values of to tune them
+     * offline. The defaults are the constants.
+     */
+    public static class Parameters {
+        public int alpha = ALPHA;
+        public double beta = BETA;
+        public double percentInliersHigh = PERCENT_INLIERS_HIGH;
+        public double percentInliersLow = PERCENT_INLIERS_LOW;
+        /* Width of the depth bins the mode depth is found in, in m */
+        public double binWidth = BIN_WIDTH;
+        public double calibPixelPerMeter = CALIB_PIXEL_PER_METER;
+
+        public Parameters copy() {
+            Parameters copy = new Parameters();
+            copy.alpha = alpha;
+            copy.beta = beta;
+            copy.percentInliersHigh = percentInliersHigh;
+            copy.percentInliersLow = percentInliersLow;
+            copy.binWidth = binWidth;
+            copy.calibPixelPerMeter = calibPixelPerMeter;
+            return copy;
+        }
+    }
+
+    /*
+     * Stages of run that can be computed elsewhere, such as on the GPU, from the frame given to
+     * upload. Each returns false if it could not run, and the processor then computes that stage
+     * itself. FloatDepthStages is the reference implementation.
+     */
+    public interface DepthStages {
+        /* Makes tofDepth, a TOF_HEIGHT x TOF_WIDTH frame, the input of the other stages */
+        boolean upload(float[] tofDepth);
+
+        /*
+         * Counts the non-zero depths of the center third of the upscaled frame by bin, as
+         * np.digitize bins them on binEdges. binCounts has one more bin than there are edges.
+         */
+        boolean histogram(float[] binEdges, int[] binCounts);
+
+        /* Sets tofMask to 1 where 0 < depth, low <= depth and depth <= high, and to 0 elsewhere */
+        boolean bandMask(float low, float high, byte[] tofMask);
+
+        /*
+         * Counts the pixels in each column of tofMask, upscaled to processing resolution and
+         * rotated by angle degrees as SplineRotation does, whose value is at least threshold.
+         */
+        boolean countRotatedColumns(byte[] tofMask, double angle, double threshold, int[] columnCounts);
+    }
+
+    public static class Result {
+        /* Angle, in degrees, the image is rotated by to make the trunk vertical */
+        public double angle;
+
+        /* Left and right trunk boundaries, as columns of the rotated image */
+        public int left;
+        public int right;
+
+        /* Estimated trunk depth, in meters */
+        public double depth;
+
+        /* Estimated trunk diameter, in meters */
+        public double width;
+
+        /*
+         * Boundaries to a fraction of a column, where the column inlier fractions cross
+         * percentInliersLow, and the diameter estimated from them. On a sharp edge these
+         * equal left and right; width keeps the whole columns, as improc.py does.
+         */
+        public double leftSubpixel;
+        public double rightSubpixel;
+        public double subpixelWidth;
+    }
+
+    // A copy, so the caller changing theirs does not affect processing in progress
+    private final Parameters params;
+
+    private final double[] bins;
+    private final int[] binCounts;
+    // The bins as floats, rounded up, so a float depth is below one exactly when below the bin
+    private final float[] binEdges;
+
+    // Stages computed outside the processor, or null
+    private final DepthStages stages;
+    // The trunk depth band at ToF resolution, for the stages
+    private final byte[] tofMask = new byte[TOF_HEIGHT * TOF_WIDTH];
+
+    // Depth at processing resolution; filtered in place to the trunk depth band
+    private final float[] depth = new float[SIZE];
+
+    // Connected component labels of the filtered depth and their statistics
+    private final int[] labels = new int[SIZE];
+    private int[] componentCounts = new int[64];
+    private long[] componentXSums = new long[64];
+    // Union-find forest of the provisional labels; parents are never above their children
+    private int[] parent = new int[64];
+
+    // Leftmost and rightmost pixel of all kept components in each row, or -1
+    private final int[] rowMin = new int[HEIGHT];
+    private final int[] rowMax = new int[HEIGHT];
+    // Leftmost and rightmost pixel of each component in each of its rows, in raster order
+    private int[] rowExtentLabels = new int[4 * HEIGHT];
+    private int[] rowExtents = new int[3 * 4 * HEIGHT];
+    // Hull vertices of each component, sorted by row then column, as (r, c) pairs
+    private int[] componentHulls = new int[8 * HEIGHT];
+    private int[] componentHullStarts = new int[64];
+
+    // A convex hull has at most two vertices per row, and merging two gives at most four
+    private final int[] points = new int[4 * HEIGHT];
+    private final int[] unionPoints = new int[4 * HEIGHT];
+    private final int[] mergedPoints = new int[8 * HEIGHT];
+    private final int[] hull = new int[8 * HEIGHT + 2];
+    private int hullLower;
+
+    private final SplineRotation rotation = new SplineRotation(HEIGHT, WIDTH);
+    private final double[] mask = new double[SIZE];
+    private final double[] rotated = new double[SIZE];
+    private final int[] columnCounts = new int[WIDTH];
+
+    public TrunkProcessor() {
+        this(new Parameters());
+    }
+
+    public TrunkProcessor(Parameters params) {
+        this(params, null);
+    }
+
+    /*
+     * stages, if not null, computes the stages of run it can instead of the processor.
+     */
+    public TrunkProcessor(DepthStages stages) {
+        this(new Parameters(), stages);
+    }
+
+    public TrunkProcessor(Parameters params, DepthStages stages) {
+        if (!(params.binWidth > 0.0)) {
+            throw new IllegalArgumentException("Bin width must be positive, got " + params.binWidth);
+        }
+        this.params = params.copy();
+        int nBins = (int) Math.ceil(MAX_RANGE / params.binWidth);
+        bins = new double[nBins];
+        for (int i = 0; i < nBins; i++) {
+            bins[i] = i * params.binWidth;
+        }
+        binCounts = new int[nBins + 1];
+        binEdges = new float[nBins];
+        for (int i = 0; i < nBins; i++) {
+            float edge = (float) bins[i];
+            binEdges[i] = edge < bins[i] ? Math.nextUp(edge) : edge;
+        }
+        this.stages = stages;
+    }
+
+    /*
+     * Equivalent of improc.run, without the display image.
+     * tofDepth is a TOF_HEIGHT x TOF_WIDTH row-major depth frame in meters; it is not modified.
+     */
+    public Result run(float[] tofDepth) throws ProcessingException {
+        if (tofDepth.length != TOF_HEIGHT * TOF_WIDTH) {
+            throw new IllegalArgumentException("Expected " + TOF_HEIGHT + "x" + TOF_WIDTH
+                    + " depth values, got " + tofDepth.length);
+        }
+        upscale(tofDepth);
+        return process(false, stages != null && stages.upload(tofDepth));
+    }
+
+    /*
+     * As run(float[]), reading the depth frame from its position in a buffer, such as a
+     * SampleArchive plane, without copying it out first. The buffer's position is not changed.
+     */
+    public Result run(FloatBuffer tofDepth) throws ProcessingException {
+        if (tofDepth.remaining() != TOF_HEIGHT * TOF_WIDTH) {
+            throw new IllegalArgumentException("Expected " + TOF_HEIGHT + "x" + TOF_WIDTH
+                    + " depth values, got " + tofDepth.remaining());
+        }
+        int base = tofDepth.position();
+        for (int r = 0; r < HEIGHT; r++) {
+            int src = base + (r / SCALE_FACTOR) * TOF_WIDTH;
+            int dst = r * WIDTH;
+            for (int c = 0; c < WIDTH; c++) {
+                depth[dst + c] = tofDepth.get(src + c / SCALE_FACTOR);
+            }
+        }
+        return process(false, false);
+    }
+
+    /*
+     * As run, but cheap enough to run continuously on preview frames.
+     * Columns of the rotated trunk are counted from the nearest trunk pixel to each rotated
+     * pixel, instead of rotating the whole mask with splines, so on a tilted trunk these
+     * boundaries can differ from those of run by a pixel. The filtered depth is left as run
+     * leaves it.
+     */
+    public Result runPreview(float[] tofDepth) throws ProcessingException {
+        if (tofDepth.length != TOF_HEIGHT * TOF_WIDTH) {
+            throw new IllegalArgumentException("Expected " + TOF_HEIGHT + "x" + TOF_WIDTH
+                    + " depth values, got " + tofDepth.length);
+        }
+        upscale(tofDepth);
+        return process(true, false);
+    }
+
+    /*
+     * The filtered depth image at processing resolution, as left by the last call to run.
+     */
+    public float[] getFilteredDepth() {
+        return depth;
+    }
+
+    /*
+     * Whether the pixel at processing resolution is on the trunk found by the last call to run:
+     * within the trunk depth band, and in a component that denoising kept.
+     */
+    public boolean isTrunk(int row, int column) {
+        return labels[row * WIDTH + column] != 0;
+    }
+
+    /*
+     * Overlays the result onto a HEIGHT x WIDTH ARGB image, as improc.run does for display:
+     * the alpha channel is the filtered depth and the trunk boundaries are drawn in green.
+     */
+    public void renderDisplay(int[] argb, Result result) {
+        // Boundaries index columns like numpy does, so -1 is the last column
+        int left = Math.floorMod(result.left, WIDTH);
+        int right = Math.floorMod(result.right, WIDTH);
+        Arrays.fill(mask, 0.0);
+        for (int r = 0; r < HEIGHT; r++) {
+            mask[r * WIDTH + left] = 1.0;
+            mask[r * WIDTH + right] = 1.0;
+        }
+        rotation.rotate(mask, -result.angle, rotated);
+
+        for (int i = 0; i < SIZE; i++) {
+            if (Math.abs(rotated[i]) > BOUNDS_THRESHOLD) {
+                argb[i] = 0xFF00FF00;
+            } else {
+                int alpha = Math.round(Math.min(Math.max(depth[i], 0.0f), 1.0f) * 255);
+                argb[i] = (alpha << 24) | (argb[i] & 0x00FFFFFF);
+            }
+        }
+    }
+
+    private void upscale(float[] tofDepth) {
+        for (int r = 0; r < HEIGHT; r++) {
+            int src = (r / SCALE_FACTOR) * TOF_WIDTH;
+            int dst = r * WIDTH;
+            for (int c = 0; c < WIDTH; c++) {
+                depth[dst + c] = tofDepth[src + c / SCALE_FACTOR];
+            }
+        }
+    }
+
+    /*
+     * staged is whether the frame was uploaded to the stages; they are only used if it was.
+     */
+    private Result process(boolean preview, boolean staged) throws ProcessingException {
+        double modeDepth = getModeDepth(staged);
+
+        // Zero out depth values that are not within 10% of the mode center depth
+        double depthApprox = 0.1 * modeDepth;
+        boolean masked = staged && stages.bandMask(bandLimit(modeDepth, depthApprox, false),
+                bandLimit(modeDepth, depthApprox, true), tofMask);
+        if (masked) {
+            applyTofMask();
+        } else {
+            for (int i = 0; i < SIZE; i++) {
+                if (Math.abs(depth[i] - modeDepth) > depthApprox) {
+                    depth[i] = 0.0f;
+                }
+            }
+        }
+
+        denoise();
+
+        // Rotate image to fit the tree vertically and approximate with vertical lines
+        Result result = new Result();
+        result.angle = getRotateAngle();
+        if (preview) {
+            countRotatedColumnsDda(result.angle);
+        } else if (!staged || !countRotatedColumnsStaged(result.angle, masked)) {
+            countRotatedColumnsSpline(result.angle);
+        }
+        findBoundaries(result);
+
+        result.depth = modeDepth;
+        result.width = getEstimatedWidth(modeDepth, result.right - result.left,
+                params.calibPixelPerMeter);
+        result.subpixelWidth = getEstimatedWidth(modeDepth,
+                result.rightSubpixel - result.leftSubpixel, params.calibPixelPerMeter);
+        return result;
+    }
+
+    /*
+     * Most common depth bin in the center third of the image.
+     * Like np.digitize, returns the upper edge of the bin and breaks ties towards nearer bins.
+     */
+    private double getModeDepth(boolean staged) throws ProcessingException {
+        if (!staged || !stages.histogram(binEdges, binCounts)) {
+            countDepthBins();
+        }
+        int nonZero = 0;
+        for (int count : binCounts) {
+            nonZero += count;
+        }
+        if (nonZero == 0) {
+            throw new MissingDepthException();
+        }
+
+        int mode = 0;
+        for (int i = 1; i < binCounts.length; i++) {
+            if (binCounts[i] > binCounts[mode]) {
+                mode = i;
+            }
+        }
+        if (mode >= bins.length) {
+            throw new ProcessingException("Trunk is beyond the sensor range of " + MAX_RANGE + "m");
+        }
+        return bins[mode];
+    }
+
+    private void countDepthBins() {
+        Arrays.fill(binCounts, 0);
+        for (int r = 0; r < HEIGHT; r++) {
+            for (int c = CENTER_LEFT; c < CENTER_RIGHT; c++) {
+                float d = depth[r * WIDTH + c];
+                if (d != 0.0f) {
+                    binCounts[digitize(d)]++;
+                }
+            }
+        }
+    }
+
+    /*
+     * Index i such that bins[i - 1] <= value < bins[i].
+     */
+    private int digitize(double value) {
+        int lo = 0;
+        int hi = bins.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (bins[mid] <= value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /*
+     * The lowest float f, or with upper the highest, for which process keeps a depth of f:
+     * |f - center| <= halfWidth, compared in double as process compares them.
+     */
+    private static float bandLimit(double center, double halfWidth, boolean upper) {
+        float f = (float) (upper ? center + halfWidth : center - halfWidth);
+        // Rounding to float can land on either side of the limit
+        if (upper) {
+            while (Math.abs(f - center) > halfWidth) {
+                f = Math.nextDown(f);
+            }
+            while (Math.abs(Math.nextUp(f) - center) <= halfWidth) {
+                f = Math.nextUp(f);
+            }
+        } else {
+            while (Math.abs(f - center) > halfWidth) {
+                f = Math.nextUp(f);
+            }
+            while (Math.abs(Math.nextDown(f) - center) <= halfWidth) {
+                f = Math.nextDown(f);
+            }
+        }
+        return f;
+    }
+
+    /*
+     * Zeroes the upscaled depth outside the band mask, which leaves it as the band filter
+     * of process would: the band limits are exact and the depth was upscaled from the frame.
+     */
+    private void applyTofMask() {
+        for (int r = 0; r < HEIGHT; r++) {
+            int src = (r / SCALE_FACTOR) * TOF_WIDTH;
+            int dst = r * WIDTH;
+            for (int c = 0; c < WIDTH; c++) {
+                if (tofMask[src + c / SCALE_FACTOR] == 0) {
+                    depth[dst + c] = 0.0f;
+                }
+            }
+        }
+    }
+
+    /*
+     * Removes outlier components from the filtered depth image, leaving
+     * labels[i] > 0 exactly where the denoised depth image is non-zero.
+     *
+     * Components are labelled in a single union-find pass that also counts their pixels and
+     * x sums, then a second pass applies the final labels. If components have to be removed,
+     * one more pass collects each component's row extents and builds its convex hull; the hulls
+     * are then merged incrementally, so removing components never rescans the image.
+     */
+    private void denoise() throws ProcessingException {
+        int nProvisional = label();
+        int nLabels = resolveLabels(nProvisional);
+
+        // Zero out depth points in tiny connected components (fewer than alpha pixels).
+        // Relabel the rest consecutively, which preserves their raster order.
+        int[] relabel = new int[nLabels + 1];
+        int kept = 0;
+        for (int l = 1; l <= nLabels; l++) {
+            if (componentCounts[l] >= params.alpha) {
+                kept++;
+                relabel[l] = kept;
+                componentCounts[kept] = componentCounts[l];
+                componentXSums[kept] = componentXSums[l];
+            }
+        }
+        for (int l = 1; l <= nProvisional; l++) {
+            parent[l] = relabel[parent[l]];
+        }
+        applyLabels();
+
+        // If there was only background left, this is a bad image
+        if (kept == 0) {
+            throw new NoTrunkFoundException();
+        }
+
+        // Sort components by their distance from the mean of the target component.
+        // This is the order in which we will remove them, if necessary.
+        // The target component is the largest component.
+        int target = 1;
+        for (int l = 2; l <= kept; l++) {
+            if (componentCounts[l] > componentCounts[target]) {
+                target = l;
+            }
+        }
+        final double targetMean = (double) componentXSums[target] / componentCounts[target];
+        Integer[] order = new Integer[kept];
+        final double[] diffFromTarget = new double[kept + 1];
+        for (int l = 1; l <= kept; l++) {
+            order[l - 1] = l;
+            diffFromTarget[l] = Math.abs((double) componentXSums[l] / componentCounts[l] - targetMean);
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(diffFromTarget[a], diffFromTarget[b]));
+
+        // Components are removed from the end of order, so the components remaining are
+        // always a prefix of it. hullAreas[k] is the area of the hull of the first k; it is
+        // only built if the hull of all components is not dense enough, which is rare.
+        double[] hullAreas = null;
+
+        boolean[] removed = new boolean[kept + 1];
+        boolean anyRemoved = false;
+        long inlierArea = 0;
+        for (int l = 1; l <= kept; l++) {
+            inlierArea += componentCounts[l];
+        }
+        // Must keep at least one component
+        for (int i = 0; i < kept - 1; i++) {
+            // Check that the convex hull of the components is sufficiently dense in trunk inliers
+            // by examining the ratio of the pixel area in remaining components
+            // to the total area of the convex hull
+            double hullArea;
+            if (i == 0) {
+                hullArea = allComponentsHullArea();
+            } else {
+                if (hullAreas == null) {
+                    buildComponentHulls(kept, findRowExtents(kept));
+                    hullAreas = prefixHullAreas(order);
+                }
+                hullArea = hullAreas[kept - i];
+            }
+            if (hullArea == 0.0 || inlierArea / hullArea > params.beta) {
+                break;
+            }
+            // If not, remove the component whose x-mean is furthest from the target component
+            int remove = order[kept - 1 - i];
+            removed[remove] = true;
+            anyRemoved = true;
+            inlierArea -= componentCounts[remove];
+        }
+
+        if (anyRemoved) {
+            for (int i = 0; i < SIZE; i++) {
+                if (removed[labels[i]]) {
+                    labels[i] = 0;
+                }
+            }
+        }
+    }
+
+    /*
+     * Labels 4-connected components of non-zero depth in one raster pass, with union-find.
+     * Each pixel gets the provisional label of its component's root at the time, and pixel counts
+     * and x sums are kept on the roots. Returns the number of provisional labels.
+     */
+    private int label() {
+        int nLabels = 0;
+        for (int r = 0; r < HEIGHT; r++) {
+            int row = r * WIDTH;
+            for (int c = 0; c < WIDTH; c++) {
+                int p = row + c;
+                if (depth[p] == 0.0f) {
+                    labels[p] = 0;
+                    continue;
+                }
+                int left = c > 0 ? labels[p - 1] : 0;
+                int up = r > 0 ? labels[p - WIDTH] : 0;
+                int l;
+                if (left == 0 && up == 0) {
+                    nLabels++;
+                    if (nLabels >= parent.length) {
+                        parent = Arrays.copyOf(parent, 2 * parent.length);
+                        componentCounts = Arrays.copyOf(componentCounts, 2 * componentCounts.length);
+                        componentXSums = Arrays.copyOf(componentXSums, 2 * componentXSums.length);
+                    }
+                    l = nLabels;
+                    parent[l] = l;
+                    componentCounts[l] = 0;
+                    componentXSums[l] = 0;
+                } else if (left == 0) {
+                    l = find(up);
+                } else if (up == 0 || up == left) {
+                    l = find(left);
+                } else {
+                    l = union(left, up);
+                }
+                labels[p] = l;
+                componentCounts[l]++;
+                componentXSums[l] += c;
+            }
+        }
+        return nLabels;
+    }
+
+    private int find(int l) {
+        while (parent[l] != l) {
+            parent[l] = parent[parent[l]];
+            l = parent[l];
+        }
+        return l;
+    }
+
+    /*
+     * Joins the components of labels a and b under the smaller root, which keeps every root
+     * the first label of its component in raster order. Returns that root.
+     */
+    private int union(int a, int b) {
+        a = find(a);
+        b = find(b);
+        if (a == b) {
+            return a;
+        }
+        int root = Math.min(a, b);
+        int child = Math.max(a, b);
+        parent[child] = root;
+        componentCounts[root] += componentCounts[child];
+        componentXSums[root] += componentXSums[child];
+        return root;
+    }
+
+    /*
+     * Numbers the components 1..n in raster order of their first pixel, moving their statistics
+     * to those labels, and leaves parent[l] as the final label of provisional label l.
+     * Returns the number of components.
+     */
+    private int resolveLabels(int nProvisional) {
+        // Parents are never above their children, so in increasing order one step reaches the root
+        for (int l = 1; l <= nProvisional; l++) {
+            parent[l] = parent[parent[l]];
+        }
+        int nLabels = 0;
+        for (int l = 1; l <= nProvisional; l++) {
+            int root = parent[l];
+            if (root == l) {
+                nLabels++;
+                parent[l] = nLabels;
+                componentCounts[nLabels] = componentCounts[l];
+                componentXSums[nLabels] = componentXSums[l];
+            } else {
+                // The root comes first, so its final label is already set
+                parent[l] = parent[root];
+            }
+        }
+        return nLabels;
+    }
+
+    /*
+     * Rewrites labels from provisional to final ones, through parent,
+     * and records the leftmost and rightmost pixel of the kept components in each row.
+     */
+    private void applyLabels() {
+        Arrays.fill(rowMin, -1);
+        for (int r = 0; r < HEIGHT; r++) {
+            int row = r * WIDTH;
+            for (int c = 0; c < WIDTH; c++) {
+                int l = parent[labels[row + c]];
+                labels[row + c] = l;
+                if (l != 0) {
+                    if (rowMin[r] < 0) {
+                        rowMin[r] = c;
+                    }
+                    rowMax[r] = c;
+                }
+            }
+        }
+    }
+
+    /*
+     * Records the extent of each component in each of its rows as (r, leftmost c, rightmost c),
+     * in raster order. Returns the number of extents recorded.
+     */
+    private int findRowExtents(int kept) {
+        // Index of each component's extent in the current row, or -1
+        int[] currentExtent = new int[kept + 1];
+        Arrays.fill(currentExtent, -1);
+        int nExtents = 0;
+        for (int r = 0; r < HEIGHT; r++) {
+            int row = r * WIDTH;
+            for (int c = 0; c < WIDTH; c++) {
+                int l = labels[row + c];
+                if (l == 0) {
+                    continue;
+                }
+                int e = currentExtent[l];
+                if (e >= 0 && rowExtents[3 * e] == r) {
+                    rowExtents[3 * e + 2] = c;
+                    continue;
+                }
+                if (nExtents == rowExtentLabels.length) {
+                    rowExtentLabels = Arrays.copyOf(rowExtentLabels, 2 * nExtents);
+                    rowExtents = Arrays.copyOf(rowExtents, 6 * nExtents);
+                }
+                rowExtentLabels[nExtents] = l;
+                rowExtents[3 * nExtents] = r;
+                rowExtents[3 * nExtents + 1] = c;
+                rowExtents[3 * nExtents + 2] = c;
+                currentExtent[l] = nExtents++;
+            }
+        }
+        return nExtents;
+    }
+
+    /*
+     * Area of the convex hull of all kept components, from the row extents of all of them.
+     */
+    private double allComponentsHullArea() {
+        int nPoints = 0;
+        for (int r = 0; r < HEIGHT; r++) {
+            if (rowMin[r] >= 0) {
+                points[2 * nPoints] = r;
+                points[2 * nPoints++ + 1] = rowMin[r];
+                if (rowMax[r] != rowMin[r]) {
+                    points[2 * nPoints] = r;
+                    points[2 * nPoints++ + 1] = rowMax[r];
+                }
+            }
+        }
+        return hullArea(convexHull(points, nPoints));
+    }
+
+    /*
+     * Builds each component's hull from its row extents, which arrive sorted for Andrew's
+     * monotone chain. Hull l occupies componentHulls from componentHullStarts[l] to
+     * componentHullStarts[l + 1].
+     */
+    private void buildComponentHulls(int kept, int nExtents) {
+        if (componentHullStarts.length < kept + 2) {
+            componentHullStarts = new int[2 * (kept + 2)];
+        }
+        // Bucket the extents by component, keeping their row order
+        int[] extentStarts = new int[kept + 2];
+        for (int e = 0; e < nExtents; e++) {
+            extentStarts[rowExtentLabels[e] + 1]++;
+        }
+        for (int l = 1; l <= kept + 1; l++) {
+            extentStarts[l] += extentStarts[l - 1];
+        }
+        int[] byComponent = new int[nExtents];
+        int[] next = Arrays.copyOf(extentStarts, kept + 1);
+        for (int e = 0; e < nExtents; e++) {
+            byComponent[next[rowExtentLabels[e]]++] = e;
+        }
+
+        int size = 0;
+        for (int l = 1; l <= kept; l++) {
+            int nPoints = 0;
+            for (int i = extentStarts[l]; i < extentStarts[l + 1]; i++) {
+                int e = byComponent[i];
+                int r = rowExtents[3 * e];
+                points[2 * nPoints] = r;
+                points[2 * nPoints++ + 1] = rowExtents[3 * e + 1];
+                if (rowExtents[3 * e + 2] != rowExtents[3 * e + 1]) {
+                    points[2 * nPoints] = r;
+                    points[2 * nPoints++ + 1] = rowExtents[3 * e + 2];
+                }
+            }
+            int n = convexHull(points, nPoints);
+            if (componentHulls.length < size + 2 * n) {
+                componentHulls = Arrays.copyOf(componentHulls, Math.max(2 * componentHulls.length, size + 2 * n));
+            }
+            componentHullStarts[l] = size;
+            size = sortedHullVertices(n, componentHulls, size);
+        }
+        componentHullStarts[kept + 1] = size;
+    }
+
+    /*
+     * Areas of the hulls of the first k components of order, for k from 1 to order.length,
+     * each merged from the previous hull and the next component's hull.
+     */
+    private double[] prefixHullAreas(Integer[] order) {
+        double[] areas = new double[order.length + 1];
+        int nUnion = 0;
+        for (int k = 0; k < order.length; k++) {
+            int l = order[k];
+            int start = componentHullStarts[l];
+            int nComponent = (componentHullStarts[l + 1] - start) / 2;
+            int nMerged = mergeSorted(unionPoints, 0, nUnion, componentHulls, start, nComponent, mergedPoints);
+            int n = convexHull(mergedPoints, nMerged);
+            areas[k + 1] = hullArea(n);
+            nUnion = sortedHullVertices(n, unionPoints, 0) / 2;
+        }
+        return areas;
+    }
+
+    /*
+     * Merges two lists of (r, c) points sorted by row then column into out.
+     * Returns the number of points merged.
+     */
+    private static int mergeSorted(int[] a, int aStart, int aCount, int[] b, int bStart, int bCount, int[] out) {
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < aCount || j < bCount) {
+            boolean takeA;
+            if (j == bCount) {
+                takeA = true;
+            } else if (i == aCount) {
+                takeA = false;
+            } else {
+                int ar = a[aStart + 2 * i];
+                int br = b[bStart + 2 * j];
+                takeA = ar < br || (ar == br && a[aStart + 2 * i + 1] <= b[bStart + 2 * j + 1]);
+            }
+            if (takeA) {
+                out[2 * n] = a[aStart + 2 * i];
+                out[2 * n + 1] = a[aStart + 2 * i + 1];
+                i++;
+            } else {
+                out[2 * n] = b[bStart + 2 * j];
+                out[2 * n + 1] = b[bStart + 2 * j + 1];
+                j++;
+            }
+            n++;
+        }
+        return n;
+    }
+
+    /*
+     * Convex hull of nPoints (r, c) points sorted by row then column, with Andrew's monotone chain.
+     * Leaves the vertices in hull, the lower chain first, sets hullLower to the length of the lower
+     * chain, and returns the number of vertices.
+     */
+    private int convexHull(int[] pts, int nPoints) {
+        int n = 0;
+        for (int i = 0; i < nPoints; i++) {
+            n = pushHullPoint(n, 0, pts[2 * i], pts[2 * i + 1]);
+        }
+        int lower = n;
+        for (int i = nPoints - 2; i >= 0; i--) {
+            n = pushHullPoint(n, lower - 1, pts[2 * i], pts[2 * i + 1]);
+        }
+        hullLower = lower;
+        // The upper chain ends on the first vertex again
+        return nPoints > 1 ? n - 1 : n;
+    }
+
+    /*
+     * Area of the n vertex hull left by convexHull.
+     */
+    private double hullArea(int n) {
+        if (n < 3) {
+            return 0.0;
+        }
+        long twiceArea = 0;
+        for (int i = 0; i < n; i++) {
+            int j = (i + 1) % n;
+            twiceArea += (long) hull[2 * i] * hull[2 * j + 1] - (long) hull[2 * j] * hull[2 * i + 1];
+        }
+        return Math.abs(twiceArea) / 2.0;
+    }
+
+    /*
+     * Writes the n vertices of the hull left by convexHull into out from index start, sorted
+     * by row then column, and returns the index after them. The lower chain is already sorted
+     * and the upper chain is sorted in reverse, so this merges the two.
+     */
+    private int sortedHullVertices(int n, int[] out, int start) {
+        int lower = Math.min(hullLower, n);
+        int i = 0;
+        int j = n - 1;
+        int o = start;
+        while (i < lower || j >= lower) {
+            boolean takeLower;
+            if (j < lower) {
+                takeLower = true;
+            } else if (i == lower) {
+                takeLower = false;
+            } else {
+                takeLower = hull[2 * i] < hull[2 * j]
+                        || (hull[2 * i] == hull[2 * j] && hull[2 * i + 1] <= hull[2 * j + 1]);
+            }
+            int v = takeLower ? i++ : j--;
+            out[o++] = hull[2 * v];
+            out[o++] = hull[2 * v + 1];
+        }
+        return o;
+    }
+
+    /*
+     * Appends (r, c) to the hull chain of n points, first popping points that would make a
+     * non-left turn. Points at index <= floor are never popped.
+     */
+    private int pushHullPoint(int n, int floor, int r, int c) {
+        while (n >= floor + 2) {
+            int r1 = hull[2 * (n - 2)];
+            int c1 = hull[2 * (n - 2) + 1];
+            int r2 = hull[2 * (n - 1)];
+            int c2 = hull[2 * (n - 1) + 1];
+            long cross = (long) (r2 - r1) * (c - c1) - (long) (c2 - c1) * (r - r1);
+            if (cross > 0) {
+                break;
+            }
+            n--;
+        }
+        hull[2 * n] = r;
+        hull[2 * n + 1] = c;
+        return n + 1;
+    }
+
+    /*
+     * Compute angle to rotate the denoised image to vertical, from the principal axes of
+     * its pixel coordinates.
+     */
+    private double getRotateAngle() {
+        long n = 0;
+        double sumR = 0.0;
+        double sumC = 0.0;
+        for (int i = 0; i < SIZE; i++) {
+            if (labels[i] != 0) {
+                n++;
+                sumR += i / WIDTH;
+                sumC += i % WIDTH;
+            }
+        }
+        double meanR = sumR / n;
+        double meanC = sumC / n;
+        double srr = 0.0;
+        double src = 0.0;
+        double scc = 0.0;
+        for (int i = 0; i < SIZE; i++) {
+            if (labels[i] != 0) {
+                double dr = i / WIDTH - meanR;
+                double dc = i % WIDTH - meanC;
+                srr += dr * dr;
+                src += dr * dc;
+                scc += dc * dc;
+            }
+        }
+
+        // Eigenvectors of the 2x2 scatter matrix, largest eigenvalue first
+        double half = (srr - scc) / 2.0;
+        double lambda = (srr + scc) / 2.0 + Math.sqrt(half * half + src * src);
+        double v0r;
+        double v0c;
+        if (src != 0.0) {
+            v0r = lambda - scc;
+            v0c = src;
+        } else if (srr >= scc) {
+            v0r = 1.0;
+            v0c = 0.0;
+        } else {
+            v0r = 0.0;
+            v0c = 1.0;
+        }
+
+        // Angle of the eigenvectors to the horizontal axis.
+        // We are using the eigenvector to define an axis, but adding 180 degrees identifies
+        // the same axis, so we restrict our angle to be between [0, 180].
+        double angle0 = mod180(Math.toDegrees(Math.atan2(v0c, v0r)));
+        double angle1 = mod180(Math.toDegrees(Math.atan2(v0r, -v0c)));
+
+        // In most cases, the first eigenvector runs along the principal axis of the trunk.
+        // We assume that the tree is relatively upright,
+        // and the correct eigenvector is within 60 degrees of vertical.
+        double angle = Math.abs(90 - angle0) < 60 ? angle0 : angle1;
+
+        // How far the image must be rotated to make the trunk vertical
+        return 90 - angle;
+    }
+
+    private static double mod180(double angle) {
+        double m = angle % 180.0;
+        return m < 0 ? m + 180.0 : m;
+    }
+
+    /*
+     * Count the points of the filtered depth image in each column, once rotated so the trunk is vertical.
+     */
+    private void countRotatedColumnsSpline(double angle) {
+        for (int i = 0; i < SIZE; i++) {
+            mask[i] = depth[i] > 0 ? 1.0 : 0.0;
+        }
+        rotation.rotate(mask, angle, rotated);
+
+        Arrays.fill(columnCounts, 0);
+        for (int r = 0; r < HEIGHT; r++) {
+            int row = r * WIDTH;
+            for (int c = 0; c < WIDTH; c++) {
+                if (Math.abs(rotated[row + c]) >= MASK_THRESHOLD) {
+                    columnCounts[c]++;
+                }
+            }
+        }
+    }
+
+    /*
+     * As countRotatedColumnsSpline, with the stages. The mask is rebuilt at ToF resolution from
+     * the filtered depth if the stages did not make it. Returns whether the stages counted.
+     */
+    private boolean countRotatedColumnsStaged(double angle, boolean masked) {
+        if (!masked) {
+            for (int r = 0; r < TOF_HEIGHT; r++) {
+                int src = r * SCALE_FACTOR * WIDTH;
+                for (int c = 0; c < TOF_WIDTH; c++) {
+                    tofMask[r * TOF_WIDTH + c] = (byte) (depth[src + c * SCALE_FACTOR] > 0 ? 1 : 0);
+                }
+            }
+        }
+        return stages.countRotatedColumns(tofMask, angle, MASK_THRESHOLD, columnCounts);
+    }
+
+    /*
+     * As countRotatedColumnsSpline, sampling the nearest input pixel instead of interpolating,
+     * in a single pass over the rotated image. Along a row of the rotated image the input
+     * position moves by a constant step, so it is tracked in 16.16 fixed point with additions.
+     * Pixels that fall outside the input are not counted, as with the spline rotation.
+     */
+    private void countRotatedColumnsDda(double angle) {
+        // Same mapping of output onto input coordinates as SplineRotation.rotate
+        double rad = Math.toRadians(angle);
+        double cos = Math.cos(rad);
+        double sin = Math.sin(rad);
+        double centerR = HEIGHT / 2.0 - 0.5;
+        double centerC = WIDTH / 2.0 - 0.5;
+        int stepR = (int) Math.round(sin * FIXED_ONE);
+        int stepC = (int) Math.round(cos * FIXED_ONE);
+
+        Arrays.fill(columnCounts, 0);
+        for (int r = 0; r < HEIGHT; r++) {
+            double dr = r - centerR;
+            // Input position of column 0, offset by half a pixel so truncation rounds to nearest
+            int inR = (int) Math.round((cos * dr - sin * centerC + centerR + 0.5) * FIXED_ONE);
+            int inC = (int) Math.round((-sin * dr - cos * centerC + centerC + 0.5) * FIXED_ONE);
+            for (int c = 0; c < WIDTH; c++) {
+                int sr = inR >> FIXED_SHIFT;
+                int sc = inC >> FIXED_SHIFT;
+                if (sr >= 0 && sr < HEIGHT && sc >= 0 && sc < WIDTH && depth[sr * WIDTH + sc] > 0) {
+                    columnCounts[c]++;
+                }
+                inR += stepR;
+                inC += stepC;
+            }
+        }
+    }
+
+    /*
+     * Find trunk boundaries from the rotated column counts, in O(WIDTH).
+     */
+    private void findBoundaries(Result result) {
+        // Move in from the left side until reaching a vertical scanline
+        // with at least percentInliersHigh percent of points in the filtered trunk range.
+        // Empty scanlines are skipped throughout.
+        double high = params.percentInliersHigh;
+        double low = params.percentInliersLow;
+        int left = 0;
+        for (int j = 0; j < WIDTH; j++) {
+            if (columnCounts[j] > 0 && inlierFraction(j) > high) {
+                left = j;
+                break;
+            }
+        }
+        // Starting from the left boundary, move out to the left again until
+        // the first vertical scanline with less than percentInliersLow percent
+        // of points in the filtered trunk range. Choose the boundary just to the right.
+        double leftSubpixel = left;
+        for (int j = left - 1; j >= 0; j--) {
+            if (columnCounts[j] > 0 && inlierFraction(j) < low) {
+                left = j + 1;
+                leftSubpixel = left + crossingOffset(j, left);
+                break;
+            }
+        }
+
+        // Same again from the right side.
+        int right = 0;
+        for (int j = WIDTH - 1; j >= 0; j--) {
+            if (columnCounts[j] > 0 && inlierFraction(j) > high) {
+                right = j;
+                break;
+            }
+        }
+        double rightSubpixel = right;
+        for (int j = right; j < WIDTH; j++) {
+            if (columnCounts[j] > 0 && inlierFraction(j) < low) {
+                right = j - 1;
+                rightSubpixel = right - crossingOffset(j, right);
+                break;
+            }
+        }
+
+        result.left = left;
+        result.right = right;
+        result.leftSubpixel = leftSubpixel;
+        result.rightSubpixel = rightSubpixel;
+    }
+
+    /*
+     * Where the inlier fraction crosses percentInliersLow between the column outside the
+     * boundary and the boundary column, linearly interpolated. Returned relative to the boundary
+     * column, so a sharp edge, crossing halfway, gives 0 and the result is within half a column.
+     * Moving into the trunk is positive.
+     */
+    private double crossingOffset(int outside, int boundary) {
+        if (boundary < 0 || boundary >= WIDTH) {
+            return 0.0;
+        }
+        double outer = inlierFraction(outside);
+        double inner = inlierFraction(boundary);
+        if (inner <= outer) {
+            return 0.0;
+        }
+        double t = (params.percentInliersLow - outer) / (inner - outer);
+        return Math.min(Math.max(t, 0.0), 1.0) - 0.5;
+    }
+
+    private double inlierFraction(int column) {
+        return (double) columnCounts[column] / HEIGHT;
+    }
+
+    /*
+     * Rotated column counts of the last call to run, for tests.
+     */
+    int[] getColumnCounts() {
+        return columnCounts;
+    }
+
+    /*
+     * The left and right boundaries of result as two line segments on the unrotated
+     * HEIGHT x WIDTH image, the lines renderDisplay draws. Writes x0, y0, x1, y1 for the left
+     * boundary then the right one into segments, in pixels, which is the layout Canvas.drawLines takes.
+     */
+    public static void getBoundarySegments(Result result, float[] segments) {
+        // The boundaries are vertical after rotating by angle, so rotate them back by -angle
+        double rad = Math.toRadians(result.angle);
+        double cos = Math.cos(rad);
+        double sin = Math.sin(rad);
+        double centerR = HEIGHT / 2.0 - 0.5;
+        double centerC = WIDTH / 2.0 - 0.5;
+        int[] columns = {Math.floorMod(result.left, WIDTH), Math.floorMod(result.right, WIDTH)};
+        int i = 0;
+        for (int column : columns) {
+            double dc = column - centerC;
+            for (int r : new int[] {0, HEIGHT - 1}) {
+                double dr = r - centerR;
+                segments[i++] = (float) (-sin * dr + cos * dc + centerC);
+                segments[i++] = (float) (cos * dr + sin * dc + centerR);
+            }
+        }
+    }
+
+    public static double getEstimatedWidth(double depth, int pixels) {
+        return getEstimatedWidth(depth, (double) pixels);
+    }
+
+    public static double getEstimatedWidth(double depth, double pixels) {
+        return getEstimatedWidth(depth, pixels, CALIB_PIXEL_PER_METER);
+    }
+
+    public static double getEstimatedWidth(double depth, double pixels, double pixelPerMeter) {
+        return Math.abs(depth * pixels) / (CALIB_DEPTH * pixelPerMeter - pixels / 4.0);
+    }
+}
@@ -0,0 +1,24 @@
+package com.trees.common.pyi;
+
+import android.graphics.Bitmap;
+
+/*
+ * Two preallocated display bitmaps, handed out in turn, so the image of one result stays
+ * valid on screen while the next capture is drawn into the other. Not thread safe.
+ */
+class DisplayBitmaps {
+    private final Bitmap[] bitmaps = new Bitmap[2];
+    private int next = 0;
+
+    DisplayBitmaps(int width, int height) {
+        for (int i = 0; i < bitmaps.length; i++) {
+            bitmaps[i] = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+    }
+
+    Bitmap next() {
+        Bitmap bitmap = bitmaps[next];
+        next = (next + 1) % bitmaps.length;
+        return bitmap;
+    }
+}
@@ -1,59 +1,194 @@
 package com.trees.common.pyi;
 
-import android.app.Activity;
-import android.graphics.Bitmap;
-import android.widget.Toast;
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
 
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import com.chaquo.python.PyException;
 import com.chaquo.python.PyObject;
 import com.chaquo.python.Python;
 import com.chaquo.python.android.AndroidPlatform;
-import com.trees.activities.R;
+import com.trees.common.helpers.CaptureTrace;
+import com.trees.common.processing.TrunkProcessor;
 
-import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.util.List;
-import java.util.Objects;
-
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+/*
+ * Runs improc.py on a single long-lived Python worker thread.
+ * The worker starts Python, imports improc and warms it up as soon as the processor is created,
+ * then takes capture jobs in order. getReady() turns true once the warm up is done.
+ *
+ * Python is per process, so there is one instance, see getInstance(). When
+ * TreesApplication.USE_PYTHON_PROCESSOR is set, TreesApplication creates it at app start.
+ */
 public class ImageProcessor implements ImageProcessorInterface {
+    private static final String LOG_TAG = "AMELIA";
+
+    private static ImageProcessor instance;
+
+    public static synchronized ImageProcessor getInstance(Context context) {
+        if (instance == null) {
+            instance = new ImageProcessor(context.getApplicationContext());
+        }
+        return instance;
+    }
 
     int[] SHAPE = new int[]{360, 480}; /* height x width */
 
+    private final ExecutorService pythonWorker = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "PythonWorker");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final MutableLiveData<Boolean> ready = new MutableLiveData<>(false);
+    // Only used on the worker thread
+    private PyObject improcModule;
+    private DisplayBitmaps displayBitmaps;
+    // RGBA display image improc.run writes into, copied into the next display bitmap
+    private byte[] displayPixels;
+    private ByteBuffer displayBuffer;
+    private final Context appContext;
+
+    private ImageProcessor(Context appContext) {
+        this.appContext = appContext;
+        pythonWorker.execute(() -> {
+            long start = SystemClock.elapsedRealtime();
+            try {
+                loadImproc().callAttrThrows("warm_up");
+                Log.i(LOG_TAG, "Python worker ready in " + (SystemClock.elapsedRealtime() - start) + " ms");
+            } catch (Throwable throwable) {
+                // Captures can still be attempted, and will load improc again if needed
+                Log.w(LOG_TAG, "Python warm up failed: ", throwable);
+            }
+            ready.postValue(true);
+        });
+    }
+
+    private PyObject loadImproc() {
+        if (improcModule == null) {
+            if (!Python.isStarted()) {
+                Python.start(new AndroidPlatform(appContext));
+            }
+            improcModule = Python.getInstance().getModule("improc");
+            displayBitmaps = new DisplayBitmaps(SHAPE[1], SHAPE[0]);
+            displayPixels = new byte[SHAPE[0] * SHAPE[1] * 4];
+            displayBuffer = ByteBuffer.wrap(displayPixels);
+        }
+        return improcModule;
+    }
+
     @Override
-    public ImageResult processImage(Activity context, ImageRaw raw) {
+    public LiveData<Boolean> getReady() {
+        return ready;
+    }
 
-        if (!Python.isStarted()) {
-            Python.start(new AndroidPlatform(context));
+    /*
+     * Queues the capture on the Python worker and waits for its result.
+     */
+    @Override
+    public ImageResult processImage(ImageRaw raw) throws TrunkProcessor.ProcessingException {
+        long queued = SystemClock.elapsedRealtimeNanos();
+        Future<ImageResult> job = pythonWorker.submit(() -> {
+            if (raw.trace != null) {
+                // Time waiting behind the warm up or an earlier capture
+                raw.trace.record("pythonQueue", queued,
+                        SystemClock.elapsedRealtimeNanos() - queued, 0, 0);
+            }
+            return runImproc(raw);
+        });
+        try {
+            return job.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TrunkProcessor.ProcessingException) {
+                throw (TrunkProcessor.ProcessingException) e.getCause();
+            }
+            throw new RuntimeException("Python worker failed", e.getCause());
+        } catch (InterruptedException e) {
+            job.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new TrunkProcessor.ProcessingException("Interrupted while waiting for the Python worker", e);
         }
-        Python py = Python.getInstance();
-        PyObject ImProcModule = py.getModule("improc");
+    }
 
+    /*
+     * improc.run reads the Java arrays through numpy views, and writes the RGBA display image into
+     * displayPixels the same way, so no array is converted on either side of the call.
+     */
+    private ImageResult runImproc(ImageRaw raw) throws TrunkProcessor.ProcessingException {
+        PyObject improc = loadImproc();
         PyObject pyDepth = PyObject.fromJava(raw.tofMat.dBuffer);
-        PyObject pyRgb = PyObject.fromJava(raw.rgbMat);
+        PyObject pyRgb = PyObject.fromJava(raw.rgbPixels);
+        PyObject pyDisplay = PyObject.fromJava(displayPixels);
+
+        List<PyObject> obj;
+        long start = SystemClock.elapsedRealtimeNanos();
+        try (CaptureTrace.Section section = CaptureTrace.begin(raw.trace, "improc.run")) {
+            section.buffers(raw.tofMat.dBuffer.length * 4L + raw.rgbPixels.length * 4L + displayPixels.length);
+            obj = improc.callAttrThrows("run", pyDepth, pyRgb, pyDisplay).asList();
+        } catch (Throwable throwable) {
+            throw toProcessingException(throwable);
+        } finally {
+            recordPythonStages(improc, raw.trace, start);
+        }
+        float estDepth = obj.get(0).toJava(float.class);
+        float estDiameter = obj.get(1).toJava(float.class);
 
         ImageResult imageResult = new ImageResult();
-        byte[] displayImage;
-        try {
-            List<PyObject> obj = ImProcModule.callAttrThrows("run", pyDepth, pyRgb).asList();
-            displayImage = obj.get(0).toJava(byte[].class);
-            float estDepth = obj.get(1).toJava(float.class);
-            float estDiameter = obj.get(2).toJava(float.class);
-
-            Buffer display = ByteBuffer.wrap(displayImage);
-            imageResult.DisplayImage = Bitmap.createBitmap(SHAPE[1], SHAPE[0], Bitmap.Config.ARGB_8888);
-            imageResult.DisplayImage.copyPixelsFromBuffer(display);
-            imageResult.RGBImage = raw.rgbMat;
-            imageResult.DepthImage = raw.tofMat;
-            imageResult.Depth = estDepth;
-            imageResult.Diameter = estDiameter;
+        try (CaptureTrace.Section section = CaptureTrace.begin(raw.trace, "displayBitmap")) {
+            // Bitmap pixels are not reachable from Java, so this is the one copy of the display
+            section.buffers(displayPixels.length);
+            displayBuffer.rewind();
+            imageResult.DisplayImage = displayBitmaps.next();
+            imageResult.DisplayImage.copyPixelsFromBuffer(displayBuffer);
+        }
+        imageResult.Raw = raw;
+        imageResult.DepthImage = raw.tofMat;
+        imageResult.Depth = estDepth;
+        imageResult.Diameter = estDiameter;
+        return imageResult;
+    }
 
-        } catch (Throwable throwable) {
-            if (Objects.requireNonNull(throwable.getMessage()).contains("MissingDepthError")) {
-                Toast.makeText(context, R.string.noDepthPoints, Toast.LENGTH_LONG).show();
-            } else {
-                throwable.printStackTrace();
+    /*
+     * The processor.py errors as the exceptions TrunkProcessor throws for them, so callers
+     * handle both processors alike. Anything else improc.run raised is a ProcessingException too.
+     */
+    private static TrunkProcessor.ProcessingException toProcessingException(Throwable throwable) {
+        String message = String.valueOf(throwable.getMessage());
+        if (throwable instanceof PyException && message.contains("MissingDepthError")) {
+            return new TrunkProcessor.MissingDepthException();
+        }
+        if (throwable instanceof PyException && message.contains("NoTrunkFoundError")) {
+            return new TrunkProcessor.NoTrunkFoundException();
+        }
+        return new TrunkProcessor.ProcessingException("improc.run failed: " + message, throwable);
+    }
+
+    /*
+     * Adds the stages improc.run timed itself, as "python.<name>", to the capture's trace.
+     * start is when improc.run was called, in SystemClock.elapsedRealtimeNanos() time.
+     */
+    private void recordPythonStages(PyObject improc, CaptureTrace trace, long start) {
+        if (trace == null) {
+            return;
+        }
+        try {
+            for (PyObject timing : improc.get("last_timings").asList()) {
+                List<PyObject> t = timing.asList();
+                long begin = Math.round(t.get(1).toDouble() * 1e9);
+                long end = Math.round(t.get(2).toDouble() * 1e9);
+                trace.record("python." + t.get(0).toString(), start + begin, end - begin, 0, 0);
             }
+        } catch (RuntimeException e) {
+            // Only the timing is lost
+            Log.w(LOG_TAG, "Unable to read the Python stage timings: ", e);
         }
-        return imageResult;
     }
 }
@@ -1,9 +1,14 @@
 package com.trees.common.pyi;
 
-import android.app.Activity;
 import android.graphics.Bitmap;
 
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import com.trees.common.helpers.CameraPose;
+import com.trees.common.helpers.CaptureTrace;
 import com.trees.common.helpers.TofUtil;
+import com.trees.common.processing.TrunkProcessor;
 
 @FunctionalInterface
 public interface ImageProcessorInterface {
@@ -16,8 +21,8 @@ public interface ImageProcessorInterface {
         Includes artifacts of computation, such as trunk boundary lines. */
         public Bitmap DisplayImage;
 
-        /* Raw RGB image, in a saveable format */
-        public byte[] RGBImage;
+        /* The capture, which holds the camera frame. It is only encoded to JPEG when saved */
+        public ImageRaw Raw;
 
         /* Raw Depth image, in a saveable float array format */
         public TofUtil.TofArrays DepthImage;
@@ -30,9 +35,38 @@ public interface ImageProcessorInterface {
     }
 
     class ImageRaw {
-        public byte[] rgbMat;
+        /* Resolution of rgbPixels, which the processing pipeline works at */
+        public static final int RGB_WIDTH = 480;
+        public static final int RGB_HEIGHT = 360;
+
+        /*
+         * Camera frame in NV21 at full resolution, nv21Width x nv21Height, from Nv21Pool.
+         * Null once the capture is handed to the image store, which releases it.
+         */
+        public byte[] nv21;
+        public int nv21Width;
+        public int nv21Height;
+
+        /* Camera frame as RGB_WIDTH x RGB_HEIGHT ARGB pixels, row-major */
+        public int[] rgbPixels;
+
         public TofUtil.TofArrays tofMat;
+
+        /* Where the camera was for the camera frame, or null if AR Engine was not tracking it */
+        public CameraPose pose;
+
+        /* Timing of the capture, or null if it is not traced */
+        public CaptureTrace trace;
     }
 
-    ImageResult processImage(Activity context, ImageRaw raw);
+    /*
+     * Measures the trunk in raw. Called on a background thread, so it must not touch the UI.
+     * Throws if the trunk could not be measured, so a returned result is always complete.
+     */
+    ImageResult processImage(ImageRaw raw) throws TrunkProcessor.ProcessingException;
+
+    /* False while the processor is still initialising, when processImage() would be slow */
+    default LiveData<Boolean> getReady() {
+        return new MutableLiveData<>(true);
+    }
 }
@@ -0,0 +1,59 @@
+package com.trees.common.pyi;
+
+import android.graphics.Bitmap;
+
+import com.trees.common.helpers.CaptureTrace;
+import com.trees.common.processing.TrunkProcessor;
+
+/*
+ * Runs the trunk measurement pipeline in Java, without starting the Python runtime.
+ * Produces the same depth and diameter estimates as ImageProcessor.
+ */
+public class JavaImageProcessor implements ImageProcessorInterface {
+    private final TrunkProcessor processor;
+    private final int[] displayPixels = new int[TrunkProcessor.HEIGHT * TrunkProcessor.WIDTH];
+    private final DisplayBitmaps displayBitmaps =
+            new DisplayBitmaps(TrunkProcessor.WIDTH, TrunkProcessor.HEIGHT);
+
+    public JavaImageProcessor() {
+        this(null);
+    }
+
+    /*
+     * stages, if not null, computes the stages of the pipeline it can, see TrunkProcessor.DepthStages.
+     */
+    public JavaImageProcessor(TrunkProcessor.DepthStages stages) {
+        processor = new TrunkProcessor(stages);
+    }
+
+    @Override
+    public synchronized ImageResult processImage(ImageRaw raw) throws TrunkProcessor.ProcessingException {
+        TrunkProcessor.Result result;
+        try (CaptureTrace.Section section = CaptureTrace.begin(raw.trace, "trunkProcessor")) {
+            section.buffers(raw.tofMat.dBuffer.length * 4L);
+            result = processor.run(raw.tofMat.dBuffer);
+        }
+
+        ImageResult imageResult = new ImageResult();
+        try (CaptureTrace.Section section = CaptureTrace.begin(raw.trace, "displayImage")) {
+            section.buffers(displayPixels.length * 4L);
+            imageResult.DisplayImage = createDisplayImage(raw.rgbPixels, result);
+        }
+        imageResult.Raw = raw;
+        imageResult.DepthImage = raw.tofMat;
+        imageResult.Depth = (float) result.depth;
+        imageResult.Diameter = (float) result.width;
+        return imageResult;
+    }
+
+    private Bitmap createDisplayImage(int[] rgbPixels, TrunkProcessor.Result result) {
+        // The capture is already at the processing resolution
+        System.arraycopy(rgbPixels, 0, displayPixels, 0, displayPixels.length);
+
+        processor.renderDisplay(displayPixels, result);
+        Bitmap display = displayBitmaps.next();
+        display.setPixels(displayPixels, 0, TrunkProcessor.WIDTH,
+                0, 0, TrunkProcessor.WIDTH, TrunkProcessor.HEIGHT);
+        return display;
+    }
+}
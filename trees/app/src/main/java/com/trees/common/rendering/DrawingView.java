@@ -3,44 +3,175 @@ package com.trees.common.rendering;
 import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.PixelFormat;
 import android.graphics.PorterDuff;
-import android.graphics.Rect;
+import android.graphics.RectF;
 import android.util.AttributeSet;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
+import android.view.View;
 
+import com.trees.common.processing.TrunkProcessor;
 
+
+/*
+ * Transparent overlay on the camera preview: the centre guide lines, and the live trunk
+ * boundaries and diameter. showTrunk() and clearTrunk() draw straight onto the surface,
+ * so they can be called from any thread.
+ *
+ * Processing image coordinates are mapped onto the part of the camera image the preview shows,
+ * see setPreviewView() and setDisplayUvCoords(), and drawing is clipped to the preview.
+ */
 public class DrawingView extends SurfaceView implements SurfaceHolder.Callback {
 
+    // Edges of the centre third of the processing image, which the depth mode is taken from
+    private static final float[] GUIDE_SEGMENTS = {
+            TrunkProcessor.WIDTH / 3f, 0, TrunkProcessor.WIDTH / 3f, TrunkProcessor.HEIGHT,
+            2 * TrunkProcessor.WIDTH / 3f, 0, 2 * TrunkProcessor.WIDTH / 3f, TrunkProcessor.HEIGHT,
+    };
+
+    private final Paint guidePaint = new Paint();
+    private final Paint trunkPaint = new Paint();
+    private final Paint textPaint = new Paint();
+    // Guides and boundaries mapped onto the surface, reused between draws
+    private final float[] scaledGuides = new float[GUIDE_SEGMENTS.length];
+    private final float[] scaledSegments = new float[8];
+    private final RectF clip = new RectF();
+    private boolean surfaceReady;
+
+    // Guarded by imageToSurface, as it is updated from the UI and GL threads
+    private final Matrix imageToSurface = new Matrix();
+    private final RectF previewBounds = new RectF();
+    // Camera texture coordinates of the preview's top left, bottom left, top right and
+    // bottom right corners; until the first frame, the whole image stretched over the preview
+    private final float[] displayUvCoords = {0, 0, 0, 1, 1, 0, 1, 1};
+    private View preview;
+
 
     public DrawingView(Context context, AttributeSet attrs) {
         super(context, attrs);
         SurfaceHolder holder = getHolder();
         holder.addCallback(this);
         holder.setFormat(PixelFormat.TRANSPARENT);
+
+        guidePaint.setColor(Color.RED);
+        guidePaint.setStrokeWidth(2);
+        trunkPaint.setColor(Color.GREEN);
+        trunkPaint.setStrokeWidth(3 * getResources().getDisplayMetrics().density);
+        textPaint.setColor(Color.GREEN);
+        textPaint.setAntiAlias(true);
+        textPaint.setTextSize(16 * getResources().getDisplayMetrics().scaledDensity);
+        textPaint.setShadowLayer(2, 1, 1, Color.BLACK);
     }
 
-    private void drawLines(SurfaceHolder holder, Canvas canvas) {
+    /*
+     * Sets the view the camera preview is drawn in. The overlay follows its bounds, which need not
+     * be this view's.
+     */
+    public void setPreviewView(View preview) {
+        synchronized (imageToSurface) {
+            this.preview = preview;
+        }
+        View.OnLayoutChangeListener listener =
+                (v, left, top, right, bottom, oldLeft, oldTop, oldRight, oldBottom) -> updateImageToSurface();
+        preview.addOnLayoutChangeListener(listener);
+        addOnLayoutChangeListener(listener);
+        updateImageToSurface();
+    }
 
-        Paint paint = new Paint();
-        paint.setColor(Color.RED);
-        Rect frame = holder.getSurfaceFrame();
-        long x1 =  Math.round(frame.width()/3.0);
-        long x2 = Math.round(2 * frame.width()/3.0);
-        canvas.drawLine(x1, 0, x1, frame.height(), paint);
-        canvas.drawLine(x1 - 1, 0, x1 - 1, frame.height(), paint);
-        canvas.drawLine(x2, 0, x2, frame.height(), paint);
-        canvas.drawLine(x2 - 1, 0, x2 - 1, frame.height(), paint);
+    /*
+     * Sets the camera texture coordinates the preview is drawn with, as ARFrame.transformDisplayUvCoords
+     * gives them for the preview's corners, see TextureRenderUtil.getDisplayUvCoords().
+     */
+    public void setDisplayUvCoords(float[] uvCoords) {
+        synchronized (imageToSurface) {
+            System.arraycopy(uvCoords, 0, displayUvCoords, 0, displayUvCoords.length);
+        }
+        updateImageToSurface();
     }
 
-    @Override
-    public void surfaceCreated(SurfaceHolder holder) {
+    private void updateImageToSurface() {
+        synchronized (imageToSurface) {
+            // Both views are children of the same layout
+            if (preview != null) {
+                previewBounds.set(preview.getLeft() - getLeft(), preview.getTop() - getTop(),
+                        preview.getRight() - getLeft(), preview.getBottom() - getTop());
+            } else {
+                previewBounds.set(0, 0, getWidth(), getHeight());
+            }
+            // The processing image spans the camera image, so texture coordinates scale onto it
+            float[] corners = {
+                    displayUvCoords[0] * TrunkProcessor.WIDTH, displayUvCoords[1] * TrunkProcessor.HEIGHT,
+                    displayUvCoords[4] * TrunkProcessor.WIDTH, displayUvCoords[5] * TrunkProcessor.HEIGHT,
+                    displayUvCoords[2] * TrunkProcessor.WIDTH, displayUvCoords[3] * TrunkProcessor.HEIGHT,
+            };
+            float[] bounds = {
+                    previewBounds.left, previewBounds.top,
+                    previewBounds.right, previewBounds.top,
+                    previewBounds.left, previewBounds.bottom,
+            };
+            imageToSurface.setPolyToPoly(corners, 0, bounds, 0, 3);
+        }
+    }
+
+    /*
+     * Draws the guides with the trunk boundaries, as given by TrunkProcessor.getBoundarySegments,
+     * and the text lines between the guides.
+     */
+    public void showTrunk(float[] segments, String... text) {
+        redraw(segments, text);
+    }
+
+    /*
+     * Draws the guides with the text lines, and no boundaries.
+     */
+    public void clearTrunk(String... text) {
+        redraw(null, text);
+    }
+
+    private synchronized void redraw(float[] segments, String[] text) {
+        if (!surfaceReady) {
+            return;
+        }
+        SurfaceHolder holder = getHolder();
         Canvas canvas = holder.lockCanvas();
-        canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
-        drawLines(holder, canvas);
-        holder.unlockCanvasAndPost(canvas);
+        if (canvas == null) {
+            return;
+        }
+        try {
+            canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+
+            synchronized (imageToSurface) {
+                clip.set(previewBounds);
+                imageToSurface.mapPoints(scaledGuides, GUIDE_SEGMENTS);
+                if (segments != null) {
+                    imageToSurface.mapPoints(scaledSegments, segments);
+                }
+            }
+            // The preview crops the camera image, and the overlay may be larger than the preview
+            canvas.clipRect(clip);
+            canvas.drawLines(scaledGuides, guidePaint);
+            if (segments != null) {
+                canvas.drawLines(scaledSegments, trunkPaint);
+            }
+
+            float lineHeight = textPaint.getFontSpacing();
+            float y = clip.centerY();
+            for (String line : text) {
+                canvas.drawText(line, clip.left + clip.width() / 3.0f + lineHeight / 2, y, textPaint);
+                y += lineHeight;
+            }
+        } finally {
+            holder.unlockCanvasAndPost(canvas);
+        }
+    }
+
+    @Override
+    public synchronized void surfaceCreated(SurfaceHolder holder) {
+        surfaceReady = true;
+        redraw(null, new String[0]);
     }
 
     @Override
@@ -49,7 +180,8 @@ public class DrawingView extends SurfaceView implements SurfaceHolder.Callback {
     }
 
     @Override
-    public void surfaceDestroyed(SurfaceHolder holder) {
-
+    public synchronized void surfaceDestroyed(SurfaceHolder holder) {
+        // Waits for a draw in progress, as the surface must not be used after this returns
+        surfaceReady = false;
     }
 }
@@ -0,0 +1,481 @@
+package com.trees.common.rendering;
+
+import android.content.Context;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES31;
+import android.util.Log;
+
+import com.trees.common.processing.FloatDepthStages;
+import com.trees.common.processing.TrunkProcessor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import static com.trees.common.processing.TrunkProcessor.CENTER_LEFT;
+import static com.trees.common.processing.TrunkProcessor.CENTER_RIGHT;
+import static com.trees.common.processing.TrunkProcessor.HEIGHT;
+import static com.trees.common.processing.TrunkProcessor.SCALE_FACTOR;
+import static com.trees.common.processing.TrunkProcessor.TOF_HEIGHT;
+import static com.trees.common.processing.TrunkProcessor.TOF_WIDTH;
+import static com.trees.common.processing.TrunkProcessor.WIDTH;
+
+/*
+ * Computes the depth histogram, the trunk band mask and the rotated column counts of
+ * TrunkProcessor on the GPU, with OpenGL ES 3.1 compute shaders. The ToF frame is uploaded
+ * once as a texture; only the histogram, the band mask at ToF resolution, which denoising
+ * needs on the CPU, and the column counts are read back.
+ *
+ * The shaders follow FloatDepthStages operation for operation. The first frame is also run
+ * through FloatDepthStages: if the histogram or mask differ, or a column count is off by more
+ * than COUNT_TOLERANCE, the GPU is not trusted. If that check or any call fails, the stages
+ * turn themselves off and TrunkProcessor computes everything on the CPU.
+ *
+ * Runs on its own offscreen EGL context, made current only for the duration of each call,
+ * so it can be called from any thread, one call at a time.
+ */
+public class GpuDepthStages implements TrunkProcessor.DepthStages {
+    private static final String TAG = GpuDepthStages.class.getSimpleName();
+
+    private static final String HISTOGRAM_SHADER_NAME = "shaders/depth_histogram.comp";
+    private static final String BAND_SHADER_NAME = "shaders/depth_band.comp";
+    private static final String PREFILTER_SHADER_NAME = "shaders/depth_prefilter.comp";
+    private static final String ROTATE_COUNT_SHADER_NAME = "shaders/depth_rotate_count.comp";
+
+    // Largest difference from FloatDepthStages allowed in any column count of the first frame
+    private static final int COUNT_TOLERANCE = 2;
+
+    // Local sizes of the shaders
+    private static final int TILE = 16;
+    private static final int LINES = 64;
+
+    // Shader storage buffer bindings, as declared in the shaders
+    private static final int EDGES_BINDING = 0;
+    private static final int HISTOGRAM_BINDING = 1;
+    private static final int MASK_BINDING = 2;
+    private static final int COEFFICIENTS_BINDING = 3;
+    private static final int COUNTS_BINDING = 4;
+
+    private static final int TOF_SIZE = TOF_HEIGHT * TOF_WIDTH;
+
+    private final Context context;
+
+    private EGLDisplay eglDisplay = EGL14.EGL_NO_DISPLAY;
+    private EGLContext eglContext = EGL14.EGL_NO_CONTEXT;
+    private EGLSurface eglSurface = EGL14.EGL_NO_SURFACE;
+    private boolean disabled = false;
+
+    private int histogramProgram;
+    private int bandProgram;
+    private int prefilterProgram;
+    private int rotateCountProgram;
+    private int depthTexture;
+    private int edgesBuffer;
+    private int histogramBuffer;
+    private int maskBuffer;
+    private int coefficientsBuffer;
+    private int countsBuffer;
+    // Number of edges edgesBuffer holds, or -1
+    private int edgeCount = -1;
+    // Whether maskBuffer holds the mask made from the last frame uploaded
+    private boolean maskCurrent;
+
+    private final FloatBuffer depthUpload = ByteBuffer.allocateDirect(TOF_SIZE * 4)
+            .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    private final ByteBuffer maskUpload = ByteBuffer.allocateDirect(TOF_SIZE)
+            .order(ByteOrder.nativeOrder());
+    private final float[] rotation = new float[4];
+
+    // Checks the first frame against the CPU, until it has passed
+    private FloatDepthStages reference = new FloatDepthStages();
+
+    public GpuDepthStages(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    @Override
+    public synchronized boolean upload(float[] tofDepth) {
+        if (disabled) {
+            return false;
+        }
+        if (reference != null) {
+            reference.upload(tofDepth);
+        }
+        return call("upload", () -> {
+            depthUpload.clear();
+            depthUpload.put(tofDepth, 0, TOF_SIZE);
+            depthUpload.flip();
+            GLES31.glBindTexture(GLES31.GL_TEXTURE_2D, depthTexture);
+            GLES31.glPixelStorei(GLES31.GL_UNPACK_ALIGNMENT, 4);
+            GLES31.glTexSubImage2D(GLES31.GL_TEXTURE_2D, 0, 0, 0, TOF_WIDTH, TOF_HEIGHT,
+                    GLES31.GL_RED, GLES31.GL_FLOAT, depthUpload);
+            maskCurrent = false;
+            ShaderUtil.checkGLError(TAG, "upload");
+        });
+    }
+
+    @Override
+    public synchronized boolean histogram(float[] binEdges, int[] binCounts) {
+        if (disabled) {
+            return false;
+        }
+        boolean computed = call("histogram", () -> {
+            if (edgeCount != binEdges.length) {
+                createHistogramBuffers(binEdges);
+            }
+            clearBuffer(histogramBuffer, binCounts.length);
+
+            GLES31.glUseProgram(histogramProgram);
+            bindDepthTexture(histogramProgram);
+            GLES31.glUniform1i(uniform(histogramProgram, "u_ScaleFactor"), SCALE_FACTOR);
+            GLES31.glUniform2i(uniform(histogramProgram, "u_Columns"), CENTER_LEFT, CENTER_RIGHT);
+            GLES31.glUniform1i(uniform(histogramProgram, "u_Rows"), HEIGHT);
+            GLES31.glUniform1i(uniform(histogramProgram, "u_EdgeCount"), binEdges.length);
+            GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, EDGES_BINDING, edgesBuffer);
+            GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, HISTOGRAM_BINDING, histogramBuffer);
+            GLES31.glDispatchCompute(groups(CENTER_RIGHT - CENTER_LEFT, TILE), groups(HEIGHT, TILE), 1);
+
+            readInts(histogramBuffer, binCounts);
+            ShaderUtil.checkGLError(TAG, "histogram");
+        });
+        if (computed && reference != null) {
+            int[] expected = new int[binCounts.length];
+            reference.histogram(binEdges, expected);
+            computed = verify("histogram", Arrays.equals(expected, binCounts));
+        }
+        return computed;
+    }
+
+    @Override
+    public synchronized boolean bandMask(float low, float high, byte[] tofMask) {
+        if (disabled) {
+            return false;
+        }
+        boolean computed = call("band mask", () -> {
+            GLES31.glUseProgram(bandProgram);
+            bindDepthTexture(bandProgram);
+            GLES31.glUniform2i(uniform(bandProgram, "u_Size"), TOF_WIDTH, TOF_HEIGHT);
+            GLES31.glUniform1f(uniform(bandProgram, "u_Low"), low);
+            GLES31.glUniform1f(uniform(bandProgram, "u_High"), high);
+            GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, MASK_BINDING, maskBuffer);
+            GLES31.glDispatchCompute(groups(TOF_WIDTH / 4, TILE), groups(TOF_HEIGHT, TILE), 1);
+
+            // The mask is read back here, and by the prefilter shader later
+            GLES31.glMemoryBarrier(GLES31.GL_BUFFER_UPDATE_BARRIER_BIT
+                    | GLES31.GL_SHADER_STORAGE_BARRIER_BIT);
+            GLES31.glBindBuffer(GLES31.GL_SHADER_STORAGE_BUFFER, maskBuffer);
+            ByteBuffer mapped = (ByteBuffer) GLES31.glMapBufferRange(GLES31.GL_SHADER_STORAGE_BUFFER,
+                    0, TOF_SIZE, GLES31.GL_MAP_READ_BIT);
+            if (mapped == null) {
+                throw new RuntimeException("glMapBufferRange: glError " + GLES31.glGetError());
+            }
+            mapped.get(tofMask, 0, TOF_SIZE);
+            GLES31.glUnmapBuffer(GLES31.GL_SHADER_STORAGE_BUFFER);
+            maskCurrent = true;
+            ShaderUtil.checkGLError(TAG, "band mask");
+        });
+        if (computed && reference != null) {
+            byte[] expected = new byte[TOF_SIZE];
+            reference.bandMask(low, high, expected);
+            computed = verify("band mask", Arrays.equals(expected, tofMask));
+        }
+        return computed;
+    }
+
+    @Override
+    public synchronized boolean countRotatedColumns(byte[] tofMask, double angle, double threshold,
+            int[] columnCounts) {
+        if (disabled) {
+            return false;
+        }
+        boolean computed = call("column counts", () -> {
+            // The band mask is still on the GPU, unless it was made on the CPU
+            if (!maskCurrent) {
+                maskUpload.clear();
+                maskUpload.put(tofMask, 0, TOF_SIZE);
+                maskUpload.flip();
+                GLES31.glBindBuffer(GLES31.GL_SHADER_STORAGE_BUFFER, maskBuffer);
+                GLES31.glBufferSubData(GLES31.GL_SHADER_STORAGE_BUFFER, 0, TOF_SIZE, maskUpload);
+                maskCurrent = true;
+            }
+
+            GLES31.glUseProgram(prefilterProgram);
+            GLES31.glUniform1i(uniform(prefilterProgram, "u_ScaleFactor"), SCALE_FACTOR);
+            GLES31.glUniform1i(uniform(prefilterProgram, "u_Width"), WIDTH);
+            GLES31.glUniform1i(uniform(prefilterProgram, "u_MaskWidth"), TOF_WIDTH);
+            GLES31.glUniform1f(uniform(prefilterProgram, "u_Pole"), FloatDepthStages.POLE);
+            GLES31.glUniform1f(uniform(prefilterProgram, "u_Gain"), FloatDepthStages.GAIN);
+            GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, MASK_BINDING, maskBuffer);
+            GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, COEFFICIENTS_BINDING, coefficientsBuffer);
+            // Columns, filled from the mask, then rows
+            prefilter(WIDTH, HEIGHT, WIDTH, 1, true);
+            GLES31.glMemoryBarrier(GLES31.GL_SHADER_STORAGE_BARRIER_BIT);
+            prefilter(HEIGHT, WIDTH, 1, WIDTH, false);
+            GLES31.glMemoryBarrier(GLES31.GL_SHADER_STORAGE_BARRIER_BIT);
+
+            clearBuffer(countsBuffer, WIDTH);
+            FloatDepthStages.getRotation(angle, rotation);
+            GLES31.glUseProgram(rotateCountProgram);
+            GLES31.glUniform2i(uniform(rotateCountProgram, "u_Size"), WIDTH, HEIGHT);
+            GLES31.glUniform2f(uniform(rotateCountProgram, "u_CosSin"), rotation[0], rotation[1]);
+            GLES31.glUniform2f(uniform(rotateCountProgram, "u_Offset"), rotation[2], rotation[3]);
+            GLES31.glUniform1f(uniform(rotateCountProgram, "u_Threshold"), (float) threshold);
+            GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, COEFFICIENTS_BINDING, coefficientsBuffer);
+            GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, COUNTS_BINDING, countsBuffer);
+            GLES31.glDispatchCompute(groups(WIDTH, TILE), groups(HEIGHT, TILE), 1);
+
+            readInts(countsBuffer, columnCounts);
+            ShaderUtil.checkGLError(TAG, "column counts");
+        });
+        if (computed && reference != null) {
+            int[] expected = new int[WIDTH];
+            reference.countRotatedColumns(tofMask, angle, threshold, expected);
+            int difference = 0;
+            for (int c = 0; c < WIDTH; c++) {
+                difference = Math.max(difference, Math.abs(expected[c] - columnCounts[c]));
+            }
+            computed = verify("column counts", difference <= COUNT_TOLERANCE);
+            if (computed) {
+                Log.i(TAG, "GPU matches the CPU to " + difference + " per column count");
+                // Checked once; from now on the GPU runs alone
+                reference = null;
+            }
+        }
+        return computed;
+    }
+
+    /*
+     * Frees the EGL context and everything created on it.
+     */
+    public synchronized void release() {
+        if (eglDisplay != EGL14.EGL_NO_DISPLAY) {
+            // Destroying the context frees its GL objects
+            EGL14.eglMakeCurrent(eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
+                    EGL14.EGL_NO_CONTEXT);
+            if (eglSurface != EGL14.EGL_NO_SURFACE) {
+                EGL14.eglDestroySurface(eglDisplay, eglSurface);
+            }
+            if (eglContext != EGL14.EGL_NO_CONTEXT) {
+                EGL14.eglDestroyContext(eglDisplay, eglContext);
+            }
+            // The display is shared with the preview's context, so it is not terminated
+        }
+        eglDisplay = EGL14.EGL_NO_DISPLAY;
+        eglContext = EGL14.EGL_NO_CONTEXT;
+        eglSurface = EGL14.EGL_NO_SURFACE;
+        histogramProgram = 0;
+        edgeCount = -1;
+        maskCurrent = false;
+    }
+
+    /*
+     * Runs a stage with the context current, creating it first if need be.
+     * Returns whether the stage ran; if it failed, the stages are turned off.
+     */
+    private boolean call(String stage, Runnable body) {
+        try {
+            if (eglContext == EGL14.EGL_NO_CONTEXT) {
+                createContext();
+            }
+            if (!EGL14.eglMakeCurrent(eglDisplay, eglSurface, eglSurface, eglContext)) {
+                throw new RuntimeException("eglMakeCurrent: EGL error " + EGL14.eglGetError());
+            }
+            try {
+                if (histogramProgram == 0) {
+                    createPrograms();
+                }
+                body.run();
+            } finally {
+                EGL14.eglMakeCurrent(eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
+                        EGL14.EGL_NO_CONTEXT);
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "GPU " + stage + " failed, processing on the CPU from now on: ", e);
+            disable();
+            return false;
+        }
+    }
+
+    /*
+     * Turns the stages off if the GPU did not reproduce the CPU reference.
+     */
+    private boolean verify(String stage, boolean matches) {
+        if (!matches) {
+            Log.w(TAG, "GPU " + stage + " differ from the CPU, processing on the CPU from now on");
+            disable();
+        }
+        return matches;
+    }
+
+    private void disable() {
+        disabled = true;
+        reference = null;
+        release();
+    }
+
+    private void createContext() {
+        eglDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        int[] version = new int[2];
+        if (eglDisplay == EGL14.EGL_NO_DISPLAY || !EGL14.eglInitialize(eglDisplay, version, 0, version, 1)) {
+            throw new RuntimeException("eglInitialize: EGL error " + EGL14.eglGetError());
+        }
+
+        int[] configAttributes = {
+                EGL14.EGL_RENDERABLE_TYPE, EGLExt.EGL_OPENGL_ES3_BIT_KHR,
+                EGL14.EGL_SURFACE_TYPE, EGL14.EGL_PBUFFER_BIT,
+                EGL14.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] configCount = new int[1];
+        if (!EGL14.eglChooseConfig(eglDisplay, configAttributes, 0, configs, 0, 1, configCount, 0)
+                || configCount[0] == 0) {
+            throw new RuntimeException("eglChooseConfig: no OpenGL ES 3 pbuffer config");
+        }
+
+        int[] contextAttributes = {EGL14.EGL_CONTEXT_CLIENT_VERSION, 3, EGL14.EGL_NONE};
+        eglContext = EGL14.eglCreateContext(eglDisplay, configs[0], EGL14.EGL_NO_CONTEXT, contextAttributes, 0);
+        if (eglContext == EGL14.EGL_NO_CONTEXT) {
+            throw new RuntimeException("eglCreateContext: EGL error " + EGL14.eglGetError());
+        }
+        // Nothing is drawn, so the surface is only needed to make the context current
+        int[] surfaceAttributes = {EGL14.EGL_WIDTH, 1, EGL14.EGL_HEIGHT, 1, EGL14.EGL_NONE};
+        eglSurface = EGL14.eglCreatePbufferSurface(eglDisplay, configs[0], surfaceAttributes, 0);
+        if (eglSurface == EGL14.EGL_NO_SURFACE) {
+            throw new RuntimeException("eglCreatePbufferSurface: EGL error " + EGL14.eglGetError());
+        }
+    }
+
+    private void createPrograms() throws IOException {
+        // Compute shaders need OpenGL ES 3.1, which an ES 3 context may not provide
+        int[] version = new int[2];
+        GLES31.glGetIntegerv(GLES31.GL_MAJOR_VERSION, version, 0);
+        GLES31.glGetIntegerv(GLES31.GL_MINOR_VERSION, version, 1);
+        if (version[0] < 3 || (version[0] == 3 && version[1] < 1)) {
+            throw new RuntimeException("OpenGL ES " + version[0] + "." + version[1]
+                    + " has no compute shaders");
+        }
+
+        int[] textures = new int[1];
+        GLES31.glGenTextures(1, textures, 0);
+        depthTexture = textures[0];
+        GLES31.glBindTexture(GLES31.GL_TEXTURE_2D, depthTexture);
+        // Float textures cannot be filtered, and the shaders only use texelFetch
+        GLES31.glTexParameteri(GLES31.GL_TEXTURE_2D, GLES31.GL_TEXTURE_MIN_FILTER, GLES31.GL_NEAREST);
+        GLES31.glTexParameteri(GLES31.GL_TEXTURE_2D, GLES31.GL_TEXTURE_MAG_FILTER, GLES31.GL_NEAREST);
+        GLES31.glTexStorage2D(GLES31.GL_TEXTURE_2D, 1, GLES31.GL_R32F, TOF_WIDTH, TOF_HEIGHT);
+
+        int[] buffers = new int[3];
+        GLES31.glGenBuffers(3, buffers, 0);
+        maskBuffer = buffers[0];
+        coefficientsBuffer = buffers[1];
+        countsBuffer = buffers[2];
+        allocateBuffer(maskBuffer, TOF_SIZE, GLES31.GL_DYNAMIC_READ);
+        allocateBuffer(coefficientsBuffer, HEIGHT * WIDTH * 4, GLES31.GL_DYNAMIC_COPY);
+        allocateBuffer(countsBuffer, WIDTH * 4, GLES31.GL_DYNAMIC_READ);
+
+        bandProgram = createProgram(BAND_SHADER_NAME);
+        prefilterProgram = createProgram(PREFILTER_SHADER_NAME);
+        rotateCountProgram = createProgram(ROTATE_COUNT_SHADER_NAME);
+        // Created last, as createPrograms runs again until it is set
+        histogramProgram = createProgram(HISTOGRAM_SHADER_NAME);
+        ShaderUtil.checkGLError(TAG, "programs");
+    }
+
+    private int createProgram(String shaderName) throws IOException {
+        int shader = ShaderUtil.loadGLShader(TAG, context, GLES31.GL_COMPUTE_SHADER, shaderName);
+        int program = GLES31.glCreateProgram();
+        GLES31.glAttachShader(program, shader);
+        GLES31.glLinkProgram(program);
+        int[] linkStatus = new int[1];
+        GLES31.glGetProgramiv(program, GLES31.GL_LINK_STATUS, linkStatus, 0);
+        if (linkStatus[0] == 0) {
+            throw new RuntimeException("Error linking " + shaderName + ": "
+                    + GLES31.glGetProgramInfoLog(program));
+        }
+        return program;
+    }
+
+    private void createHistogramBuffers(float[] binEdges) {
+        if (edgeCount != -1) {
+            GLES31.glDeleteBuffers(2, new int[] {edgesBuffer, histogramBuffer}, 0);
+        }
+        int[] buffers = new int[2];
+        GLES31.glGenBuffers(2, buffers, 0);
+        edgesBuffer = buffers[0];
+        histogramBuffer = buffers[1];
+
+        FloatBuffer edges = ByteBuffer.allocateDirect(binEdges.length * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        edges.put(binEdges);
+        edges.flip();
+        GLES31.glBindBuffer(GLES31.GL_SHADER_STORAGE_BUFFER, edgesBuffer);
+        GLES31.glBufferData(GLES31.GL_SHADER_STORAGE_BUFFER, binEdges.length * 4, edges,
+                GLES31.GL_STATIC_DRAW);
+        allocateBuffer(histogramBuffer, (binEdges.length + 1) * 4, GLES31.GL_DYNAMIC_READ);
+        edgeCount = binEdges.length;
+    }
+
+    private static void allocateBuffer(int buffer, int bytes, int usage) {
+        GLES31.glBindBuffer(GLES31.GL_SHADER_STORAGE_BUFFER, buffer);
+        GLES31.glBufferData(GLES31.GL_SHADER_STORAGE_BUFFER, bytes, null, usage);
+    }
+
+    /*
+     * Zeroes the first count ints of buffer, which the shaders then add to.
+     */
+    private static void clearBuffer(int buffer, int count) {
+        ByteBuffer zeros = ByteBuffer.allocateDirect(count * 4).order(ByteOrder.nativeOrder());
+        GLES31.glBindBuffer(GLES31.GL_SHADER_STORAGE_BUFFER, buffer);
+        GLES31.glBufferSubData(GLES31.GL_SHADER_STORAGE_BUFFER, 0, count * 4, zeros);
+    }
+
+    /*
+     * Reads the first values.length ints of buffer, once the shaders writing it have finished.
+     */
+    private static void readInts(int buffer, int[] values) {
+        GLES31.glMemoryBarrier(GLES31.GL_BUFFER_UPDATE_BARRIER_BIT);
+        GLES31.glBindBuffer(GLES31.GL_SHADER_STORAGE_BUFFER, buffer);
+        ByteBuffer mapped = (ByteBuffer) GLES31.glMapBufferRange(GLES31.GL_SHADER_STORAGE_BUFFER,
+                0, values.length * 4, GLES31.GL_MAP_READ_BIT);
+        if (mapped == null) {
+            throw new RuntimeException("glMapBufferRange: glError " + GLES31.glGetError());
+        }
+        mapped.order(ByteOrder.nativeOrder()).asIntBuffer().get(values);
+        GLES31.glUnmapBuffer(GLES31.GL_SHADER_STORAGE_BUFFER);
+    }
+
+    private void bindDepthTexture(int program) {
+        GLES31.glActiveTexture(GLES31.GL_TEXTURE0);
+        GLES31.glBindTexture(GLES31.GL_TEXTURE_2D, depthTexture);
+        GLES31.glUniform1i(uniform(program, "u_Depth"), 0);
+    }
+
+    /*
+     * Filters lines of length samples, step apart, whose first samples are lineStep apart.
+     */
+    private void prefilter(int lines, int length, int step, int lineStep, boolean fromMask) {
+        GLES31.glUniform1i(uniform(prefilterProgram, "u_Lines"), lines);
+        GLES31.glUniform1i(uniform(prefilterProgram, "u_Length"), length);
+        GLES31.glUniform1i(uniform(prefilterProgram, "u_Step"), step);
+        GLES31.glUniform1i(uniform(prefilterProgram, "u_LineStep"), lineStep);
+        GLES31.glUniform1i(uniform(prefilterProgram, "u_FromMask"), fromMask ? 1 : 0);
+        GLES31.glUniform1f(uniform(prefilterProgram, "u_PoleN1"), FloatDepthStages.getPoleN1(length));
+        GLES31.glDispatchCompute(groups(lines, LINES), 1, 1);
+    }
+
+    private static int uniform(int program, String name) {
+        return GLES31.glGetUniformLocation(program, name);
+    }
+
+    private static int groups(int size, int localSize) {
+        return (size + localSize - 1) / localSize;
+    }
+}
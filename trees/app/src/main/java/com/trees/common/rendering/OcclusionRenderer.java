@@ -38,6 +38,7 @@ public class OcclusionRenderer {
     // Shader names.
     private static final String VERTEX_SHADER_NAME = "shaders/occlusion.vert";
     private static final String FRAGMENT_SHADER_NAME = "shaders/occlusion.frag";
+    private static final String DEPTH_FRAGMENT_SHADER_NAME = "shaders/occlusion_depth.frag";
 
     private static final int BYTES_PER_FLOAT = Float.SIZE / 8;
     private static final int FLOATS_PER_POINT = 3; // X,Y,Z.
@@ -48,10 +49,20 @@ public class OcclusionRenderer {
     private int programName;
     private int positionAttribute;
     private int pointSizeUniform;
+    // Same vertex shader, with a fragment shader that writes no colour
+    private int depthProgramName;
+    private int depthPositionAttribute;
+    private int depthPointSizeUniform;
 
     private int numPoints = 0;
 
+    // Points of the last update, reused between updates and uploaded by draw
     private FloatBuffer verticesBuffer = null;
+    private boolean verticesChanged = false;
+
+    // Vertex buffer object holding the points, sized for the depth resolution
+    private int vbo = 0;
+    private int vboCapacityPoints = 0;
 
     public OcclusionRenderer() {
     }
@@ -68,6 +79,8 @@ public class OcclusionRenderer {
                 ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
         int passthroughShader =
                 ShaderUtil.loadGLShader(TAG, context, GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_NAME);
+        int depthOnlyShader =
+                ShaderUtil.loadGLShader(TAG, context, GLES20.GL_FRAGMENT_SHADER, DEPTH_FRAGMENT_SHADER_NAME);
 
         programName = GLES20.glCreateProgram();
         GLES20.glAttachShader(programName, vertexShader);
@@ -81,6 +94,20 @@ public class OcclusionRenderer {
         pointSizeUniform = GLES20.glGetUniformLocation(programName, "u_PointSize");
 
         ShaderUtil.checkGLError(TAG, "program  params");
+
+        depthProgramName = GLES20.glCreateProgram();
+        GLES20.glAttachShader(depthProgramName, vertexShader);
+        GLES20.glAttachShader(depthProgramName, depthOnlyShader);
+        GLES20.glLinkProgram(depthProgramName);
+
+        depthPositionAttribute = GLES20.glGetAttribLocation(depthProgramName, "a_Position");
+        depthPointSizeUniform = GLES20.glGetUniformLocation(depthProgramName, "u_PointSize");
+
+        int[] buffers = new int[1];
+        GLES20.glGenBuffers(1, buffers, 0);
+        vbo = buffers[0];
+
+        ShaderUtil.checkGLError(TAG, "depth program params");
     }
 
     public ArrayList<String> getResolutions(Context context, String cameraId) {
@@ -129,31 +156,37 @@ public class OcclusionRenderer {
 //    Log.i("Connor height", Integer.toString(depthHeight));
 //
 //  }
+    /**
+     * Updates the points from a depthWidth x depthHeight depth image; points with no depth are skipped.
+     * The points are written into a buffer kept between updates, and uploaded by the next draw.
+     */
     public synchronized void update(float[] data) {
+        int capacity = depthWidth * depthHeight * FLOATS_PER_POINT;
+        if (verticesBuffer == null || verticesBuffer.capacity() < capacity) {
+            verticesBuffer = ByteBuffer.allocateDirect(capacity * BYTES_PER_FLOAT)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+        verticesBuffer.clear();
         numPoints = 0;
-        int index = 0;
         int input = 0;
-        float[] array = new float[data.length * FLOATS_PER_POINT];
         for (int y = 0; y < depthHeight; y++) {
             for (int x = 0; x < depthWidth; x++) {
                 if (data[input] > 0) {
-                    array[index++] = 2.0f * (x + 0.5f) / (float) depthWidth - 1.0f;
-                    array[index++] = -2.0f * (y + 0.5f) / (float) depthHeight + 1.0f;
-                    array[index++] = data[input];
+                    verticesBuffer.put(2.0f * (x + 0.5f) / (float) depthWidth - 1.0f);
+                    verticesBuffer.put(-2.0f * (y + 0.5f) / (float) depthHeight + 1.0f);
+                    verticesBuffer.put(data[input]);
                     numPoints++;
                 }
                 input++;
             }
         }
-        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length * BYTES_PER_POINT);
-        buffer.order(ByteOrder.nativeOrder());
-        verticesBuffer = buffer.asFloatBuffer();
-        verticesBuffer.put(array);
-        verticesBuffer.position(0);
+        verticesBuffer.flip();
+        verticesChanged = true;
     }
 
     /**
      * Renders the point cloud. ARCore point cloud is given in world space.
+     * Without render, only depth is written, for occluding what is drawn next.
      */
     public synchronized void draw(boolean render) {
 
@@ -162,15 +195,32 @@ public class OcclusionRenderer {
 
         ShaderUtil.checkGLError(TAG, "Before draw");
 
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbo);
+        if (verticesChanged) {
+            // Allocate storage once for the whole depth image, then upload only the valid points
+            int capacityPoints = verticesBuffer.capacity() / FLOATS_PER_POINT;
+            if (vboCapacityPoints < capacityPoints) {
+                GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, capacityPoints * BYTES_PER_POINT,
+                        null, GLES20.GL_DYNAMIC_DRAW);
+                vboCapacityPoints = capacityPoints;
+            }
+            GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, numPoints * BYTES_PER_POINT, verticesBuffer);
+            verticesChanged = false;
+        }
+
+        int program = render ? programName : depthProgramName;
+        int position = render ? positionAttribute : depthPositionAttribute;
+        int pointSize = render ? pointSizeUniform : depthPointSizeUniform;
         if (!render)
             GLES20.glColorMask(false, false, false, false);
-        GLES20.glUseProgram(programName);
-        GLES20.glEnableVertexAttribArray(positionAttribute);
-        GLES20.glVertexAttribPointer(positionAttribute, FLOATS_PER_POINT, GLES20.GL_FLOAT, false, BYTES_PER_POINT, verticesBuffer);
-        GLES20.glUniform1f(pointSizeUniform, 125.0f);
+        GLES20.glUseProgram(program);
+        GLES20.glEnableVertexAttribArray(position);
+        GLES20.glVertexAttribPointer(position, FLOATS_PER_POINT, GLES20.GL_FLOAT, false, BYTES_PER_POINT, 0);
+        GLES20.glUniform1f(pointSize, 125.0f);
 
         GLES20.glDrawArrays(GLES20.GL_POINTS, 0, numPoints);
-        GLES20.glDisableVertexAttribArray(positionAttribute);
+        GLES20.glDisableVertexAttribArray(position);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
         GLES20.glColorMask(true, true, true, true);
 
         ShaderUtil.checkGLError(TAG, "Draw");
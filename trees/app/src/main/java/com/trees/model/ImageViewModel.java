@@ -1,6 +1,7 @@
 package com.trees.model;
 
-import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Parcelable;
 import android.util.Log;
 
@@ -9,21 +10,77 @@ import androidx.lifecycle.MutableLiveData;
 import androidx.lifecycle.SavedStateHandle;
 import androidx.lifecycle.ViewModel;
 
+import com.trees.common.helpers.CaptureBundle;
+import com.trees.common.helpers.CaptureTrace;
 import com.trees.common.helpers.ImageStoreInterface;
+import com.trees.common.helpers.TofUtil;
+import com.trees.common.processing.MultiViewTrunkEstimator;
+import com.trees.common.processing.TrunkProcessor;
 import com.trees.common.pyi.ImageProcessorInterface;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class ImageViewModel extends ViewModel {
     private static final String LOG_TAG = "AMELIA";
+    // Views a multi-view measurement takes before it finishes
+    public static final int MULTI_VIEW_FRAMES = 4;
+
+    public enum CaptureState {
+        IDLE,        // No capture in flight
+        CAPTURING,   // Waiting for the next camera frame
+        PROCESSING,  // Measuring the trunk in the captured frame
+        READY,       // getCurrentCapture() holds the new result
+        VIEW_ADDED,  // A multi-view capture was saved and added to getMultiViewEstimate()
+        FAILED,      // The capture or its processing threw, see getCaptureFailure()
+    }
+
+    /*
+     * A view processed for the multi-view estimate, waiting to be saved on the main thread.
+     */
+    private static class MultiViewResult {
+        final ImageProcessorInterface.ImageRaw raw;
+        final TrunkProcessor.Result view;
+        final int views;
+        final MultiViewTrunkEstimator.Estimate estimate;
+
+        MultiViewResult(ImageProcessorInterface.ImageRaw raw, TrunkProcessor.Result view,
+                int views, MultiViewTrunkEstimator.Estimate estimate) {
+            this.raw = raw;
+            this.view = view;
+            this.views = views;
+            this.estimate = estimate;
+        }
+    }
 
     private final ImageProcessorInterface imageProcessor;
     private final ImageStoreInterface imageStore;
     private final SavedStateHandle state;
 
+    // Null, as is getSampleNumber(), until the numbers in use are loaded from the image store
     private Integer nextCapture;
     private final MutableLiveData<Integer> sampleNumber;
     private final MutableLiveData<ImageProcessorInterface.ImageResult> currentCapture;
+    private final MutableLiveData<CaptureState> captureState;
+    private final MutableLiveData<Throwable> captureFailure;
+    private final MutableLiveData<Boolean> multiViewActive;
+    private final MutableLiveData<Integer> multiViewCount;
+    private final MutableLiveData<MultiViewTrunkEstimator.Estimate> multiViewEstimate;
+    private final MutableLiveData<Boolean> burstCapture;
+
+    // Captures are processed off the main thread, one at a time
+    private final ExecutorService processingExecutor = Executors.newSingleThreadExecutor();
+    // Only used on the processing executor
+    private final MultiViewTrunkEstimator multiViewEstimator = new MultiViewTrunkEstimator();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // The capture in flight, if any. Only accessed on the main thread.
+    private CompletableFuture<ImageProcessorInterface.ImageRaw> pendingRaw;
+    private CompletableFuture<?> pendingResult;
 
     public ImageViewModel(SavedStateHandle savedStateHandle,
             ImageProcessorInterface imageProcessor, ImageStoreInterface imageStore) {
@@ -32,22 +89,32 @@ public class ImageViewModel extends ViewModel {
         this.imageStore = imageStore;
         this.sampleNumber = new MutableLiveData<>();
         this.currentCapture = new MutableLiveData<>();
+        this.captureState = new MutableLiveData<>(CaptureState.IDLE);
+        this.captureFailure = new MutableLiveData<>();
+        this.multiViewActive = new MutableLiveData<>(false);
+        this.multiViewCount = new MutableLiveData<>(0);
+        this.multiViewEstimate = new MutableLiveData<>();
+        // Single frame captures unless the user chose bursts
+        this.burstCapture = new MutableLiveData<>(Boolean.TRUE.equals(state.get("burstCapture")));
 
-        Integer s;
-        Integer c;
         if (state.contains("nextCapture") && state.contains("sampleNumber")) {
             // Get sample and capture number from saved state
-            c = state.get("nextCapture");
-            s = state.get("sampleNumber");
+            setNumbers(state.get("sampleNumber"), state.get("nextCapture"));
         } else {
             // If there is no saved state, get the maximum sample and capture numbers currently saved
-            // in the file system. Defaults to s = 1, c = 0 if the target directory is empty
-            Integer[] sc = imageStore.getMaxSampleCaptureNums();
-            s = sc[0];
-            c = sc[1];
+            // in the file system. Defaults to s = 1, c = 0 if the target directory is empty.
+            // The store may have to reconcile its catalog with the directory first, so this is
+            // done on the processing executor, ahead of any capture.
+            processingExecutor.execute(() -> {
+                Integer[] sc = imageStore.getMaxSampleCaptureNums();
+                mainHandler.post(() -> setNumbers(sc[0], sc[1]));
+            });
         }
+    }
+
+    private void setNumbers(Integer s, Integer c) {
         sampleNumber.setValue(s);
-        state.set("sampleNumber", sampleNumber.getValue());
+        state.set("sampleNumber", s);
         nextCapture = c;
         state.set("nextCapture", c);
     }
@@ -57,12 +124,19 @@ public class ImageViewModel extends ViewModel {
         return sampleNumber;
     }
 
+    // Both do nothing until the sample number is loaded
     public void incrementSampleNumber() {
+        if (sampleNumber.getValue() == null) {
+            return;
+        }
         sampleNumber.setValue(sampleNumber.getValue() + 1);
         state.set("sampleNumber", sampleNumber.getValue());
     }
 
     public void decrementSampleNumber() {
+        if (sampleNumber.getValue() == null) {
+            return;
+        }
         sampleNumber.setValue(Math.max(0, sampleNumber.getValue() - 1));
         state.set("sampleNumber", sampleNumber.getValue());
     }
@@ -71,22 +145,260 @@ public class ImageViewModel extends ViewModel {
         return currentCapture;
     }
 
-    public void captureImage(Activity context, ImageProcessorInterface.ImageRaw raw) {
-        ImageProcessorInterface.ImageResult imageResult = imageProcessor.processImage(context, raw);
-        currentCapture.setValue(imageResult);
+    public LiveData<CaptureState> getCaptureState() {
+        return captureState;
+    }
+
+    /*
+     * Why the last capture FAILED: the exception the capture or its processing threw, such as
+     * TrunkProcessor.MissingDepthException. Set before the state changes to FAILED.
+     */
+    public LiveData<Throwable> getCaptureFailure() {
+        return captureFailure;
+    }
+
+    /*
+     * Processes the frame from rawFuture in the background, then publishes it through
+     * getCurrentCapture(). Progress is reported through getCaptureState().
+     * Any capture still in flight is cancelled. Must be called on the main thread.
+     */
+    public void captureImageAsync(CompletableFuture<ImageProcessorInterface.ImageRaw> rawFuture) {
+        cancelCapture();
+        captureState.setValue(CaptureState.CAPTURING);
+
+        CompletableFuture<ImageProcessorInterface.ImageResult> result = rawFuture.thenApplyAsync(raw -> {
+            mainHandler.post(() -> {
+                if (pendingRaw == rawFuture) {
+                    captureState.setValue(CaptureState.PROCESSING);
+                }
+            });
+            try (CaptureTrace.Section section = CaptureTrace.begin(raw.trace, "processImage")) {
+                return imageProcessor.processImage(raw);
+            } catch (TrunkProcessor.ProcessingException e) {
+                throw new CompletionException(e);
+            }
+        }, processingExecutor);
+        pendingRaw = rawFuture;
+        pendingResult = result;
+
+        result.whenComplete((imageResult, throwable) -> mainHandler.post(() -> {
+            // Ignore captures that were cancelled or replaced in the meantime
+            if (pendingResult != result) {
+                return;
+            }
+            pendingRaw = null;
+            pendingResult = null;
+            if (throwable != null) {
+                Log.e(LOG_TAG, "Unable to capture the image: ", throwable);
+                logRecentStages();
+                fail(throwable);
+            } else {
+                currentCapture.setValue(imageResult);
+                captureState.setValue(CaptureState.READY);
+            }
+        }));
+    }
+
+    // Whether captures fuse a burst of depth frames rather than taking a single one
+    public LiveData<Boolean> getBurstCapture() {
+        return burstCapture;
+    }
+
+    public void setBurstCapture(boolean burst) {
+        burstCapture.setValue(burst);
+        state.set("burstCapture", burst);
+    }
+
+    public LiveData<Boolean> getMultiViewActive() {
+        return multiViewActive;
+    }
+
+    // Views added to the current or last multi-view measurement
+    public LiveData<Integer> getMultiViewCount() {
+        return multiViewCount;
+    }
+
+    // Estimate of the current or last multi-view measurement, null until its views fit a circle
+    public LiveData<MultiViewTrunkEstimator.Estimate> getMultiViewEstimate() {
+        return multiViewEstimate;
+    }
+
+    /*
+     * Starts measuring a new trunk from several views, see captureViewAsync().
+     * Must be called on the main thread.
+     */
+    public void startMultiView() {
+        cancelCapture();
+        processingExecutor.execute(multiViewEstimator::reset);
+        multiViewCount.setValue(0);
+        multiViewEstimate.setValue(null);
+        multiViewActive.setValue(true);
+    }
+
+    /*
+     * Ends the multi-view measurement, keeping its estimate. Must be called on the main thread.
+     */
+    public void stopMultiView() {
+        cancelCapture();
+        multiViewActive.setValue(false);
+    }
+
+    /*
+     * Adds the frame from rawFuture as a view of the trunk being measured from several sides,
+     * and saves it with its camera pose straight away. The estimate over all views so far is
+     * published through getMultiViewEstimate(), and the measurement ends after
+     * MULTI_VIEW_FRAMES views. Frames taken while AR Engine is not tracking, or without enough
+     * trunk at the measuring height, fail and are not saved. Must be called on the main thread.
+     */
+    public void captureViewAsync(CompletableFuture<ImageProcessorInterface.ImageRaw> rawFuture) {
+        cancelCapture();
+        captureState.setValue(CaptureState.CAPTURING);
+
+        CompletableFuture<MultiViewResult> result = rawFuture.thenApplyAsync(raw -> {
+            mainHandler.post(() -> {
+                if (pendingRaw == rawFuture) {
+                    captureState.setValue(CaptureState.PROCESSING);
+                }
+            });
+            if (raw.pose == null) {
+                throw new IllegalStateException("The camera was not being tracked");
+            }
+            try (CaptureTrace.Section section = CaptureTrace.begin(raw.trace, "multiView")) {
+                section.buffers(raw.tofMat.dBuffer.length * 4L);
+                TrunkProcessor.Result view = multiViewEstimator.addView(raw.tofMat.dBuffer, raw.pose.cameraToWorld);
+                return new MultiViewResult(raw, view,
+                        multiViewEstimator.getViewCount(), multiViewEstimator.getEstimate());
+            } catch (TrunkProcessor.ProcessingException e) {
+                throw new CompletionException(e);
+            }
+        }, processingExecutor);
+        pendingRaw = rawFuture;
+        pendingResult = result;
+
+        result.whenComplete((viewResult, throwable) -> mainHandler.post(() -> {
+            if (pendingResult != result) {
+                return;
+            }
+            pendingRaw = null;
+            pendingResult = null;
+            if (throwable != null) {
+                Log.e(LOG_TAG, "Unable to add the view: ", throwable);
+                logRecentStages();
+                fail(throwable);
+                return;
+            }
+            saveCapture(viewResult.raw, viewResult.raw.tofMat,
+                    (float) viewResult.view.depth, (float) viewResult.view.width);
+            // Counted by the estimator, which keeps a view cancelled after it was added
+            multiViewCount.setValue(viewResult.views);
+            multiViewEstimate.setValue(viewResult.estimate);
+            MultiViewTrunkEstimator.Estimate estimate = viewResult.estimate;
+            if (estimate != null) {
+                Log.i(LOG_TAG, String.format(Locale.US,
+                        "Multi-view estimate from %d views: %.1f cm, 95%% interval %.1f to %.1f cm",
+                        estimate.views, estimate.diameter * 100,
+                        estimate.diameterLow * 100, estimate.diameterHigh * 100));
+            }
+            if (viewResult.views >= MULTI_VIEW_FRAMES) {
+                multiViewActive.setValue(false);
+            }
+            captureState.setValue(CaptureState.VIEW_ADDED);
+        }));
+    }
+
+    private void fail(Throwable throwable) {
+        // The futures wrap what the capture threw
+        Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null
+                ? throwable.getCause() : throwable;
+        captureFailure.setValue(cause);
+        captureState.setValue(CaptureState.FAILED);
+    }
+
+    /*
+     * Logs the stages of the latest traced capture, which is the one that failed
+     * unless it failed before its first stage.
+     */
+    private void logRecentStages() {
+        List<CaptureTrace.Stage> recent = CaptureTrace.getRecentStages();
+        if (recent.isEmpty()) {
+            return;
+        }
+        int captureId = recent.get(recent.size() - 1).captureId;
+        for (CaptureTrace.Stage stage : recent) {
+            if (stage.captureId != captureId) {
+                continue;
+            }
+            Log.i(LOG_TAG, String.format(Locale.US, "Capture %d %s on %s: %.1f ms at %.1f ms",
+                    stage.captureId, stage.name, stage.thread,
+                    stage.durationNanos / 1e6, stage.startNanos / 1e6));
+        }
+    }
+
+    /*
+     * Cancels the capture in flight, if any, and returns to IDLE.
+     */
+    public void cancelCapture() {
+        if (pendingRaw != null) {
+            pendingRaw.cancel(false);
+            pendingResult.cancel(false);
+            pendingRaw = null;
+            pendingResult = null;
+        }
+        captureState.setValue(CaptureState.IDLE);
+    }
+
+    /*
+     * Marks a READY, VIEW_ADDED or FAILED capture as handled by the UI.
+     */
+    public void resetCaptureState() {
+        if (pendingRaw == null) {
+            captureState.setValue(CaptureState.IDLE);
+        }
+    }
+
+    public LiveData<Boolean> getProcessorReady() {
+        return imageProcessor.getReady();
+    }
+
+    public LiveData<Integer> getPendingWrites() {
+        return imageStore.getPendingWrites();
+    }
+
+    public LiveData<Integer> getFailedWrites() {
+        return imageStore.getFailedWrites();
     }
 
     public void storeCapture() {
         ImageProcessorInterface.ImageResult c = currentCapture.getValue();
+        saveCapture(c.Raw, c.DepthImage, c.Depth, c.Diameter);
+    }
+
+    private void saveCapture(ImageProcessorInterface.ImageRaw raw,
+            TofUtil.TofArrays depthImage, float depth, float diameter) {
         Integer s = sampleNumber.getValue();
         try {
-            imageStore.saveToFileRGB(s, nextCapture, c.RGBImage);
-            imageStore.saveToFileTOF(s, nextCapture, c.DepthImage);
-            imageStore.saveToFileResults(s, nextCapture, c.Depth, c.Diameter);
+            // The frame is encoded to JPEG by the image store, off the main thread
+            imageStore.saveCapture(new CaptureBundle(s, nextCapture,
+                    raw != null ? raw.nv21 : null,
+                    raw != null ? raw.nv21Width : 0,
+                    raw != null ? raw.nv21Height : 0,
+                    depthImage, depth, diameter,
+                    raw != null ? raw.trace : null,
+                    raw != null ? raw.pose : null));
+            if (raw != null) {
+                // The store releases the frame to Nv21Pool once it is written
+                raw.nv21 = null;
+            }
         } catch (IOException e) {
             Log.e(LOG_TAG, "Unable to store the image: ", e);
         }
         nextCapture++;
         state.set("nextCapture", nextCapture);
     }
+
+    @Override
+    protected void onCleared() {
+        cancelCapture();
+        processingExecutor.shutdown();
+    }
 }
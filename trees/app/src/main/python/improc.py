@@ -1,8 +1,8 @@
 
-import io
+import time
+
 import numpy as np
-from skimage import io as skio
-from skimage import img_as_ubyte, transform
+from skimage import img_as_ubyte
 from scipy.ndimage import interpolation
 
 import processor
@@ -11,16 +11,33 @@ SHAPE = (360, 480)
 TOF_SHAPE = (180, 240)
 RGB_SHAPE = (640, 480)
 
-def run(depth_arr, rgb_arr):
+# Stages of the last run, as (name, start, end) in seconds from the start of the run.
+# Read by the Java side for its capture timing.
+last_timings = []
+
+def run(depth_arr, rgb_arr, display_arr):
+	# The arguments are Java arrays: float[] depth, int[] ARGB image at SHAPE, and byte[] the RGBA
+	# display image at SHAPE is written into. Chaquopy's jarrays support the buffer protocol, so
+	# the numpy arrays below are views of them rather than copies.
+	global last_timings
+	timings = []
+	last_timings = timings
+	start = time.perf_counter()
 
 	# Read images and resize so they can be directly overlaid.
-	depth = np.array(depth_arr, dtype=np.float64).reshape(TOF_SHAPE) 
+	depth = np.frombuffer(depth_arr, dtype=np.float32).reshape(TOF_SHAPE)
 	scale_factor = 2
-	depth = np.kron(depth, np.ones((scale_factor, scale_factor)))
+	depth = np.kron(depth.astype(np.float64), np.ones((scale_factor, scale_factor)))
 
-	rgb = transform.resize(skio.imread(io.BytesIO(rgb_arr)), SHAPE)
+	# Little-endian ARGB ints are B, G, R, A bytes
+	argb = np.frombuffer(rgb_arr, dtype=np.uint8).reshape(SHAPE + (4,))
+	rgb = argb[:, :, 2::-1] / 255.0
+	t = time.perf_counter()
+	timings.append(("unpack", 0.0, t - start))
 
 	angle, left, right, est_depth, est_width = processor.process(depth, rgb)
+	timings.append(("process", t - start, time.perf_counter() - start))
+	t = time.perf_counter()
 
 	# Prepare display image 
 	bounds = np.zeros(SHAPE)
@@ -37,7 +54,24 @@ def run(depth_arr, rgb_arr):
 	# rgb_disp = interpolation.rotate(rgb_disp, -angle, reshape=False)
 	rgb_disp = np.clip(rgb_disp, 0, 1)
 
+	display = np.frombuffer(display_arr, dtype=np.uint8).reshape(SHAPE + (4,))
+	display[...] = img_as_ubyte(rgb_disp)
+	timings.append(("display", t - start, time.perf_counter() - start))
+
 	# TODO: pytype
-	# Java expects: byte[] displayImage, float estDepth, float estWidth
-	return bytes(img_as_ubyte(rgb_disp)), est_depth, est_width
+	# Java expects: float estDepth, float estWidth
+	return est_depth, est_width
+
 
+def warm_up():
+	"""Runs the pipeline once on a synthetic frame: a trunk 1m away in front of a 3m background.
+	This loads the native libraries and code paths, so the first real capture runs at full speed."""
+	depth = np.full(TOF_SHAPE, 3.0)
+	depth[:, TOF_SHAPE[1] // 2 - 20:TOF_SHAPE[1] // 2 + 20] = 1.0
+	argb = np.full(SHAPE, -1, dtype=np.int32)
+	display = np.empty(SHAPE + (4,), dtype=np.uint8)
+	try:
+		run(depth.astype(np.float32).ravel(), argb.ravel(), display.ravel())
+	except processor.Error:
+		# Any of the pipeline's own errors still warms it up
+		pass
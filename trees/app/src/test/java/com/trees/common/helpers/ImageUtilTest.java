@@ -0,0 +1,137 @@
+package com.trees.common.helpers;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/*
+ * Checks ImageUtil.YUV_420_888toNV21 against a conversion that reads one sample at a time,
+ * for the plane layouts cameras produce.
+ */
+public class ImageUtilTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    private final Random random = new Random(42);
+
+    /*
+     * The planes of a frame, filled with random samples. Semi-planar chroma (pixel stride 2)
+     * ends right after its last sample, as camera planes do, rather than at the row stride.
+     */
+    private class Planes {
+        final int width;
+        final int height;
+        final ByteBuffer y;
+        final int yRowStride;
+        final ByteBuffer u;
+        final ByteBuffer v;
+        final int uvRowStride;
+        final int uvPixelStride;
+
+        Planes(int width, int height, int yRowStride, int uvRowStride, int uvPixelStride) {
+            this.width = width;
+            this.height = height;
+            this.yRowStride = yRowStride;
+            this.uvRowStride = uvRowStride;
+            this.uvPixelStride = uvPixelStride;
+            y = randomBuffer((height - 1) * yRowStride + width);
+            int uvSize = (height / 2 - 1) * uvRowStride + (width / 2 - 1) * uvPixelStride + 1;
+            u = randomBuffer(uvSize);
+            v = randomBuffer(uvSize);
+        }
+
+        byte[] convert(ImageUtil util, byte[] nv21) {
+            return util.YUV_420_888toNV21(width, height, y, yRowStride, u, v, uvRowStride, uvPixelStride, nv21);
+        }
+    }
+
+    @Test
+    public void semiPlanar() {
+        checkAgainstReference(new Planes(WIDTH, HEIGHT, WIDTH, WIDTH, 2));
+    }
+
+    @Test
+    public void planar() {
+        checkAgainstReference(new Planes(WIDTH, HEIGHT, WIDTH, WIDTH / 2, 1));
+    }
+
+    @Test
+    public void semiPlanarWithPaddedRows() {
+        checkAgainstReference(new Planes(WIDTH, HEIGHT, WIDTH + 16, WIDTH + 32, 2));
+    }
+
+    @Test
+    public void planarWithPaddedRows() {
+        checkAgainstReference(new Planes(WIDTH, HEIGHT, WIDTH + 16, WIDTH / 2 + 8, 1));
+    }
+
+    @Test
+    public void reusesLargeEnoughArrays() {
+        ImageUtil util = new ImageUtil();
+        Planes planes = new Planes(WIDTH, HEIGHT, WIDTH, WIDTH, 2);
+        byte[] nv21 = new byte[WIDTH * HEIGHT * 3 / 2 + 100];
+        assertSame(nv21, planes.convert(util, nv21));
+        byte[] expected = reference(planes);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("byte " + i, expected[i], nv21[i]);
+        }
+    }
+
+    @Test
+    public void convertsFramesOfDifferentSizes() {
+        // The chroma rows kept from a smaller frame have to grow for a larger one
+        ImageUtil util = new ImageUtil();
+        Planes small = new Planes(WIDTH / 2, HEIGHT / 2, WIDTH / 2, WIDTH / 2, 2);
+        Planes large = new Planes(WIDTH * 2, HEIGHT * 2, WIDTH * 2 + 16, WIDTH * 2 + 16, 2);
+        assertArrayEquals(reference(small), small.convert(util, null));
+        assertArrayEquals(reference(large), large.convert(util, null));
+        assertArrayEquals(reference(small), small.convert(util, null));
+    }
+
+    @Test
+    public void leavesPlanePositionsUnchanged() {
+        Planes planes = new Planes(WIDTH, HEIGHT, WIDTH + 16, WIDTH + 32, 2);
+        planes.y.position(3);
+        planes.u.position(5);
+        planes.convert(new ImageUtil(), null);
+        assertEquals(3, planes.y.position());
+        assertEquals(5, planes.u.position());
+        assertEquals(0, planes.v.position());
+    }
+
+    private void checkAgainstReference(Planes planes) {
+        assertArrayEquals(reference(planes), planes.convert(new ImageUtil(), null));
+    }
+
+    /* Luma rows, then V and U interleaved, each sample read at its own index */
+    private static byte[] reference(Planes planes) {
+        int width = planes.width;
+        int height = planes.height;
+        byte[] nv21 = new byte[width * height + (width / 2) * (height / 2) * 2];
+        int pos = 0;
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                nv21[pos++] = planes.y.get(row * planes.yRowStride + col);
+            }
+        }
+        for (int row = 0; row < height / 2; row++) {
+            for (int col = 0; col < width / 2; col++) {
+                int index = row * planes.uvRowStride + col * planes.uvPixelStride;
+                nv21[pos++] = planes.v.get(index);
+                nv21[pos++] = planes.u.get(index);
+            }
+        }
+        return nv21;
+    }
+
+    private ByteBuffer randomBuffer(int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+}
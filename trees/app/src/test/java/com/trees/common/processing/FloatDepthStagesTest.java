@@ -0,0 +1,84 @@
+package com.trees.common.processing;
+
+import com.trees.common.helpers.TofUtil;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Checks TrunkProcessor with FloatDepthStages, which computes its stages as the GPU shaders do,
+ * against TrunkProcessor alone on the captures of TrunkProcessorTest.
+ */
+public class FloatDepthStagesTest {
+    // The rotation is in float, which moves a pixel near the threshold between columns
+    // in one column of one capture; the boundaries do not move on any of them
+    private static final int COUNT_TOLERANCE = 1;
+
+    @Test
+    public void stagesReproduceTheCpu() throws IOException {
+        List<String[]> outputs = TrunkProcessorTest.readOutputs();
+        assertFalse("No recorded outputs", outputs.isEmpty());
+
+        TrunkProcessor cpu = new TrunkProcessor();
+        TrunkProcessor staged = new TrunkProcessor(new FloatDepthStages());
+        for (String[] row : outputs) {
+            String capture = row[0];
+            TofUtil.TofArrays arrays = TrunkProcessorTest.loadCapture(capture);
+            TrunkProcessor.Result expected = run(cpu, arrays.dBuffer);
+            TrunkProcessor.Result result = run(staged, arrays.dBuffer);
+            if (expected == null || result == null) {
+                assertTrue(capture + ": only one processor failed", expected == null && result == null);
+                continue;
+            }
+
+            // The histogram and band are exact, so everything before the rotation is too
+            assertEquals(capture + " depth", expected.depth, result.depth, 0.0);
+            assertArrayEquals(capture + " filtered depth", cpu.getFilteredDepth(), staged.getFilteredDepth(), 0.0f);
+            assertEquals(capture + " angle", expected.angle, result.angle, 0.0);
+
+            int[] expectedCounts = cpu.getColumnCounts();
+            int[] counts = staged.getColumnCounts();
+            for (int c = 0; c < TrunkProcessor.WIDTH; c++) {
+                assertEquals(capture + " column " + c, expectedCounts[c], counts[c], COUNT_TOLERANCE);
+            }
+            assertEquals(capture + " left", expected.left, result.left);
+            assertEquals(capture + " right", expected.right, result.right);
+        }
+    }
+
+    @Test
+    public void declinedStagesFallBackToTheCpu() throws IOException, TrunkProcessor.ProcessingException {
+        TofUtil.TofArrays arrays = TrunkProcessorTest.loadCapture("Capture_Sample_5_40");
+        TrunkProcessor cpu = new TrunkProcessor();
+        TrunkProcessor.Result expected = cpu.run(arrays.dBuffer);
+        // Stages before the rotation still run, and the CPU rotates their mask
+        TrunkProcessor staged = new TrunkProcessor(new FloatDepthStages() {
+            @Override
+            public boolean countRotatedColumns(byte[] tofMask, double angle, double threshold,
+                    int[] columnCounts) {
+                return false;
+            }
+        });
+        TrunkProcessor.Result result = staged.run(arrays.dBuffer);
+        assertArrayEquals(cpu.getColumnCounts(), staged.getColumnCounts());
+        assertEquals(expected.left, result.left);
+        assertEquals(expected.right, result.right);
+        assertEquals(expected.width, result.width, 0.0);
+    }
+
+    /* The result of run, or null if it found no trunk */
+    private static TrunkProcessor.Result run(TrunkProcessor processor, float[] tofDepth) {
+        try {
+            return processor.run(tofDepth);
+        } catch (TrunkProcessor.ProcessingException e) {
+            return null;
+        }
+    }
+}
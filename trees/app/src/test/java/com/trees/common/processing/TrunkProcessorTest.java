@@ -0,0 +1,120 @@
+package com.trees.common.processing;
+
+import com.trees.common.helpers.TofUtil;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/*
+ * Checks TrunkProcessor.run against processor.py on the captures in
+ * OfflineProcessing/v1_CS898/samples, whose location the build passes as trees.samples.
+ * processor_outputs.csv holds processor.py's outputs, recorded by
+ * OfflineProcessing/v2_DepthAssistedSegmentation/record_processor_outputs.py.
+ */
+public class TrunkProcessorTest {
+    private static final String OUTPUTS = "processor_outputs.csv";
+
+    private static final double ANGLE_TOLERANCE = 1e-3;
+    private static final double DEPTH_TOLERANCE = 1e-6;
+    private static final double WIDTH_TOLERANCE = 1e-6;
+
+    @Test
+    public void runReproducesProcessorPy() throws IOException {
+        List<String[]> outputs = readOutputs();
+        assertFalse("No recorded outputs", outputs.isEmpty());
+
+        TrunkProcessor processor = new TrunkProcessor();
+        for (String[] expected : outputs) {
+            String capture = expected[0];
+            TofUtil.TofArrays arrays = loadCapture(capture);
+            TrunkProcessor.Result result;
+            try {
+                result = processor.run(arrays.dBuffer);
+            } catch (TrunkProcessor.ProcessingException e) {
+                if (expected.length == 2) {
+                    assertEquals(capture, expected[1], pythonErrorName(e));
+                    continue;
+                }
+                throw new AssertionError(capture + ": " + e.getMessage(), e);
+            }
+            if (expected.length == 2) {
+                fail(capture + ": expected " + expected[1]);
+            }
+
+            double depth = Double.parseDouble(expected[4]);
+            assertEquals(capture + " angle", Double.parseDouble(expected[1]), result.angle, ANGLE_TOLERANCE);
+            assertEquals(capture + " left", Integer.parseInt(expected[2]), result.left);
+            assertEquals(capture + " right", Integer.parseInt(expected[3]), result.right);
+            assertEquals(capture + " depth", depth, result.depth, DEPTH_TOLERANCE);
+            assertEquals(capture + " width", Double.parseDouble(expected[5]), result.width, WIDTH_TOLERANCE);
+        }
+    }
+
+    @Test
+    public void runLeavesItsInputUnchanged() throws IOException, TrunkProcessor.ProcessingException {
+        TofUtil.TofArrays arrays = loadCapture("Capture_Sample_5_40");
+        float[] copy = arrays.dBuffer.clone();
+        new TrunkProcessor().run(arrays.dBuffer);
+        for (int i = 0; i < copy.length; i++) {
+            assertEquals(copy[i], arrays.dBuffer[i], 0.0f);
+        }
+    }
+
+    @Test(expected = TrunkProcessor.MissingDepthException.class)
+    public void runThrowsWithoutDepth() throws TrunkProcessor.ProcessingException {
+        new TrunkProcessor().run(new float[TrunkProcessor.TOF_HEIGHT * TrunkProcessor.TOF_WIDTH]);
+    }
+
+    /* The name processor.py gives the error TrunkProcessor threw */
+    private static String pythonErrorName(TrunkProcessor.ProcessingException e) {
+        if (e instanceof TrunkProcessor.MissingDepthException) {
+            return "MissingDepthError";
+        }
+        if (e instanceof TrunkProcessor.NoTrunkFoundException) {
+            return "NoTrunkFoundError";
+        }
+        return e.getClass().getSimpleName();
+    }
+
+    /* Rows of capture,angle,left,right,depth,width, or capture,error */
+    static List<String[]> readOutputs() throws IOException {
+        InputStream stream = TrunkProcessorTest.class.getResourceAsStream(OUTPUTS);
+        if (stream == null) {
+            throw new IOException("Missing test resource " + OUTPUTS);
+        }
+        List<String[]> rows = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            // Skip the header
+            String line = reader.readLine();
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    rows.add(line.split(","));
+                }
+            }
+        }
+        return rows;
+    }
+
+    static TofUtil.TofArrays loadCapture(String name) throws IOException {
+        String samples = System.getProperty("trees.samples");
+        if (samples == null) {
+            throw new IllegalStateException("Set trees.samples to the sample capture directory");
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(new File(samples, name)))) {
+            return TofUtil.readCsv(reader, TrunkProcessor.TOF_WIDTH, TrunkProcessor.TOF_HEIGHT);
+        }
+    }
+}
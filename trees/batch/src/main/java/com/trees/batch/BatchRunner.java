@@ -0,0 +1,361 @@
+package com.trees.batch;
+
+import com.trees.common.helpers.SampleArchive;
+import com.trees.common.helpers.TofFile;
+import com.trees.common.helpers.TofUtil;
+import com.trees.common.processing.TrunkProcessor;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/*
+ * Measures every capture under a directory tree with TrunkProcessor, as JavaImageProcessor does
+ * in the app, and appends one CSV line per capture to a results file.
+ *
+ * Captures are the depth files ImageStore writes, Capture_Sample_<s>_<c> in either the binary
+ * TofFile format or CSV, found at any depth below the directory, or the captures of a
+ * SampleArchive, see PackSamples. They are processed in parallel on a fork-join pool,
+ * one TrunkProcessor per thread.
+ *
+ * The results file is also the checkpoint: a line is written, and flushed, as soon as its capture
+ * is done, and captures that already have a line are skipped when the runner is started again.
+ * Captures that fail are written with their error, so they are not retried either.
+ */
+public class BatchRunner {
+    private static final String PREFIX = "Capture_Sample_";
+    private static final Comparator<Capture> CAPTURE_ORDER = Comparator.<Capture>comparingInt(c -> c.sample)
+            .thenComparingInt(c -> c.capture).thenComparing(c -> c.name);
+    private static final String HEADER =
+            "sample,capture,file,depth,diameter,subpixel_diameter,angle,left,right,millis,error";
+
+    static class Capture {
+        final int sample;
+        final int capture;
+        /* The depth file, or the archive holding the capture */
+        final Path file;
+        /* Path relative to the capture directory, or the capture's name in the archive */
+        final String name;
+        /* Index in the archive, -1 for a depth file */
+        final int entry;
+
+        Capture(int sample, int capture, Path file, String name, int entry) {
+            this.sample = sample;
+            this.capture = capture;
+            this.file = file;
+            this.name = name;
+            this.entry = entry;
+        }
+    }
+
+    // Null when the captures are files
+    private final SampleArchive archive;
+    private final Writer results;
+    private final ThreadLocal<TrunkProcessor> processors = ThreadLocal.withInitial(TrunkProcessor::new);
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private int total;
+    private long startNanos;
+
+    BatchRunner(SampleArchive archive, Writer results) {
+        this.archive = archive;
+        this.results = results;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else {
+                paths.add(args[i]);
+            }
+        }
+        if (paths.size() != 2 || threads < 1) {
+            System.err.println("Usage: batch <capture directory or archive> <results.csv> [--threads N]");
+            System.exit(2);
+        }
+        Path root = new File(paths.get(0)).toPath();
+        File resultsFile = new File(paths.get(1));
+
+        SampleArchive archive = Files.isRegularFile(root) ? openArchive(root) : null;
+        List<Capture> captures = archive != null ? findCaptures(archive, root) : findCaptures(root);
+        Set<String> finished = readCheckpoint(resultsFile);
+        List<Capture> pending = captures.stream()
+                .filter(capture -> !finished.contains(capture.name))
+                .collect(Collectors.toList());
+        System.err.printf(Locale.US, "%d captures, %d already in %s, processing %d on %d threads%n",
+                captures.size(), captures.size() - pending.size(), resultsFile, pending.size(), threads);
+
+        boolean created = !resultsFile.exists() || resultsFile.length() == 0;
+        try (Writer writer = new BufferedWriter(new FileWriter(resultsFile, true))) {
+            if (created) {
+                writer.write(HEADER + "\n");
+                writer.flush();
+            }
+            new BatchRunner(archive, writer).run(pending, threads);
+        } finally {
+            if (archive != null) {
+                archive.close();
+            }
+        }
+    }
+
+    /*
+     * Opens a SampleArchive of captures TrunkProcessor can process.
+     */
+    static SampleArchive openArchive(Path file) throws IOException {
+        SampleArchive archive = SampleArchive.open(file.toFile());
+        if (archive.getDepthWidth() != TrunkProcessor.TOF_WIDTH
+                || archive.getDepthHeight() != TrunkProcessor.TOF_HEIGHT) {
+            archive.close();
+            throw new IOException("Expected " + TrunkProcessor.TOF_WIDTH + "x" + TrunkProcessor.TOF_HEIGHT
+                    + " captures in " + file + ", got " + archive.getDepthWidth() + "x"
+                    + archive.getDepthHeight());
+        }
+        return archive;
+    }
+
+    /*
+     * Depth files of captures under root, in sample and capture order.
+     */
+    static List<Capture> findCaptures(Path root) throws IOException {
+        try (Stream<Path> files = Files.walk(root)) {
+            return files.filter(Files::isRegularFile)
+                    .map(file -> parseCapture(root, file))
+                    .filter(capture -> capture != null)
+                    .sorted(CAPTURE_ORDER)
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /*
+     * Captures of an archive, in sample and capture order.
+     */
+    static List<Capture> findCaptures(SampleArchive archive, Path file) {
+        List<Capture> captures = new ArrayList<>();
+        for (int i = 0; i < archive.size(); i++) {
+            int sample = archive.getSampleNumber(i);
+            int capture = archive.getCaptureNumber(i);
+            captures.add(new Capture(sample, capture, file, PREFIX + sample + "_" + capture, i));
+        }
+        captures.sort(CAPTURE_ORDER);
+        return captures;
+    }
+
+    /*
+     * The capture a depth file holds, or null if the file is not one. As ImageStore names them,
+     * depth files are the capture files with no extension (CSV) or TofFile.EXTENSION.
+     */
+    static Capture parseCapture(Path root, Path file) {
+        String name = file.getFileName().toString();
+        if (!name.startsWith(PREFIX)) {
+            return null;
+        }
+        String nums = name.substring(PREFIX.length());
+        if (nums.endsWith(TofFile.EXTENSION)) {
+            nums = nums.substring(0, nums.length() - TofFile.EXTENSION.length());
+        }
+        String[] s = nums.split("_");
+        if (s.length != 2) {
+            return null;
+        }
+        try {
+            return new Capture(Integer.parseInt(s[0]), Integer.parseInt(s[1]), file,
+                    root.relativize(file).toString(), -1);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /*
+     * The captures, by name, that already have a line in the results file.
+     * A last line cut short by a crash is removed, so its capture is processed again.
+     */
+    static Set<String> readCheckpoint(File resultsFile) throws IOException {
+        Set<String> finished = new HashSet<>();
+        if (!resultsFile.exists()) {
+            return finished;
+        }
+        truncatePartialLine(resultsFile);
+        try (BufferedReader reader = new BufferedReader(new FileReader(resultsFile))) {
+            String line = reader.readLine();
+            if (line != null && !line.equals(HEADER)) {
+                throw new IOException(resultsFile + " is not a results file of this runner");
+            }
+            while ((line = reader.readLine()) != null) {
+                String file = readFileField(line);
+                if (file != null) {
+                    finished.add(file);
+                }
+            }
+        }
+        return finished;
+    }
+
+    // The third field of a results line, as csvField() wrote it
+    private static String readFileField(String line) {
+        int start = line.indexOf(',', line.indexOf(',') + 1) + 1;
+        if (start == 0) {
+            return null;
+        }
+        if (!line.startsWith("\"", start)) {
+            int end = line.indexOf(',', start);
+            return end < 0 ? null : line.substring(start, end);
+        }
+        StringBuilder field = new StringBuilder();
+        for (int i = start + 1; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    i++;
+                } else {
+                    return field.toString();
+                }
+            }
+            field.append(c);
+        }
+        return null;
+    }
+
+    private static void truncatePartialLine(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long end = raf.length();
+            while (end > 0) {
+                raf.seek(end - 1);
+                if (raf.read() == '\n') {
+                    break;
+                }
+                end--;
+            }
+            raf.setLength(end);
+        }
+    }
+
+    void run(List<Capture> captures, int threads) throws IOException, InterruptedException {
+        total = captures.size();
+        startNanos = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            // A parallel stream started from a pool task runs on that pool
+            pool.submit(() -> captures.parallelStream().forEach(this::process)).get();
+        } catch (ExecutionException e) {
+            // The pool may wrap the worker's exception again, so look for the write error
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+            }
+            throw new IllegalStateException("Batch failed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.err.printf(Locale.US, "Processed %d captures in %.1f s, %.1f per second, %d failed%n",
+                done.get(), seconds, done.get() / seconds, failed.get());
+    }
+
+    private void process(Capture capture) {
+        long start = System.nanoTime();
+        String key = capture.sample + "," + capture.capture + "," + csvField(capture.name);
+        String line = null;
+        String error = null;
+        try {
+            TrunkProcessor.Result result;
+            if (archive != null) {
+                // Straight from the mapped file
+                result = processors.get().run(archive.getDepth(capture.entry));
+            } else {
+                TofUtil.TofArrays arrays = load(capture.file);
+                if (!arrays.hasShape(TrunkProcessor.TOF_WIDTH, TrunkProcessor.TOF_HEIGHT)) {
+                    throw new IOException("Expected a " + TrunkProcessor.TOF_WIDTH + "x"
+                            + TrunkProcessor.TOF_HEIGHT + " capture, got " + arrays.width + "x" + arrays.height);
+                }
+                result = processors.get().run(arrays.dBuffer);
+            }
+            line = String.format(Locale.US, "%s,%.4f,%.4f,%.4f,%.3f,%d,%d,%.1f,", key,
+                    result.depth, result.width, result.subpixelWidth, result.angle,
+                    result.left, result.right, (System.nanoTime() - start) / 1e6);
+        } catch (BatchException e) {
+            // The output cannot be written, which stops the run
+            throw e;
+        } catch (IOException | TrunkProcessor.ProcessingException e) {
+            error = String.valueOf(e.getMessage());
+        } catch (RuntimeException e) {
+            // A capture that breaks the processor fails on its own rather than stopping the run
+            error = e.toString();
+        }
+        if (error != null) {
+            failed.incrementAndGet();
+            line = String.format(Locale.US, "%s,,,,,,,%.1f,%s", key,
+                    (System.nanoTime() - start) / 1e6, csvField(error));
+        }
+        write(line);
+    }
+
+    static TofUtil.TofArrays load(Path file) throws IOException {
+        if (file.getFileName().toString().endsWith(TofFile.EXTENSION)) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                return TofFile.read(channel);
+            }
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file)) {
+            return TofUtil.readCsv(reader, TrunkProcessor.TOF_WIDTH, TrunkProcessor.TOF_HEIGHT);
+        }
+    }
+
+    /*
+     * Appends a line and flushes it, so it survives the runner being stopped.
+     */
+    private void write(String line) {
+        synchronized (results) {
+            try {
+                results.write(line);
+                results.write('\n');
+                results.flush();
+            } catch (IOException e) {
+                // Nothing more can be recorded, so stop the batch
+                throw new BatchException(e);
+            }
+        }
+        int n = done.incrementAndGet();
+        if (n % 100 == 0 || n == total) {
+            double seconds = (System.nanoTime() - startNanos) / 1e9;
+            System.err.printf(Locale.US, "%d/%d captures, %.1f per second%n", n, total, n / seconds);
+        }
+    }
+
+    static String csvField(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"").replace('\n', ' ') + '"';
+    }
+
+    private static class BatchException extends RuntimeException {
+        BatchException(IOException cause) {
+            super(cause);
+        }
+    }
+}
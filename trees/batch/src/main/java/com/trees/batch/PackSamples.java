@@ -0,0 +1,156 @@
+package com.trees.batch;
+
+import com.trees.common.helpers.SampleArchive;
+import com.trees.common.helpers.TofFile;
+import com.trees.common.helpers.TofUtil;
+import com.trees.common.processing.TrunkProcessor;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+import javax.imageio.ImageIO;
+
+/*
+ * Packs the captures under a directory tree into a SampleArchive, so the batch tools, the
+ * benchmarks and the notebooks can map them instead of parsing them.
+ *
+ * A capture's camera image, Capture_Sample_<s>_<c>.jpeg next to its depth file, is resized
+ * to the processing resolution as RGBD.get_data does. Captures without one are packed
+ * with depth only.
+ */
+public class PackSamples {
+    private static final String IMAGE_EXTENSION = ".jpeg";
+    // Captures decoded in parallel before being written in order
+    private static final int CHUNK = 64;
+
+    static class Packed {
+        final BatchRunner.Capture capture;
+        final TofUtil.TofArrays arrays;
+        final byte[] image;
+
+        Packed(BatchRunner.Capture capture, TofUtil.TofArrays arrays, byte[] image) {
+            this.capture = capture;
+            this.arrays = arrays;
+            this.image = image;
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length != 2) {
+            System.err.println("Usage: pack <capture directory> <archive" + SampleArchive.EXTENSION + ">");
+            System.exit(2);
+        }
+        Path root = new File(args[0]).toPath();
+        File archiveFile = new File(args[1]).getAbsoluteFile();
+        List<BatchRunner.Capture> captures = BatchRunner.findCaptures(root);
+        if (captures.isEmpty()) {
+            System.err.println("No captures under " + root);
+            System.exit(1);
+        }
+
+        // Written aside and moved, so readers never map a partial archive
+        Path partial = archiveFile.toPath().resolveSibling(archiveFile.getName() + ".partial");
+        long start = System.nanoTime();
+        int images = 0;
+        ForkJoinPool pool = new ForkJoinPool();
+        try (SampleArchive.Writer writer = new SampleArchive.Writer(partial.toFile(),
+                TrunkProcessor.TOF_WIDTH, TrunkProcessor.TOF_HEIGHT, TrunkProcessor.WIDTH, TrunkProcessor.HEIGHT)) {
+            for (int i = 0; i < captures.size(); i += CHUNK) {
+                List<BatchRunner.Capture> chunk = captures.subList(i, Math.min(i + CHUNK, captures.size()));
+                for (Packed packed : decode(pool, chunk)) {
+                    writer.add(packed.capture.sample, packed.capture.capture, packed.arrays, packed.image);
+                    if (packed.image != null) {
+                        images++;
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(partial);
+            throw e;
+        } finally {
+            pool.shutdown();
+        }
+        Files.move(partial, archiveFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        System.err.printf(Locale.US, "Packed %d captures, %d with images, into %s (%.1f MB) in %.1f s%n",
+                captures.size(), images, archiveFile, archiveFile.length() / 1e6,
+                (System.nanoTime() - start) / 1e9);
+    }
+
+    private static List<Packed> decode(ForkJoinPool pool, List<BatchRunner.Capture> chunk)
+            throws IOException, InterruptedException {
+        try {
+            return pool.submit(() -> chunk.parallelStream().map(capture -> {
+                try {
+                    TofUtil.TofArrays arrays = BatchRunner.load(capture.file);
+                    if (!arrays.hasShape(TrunkProcessor.TOF_WIDTH, TrunkProcessor.TOF_HEIGHT)) {
+                        throw new IOException(capture.file + ": expected a " + TrunkProcessor.TOF_WIDTH
+                                + "x" + TrunkProcessor.TOF_HEIGHT + " capture, got "
+                                + arrays.width + "x" + arrays.height);
+                    }
+                    return new Packed(capture, arrays, readImage(capture.file));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).collect(Collectors.toList())).get();
+        } catch (ExecutionException e) {
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) cause).getCause();
+                }
+            }
+            throw new IllegalStateException("Packing failed", e.getCause());
+        }
+    }
+
+    /*
+     * The camera image of the capture stored in depthFile, resized to processing resolution,
+     * as RGB bytes, or null if there is none.
+     */
+    static byte[] readImage(Path depthFile) throws IOException {
+        String name = depthFile.getFileName().toString();
+        if (name.endsWith(TofFile.EXTENSION)) {
+            name = name.substring(0, name.length() - TofFile.EXTENSION.length());
+        }
+        File imageFile = depthFile.resolveSibling(name + IMAGE_EXTENSION).toFile();
+        if (!imageFile.exists()) {
+            return null;
+        }
+        BufferedImage image = ImageIO.read(imageFile);
+        if (image == null) {
+            throw new IOException("Unable to decode " + imageFile);
+        }
+        int width = TrunkProcessor.WIDTH;
+        int height = TrunkProcessor.HEIGHT;
+        BufferedImage resized = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = resized.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, width, height, null);
+        g.dispose();
+
+        byte[] rgb = new byte[width * height * 3];
+        int[] row = new int[width];
+        for (int r = 0; r < height; r++) {
+            resized.getRGB(0, r, width, 1, row, 0, width);
+            for (int c = 0; c < width; c++) {
+                int i = (r * width + c) * 3;
+                rgb[i] = (byte) (row[c] >> 16);
+                rgb[i + 1] = (byte) (row[c] >> 8);
+                rgb[i + 2] = (byte) row[c];
+            }
+        }
+        return rgb;
+    }
+}
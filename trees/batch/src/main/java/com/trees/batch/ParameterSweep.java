@@ -0,0 +1,644 @@
+package com.trees.batch;
+
+import com.trees.common.helpers.SampleArchive;
+import com.trees.common.helpers.TofFile;
+import com.trees.common.helpers.TofUtil;
+import com.trees.common.processing.TrunkProcessor;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/*
+ * Sweeps TrunkProcessor's parameters over stored captures, and reports for each set of
+ * parameters how far the estimated diameters are from the measured ones and how long the
+ * captures took to process. This is the evaluation RGBD.py does for one set of parameters.
+ *
+ * Measured diameters come from a reference file in the format RGBD.py reads, one
+ * "sample_num: width_in_meters" line per sample. Captures of samples with no reference are left out.
+ *
+ * Parameters are swept over every combination of the given values, or over random draws of
+ * them. Sets that differ only in calibration share one processing run, as calibration only
+ * scales the result. The runs are spread over a fork-join pool.
+ *
+ * Captures are decoded once per sweep. CSV captures, which are slow to parse, are also
+ * cached as TofFile files between sweeps. Captures packed into a SampleArchive, see
+ * PackSamples, are processed straight from the mapped file, with no decoding or cache.
+ */
+public class ParameterSweep {
+    private static final String USAGE = String.join("\n",
+            "Usage: sweep <capture directory or archive> <reference widths> <summary.csv> [options] [name=values ...]",
+            "",
+            "Options:",
+            "  --threads N        worker threads, all processors by default",
+            "  --random N         sweep N random draws instead of every combination",
+            "  --seed S           seed of the random draws, 0 by default",
+            "  --cache DIR        decoded capture cache, sweep-cache next to the summary by default",
+            "  --captures FILE    also write the result of every capture with every set of parameters",
+            "",
+            "Parameters, with their values as a list a,b,c or a range lo:hi:step (lo:hi with --random):",
+            "  alpha, beta, inliersHigh, inliersLow, binWidth, pixelPerMeter");
+
+    private static final String SUMMARY_HEADER = "config,alpha,beta,inliers_high,inliers_low,bin_width,"
+            + "pixel_per_meter,captures,failed,mean_error,mean_abs_error,rmse,median_abs_error,"
+            + "p90_abs_error,max_abs_error,mean_percent_error,subpixel_mean_abs_error,"
+            + "mean_millis,median_millis,p90_millis";
+    private static final String CAPTURES_HEADER = "config,sample,capture,file,reference_width,"
+            + "estimated_width,subpixel_width,error,millis,failure";
+
+    /*
+     * A parameter to sweep, with its values, or for random draws the range they are drawn from.
+     */
+    static class Axis {
+        final String name;
+        final double[] values;
+        final double lo;
+        final double hi;
+
+        Axis(String name, double[] values, double lo, double hi) {
+            this.name = name;
+            this.values = values;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        double draw(Random random) {
+            if (values != null) {
+                return values[random.nextInt(values.length)];
+            }
+            return lo + random.nextDouble() * (hi - lo);
+        }
+    }
+
+    /* One set of parameters and the processing run that measures it */
+    static class Config {
+        final int id;
+        final TrunkProcessor.Parameters params;
+        final Run run;
+
+        Config(int id, TrunkProcessor.Parameters params, Run run) {
+            this.id = id;
+            this.params = params;
+            this.run = run;
+        }
+    }
+
+    /* Parameters processed once for every capture, shared by sets differing in calibration */
+    static class Run {
+        final TrunkProcessor.Parameters params;
+        final Outcome[] outcomes;
+
+        Run(TrunkProcessor.Parameters params, int captures) {
+            this.params = params;
+            this.outcomes = new Outcome[captures];
+        }
+    }
+
+    /* TrunkProcessor's result on one capture, or why it failed */
+    static class Outcome {
+        final TrunkProcessor.Result result;
+        final String failure;
+        final double millis;
+
+        Outcome(TrunkProcessor.Result result, String failure, double millis) {
+            this.result = result;
+            this.failure = failure;
+            this.millis = millis;
+        }
+    }
+
+    /* The processor of the run a worker thread is on; runs are mostly handed out in order */
+    private static class RunProcessor {
+        final Run run;
+        final TrunkProcessor processor;
+
+        RunProcessor(Run run) {
+            this.run = run;
+            this.processor = new TrunkProcessor(run.params);
+        }
+    }
+
+    private final List<BatchRunner.Capture> captures;
+    private final double[] referenceWidths;
+    private final List<FloatBuffer> depths;
+    private final ThreadLocal<RunProcessor> processors = new ThreadLocal<>();
+
+    ParameterSweep(List<BatchRunner.Capture> captures, double[] referenceWidths, List<FloatBuffer> depths) {
+        this.captures = captures;
+        this.referenceWidths = referenceWidths;
+        this.depths = depths;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int randomCount = 0;
+        long seed = 0;
+        File cacheDir = null;
+        File capturesFile = null;
+        List<String> paths = new ArrayList<>();
+        List<Axis> axes = new ArrayList<>();
+        List<String> axisSpecs = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                boolean hasValue = i + 1 < args.length;
+                if (arg.equals("--threads") && hasValue) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if (arg.equals("--random") && hasValue) {
+                    randomCount = Integer.parseInt(args[++i]);
+                } else if (arg.equals("--seed") && hasValue) {
+                    seed = Long.parseLong(args[++i]);
+                } else if (arg.equals("--cache") && hasValue) {
+                    cacheDir = new File(args[++i]);
+                } else if (arg.equals("--captures") && hasValue) {
+                    capturesFile = new File(args[++i]);
+                } else if (arg.contains("=")) {
+                    axisSpecs.add(arg);
+                } else {
+                    paths.add(arg);
+                }
+            }
+            for (String spec : axisSpecs) {
+                axes.add(parseAxis(spec, randomCount > 0));
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        if (paths.size() != 3 || threads < 1 || randomCount < 0) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        Path root = new File(paths.get(0)).toPath();
+        File summaryFile = new File(paths.get(2));
+        if (cacheDir == null) {
+            cacheDir = new File(summaryFile.getAbsoluteFile().getParentFile(), "sweep-cache");
+        }
+        Path cache = cacheDir.toPath().toAbsolutePath();
+
+        Map<Integer, Double> references = readReferenceWidths(new File(paths.get(1)));
+        SampleArchive archive = Files.isRegularFile(root) ? BatchRunner.openArchive(root) : null;
+        List<BatchRunner.Capture> all = archive != null
+                ? BatchRunner.findCaptures(archive, root) : BatchRunner.findCaptures(root);
+        List<BatchRunner.Capture> captures = all.stream()
+                .filter(capture -> !capture.file.toAbsolutePath().startsWith(cache))
+                .filter(capture -> references.containsKey(capture.sample))
+                .collect(Collectors.toList());
+        if (captures.isEmpty()) {
+            System.err.println("No captures of the samples in the reference file under " + root);
+            System.exit(1);
+        }
+        double[] referenceWidths = captures.stream().mapToDouble(c -> references.get(c.sample)).toArray();
+
+        List<Config> configs;
+        try {
+            configs = randomCount > 0
+                    ? drawConfigs(axes, randomCount, new Random(seed), captures.size())
+                    : gridConfigs(axes, captures.size());
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+        long runs = configs.stream().map(config -> config.run).distinct().count();
+        System.err.printf(Locale.US, "%d captures of %d samples, %d sets of parameters in %d runs, %d threads%n",
+                captures.size(), references.size(), configs.size(), runs, threads);
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            long start = System.nanoTime();
+            List<FloatBuffer> depths = archive != null
+                    ? mapAll(archive, captures) : loadAll(pool, root, cache, captures);
+            System.err.printf(Locale.US, "Loaded captures in %.1f s%n", (System.nanoTime() - start) / 1e9);
+
+            start = System.nanoTime();
+            new ParameterSweep(captures, referenceWidths, depths).process(pool, configs);
+            System.err.printf(Locale.US, "Processed in %.1f s%n", (System.nanoTime() - start) / 1e9);
+        } finally {
+            pool.shutdown();
+            if (archive != null) {
+                archive.close();
+            }
+        }
+
+        List<Summary> summaries = configs.stream()
+                .map(config -> new Summary(config, referenceWidths))
+                .sorted(Comparator.comparingDouble(summary -> summary.meanAbsError))
+                .collect(Collectors.toList());
+        try (Writer writer = new BufferedWriter(new FileWriter(summaryFile))) {
+            writer.write(SUMMARY_HEADER + "\n");
+            for (Summary summary : summaries) {
+                writer.write(summary.toCsv() + "\n");
+            }
+        }
+        if (capturesFile != null) {
+            try (Writer writer = new BufferedWriter(new FileWriter(capturesFile))) {
+                writeCaptures(writer, configs, captures, referenceWidths);
+            }
+        }
+
+        System.err.println("Lowest mean absolute error (m), compare failures too:");
+        for (Summary summary : summaries.subList(0, Math.min(5, summaries.size()))) {
+            System.err.printf(Locale.US, "  config %d: %.4f, %d of %d failed, %.1f ms per capture, %s%n",
+                    summary.config.id, summary.meanAbsError, summary.failed, captures.size(),
+                    summary.meanMillis, describe(summary.config.params));
+        }
+    }
+
+    /*
+     * Reads reference widths in RGBD.get_widths' format, a "sample_num: width" line per sample.
+     */
+    static Map<Integer, Double> readReferenceWidths(File file) throws IOException {
+        Map<Integer, Double> widths = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] parse = line.split(":");
+                try {
+                    if (parse.length != 2) {
+                        throw new NumberFormatException();
+                    }
+                    widths.put(Integer.parseInt(parse[0].trim()), Double.parseDouble(parse[1].trim()));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Error reading reference file on line " + lineNumber
+                            + ": [" + line + "]");
+                }
+            }
+        }
+        return widths;
+    }
+
+    static Axis parseAxis(String spec, boolean random) {
+        int eq = spec.indexOf('=');
+        String name = spec.substring(0, eq);
+        String values = spec.substring(eq + 1);
+        // Rejects unknown names before anything is processed
+        setParameter(new TrunkProcessor.Parameters(), name, 0.0);
+        try {
+            if (values.contains(",") || !values.contains(":")) {
+                double[] list = Arrays.stream(values.split(",")).mapToDouble(Double::parseDouble).toArray();
+                return new Axis(name, list, 0.0, 0.0);
+            }
+            String[] range = values.split(":");
+            double lo = Double.parseDouble(range[0]);
+            double hi = Double.parseDouble(range[1]);
+            if (random && range.length == 2 && lo <= hi) {
+                return new Axis(name, null, lo, hi);
+            }
+            if (range.length != 3) {
+                throw new IllegalArgumentException("The range of " + name + " needs a step, lo:hi:step");
+            }
+            double step = Double.parseDouble(range[2]);
+            if (!(step > 0.0) || hi < lo) {
+                throw new IllegalArgumentException("Empty range for " + name + ": " + values);
+            }
+            // Steps are counted rather than added, so the values do not drift and hi is included
+            int n = (int) Math.floor((hi - lo) / step + 1e-9) + 1;
+            return new Axis(name, IntStream.range(0, n).mapToDouble(i -> lo + i * step).toArray(), 0.0, 0.0);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Unable to read the values of " + name + ": " + values);
+        }
+    }
+
+    static void setParameter(TrunkProcessor.Parameters params, String name, double value) {
+        switch (name) {
+            case "alpha":
+                params.alpha = (int) Math.round(value);
+                break;
+            case "beta":
+                params.beta = value;
+                break;
+            case "inliersHigh":
+                params.percentInliersHigh = value;
+                break;
+            case "inliersLow":
+                params.percentInliersLow = value;
+                break;
+            case "binWidth":
+                params.binWidth = value;
+                break;
+            case "pixelPerMeter":
+                params.calibPixelPerMeter = value;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown parameter " + name);
+        }
+    }
+
+    /*
+     * Every combination of the axes' values, the defaults for parameters without an axis.
+     */
+    static List<Config> gridConfigs(List<Axis> axes, int captures) {
+        List<TrunkProcessor.Parameters> sets = new ArrayList<>();
+        sets.add(new TrunkProcessor.Parameters());
+        for (Axis axis : axes) {
+            List<TrunkProcessor.Parameters> expanded = new ArrayList<>();
+            for (TrunkProcessor.Parameters params : sets) {
+                for (double value : axis.values) {
+                    TrunkProcessor.Parameters copy = params.copy();
+                    setParameter(copy, axis.name, value);
+                    expanded.add(copy);
+                }
+            }
+            sets = expanded;
+        }
+        return toConfigs(sets, captures);
+    }
+
+    static List<Config> drawConfigs(List<Axis> axes, int count, Random random, int captures) {
+        List<TrunkProcessor.Parameters> sets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            TrunkProcessor.Parameters params = new TrunkProcessor.Parameters();
+            for (Axis axis : axes) {
+                setParameter(params, axis.name, axis.draw(random));
+            }
+            sets.add(params);
+        }
+        return toConfigs(sets, captures);
+    }
+
+    // Groups the sets into runs by everything but calibration
+    private static List<Config> toConfigs(List<TrunkProcessor.Parameters> sets, int captures) {
+        Map<String, Run> runs = new LinkedHashMap<>();
+        List<Config> configs = new ArrayList<>();
+        for (TrunkProcessor.Parameters params : sets) {
+            if (!(params.binWidth > 0.0)) {
+                throw new IllegalArgumentException("binWidth must be positive, got " + params.binWidth);
+            }
+            String key = params.alpha + "," + params.beta + "," + params.percentInliersHigh + ","
+                    + params.percentInliersLow + "," + params.binWidth;
+            Run run = runs.computeIfAbsent(key, k -> new Run(params, captures));
+            configs.add(new Config(configs.size(), params, run));
+        }
+        return configs;
+    }
+
+    /*
+     * Decodes every capture, in parallel. CSV captures are read from the cache if it is up
+     * to date, and added to it otherwise; TofFile captures are quick to read as they are.
+     */
+    static List<FloatBuffer> loadAll(ForkJoinPool pool, Path root, Path cache,
+            List<BatchRunner.Capture> captures) throws IOException, InterruptedException {
+        try {
+            return pool.submit(() -> captures.parallelStream().map(capture -> {
+                try {
+                    return loadCached(root, cache, capture.file);
+                } catch (IOException e) {
+                    throw new LoadException(capture.file, e);
+                }
+            }).collect(Collectors.toList())).get();
+        } catch (ExecutionException e) {
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof LoadException) {
+                    LoadException load = (LoadException) cause;
+                    throw new IOException("Unable to read " + load.file + ": "
+                            + load.getCause().getMessage(), load.getCause());
+                }
+            }
+            throw new IllegalStateException("Loading failed", e.getCause());
+        }
+    }
+
+    /*
+     * The depth planes of archived captures, as views of the mapped file. run(FloatBuffer) only
+     * reads them, so workers can share them.
+     */
+    static List<FloatBuffer> mapAll(SampleArchive archive, List<BatchRunner.Capture> captures)
+            throws IOException {
+        List<FloatBuffer> depths = new ArrayList<>();
+        for (BatchRunner.Capture capture : captures) {
+            depths.add(archive.getDepth(capture.entry));
+        }
+        return depths;
+    }
+
+    private static FloatBuffer loadCached(Path root, Path cache, Path file) throws IOException {
+        if (file.getFileName().toString().endsWith(TofFile.EXTENSION)) {
+            return FloatBuffer.wrap(checkShape(BatchRunner.load(file), file).dBuffer);
+        }
+        Path cached = cache.resolve(root.relativize(file).toString() + TofFile.EXTENSION);
+        if (Files.exists(cached)
+                && Files.getLastModifiedTime(cached).compareTo(Files.getLastModifiedTime(file)) >= 0) {
+            try (FileChannel channel = FileChannel.open(cached, StandardOpenOption.READ)) {
+                return FloatBuffer.wrap(checkShape(TofFile.read(channel), file).dBuffer);
+            }
+        }
+        TofUtil.TofArrays arrays = checkShape(BatchRunner.load(file), file);
+        ByteBuffer encoded = ByteBuffer.allocate(TofFile.fileSize(arrays.width, arrays.height));
+        TofFile.encode(arrays, null, encoded);
+        // Written aside and moved, so an interrupted sweep never leaves a partial cache file
+        Files.createDirectories(cached.getParent());
+        Path partial = Files.createTempFile(cached.getParent(), cached.getFileName().toString(), ".tmp");
+        try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.WRITE)) {
+            TofFile.write(channel, encoded);
+        }
+        Files.move(partial, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return FloatBuffer.wrap(arrays.dBuffer);
+    }
+
+    private static TofUtil.TofArrays checkShape(TofUtil.TofArrays arrays, Path file) throws IOException {
+        if (!arrays.hasShape(TrunkProcessor.TOF_WIDTH, TrunkProcessor.TOF_HEIGHT)) {
+            throw new IOException("Expected a " + TrunkProcessor.TOF_WIDTH + "x" + TrunkProcessor.TOF_HEIGHT
+                    + " capture, got " + arrays.width + "x" + arrays.height);
+        }
+        return arrays;
+    }
+
+    /*
+     * Processes every capture once per run. Tasks are ordered run by run, so a worker mostly
+     * takes consecutive captures of the same run and keeps its processor.
+     */
+    void process(ForkJoinPool pool, List<Config> configs) throws InterruptedException {
+        List<Run> runs = configs.stream().map(config -> config.run).distinct().collect(Collectors.toList());
+        int n = captures.size();
+        try {
+            pool.submit(() -> IntStream.range(0, runs.size() * n).parallel()
+                    .forEach(task -> process(runs.get(task / n), task % n))).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Sweep failed", e.getCause());
+        }
+    }
+
+    private void process(Run run, int capture) {
+        RunProcessor current = processors.get();
+        if (current == null || current.run != run) {
+            current = new RunProcessor(run);
+            processors.set(current);
+        }
+        long start = System.nanoTime();
+        TrunkProcessor.Result result = null;
+        String failure = null;
+        try {
+            result = current.processor.run(depths.get(capture));
+        } catch (TrunkProcessor.ProcessingException e) {
+            failure = e.getMessage();
+        } catch (RuntimeException e) {
+            // Fails this capture of the run, rather than the whole sweep
+            failure = e.toString();
+        }
+        run.outcomes[capture] = new Outcome(result, failure, (System.nanoTime() - start) / 1e6);
+    }
+
+    /*
+     * Error distribution and processing time of one set of parameters.
+     * Errors are estimated minus measured diameter, in m, over the captures that did not fail.
+     */
+    static class Summary {
+        final Config config;
+        int failed;
+        double meanError;
+        double meanAbsError;
+        double rmse;
+        double medianAbsError;
+        double p90AbsError;
+        double maxAbsError;
+        double meanPercentError;
+        double subpixelMeanAbsError;
+        double meanMillis;
+        double medianMillis;
+        double p90Millis;
+
+        Summary(Config config, double[] referenceWidths) {
+            this.config = config;
+            Outcome[] outcomes = config.run.outcomes;
+            double[] absErrors = new double[outcomes.length];
+            double[] millis = new double[outcomes.length];
+            int n = 0;
+            for (int i = 0; i < outcomes.length; i++) {
+                Outcome outcome = outcomes[i];
+                millis[i] = outcome.millis;
+                if (outcome.result == null) {
+                    failed++;
+                    continue;
+                }
+                double reference = referenceWidths[i];
+                double error = width(config, outcome.result) - reference;
+                meanError += error;
+                meanAbsError += Math.abs(error);
+                rmse += error * error;
+                meanPercentError += Math.abs(error) / reference * 100;
+                subpixelMeanAbsError += Math.abs(subpixelWidth(config, outcome.result) - reference);
+                absErrors[n++] = Math.abs(error);
+            }
+            if (n == 0) {
+                meanError = meanAbsError = rmse = medianAbsError = p90AbsError = maxAbsError =
+                        meanPercentError = subpixelMeanAbsError = Double.NaN;
+            } else {
+                meanError /= n;
+                meanAbsError /= n;
+                rmse = Math.sqrt(rmse / n);
+                meanPercentError /= n;
+                subpixelMeanAbsError /= n;
+                absErrors = Arrays.copyOf(absErrors, n);
+                Arrays.sort(absErrors);
+                medianAbsError = percentile(absErrors, 0.5);
+                p90AbsError = percentile(absErrors, 0.9);
+                maxAbsError = absErrors[n - 1];
+            }
+            Arrays.sort(millis);
+            meanMillis = Arrays.stream(millis).average().orElse(Double.NaN);
+            medianMillis = percentile(millis, 0.5);
+            p90Millis = percentile(millis, 0.9);
+        }
+
+        String toCsv() {
+            TrunkProcessor.Parameters p = config.params;
+            return String.format(Locale.US, "%d,%d,%s,%s,%s,%s,%s,%d,%d,%.5f,%.5f,%.5f,%.5f,%.5f,%.5f,"
+                            + "%.3f,%.5f,%.2f,%.2f,%.2f",
+                    config.id, p.alpha, p.beta, p.percentInliersHigh, p.percentInliersLow, p.binWidth,
+                    p.calibPixelPerMeter, config.run.outcomes.length, failed, meanError, meanAbsError,
+                    rmse, medianAbsError, p90AbsError, maxAbsError, meanPercentError,
+                    subpixelMeanAbsError, meanMillis, medianMillis, p90Millis);
+        }
+    }
+
+    // Linear interpolation between the closest ranks, as numpy.percentile does
+    static double percentile(double[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        double rank = fraction * (sorted.length - 1);
+        int lo = (int) Math.floor(rank);
+        int hi = Math.min(lo + 1, sorted.length - 1);
+        return sorted[lo] + (rank - lo) * (sorted[hi] - sorted[lo]);
+    }
+
+    // The run's result with the set's calibration
+    private static double width(Config config, TrunkProcessor.Result result) {
+        return TrunkProcessor.getEstimatedWidth(result.depth, result.right - result.left,
+                config.params.calibPixelPerMeter);
+    }
+
+    private static double subpixelWidth(Config config, TrunkProcessor.Result result) {
+        return TrunkProcessor.getEstimatedWidth(result.depth, result.rightSubpixel - result.leftSubpixel,
+                config.params.calibPixelPerMeter);
+    }
+
+    private static void writeCaptures(Writer writer, List<Config> configs, List<BatchRunner.Capture> captures,
+            double[] referenceWidths) throws IOException {
+        writer.write(CAPTURES_HEADER + "\n");
+        for (Config config : configs) {
+            for (int i = 0; i < captures.size(); i++) {
+                BatchRunner.Capture capture = captures.get(i);
+                Outcome outcome = config.run.outcomes[i];
+                String prefix = String.format(Locale.US, "%d,%d,%d,%s,%s", config.id, capture.sample,
+                        capture.capture, BatchRunner.csvField(capture.name),
+                        referenceWidths[i]);
+                if (outcome.result == null) {
+                    writer.write(String.format(Locale.US, "%s,,,,%.2f,%s\n", prefix, outcome.millis,
+                            BatchRunner.csvField(String.valueOf(outcome.failure))));
+                } else {
+                    double width = width(config, outcome.result);
+                    writer.write(String.format(Locale.US, "%s,%.5f,%.5f,%.5f,%.2f,\n", prefix, width,
+                            subpixelWidth(config, outcome.result), width - referenceWidths[i],
+                            outcome.millis));
+                }
+            }
+        }
+    }
+
+    private static String describe(TrunkProcessor.Parameters p) {
+        return String.format(Locale.US, "alpha=%d beta=%s inliersHigh=%s inliersLow=%s binWidth=%s "
+                        + "pixelPerMeter=%s", p.alpha, p.beta, p.percentInliersHigh, p.percentInliersLow,
+                p.binWidth, p.calibPixelPerMeter);
+    }
+
+    private static class LoadException extends RuntimeException {
+        final Path file;
+
+        LoadException(Path file, IOException cause) {
+            super(cause);
+            this.file = file;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.trees.batch;
+
+import com.trees.common.helpers.TofUtil;
+import com.trees.common.pointcloud.Icp;
+import com.trees.common.pointcloud.PcdFile;
+import com.trees.common.pointcloud.PlyFile;
+import com.trees.common.pointcloud.PointCloud;
+import com.trees.common.pointcloud.VoxelGrid;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/*
+ * Point clouds from stored captures, in place of the PCL prototypes in PclProcessing:
+ *
+ *   cloud convert <capture> <out.pcd|out.ply> [options]
+ *       back-projects a capture, as pcd_write did, and writes it as binary PCD or PLY
+ *   cloud icp <source> <target> [options]
+ *       aligns source to target, as iterative_closest_point did, and prints the transform
+ *
+ * Clouds are read from captures, in either depth file format, or from PCD or PLY files.
+ * Options:
+ *   --intrinsics fx,fy,cx,cy   of the depth image, PointCloud.calibratedIntrinsics() by default
+ *   --confidence C             leave out depths of less confidence, 0 by default
+ *   --voxel LEAF               downsample clouds with a voxel grid of LEAF meters
+ *   --max-distance D           ICP pairs no points further apart, in m
+ *   --iterations N             ICP iterations at most, Icp.MAX_ITERATIONS by default
+ */
+public class PointCloudTool {
+    private static final String USAGE = "Usage: cloud convert <capture> <out" + PcdFile.EXTENSION + "|out"
+            + PlyFile.EXTENSION + "> [options]\n       cloud icp <source> <target> [options]";
+
+    private float[] intrinsics;
+    private float minConfidence;
+    private VoxelGrid grid;
+
+    public static void main(String[] args) throws IOException {
+        PointCloudTool tool = new PointCloudTool();
+        Icp.Parameters params = new Icp.Parameters();
+        List<String> paths = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                boolean hasValue = i + 1 < args.length;
+                if (arg.equals("--intrinsics") && hasValue) {
+                    String[] values = args[++i].split(",");
+                    if (values.length != 4) {
+                        throw new IllegalArgumentException("Intrinsics are fx,fy,cx,cy");
+                    }
+                    tool.intrinsics = new float[4];
+                    for (int k = 0; k < 4; k++) {
+                        tool.intrinsics[k] = Float.parseFloat(values[k]);
+                    }
+                } else if (arg.equals("--confidence") && hasValue) {
+                    tool.minConfidence = Float.parseFloat(args[++i]);
+                } else if (arg.equals("--voxel") && hasValue) {
+                    tool.grid = new VoxelGrid(Float.parseFloat(args[++i]));
+                } else if (arg.equals("--max-distance") && hasValue) {
+                    params.maxCorrespondenceDistance = Double.parseDouble(args[++i]);
+                } else if (arg.equals("--iterations") && hasValue) {
+                    params.maxIterations = Integer.parseInt(args[++i]);
+                } else if (arg.startsWith("--")) {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                } else {
+                    paths.add(arg);
+                }
+            }
+            if (paths.size() != 3 || !(paths.get(0).equals("convert") || paths.get(0).equals("icp"))) {
+                throw new IllegalArgumentException("Expected a command and two files");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        if (paths.get(0).equals("convert")) {
+            tool.convert(new File(paths.get(1)).toPath(), new File(paths.get(2)).toPath());
+        } else {
+            tool.align(new File(paths.get(1)).toPath(), new File(paths.get(2)).toPath(), params);
+        }
+    }
+
+    private void convert(Path capture, Path out) throws IOException {
+        String name = out.getFileName().toString();
+        boolean isPly = name.endsWith(PlyFile.EXTENSION);
+        if (!isPly && !name.endsWith(PcdFile.EXTENSION)) {
+            System.err.println("Write " + PcdFile.EXTENSION + " or " + PlyFile.EXTENSION + " files, not " + name);
+            System.exit(2);
+        }
+        PointCloud cloud = load(capture);
+        try (FileChannel channel = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (isPly) {
+                PlyFile.write(channel, cloud);
+            } else {
+                PcdFile.write(channel, cloud);
+            }
+        }
+        System.err.printf(Locale.US, "Saved %d points to %s%n", cloud.size, out);
+    }
+
+    private void align(Path source, Path target, Icp.Parameters params) throws IOException {
+        PointCloud sourceCloud = load(source);
+        PointCloud targetCloud = load(target);
+        long start = System.nanoTime();
+        Icp icp = new Icp(params);
+        icp.setTarget(targetCloud);
+        Icp.Result result = icp.align(sourceCloud, null);
+
+        System.out.printf(Locale.US, "converged: %b, iterations: %d, fitness: %.6g m^2, pairs: %d of %d%n",
+                result.converged, result.iterations, result.fitness, result.correspondences, sourceCloud.size);
+        // Row by row; the matrix is column-major
+        for (int row = 0; row < 4; row++) {
+            System.out.printf(Locale.US, "%10.6f %10.6f %10.6f %10.6f%n", result.transform[row],
+                    result.transform[4 + row], result.transform[8 + row], result.transform[12 + row]);
+        }
+        System.err.printf(Locale.US, "Aligned %d to %d points in %.1f ms%n", sourceCloud.size, targetCloud.size,
+                (System.nanoTime() - start) / 1e6);
+    }
+
+    /* A cloud from a PCD or PLY file, or back-projected from a capture, downsampled if asked */
+    private PointCloud load(Path file) throws IOException {
+        String name = file.getFileName().toString();
+        PointCloud cloud;
+        if (name.endsWith(PcdFile.EXTENSION) || name.endsWith(PlyFile.EXTENSION)) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                cloud = name.endsWith(PcdFile.EXTENSION) ? PcdFile.read(channel) : PlyFile.read(channel);
+            }
+        } else {
+            TofUtil.TofArrays arrays = BatchRunner.load(file);
+            float[] k = intrinsics != null ? intrinsics : PointCloud.calibratedIntrinsics(arrays.width, arrays.height);
+            cloud = PointCloud.fromDepth(arrays, k, minConfidence, null);
+        }
+        return grid != null ? grid.filter(cloud, null) : cloud;
+    }
+}
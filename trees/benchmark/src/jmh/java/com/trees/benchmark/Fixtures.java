@@ -0,0 +1,99 @@
+package com.trees.benchmark;
+
+import android.graphics.ImageFormat;
+
+import com.trees.common.helpers.ImageSnapshot;
+import com.trees.common.helpers.TofUtil;
+import com.trees.common.processing.TrunkProcessor;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import javax.imageio.ImageIO;
+
+/*
+ * Recorded frames for the benchmarks. The build passes their locations as the system properties
+ * trees.samples, the directory of CSV depth captures, and trees.frame, a JPEG camera frame.
+ */
+final class Fixtures {
+    private Fixtures() {
+    }
+
+    /*
+     * Reads a depth capture, such as "Capture_Sample_2_22", from the samples directory.
+     */
+    static TofUtil.TofArrays loadCapture(String name) throws IOException {
+        File file = new File(getFile("trees.samples"), name);
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            return TofUtil.readCsv(reader, TrunkProcessor.TOF_WIDTH, TrunkProcessor.TOF_HEIGHT);
+        }
+    }
+
+    /*
+     * Encodes the capture as the camera delivers it: DEPTH16 samples of [confidence (3 bits) |
+     * range in mm (13 bits)], little-endian, 2 * width bytes per row. Decodes back to the capture.
+     */
+    static ByteBuffer toDepth16(TofUtil.TofArrays arrays) {
+        ByteBuffer plane = ByteBuffer.allocateDirect(arrays.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < arrays.length; i++) {
+            int range = Math.min(Math.max(Math.round(arrays.dBuffer[i] * 1000), 0), 0x1FFF);
+            // Code 0 is full confidence, codes 1 to 7 are 0/7 to 6/7
+            float confidence = arrays.percentageBuffer[i];
+            int code = confidence >= 1.0f ? 0 : Math.min(Math.round(confidence * 7) + 1, 7);
+            plane.putShort((short) (code << 13 | range));
+        }
+        plane.flip();
+        return plane;
+    }
+
+    /*
+     * The recorded camera frame as a YUV_420_888 snapshot, with the semi-planar chroma layout
+     * (pixel stride 2, V interleaved after U) that the camera delivers.
+     */
+    static ImageSnapshot loadCameraFrame() throws IOException {
+        BufferedImage image = ImageIO.read(getFile("trees.frame"));
+        if (image == null) {
+            throw new IOException("Unable to decode the camera frame");
+        }
+        int width = image.getWidth() & ~1;
+        int height = image.getHeight() & ~1;
+        byte[] y = new byte[width * height];
+        byte[] uv = new byte[width * height / 2];
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                int rgb = image.getRGB(col, row);
+                int r = (rgb >> 16) & 0xFF;
+                int g = (rgb >> 8) & 0xFF;
+                int b = rgb & 0xFF;
+                // BT.601 limited range, as camera frames use
+                y[row * width + col] = (byte) ((66 * r + 129 * g + 25 * b + 128 >> 8) + 16);
+                if ((row & 1) == 0 && (col & 1) == 0) {
+                    int i = (row / 2) * width + col;
+                    uv[i] = (byte) ((-38 * r - 74 * g + 112 * b + 128 >> 8) + 128);
+                    uv[i + 1] = (byte) ((112 * r - 94 * g - 18 * b + 128 >> 8) + 128);
+                }
+            }
+        }
+        ByteBuffer u = ByteBuffer.wrap(uv, 0, uv.length - 1).slice();
+        ByteBuffer v = ByteBuffer.wrap(uv, 1, uv.length - 1).slice();
+
+        ImageSnapshot snapshot = new ImageSnapshot();
+        snapshot.copyFrom(ImageFormat.YUV_420_888, width, height, 0,
+                new ByteBuffer[] {ByteBuffer.wrap(y), u, v},
+                new int[] {width, width, width}, new int[] {1, 2, 2});
+        return snapshot;
+    }
+
+    private static File getFile(String property) {
+        String path = System.getProperty(property);
+        if (path == null) {
+            throw new IllegalStateException("Set " + property + " to the fixture location");
+        }
+        return new File(path);
+    }
+}
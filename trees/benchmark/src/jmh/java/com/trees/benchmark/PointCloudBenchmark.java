@@ -0,0 +1,165 @@
+package com.trees.benchmark;
+
+import com.trees.common.helpers.TofUtil;
+import com.trees.common.pointcloud.Icp;
+import com.trees.common.pointcloud.KdTree;
+import com.trees.common.pointcloud.PcdFile;
+import com.trees.common.pointcloud.PlyFile;
+import com.trees.common.pointcloud.PointCloud;
+import com.trees.common.pointcloud.VoxelGrid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * The point cloud toolkit on a full depth frame: 240 x 180 = 43,200 points.
+ *
+ * No capture has a depth for every pixel, so the frame is Capture_Sample_5_40, the capture with
+ * the most, with each missing depth filled from the last valid one before it. fromDepth runs on
+ * the capture as recorded. ICP aligns a copy of the frame, moved by 2 degrees and 2 cm as two
+ * views of a trunk from a steady hand are, back onto it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PointCloudBenchmark {
+    private static final float VOXEL_LEAF = 0.02f;
+
+    private TofUtil.TofArrays capture;
+    private float[] intrinsics;
+    private PointCloud frame;
+    private PointCloud moved;
+    private PointCloud out;
+    private VoxelGrid grid;
+    private KdTree tree;
+    private Icp icp;
+    private File directory;
+    private File pcdFile;
+    private File plyFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        capture = Fixtures.loadCapture("Capture_Sample_5_40");
+        intrinsics = PointCloud.calibratedIntrinsics(capture.width, capture.height);
+        frame = PointCloud.fromDepth(fillHoles(capture), intrinsics, 0, null);
+        out = new PointCloud(frame.size);
+        grid = new VoxelGrid(VOXEL_LEAF);
+        tree = new KdTree(frame);
+
+        double angle = Math.toRadians(2);
+        float c = (float) Math.cos(angle);
+        float s = (float) Math.sin(angle);
+        moved = frame.copy();
+        moved.transform(new float[] {c, 0, -s, 0, 0, 1, 0, 0, s, 0, c, 0, 0.02f, 0, 0, 1});
+        icp = new Icp();
+        icp.setTarget(frame);
+
+        directory = Files.createTempDirectory("point-cloud").toFile();
+        pcdFile = new File(directory, "frame" + PcdFile.EXTENSION);
+        plyFile = new File(directory, "frame" + PlyFile.EXTENSION);
+        writePcd();
+        writePly();
+    }
+
+    @TearDown
+    public void tearDown() {
+        pcdFile.delete();
+        plyFile.delete();
+        directory.delete();
+    }
+
+    /* A copy of arrays with every missing depth taken from the last valid one, in row-major order */
+    private static TofUtil.TofArrays fillHoles(TofUtil.TofArrays arrays) {
+        TofUtil.TofArrays filled = new TofUtil.TofArrays(arrays.width, arrays.height);
+        float last = 0;
+        for (int i = 0; i < arrays.length && last == 0; i++) {
+            if (arrays.dBuffer[i] > 0) {
+                last = arrays.dBuffer[i];
+            }
+        }
+        for (int i = 0; i < arrays.length; i++) {
+            if (arrays.dBuffer[i] > 0) {
+                last = arrays.dBuffer[i];
+            }
+            filled.dBuffer[i] = last;
+            filled.percentageBuffer[i] = arrays.percentageBuffer[i];
+        }
+        return filled;
+    }
+
+    @Benchmark
+    public PointCloud fromDepth() {
+        return PointCloud.fromDepth(capture, intrinsics, 0, out);
+    }
+
+    @Benchmark
+    public PointCloud voxelGrid() {
+        return grid.filter(frame, out);
+    }
+
+    @Benchmark
+    public KdTree buildKdTree() {
+        tree.build(frame);
+        return tree;
+    }
+
+    /* The nearest frame point to each point of the moved copy, as one ICP iteration searches */
+    @Benchmark
+    public float nearestNeighbours() {
+        float sum = 0;
+        for (int i = 0; i < moved.size; i++) {
+            tree.nearest(moved.x[i], moved.y[i], moved.z[i]);
+            sum += tree.getDistanceSquared();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Icp.Result icp() {
+        return icp.align(moved, null);
+    }
+
+    @Benchmark
+    public void writePcd() throws IOException {
+        try (FileChannel channel = FileChannel.open(pcdFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            PcdFile.write(channel, frame);
+        }
+    }
+
+    @Benchmark
+    public PointCloud readPcd() throws IOException {
+        try (FileChannel channel = FileChannel.open(pcdFile.toPath(), StandardOpenOption.READ)) {
+            return PcdFile.read(channel);
+        }
+    }
+
+    @Benchmark
+    public void writePly() throws IOException {
+        try (FileChannel channel = FileChannel.open(plyFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            PlyFile.write(channel, frame);
+        }
+    }
+
+    @Benchmark
+    public PointCloud readPly() throws IOException {
+        try (FileChannel channel = FileChannel.open(plyFile.toPath(), StandardOpenOption.READ)) {
+            return PlyFile.read(channel);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.trees.benchmark;
+
+import com.trees.common.helpers.TofUtil;
+import com.trees.common.processing.TrunkProcessor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Decoding a DEPTH16 frame, as on the capture worker.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TofDecodeBenchmark {
+    private static final int WIDTH = TrunkProcessor.TOF_WIDTH;
+    private static final int HEIGHT = TrunkProcessor.TOF_HEIGHT;
+
+    @Param({"Capture_Sample_0_16", "Capture_Sample_2_22"})
+    public String capture;
+
+    private final TofUtil tofUtil = new TofUtil();
+    private ByteBuffer plane;
+    private TofUtil.TofArrays arrays;
+
+    @Setup
+    public void setUp() throws IOException {
+        plane = Fixtures.toDepth16(Fixtures.loadCapture(capture));
+        arrays = new TofUtil.TofArrays(WIDTH, HEIGHT);
+    }
+
+    @Benchmark
+    public TofUtil.TofArrays parseTof() {
+        return tofUtil.parseTof(plane, WIDTH * 2, WIDTH, HEIGHT, arrays);
+    }
+}
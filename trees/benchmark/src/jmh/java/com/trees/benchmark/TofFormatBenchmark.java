@@ -0,0 +1,117 @@
+package com.trees.benchmark;
+
+import com.trees.common.helpers.SampleArchive;
+import com.trees.common.helpers.TofFile;
+import com.trees.common.helpers.TofUtil;
+import com.trees.common.processing.TrunkProcessor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Saving and loading a depth capture in the binary TofFile format and the older CSV format,
+ * as ImageStore does, and loading it from a SampleArchive, as the batch tools do.
+ * Files go to a temporary directory, so mostly to the page cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TofFormatBenchmark {
+    private TofUtil.TofArrays arrays;
+    private ByteBuffer encoded;
+    private File directory;
+    private File binaryFile;
+    private File csvFile;
+    private File archiveFile;
+    private float[] depth;
+
+    @Setup
+    public void setUp() throws IOException {
+        arrays = Fixtures.loadCapture("Capture_Sample_2_22");
+        encoded = ByteBuffer.allocateDirect(TofFile.fileSize(arrays.width, arrays.height));
+        directory = Files.createTempDirectory("tof-format").toFile();
+        binaryFile = new File(directory, "capture" + TofFile.EXTENSION);
+        csvFile = new File(directory, "capture");
+        archiveFile = new File(directory, "captures" + SampleArchive.EXTENSION);
+        depth = new float[arrays.length];
+        writeBinary();
+        writeCsv();
+        try (SampleArchive.Writer writer = new SampleArchive.Writer(archiveFile, arrays.width, arrays.height,
+                0, 0)) {
+            writer.add(2, 22, arrays, null);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        binaryFile.delete();
+        csvFile.delete();
+        archiveFile.delete();
+        directory.delete();
+    }
+
+    @Benchmark
+    public ByteBuffer encodeBinary() {
+        TofFile.encode(arrays, null, encoded);
+        return encoded;
+    }
+
+    @Benchmark
+    public void writeBinary() throws IOException {
+        TofFile.encode(arrays, null, encoded);
+        try (FileChannel channel = FileChannel.open(binaryFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            TofFile.write(channel, encoded);
+        }
+    }
+
+    @Benchmark
+    public TofUtil.TofArrays readBinary() throws IOException {
+        try (FileChannel channel = FileChannel.open(binaryFile.toPath(), StandardOpenOption.READ)) {
+            return TofFile.read(channel);
+        }
+    }
+
+    @Benchmark
+    public void writeCsv() throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(csvFile))) {
+            TofUtil.writeCsv(arrays, writer);
+        }
+    }
+
+    @Benchmark
+    public TofUtil.TofArrays readCsv() throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(csvFile))) {
+            return TofUtil.readCsv(reader, TrunkProcessor.TOF_WIDTH, TrunkProcessor.TOF_HEIGHT);
+        }
+    }
+
+    /*
+     * Opens the archive and copies out the depth plane; the confidence plane is never read.
+     */
+    @Benchmark
+    public float[] readArchive() throws IOException {
+        try (SampleArchive archive = SampleArchive.open(archiveFile)) {
+            archive.getDepth(0).get(depth);
+            return depth;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.trees.benchmark;
+
+import com.trees.common.helpers.TofFusion;
+import com.trees.common.helpers.TofUtil;
+import com.trees.common.processing.TrunkProcessor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Fusing a burst of depth frames into one capture.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TofFusionBenchmark {
+    // Captures of one tree, standing in for the frames of a burst
+    private static final String[] BURST = {
+            "Capture_Sample_2_22", "Capture_Sample_2_23", "Capture_Sample_2_24",
+            "Capture_Sample_2_25", "Capture_Sample_2_26",
+    };
+
+    private TofUtil.TofArrays[] frames;
+    private TofFusion fusion;
+    private final TofUtil.TofArrays fused =
+            new TofUtil.TofArrays(TrunkProcessor.TOF_WIDTH, TrunkProcessor.TOF_HEIGHT);
+
+    @Setup
+    public void setUp() throws IOException {
+        frames = new TofUtil.TofArrays[BURST.length];
+        for (int i = 0; i < BURST.length; i++) {
+            frames[i] = Fixtures.loadCapture(BURST[i]);
+        }
+        fusion = new TofFusion(BURST.length, TrunkProcessor.TOF_WIDTH, TrunkProcessor.TOF_HEIGHT);
+    }
+
+    @Benchmark
+    public TofUtil.TofArrays fuseBurst() {
+        fusion.reset();
+        for (TofUtil.TofArrays frame : frames) {
+            fusion.add(frame);
+        }
+        return fusion.fuse(fused);
+    }
+}
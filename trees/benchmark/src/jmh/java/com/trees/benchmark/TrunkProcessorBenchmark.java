@@ -0,0 +1,47 @@
+package com.trees.benchmark;
+
+import com.trees.common.processing.TrunkProcessor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Measuring the trunk in a capture, and in a preview frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TrunkProcessorBenchmark {
+
+    @Param({"Capture_Sample_0_16", "Capture_Sample_2_22", "Capture_Sample_4_30"})
+    public String capture;
+
+    private final TrunkProcessor processor = new TrunkProcessor();
+    private float[] depth;
+
+    @Setup
+    public void setUp() throws IOException, TrunkProcessor.ProcessingException {
+        depth = Fixtures.loadCapture(capture).dBuffer;
+        // Fail now, rather than timing an exception
+        processor.run(depth);
+    }
+
+    @Benchmark
+    public TrunkProcessor.Result run() throws TrunkProcessor.ProcessingException {
+        return processor.run(depth);
+    }
+
+    @Benchmark
+    public TrunkProcessor.Result runPreview() throws TrunkProcessor.ProcessingException {
+        return processor.runPreview(depth);
+    }
+}
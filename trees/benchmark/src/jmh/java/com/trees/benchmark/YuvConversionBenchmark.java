@@ -0,0 +1,71 @@
+package com.trees.benchmark;
+
+import com.trees.common.helpers.ImageSnapshot;
+import com.trees.common.helpers.ImageUtil;
+import com.trees.common.processing.TrunkProcessor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Converting the camera frame, as convertCameraImage does for each capture.
+ * yuvToNv21Reference reads one sample at a time, as the conversion did before it read whole rows.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class YuvConversionBenchmark {
+    private ImageSnapshot snapshot;
+    private final ImageUtil imageUtil = new ImageUtil();
+    private byte[] nv21;
+    private final int[] argb = new int[TrunkProcessor.WIDTH * TrunkProcessor.HEIGHT];
+
+    @Setup
+    public void setUp() throws IOException {
+        snapshot = Fixtures.loadCameraFrame();
+        nv21 = imageUtil.YUV_420_888toNV21(snapshot, null);
+    }
+
+    @Benchmark
+    public byte[] yuvToNv21() {
+        return imageUtil.YUV_420_888toNV21(snapshot, nv21);
+    }
+
+    @Benchmark
+    public byte[] yuvToNv21Reference() {
+        ImageSnapshot.PlaneCopy y = snapshot.getPlane(0);
+        ImageSnapshot.PlaneCopy u = snapshot.getPlane(1);
+        ImageSnapshot.PlaneCopy v = snapshot.getPlane(2);
+        int width = snapshot.width;
+        int height = snapshot.height;
+        int pos = 0;
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                nv21[pos++] = y.buffer.get(row * y.rowStride + col);
+            }
+        }
+        for (int row = 0; row < height / 2; row++) {
+            for (int col = 0; col < width / 2; col++) {
+                int index = row * v.rowStride + col * v.pixelStride;
+                nv21[pos++] = v.buffer.get(index);
+                nv21[pos++] = u.buffer.get(index);
+            }
+        }
+        return nv21;
+    }
+
+    @Benchmark
+    public int[] nv21ToArgb() {
+        ImageUtil.NV21toARGB(nv21, snapshot.width, snapshot.height,
+                TrunkProcessor.WIDTH, TrunkProcessor.HEIGHT, argb);
+        return argb;
+    }
+}